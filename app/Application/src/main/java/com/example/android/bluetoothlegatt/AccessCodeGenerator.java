@@ -0,0 +1,77 @@
+package com.example.android.bluetoothlegatt;
+
+import java.security.SecureRandom;
+
+/**
+ * Random access codes from a {@link SecureRandom}: single digits, or
+ * {@link SmartLockCodec#CODE_DIGITS} digit codes made of them.  Random bytes are fetched a
+ * buffer at a time and bytes of 250 and up are skipped, so every digit is equally likely and
+ * generating a code set allocates nothing.
+ *
+ * <p>Not thread safe.  This class has no Android dependencies.
+ */
+public class AccessCodeGenerator {
+
+    // Largest multiple of 10 that fits in a byte.
+    private static final int UNBIASED_LIMIT = 250;
+    private static final int POOL_SIZE = 64;
+
+    private final SecureRandom mRandom;
+    private final byte[] mPool = new byte[POOL_SIZE];
+    private int mPoolPos = POOL_SIZE;
+
+    public AccessCodeGenerator() {
+        this(new SecureRandom());
+    }
+
+    public AccessCodeGenerator(SecureRandom random) {
+        mRandom = random;
+    }
+
+    /** A digit from 0 to 9. */
+    public int nextDigit() {
+        for (;;) {
+            if (mPoolPos == POOL_SIZE) {
+                mRandom.nextBytes(mPool);
+                mPoolPos = 0;
+            }
+            final int b = mPool[mPoolPos++] & 0xFF;
+            if (b < UNBIASED_LIMIT) {
+                return b % 10;
+            }
+        }
+    }
+
+    /** A code of {@link SmartLockCodec#CODE_DIGITS} digits, leading zeros allowed. */
+    public int nextCode() {
+        int code = 0;
+        for (int i = 0; i < SmartLockCodec.CODE_DIGITS; i++) {
+            code = code * 10 + nextDigit();
+        }
+        return code;
+    }
+
+    /**
+     * Fills {@code out} with codes, see {@link #nextCode()}.
+     *
+     * @return {@code out}.
+     */
+    public int[] nextCodes(int[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = nextCode();
+        }
+        return out;
+    }
+
+    /**
+     * Appends {@code count} digits to {@code out}.
+     *
+     * @return {@code out}.
+     */
+    public StringBuilder next(StringBuilder out, int count) {
+        for (int i = 0; i < count; i++) {
+            out.append((char) ('0' + nextDigit()));
+        }
+        return out;
+    }
+}
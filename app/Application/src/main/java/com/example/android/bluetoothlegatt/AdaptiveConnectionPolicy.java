@@ -0,0 +1,54 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * The default {@link ConnectionPolicy}: high priority and 2M PHY while the link has a burst
+ * to move, i.e. a multi-chunk frame, a connect with its MTU and notification setup, or a
+ * batch the app marked, then balanced, and low power once the link idled for a while.
+ *
+ * <p>A mode change takes the controller a few connection events to apply, so the link stays
+ * in high priority for {@link #HIGH_LINGER_MS} after a burst instead of flapping between the
+ * chunks of back to back commands.  A single one-chunk command does not switch modes; by the
+ * time the switch took effect the lock would have answered.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class AdaptiveConnectionPolicy implements ConnectionPolicy {
+
+    public static final long HIGH_LINGER_MS = 1000;
+    public static final long IDLE_MS = 10000;
+
+    private final long mHighLingerMs;
+    private final long mIdleMs;
+
+    public AdaptiveConnectionPolicy() {
+        this(HIGH_LINGER_MS, IDLE_MS);
+    }
+
+    public AdaptiveConnectionPolicy(long highLingerMs, long idleMs) {
+        mHighLingerMs = highLingerMs;
+        mIdleMs = idleMs;
+    }
+
+    @Override
+    public int select(int current, int queuedOps, boolean burst, long idleMs) {
+        if (burst || queuedOps > 1) {
+            return MODE_HIGH;
+        }
+        if (current == MODE_HIGH && idleMs < mHighLingerMs) {
+            return MODE_HIGH;
+        }
+        return idleMs < mIdleMs ? MODE_BALANCED : MODE_LOW_POWER;
+    }
+
+    @Override
+    public long recheckMs(int mode, long idleMs) {
+        switch (mode) {
+            case MODE_HIGH:
+                return Math.max(0, mHighLingerMs - idleMs);
+            case MODE_BALANCED:
+                return Math.max(0, mIdleMs - idleMs);
+            default:
+                return -1;
+        }
+    }
+}
@@ -1,37 +1,317 @@
 package com.example.android.bluetoothlegatt;
 
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class BackProcess implements Runnable {
-    private final static String TAG = BackProcess.class.getSimpleName();
-    Thread backgroundThread;
+/**
+ * Background work for connected locks, on one scheduler thread that sleeps until the next
+ * task is due: status polling, keep-alive writes on idle links, retries with exponential
+ * backoff for failed writes, and a code refresh when a lock runs out of codes.  Nothing here
+ * waits on a GATT operation; a pending write is looked at again later.
+ *
+ * <p>The lock's status characteristic only notifies, so a poll writes
+ * {@code SL_APP_READY_CMD}, which the lock answers with a telemetry notification.  Only
+ * notifications, reported through {@link #onNotification}, count as traffic on the link.
+ *
+ * <p>Every run of a task counts as one wakeup, and the thread CPU time spent in tasks is
+ * added up, so the cost of an idle lock can be read from {@link #getWakeups()} and
+ * {@link #getCpuTimeNanos()}.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class BackProcess {
 
-    public void start() {
-        if( backgroundThread == null ) {
-            backgroundThread = new Thread( this );
-            backgroundThread.start();
-        }
+    public static final long DEFAULT_POLL_INTERVAL_MS = 60000;
+    public static final long DEFAULT_KEEP_ALIVE_MS = 20000;
+    public static final int MAX_RETRIES = 4;
+    public static final long RETRY_BASE_MS = 250;
+    public static final long RETRY_MAX_MS = 8000;
+    // First look at a pending write; doubled while it is still pending.
+    private static final long CHECK_DELAY_MS = 50;
+    private static final long CHECK_MAX_DELAY_MS = 1000;
+
+    /** What the worker does to a lock; implemented by BluetoothLeService. */
+    public interface Host {
+        /** Writes a frame, or returns null if the lock is not connected. */
+        Future<Integer> write(String address, byte[] frame);
+
+        /** Loads new access codes into the lock. */
+        void refreshCodes(String address);
+
+        /** A task threw; a periodic one is not run again. */
+        void onTaskFailed(RuntimeException e);
+    }
+
+    /** CPU time of the calling thread, e.g. {@code Debug.threadCpuTimeNanos()}. */
+    public interface CpuClock {
+        long threadCpuTimeNanos();
+    }
+
+    private final Host mHost;
+    private final CpuClock mCpuClock;
+    private final long mPollIntervalMs;
+    private final long mKeepAliveMs;
+    // SL_APP_READY_CMD, for polls and keep-alive writes.
+    private final byte[] mReadyFrame;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final ConcurrentHashMap<String, Watch> mWatches = new ConcurrentHashMap<String, Watch>();
+    private final ConcurrentHashMap<String, Boolean> mRefreshes =
+            new ConcurrentHashMap<String, Boolean>();
+    // Only used on the worker thread.
+    private final Random mJitter = new Random();
+
+    private final AtomicLong mWakeups = new AtomicLong();
+    private final AtomicLong mCpuTimeNanos = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mFailedWrites = new AtomicLong();
+    private final AtomicLong mFailedTasks = new AtomicLong();
+
+    public BackProcess(Host host, CpuClock cpuClock) {
+        this(host, cpuClock, DEFAULT_POLL_INTERVAL_MS, DEFAULT_KEEP_ALIVE_MS);
     }
 
+    public BackProcess(Host host, CpuClock cpuClock, long pollIntervalMs, long keepAliveMs) {
+        mHost = host;
+        mCpuClock = cpuClock;
+        mPollIntervalMs = pollIntervalMs;
+        mKeepAliveMs = keepAliveMs;
+        final ByteBuffer frame = ByteBuffer.allocate(1);
+        SmartLockCodec.encodeAppReady(frame);
+        mReadyFrame = frame.array();
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "BackProcess");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Cancelled polls of closed sessions must not pile up in the queue.
+        mExecutor.setRemoveOnCancelPolicy(true);
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /** Stops all work.  Pending retries are dropped. */
     public void stop() {
-        if( backgroundThread != null ) {
-            backgroundThread.interrupt();
+        mExecutor.shutdownNow();
+        mWatches.clear();
+    }
+
+    /** Starts polling and keep-alive for a connected lock. */
+    public void watch(String address) {
+        final Watch watch = new Watch(address);
+        if (mWatches.putIfAbsent(address, watch) != null) {
+            return;
+        }
+        try {
+            watch.mKeepAlive = mExecutor.scheduleWithFixedDelay(watch.mKeepAliveTask,
+                    mKeepAliveMs, mKeepAliveMs, TimeUnit.MILLISECONDS);
+            watch.mPoll = mExecutor.scheduleWithFixedDelay(watch.mPollTask, mPollIntervalMs,
+                    mPollIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            mWatches.remove(address, watch);
+        }
+    }
+
+    public void unwatch(String address) {
+        final Watch watch = mWatches.remove(address);
+        if (watch != null && watch.mPoll != null) {
+            watch.mPoll.cancel(false);
+            watch.mKeepAlive.cancel(false);
+        }
+    }
+
+    /**
+     * Follows a write that was already issued and repeats it with backoff if it fails.
+     *
+     * @param first The future of the first attempt, or null if it could not be issued.
+     */
+    public void retryOnFailure(String address, byte[] frame, Future<Integer> first) {
+        schedule(new RetryingWrite(address, frame, first), first == null ? 0 : CHECK_DELAY_MS);
+    }
+
+    /** The lock sent a notification, so the link is not idle and its status is fresh. */
+    public void onNotification(String address) {
+        final Watch watch = mWatches.get(address);
+        if (watch != null) {
+            watch.mLastTraffic = System.nanoTime();
+        }
+    }
+
+    /** The lock answered {@code SL_CODE_RUN_OUT}.  Several answers cause one refresh. */
+    public void onCodeRunOut(final String address) {
+        if (mRefreshes.putIfAbsent(address, Boolean.TRUE) != null) {
+            return;
+        }
+        schedule(new Task() {
+            @Override
+            void work() {
+                mRefreshes.remove(address);
+                mHost.refreshCodes(address);
+            }
+        }, 0);
+    }
+
+    /** Scheduled task runs so far. */
+    public long getWakeups() {
+        return mWakeups.get();
+    }
+
+    /** Thread CPU time spent in tasks so far. */
+    public long getCpuTimeNanos() {
+        return mCpuTimeNanos.get();
+    }
+
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    /** Writes given up after {@link #MAX_RETRIES} retries. */
+    public long getFailedWrites() {
+        return mFailedWrites.get();
+    }
+
+    /** Task runs that threw. */
+    public long getFailedTasks() {
+        return mFailedTasks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BackProcess: " + getWakeups() + " wakeups, "
+                + TimeUnit.NANOSECONDS.toMillis(getCpuTimeNanos()) + " ms CPU, "
+                + getRetries() + " retries, " + getFailedWrites() + " failed writes, "
+                + getFailedTasks() + " failed tasks";
+    }
+
+    private void schedule(Task task, long delayMs) {
+        try {
+            mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped.
+        }
+    }
+
+    /** Counts its runs and their CPU time. */
+    private abstract class Task implements Runnable {
+        abstract void work();
+
+        @Override
+        public final void run() {
+            mWakeups.incrementAndGet();
+            final long start = mCpuClock.threadCpuTimeNanos();
+            try {
+                work();
+            } catch (RuntimeException e) {
+                mFailedTasks.incrementAndGet();
+                mHost.onTaskFailed(e);
+            } finally {
+                mCpuTimeNanos.addAndGet(mCpuClock.threadCpuTimeNanos() - start);
+            }
+        }
+    }
+
+    private class Watch {
+        final String mAddress;
+        // The last notification, or when the watch started.
+        volatile long mLastTraffic = System.nanoTime();
+        ScheduledFuture<?> mPoll;
+        ScheduledFuture<?> mKeepAlive;
+
+        Watch(String address) {
+            mAddress = address;
+        }
+
+        final Task mPollTask = new Task() {
+            @Override
+            void work() {
+                // A notification since the last poll already told the status.
+                if (idleMs() >= mPollIntervalMs) {
+                    mHost.write(mAddress, mReadyFrame);
+                }
+            }
+        };
+
+        final Task mKeepAliveTask = new Task() {
+            @Override
+            void work() {
+                if (idleMs() >= mKeepAliveMs) {
+                    mHost.write(mAddress, mReadyFrame);
+                }
+            }
+        };
+
+        long idleMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLastTraffic);
+        }
+    }
+
+    private class RetryingWrite extends Task {
+        final String mAddress;
+        final byte[] mFrame;
+        Future<Integer> mFuture;
+        int mAttempt;
+        long mCheckDelayMs = CHECK_DELAY_MS;
+
+        RetryingWrite(String address, byte[] frame, Future<Integer> first) {
+            mAddress = address;
+            mFrame = frame;
+            mFuture = first;
+        }
+
+        @Override
+        void work() {
+            if (mFuture == null) {
+                // Not connected, or the previous attempt failed: try again.
+                mFuture = mHost.write(mAddress, mFrame);
+                if (mFuture == null) {
+                    failed();
+                    return;
+                }
+                mCheckDelayMs = CHECK_DELAY_MS;
+            }
+            if (!mFuture.isDone()) {
+                // The queue times the write out, so this ends.
+                schedule(this, mCheckDelayMs);
+                mCheckDelayMs = Math.min(mCheckDelayMs * 2, CHECK_MAX_DELAY_MS);
+                return;
+            }
+            if (status(mFuture) != GattOperationQueue.STATUS_SUCCESS) {
+                mFuture = null;
+                failed();
+            }
+        }
+
+        private void failed() {
+            if (mAttempt == MAX_RETRIES) {
+                mFailedWrites.incrementAndGet();
+                return;
+            }
+            final long backoff = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << mAttempt);
+            mAttempt++;
+            mRetries.incrementAndGet();
+            // Up to 25% jitter, so locks that failed together do not retry together.
+            schedule(this, backoff + mJitter.nextInt((int) (backoff / 4) + 1));
         }
     }
 
-    public void run() {
+    private static int status(Future<Integer> done) {
         try {
-            Log.w(TAG,"Thread starting.");
-            while( !backgroundThread.interrupted() ) {
-               // doSomething();
-            }
-            Log.w(TAG,"Thread stopping.");
-        } catch( Exception e ) {
-            // important you respond to the InterruptedException and stop processing
-            // when its thrown!  Notice this is outside the while loop.
-            Log.w(TAG, "Thread shutting down as it was requested to stop.");
-        } finally {
-            backgroundThread = null;
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return GattOperationQueue.STATUS_CANCELLED;
+        } catch (ExecutionException e) {
+            return GattOperationQueue.STATUS_NOT_ISSUED;
         }
     }
 }
@@ -18,156 +18,414 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Color;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
-import android.text.Html;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.security.KeyPairGeneratorSpec;
+import android.util.Base64;
 import android.util.Log;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.security.auth.x500.X500Principal;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connection and data communication with GATT servers hosted on
+ * Bluetooth LE devices.  Up to {@link LockConnectionPool#DEFAULT_MAX_SESSIONS} locks can be
+ * connected at the same time; the one passed to the last {@link #connect(String)} is the
+ * current device used by the single-device methods.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
+    private volatile String mBluetoothDeviceAddress;
     public int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final int SL_UNLOCK_CMD = 0x0;
-    public final int SL_LOCK_CMD = 0x1;
-    public final int SL_UPDATE_CODE_CMD = 0x2;
-    public final int SL_APP_READY_CMD = 0x3;
-    public final int SL_RESET_CMD = 0x4;
-
-    public final int SL_LOCK_SUCCESS = 0x10;
-    public final int SL_UNLOCK_SUCCESS = 0x11;
-    public final int SL_UPDATE_SUCCESS = 0x12;
-    public final int SL_RESET_SUCCESS = 0x13;
-    public final int SL_DEV_NEED_UPDATE = 0x14;
-    public final int SL_CODE_RUN_OUT = 0x15;
-    public final int SL_UNLOCK_FAIL = 0x16;
-    public final int SL_LOCK_FAIL = 0x17;
-    public final int SL_CODE_OUT_OF_DATE = 0x18;
-    public final int SL_CODE_INVALID = 0x19;
-    public final int SL_DEV_ID_FAIL = 0x1A;
-
-    public final int SL_LOCK = 0xD0;
-    public final int SL_UNLOCK = 0xD1;
-    public final int SL_UNUSABLE = 0xD2;
-
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
-
-    private static DeviceControlActivity mDeviceControl = new DeviceControlActivity();
-
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Fires GATT operation timeouts for all sessions.
+    private final ScheduledExecutorService mGattTimer = Executors.newSingleThreadScheduledExecutor();
+    // Connection priority and PHY of every session.
+    private final ConnectionPolicy mConnectionPolicy = new AdaptiveConnectionPolicy();
+    // Decodes lock notifications off the binder thread.
+    private final NotificationPipeline mNotifications =
+            new NotificationPipeline("LockNotificationDecoder");
+    // Gets the current device back when its link drops; runs on mGattTimer.
+    private final ReconnectEngine mReconnect = new ReconnectEngine(new ReconnectEngine.Transport() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+        public boolean connectDirect(String address) {
+            return mBluetoothAdapter != null && mSessions.acquire(address).connectDirect();
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.w(TAG, "onServicesDiscovered");
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public boolean connectBackground(String address) {
+            return mBluetoothAdapter != null && mSessions.acquire(address).connectBackground();
+        }
+
+        @Override
+        public void closeDirect(String address) {
+            final LockSession session = getSession(address);
+            if (session != null) {
+                session.closeDirect();
             }
         }
+    }, mGattTimer);
+
+    private final LockConnectionPool<LockSession> mSessions =
+            new LockConnectionPool<LockSession>(LockConnectionPool.DEFAULT_MAX_SESSIONS,
+                    new LockConnectionPool.Factory<LockSession>() {
+                        @Override
+                        public LockSession create(String address) {
+                            return new LockSession(BluetoothLeService.this, mBluetoothAdapter,
+                                    address, mGattTimer, mConnectionPolicy, mNotifications,
+                                    mSessionCallback);
+                        }
+                    });
 
+    // Delivers GATT events and lock states to the UI on the main thread.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mMainExecutor = new Executor() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            Log.w(TAG, "onCharacteristicRead");
-            Log.w(TAG, "Read data = " + characteristic.getUuid() + ", " + characteristic.getValue());
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+    private final GattEventBus mEventBus = new GattEventBus(mMainExecutor);
+    private final LockStateStore mLockStates = new LockStateStore(mMainExecutor);
+    private final BackProcess mBackProcess = new BackProcess(new BackProcess.Host() {
+        @Override
+        public Future<Integer> write(String address, byte[] frame) {
+            final LockSession session = getSession(address);
+            if (session == null || session.getState() != LockSession.STATE_READY) {
+                return null;
             }
+            return session.write(frame);
+        }
+
+        @Override
+        public void refreshCodes(String address) {
+            BluetoothLeService.this.refreshCodes(address);
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            Log.w(TAG, "onCharacteristicChanged");
-            //Log.w(TAG, "Read data = " + characteristic.getUuid() + ", " + characteristic.getValue());
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onTaskFailed(RuntimeException e) {
+            Log.e(TAG, "Background task failed", e);
+        }
+    }, new BackProcess.CpuClock() {
+        @Override
+        public long threadCpuTimeNanos() {
+            return Debug.threadCpuTimeNanos();
+        }
+    });
+    // Stamps every command frame; ticks on mGattTimer.
+    private final LockClock mClock = new LockClock();
+    private final BroadcastReceiver mTimeChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mClock.refresh();
         }
     };
+    // Phase timings of every command.
+    private final CommandTracer mTracer = new CommandTracer();
+    // The batch being provisioned, if any.
+    private volatile CodeProvisioner mProvisioner;
+    // Refills and saves the code vault.
+    private final ExecutorService mVaultExecutor = Executors.newSingleThreadExecutor();
+    private CodeVault mVault;
+    // Commands the locks have not confirmed, kept across lost links and restarts.
+    private final ExecutorService mJournalExecutor = Executors.newSingleThreadExecutor();
+    private CommandJournal mJournal;
+    // What the locks report in telemetry notifications.
+    private final LockTelemetry mTelemetry = new LockTelemetry();
+    // Only used on the notification decoder thread.
+    private final LockTelemetry.Reader mTelemetryItems = new LockTelemetry.Reader();
+
+    // The codes of the last load written to each lock, until it answered all of its frames.
+    private final ConcurrentHashMap<String, PendingLoad> mPendingCodes =
+            new ConcurrentHashMap<String, PendingLoad>();
+    // Codes loaded into each lock that no listener showed, until the UI takes them.
+    private final ConcurrentHashMap<String, int[]> mUnseenCodes =
+            new ConcurrentHashMap<String, int[]>();
+    // The last unlock written to each lock, until it answers.
+    private final ConcurrentHashMap<String, UnlockAttempt> mPendingUnlocks =
+            new ConcurrentHashMap<String, UnlockAttempt>();
+
+    private static final class UnlockAttempt {
+        final int mCode;
+        final long mStartMs = SystemClock.elapsedRealtime();
+
+        UnlockAttempt(int code) {
+            mCode = code;
+        }
+    }
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    private static final class PendingLoad {
+        final int[] mCodes;
+        // Frames of the load the lock has not answered yet.
+        final AtomicInteger mFrames;
+
+        PendingLoad(int[] codes, int frames) {
+            mCodes = codes;
+            mFrames = new AtomicInteger(frames);
+        }
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-        Log.w(TAG, "broadcastUpdate called by onCharacteristicRead");
+    private static final String PREFS_NAME = "smartlock";
+    private static final String PREF_LOG_CAPACITY = "event_log_capacity";
+    // The vault key in the clear, as stored before it was wrapped; read once to migrate.
+    private static final String PREF_VAULT_KEY = "code_vault_key";
+    private static final String PREF_VAULT_KEY_WRAPPED = "code_vault_key_wrapped";
+    private static final String KEY_STORE = "AndroidKeyStore";
+    private static final String VAULT_KEY_ALIAS = "code_vault";
+    private static final String VAULT_KEY_WRAP = "RSA/ECB/PKCS1Padding";
+    private static final String CODE_VAULT_FILE = "code_vault.bin";
+    private static final String COMMAND_JOURNAL_FILE = "command_journal.bin";
+    private static final String LOG_EXPORT_FILE = "lock_events.csv";
+    private static final String LATENCY_EXPORT_FILE = "command_latency.csv";
+    private static final String KNOWN_LOCKS_FILE = "known_locks.bin";
 
-        int flag = characteristic.getProperties();
-        int format = -1;
-        if ((flag & 0x01) != 0) {
-            format = BluetoothGattCharacteristic.FORMAT_UINT16;
-            Log.d(TAG, "Heart rate format UINT16.");
+    private static KnownLockRegistry sKnownLocks;
+    // SystemClock.elapsedRealtime() when the app was launched, until the first unlock.
+    static volatile long sLaunchTime;
+
+    // Results and app events of all locks, shown by DeviceControlActivity.
+    private final LockEventLog mEventLog = new LockEventLog(LockEventLog.DEFAULT_CAPACITY);
+
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<LockEventListener>> mListeners =
+            new ConcurrentHashMap<String, CopyOnWriteArrayList<LockEventListener>>();
+
+    private static final int STATE_DISCONNECTED = LockSession.STATE_DISCONNECTED;
+    private static final int STATE_CONNECTING = LockSession.STATE_CONNECTING;
+    private static final int STATE_CONNECTED = LockSession.STATE_CONNECTED;
+
+    public static final int SL_UNLOCK_CMD = SmartLockCodec.SL_UNLOCK_CMD;
+    public static final int SL_LOCK_CMD = SmartLockCodec.SL_LOCK_CMD;
+    public static final int SL_UPDATE_CODE_CMD = SmartLockCodec.SL_UPDATE_CODE_CMD;
+    public static final int SL_APP_READY_CMD = SmartLockCodec.SL_APP_READY_CMD;
+    public static final int SL_RESET_CMD = SmartLockCodec.SL_RESET_CMD;
+    public static final int SL_LOAD_CODES_CMD = SmartLockCodec.SL_LOAD_CODES_CMD;
+    public static final int SL_ADD_CODES_CMD = SmartLockCodec.SL_ADD_CODES_CMD;
+
+    public static final int SL_LOCK_SUCCESS = SmartLockCodec.SL_LOCK_SUCCESS;
+    public static final int SL_UNLOCK_SUCCESS = SmartLockCodec.SL_UNLOCK_SUCCESS;
+    public static final int SL_UPDATE_SUCCESS = SmartLockCodec.SL_UPDATE_SUCCESS;
+    public static final int SL_RESET_SUCCESS = SmartLockCodec.SL_RESET_SUCCESS;
+    public static final int SL_DEV_NEED_UPDATE = SmartLockCodec.SL_DEV_NEED_UPDATE;
+    public static final int SL_CODE_RUN_OUT = SmartLockCodec.SL_CODE_RUN_OUT;
+    public static final int SL_UNLOCK_FAIL = SmartLockCodec.SL_UNLOCK_FAIL;
+    public static final int SL_LOCK_FAIL = SmartLockCodec.SL_LOCK_FAIL;
+    public static final int SL_CODE_OUT_OF_DATE = SmartLockCodec.SL_CODE_OUT_OF_DATE;
+    public static final int SL_CODE_INVALID = SmartLockCodec.SL_CODE_INVALID;
+    public static final int SL_DEV_ID_FAIL = SmartLockCodec.SL_DEV_ID_FAIL;
+
+    public static final int SL_LOCK = SmartLockCodec.SL_LOCK;
+    public static final int SL_UNLOCK = SmartLockCodec.SL_UNLOCK;
+    public static final int SL_UNUSABLE = SmartLockCodec.SL_UNUSABLE;
+
+    // Implements callback methods for the session events that the app cares about.  For
+    // example, connection change and services discovered.
+    private final LockSession.Callback mSessionCallback = new LockSession.Callback() {
+        @Override
+        public void onStateChanged(LockSession session, int status, int newState) {
+            final String address = session.getAddress();
+            if (address.equals(mBluetoothDeviceAddress)) {
+                mConnectionState = newState;
+            }
+            mLockStates.setConnectionState(address, newState);
+            if (newState == STATE_CONNECTED) {
+                mReconnect.onConnected(address);
+                mEventLog.append(System.currentTimeMillis(), LockStatusTable.APP_CONNECTED,
+                        address);
+                rememberLock(address, mBluetoothAdapter.getRemoteDevice(address).getName(),
+                        KnownLockRegistry.STATE_UNKNOWN);
+                mEventBus.publish(GattEventBus.Type.CONNECTED, address, status);
+            } else if (newState == STATE_DISCONNECTED) {
+                if (status == LockSession.GATT_ERROR && session.getConnectTimeMs() < 0
+                        && session.tryEvictRetry() && mSessions.evictEldest(address)) {
+                    // The stack ran out of connections: make room and try once more.
+                    Log.w(TAG, "Connection to " + address + " refused, retrying after eviction");
+                    // The engine counts the failed attempt; for a watched lock its next direct
+                    // attempt is the retry, a second one here would only close that handle.
+                    mReconnect.onDisconnected(address, status);
+                    if (!mReconnect.isWatched(address)) {
+                        session.connectDirect();
+                    }
+                    return;
+                }
+                mReconnect.onDisconnected(address, status);
+                mJournal.interrupted(address, System.currentTimeMillis());
+                mBackProcess.unwatch(address);
+                mTracer.discard(address);
+                final CodeProvisioner provisioner = mProvisioner;
+                if (provisioner != null) {
+                    provisioner.onDisconnected(address);
+                }
+                mEventLog.append(System.currentTimeMillis(), LockStatusTable.APP_DISCONNECTED,
+                        address);
+                mEventBus.publish(GattEventBus.Type.DISCONNECTED, address, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(LockSession session) {
+            mBackProcess.watch(session.getAddress());
+            mVault.prepare(session.getAddress());
+            if (mVault.needsReload(session.getAddress())
+                    && !mPendingCodes.containsKey(session.getAddress())) {
+                // The vault lost the lock's codes; replace them, the user is shown the new ones.
+                mBackProcess.onCodeRunOut(session.getAddress());
+            }
+            if (mJournal.needsReconcile(session.getAddress())) {
+                // The answer to a command sent before the link dropped may be lost; the lock's
+                // state settles it.  The status characteristic cannot be read, so ask for the
+                // telemetry notification, see publishTelemetry.  The queue runs the CCCD write
+                // first, a reconnect in the background has no screen to enable it.
+                session.enableLockNotification();
+                final ByteBuffer frame = ByteBuffer.allocate(1);
+                SmartLockCodec.encodeAppReady(frame);
+                writeCustomCharacteristic(session.getAddress(), frame.array());
+            }
+            final CodeProvisioner provisioner = mProvisioner;
+            if (provisioner != null) {
+                provisioner.onReady(session.getAddress());
+            }
+            mEventBus.publish(GattEventBus.Type.SERVICES_DISCOVERED, session.getAddress(), 0);
+        }
+
+        @Override
+        public void onFrame(LockSession session, byte[] frame, int length) {
+            publishFrame(session.getAddress(), frame, length);
+        }
+
+        @Override
+        public void onCharacteristicRead(LockSession session,
+                                         BluetoothGattCharacteristic characteristic) {
+            Log.w(TAG, "Read data = " + characteristic.getUuid() + ", " + characteristic.getValue());
+            publishRead(session.getAddress(), characteristic);
+        }
+
+        @Override
+        public void onCharacteristicWrite(LockSession session, int status) {
+            if (status == GattOperationQueue.STATUS_SUCCESS) {
+                // Chunks of one frame overwrite each other, so the last one counts.
+                mTracer.mark(session.getAddress(), CommandTracer.PHASE_WRITTEN, System.nanoTime());
+            }
+        }
+    };
+
+    // A characteristic read from the UI, reported like a notification.
+    private void publishRead(final String address,
+                             final BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        if (value == null || value.length == 0) {
+            return;
+        }
+        if (SmartLockCodec.isTelemetry(value, value.length)) {
+            // Not on the decoder thread, so not mTelemetryItems.
+            publishTelemetry(address, new LockTelemetry.Reader(), value, value.length);
         } else {
-            format = BluetoothGattCharacteristic.FORMAT_UINT8;
-            Log.d(TAG, "Heart rate format UINT8.");
+            final int access_code = value[0] & 0xFF;
+            Log.d(TAG, String.format("Read code: %d", access_code));
+            ParseSmartLockCode(address, access_code);
         }
 
-        final int access_code = characteristic.getIntValue(format, 0);
-        Log.d(TAG, String.format("Received code: %d", access_code));
+        mEventBus.publishData(address, value, value.length);
+    }
 
-        ParseSmartLockCode(access_code);
+    // On the notification decoder thread.
+    private void publishFrame(final String address, final byte[] frame, final int length) {
+        mBackProcess.onNotification(address);
+        if (SmartLockCodec.isTelemetry(frame, length)) {
+            publishTelemetry(address, mTelemetryItems, frame, length);
+        } else if (length > 0) {
+            final CommandTracer.Trace trace = mTracer.notified(address, System.nanoTime());
+            final int access_code = frame[0] & 0xFF;
+            Log.d(TAG, String.format("Received code: %d, frame length %d", access_code, length));
+            ParseSmartLockCode(address, access_code);
+            if (trace != null) {
+                // Runs after the state observers ParseSmartLockCode posted.
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mTracer.complete(trace, System.nanoTime());
+                    }
+                });
+            }
+        }
 
-        sendBroadcast(intent);
+        mEventBus.publishData(address, frame, length);
+    }
+
+    // Merges a telemetry notification and brings the lock state in line with it.  The lock
+    // sends one after the response to a command that changed it, so mostly nothing differs.
+    private void publishTelemetry(String address, LockTelemetry.Reader items, byte[] frame,
+                                  int length) {
+        if (!items.reset(frame, 0, length)) {
+            Log.w(TAG, "Bad telemetry from " + address);
+            return;
+        }
+        final int changed = mTelemetry.apply(address, items);
+        final long telemetry = mTelemetry.get(address);
+        final long state = mLockStates.get(address);
+        if (LockTelemetry.has(telemetry, LockTelemetry.FIELD_LOCK_STATUS)) {
+            final int lockStatus = LockTelemetry.lockStatus(telemetry);
+            if (SmartLockCodec.isLockState(lockStatus)
+                    && (lockStatus != LockStateStore.lockStatus(state)
+                    || mJournal.needsReconcile(address))) {
+                ParseSmartLockCode(address, lockStatus);
+            }
+        }
+        if (LockTelemetry.has(telemetry, LockTelemetry.FIELD_CODES_LEFT)) {
+            final int codesLeft = LockTelemetry.codesLeft(telemetry);
+            if (codesLeft != LockStateStore.codesLeft(state)) {
+                mLockStates.setCodesLeft(address, codesLeft);
+            }
+            if (codesLeft == 0 && !mPendingCodes.containsKey(address)
+                    && mVault.codesLeft(address) > 0) {
+                // The lock no longer holds the codes the app would offer.
+                mVault.clearLoaded(address);
+            }
+        }
+        if ((changed & (LockTelemetry.FIELD_LATCH | LockTelemetry.FIELD_ALARMS
+                | LockTelemetry.FIELD_BATTERY)) != 0) {
+            Log.i(TAG, "Telemetry " + address + ": latch " + LockTelemetry.latch(telemetry)
+                    + ", alarms " + LockTelemetry.alarmCount(telemetry) + ", battery "
+                    + LockTelemetry.batteryMv(telemetry) + " mV");
+        }
     }
 
     public class LocalBinder extends Binder {
@@ -190,6 +448,168 @@ public class BluetoothLeService extends Service {
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotifications.start();
+        mClock.start(mGattTimer);
+        final IntentFilter timeChanged = new IntentFilter(Intent.ACTION_TIME_CHANGED);
+        timeChanged.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        registerReceiver(mTimeChangedReceiver, timeChanged);
+        final int capacity = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getInt(PREF_LOG_CAPACITY, LockEventLog.DEFAULT_CAPACITY);
+        try {
+            mEventLog.setCapacity(capacity);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring stored event log capacity " + capacity);
+        }
+        // The Keystore work, key generation on first run and an RSA decrypt, stays off the
+        // main thread and the cold start path; the vault works in memory until then.
+        mVault = new CodeVault(new File(getFilesDir(), CODE_VAULT_FILE), mVaultExecutor);
+        mVaultExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mVault.unlock(vaultKey());
+                try {
+                    mVault.load();
+                } catch (IOException e) {
+                    Log.w(TAG, "Code vault not loaded", e);
+                } catch (GeneralSecurityException e) {
+                    // E.g. a new key after a Keystore reset: the codes the locks hold are gone.
+                    Log.e(TAG, "Code vault cannot be opened, every known lock gets new codes", e);
+                    for (KnownLockRegistry.KnownLock lock
+                            : getKnownLocks(BluetoothLeService.this).getAll()) {
+                        // Codes loaded since the start are known and kept.
+                        if (mVault.codesLeft(lock.getAddress()) == 0) {
+                            mVault.markReload(lock.getAddress());
+                        }
+                    }
+                }
+            }
+        });
+        mJournal = new CommandJournal(new File(getFilesDir(), COMMAND_JOURNAL_FILE),
+                mJournalExecutor);
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal.load();
+                } catch (IOException e) {
+                    Log.e(TAG, "Command journal unreadable, moved aside and started empty", e);
+                }
+            }
+        });
+    }
+
+    // The vault key stays in the app's private preferences, apart from the vault file, wrapped
+    // with an RSA key pair of the Android Keystore: a copy of the app's files alone does not
+    // open the vault.  Keystore AES keys need API 23, RSA pairs only API 18.  On the vault
+    // executor.
+    private byte[] vaultKey() {
+        final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        final String plain = prefs.getString(PREF_VAULT_KEY, null);
+        try {
+            final KeyPair pair = vaultKeyPair();
+            final String wrapped = prefs.getString(PREF_VAULT_KEY_WRAPPED, null);
+            if (wrapped != null) {
+                try {
+                    final Cipher cipher = Cipher.getInstance(VAULT_KEY_WRAP);
+                    cipher.init(Cipher.DECRYPT_MODE, pair.getPrivate());
+                    final byte[] key = cipher.doFinal(Base64.decode(wrapped, Base64.NO_WRAP));
+                    if (key.length == CodeVault.KEY_LEN) {
+                        return key;
+                    }
+                } catch (GeneralSecurityException e) {
+                    Log.e(TAG, "Code vault key cannot be unwrapped, e.g. after a Keystore reset;"
+                            + " making a new one", e);
+                }
+            }
+            final byte[] key = plainVaultKey(plain);
+            final Cipher cipher = Cipher.getInstance(VAULT_KEY_WRAP);
+            cipher.init(Cipher.ENCRYPT_MODE, pair.getPublic());
+            prefs.edit()
+                    .putString(PREF_VAULT_KEY_WRAPPED,
+                            Base64.encodeToString(cipher.doFinal(key), Base64.NO_WRAP))
+                    .remove(PREF_VAULT_KEY)
+                    .apply();
+            return key;
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Keystore unusable, code vault key kept unwrapped", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Keystore unusable, code vault key kept unwrapped", e);
+        }
+        final byte[] key = plainVaultKey(plain);
+        prefs.edit().putString(PREF_VAULT_KEY, Base64.encodeToString(key, Base64.NO_WRAP))
+                .apply();
+        return key;
+    }
+
+    // The key stored in the clear, or a new one.
+    private static byte[] plainVaultKey(String stored) {
+        if (stored != null) {
+            final byte[] key = Base64.decode(stored, Base64.NO_WRAP);
+            if (key.length == CodeVault.KEY_LEN) {
+                return key;
+            }
+        }
+        return CodeVault.newKey();
+    }
+
+    private KeyPair vaultKeyPair() throws GeneralSecurityException, IOException {
+        final KeyStore store = KeyStore.getInstance(KEY_STORE);
+        store.load(null);
+        final KeyStore.Entry entry = store.getEntry(VAULT_KEY_ALIAS, null);
+        if (entry instanceof KeyStore.PrivateKeyEntry) {
+            final KeyStore.PrivateKeyEntry pair = (KeyStore.PrivateKeyEntry) entry;
+            return new KeyPair(pair.getCertificate().getPublicKey(), pair.getPrivateKey());
+        }
+        final Calendar start = Calendar.getInstance();
+        final Calendar end = Calendar.getInstance();
+        end.add(Calendar.YEAR, 30);
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", KEY_STORE);
+        generator.initialize(new KeyPairGeneratorSpec.Builder(this)
+                .setAlias(VAULT_KEY_ALIAS)
+                .setSubject(new X500Principal("CN=" + VAULT_KEY_ALIAS))
+                .setSerialNumber(BigInteger.ONE)
+                .setStartDate(start.getTime())
+                .setEndDate(end.getTime())
+                .build());
+        return generator.generateKeyPair();
+    }
+
+    @Override
+    public void onDestroy() {
+        mBackProcess.stop();
+        unregisterReceiver(mTimeChangedReceiver);
+        mClock.stop();
+        final CodeProvisioner provisioner = mProvisioner;
+        if (provisioner != null) {
+            provisioner.cancel();
+        }
+        Log.i(TAG, mBackProcess.toString());
+        Log.i(TAG, "Reconnect: " + mReconnect);
+        Log.i(TAG, "Journal: " + mJournal);
+        Log.i(TAG, "Notifications: " + mNotifications);
+        Log.i(TAG, "Telemetry: " + mTelemetry);
+        // Lets a pending vault save and journal write finish.
+        mVaultExecutor.shutdown();
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Command journal not written", e);
+                }
+            }
+        });
+        mJournalExecutor.shutdown();
+        mSessions.clear();
+        mNotifications.stop();
+        mGattTimer.shutdownNow();
+        super.onDestroy();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -218,7 +638,8 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device and makes it the current
+     * device.  Sessions to other devices stay open.
      *
      * @param address The device address of the destination device.
      *
@@ -233,56 +654,81 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+        final String previous = mBluetoothDeviceAddress;
+        if (previous != null && !previous.equals(address)) {
+            mReconnect.unwatch(previous);
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        mReconnect.watch(address);
+        final LockSession session = mSessions.acquire(address);
+        if (session.isConnected() || mReconnect.isReconnecting(address)) {
+            // Connected, or the reconnect engine is already on it.
+            mConnectionState = session.getState();
+            return true;
+        }
+        session.resetEvictRetries();
+        final boolean started = session.connect();
+        mConnectionState = session.getState();
+        return started;
     }
 
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * callback.  Pending and background attempts are closed without one.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    public void disconnect(String address) {
+        final LockSession session = getSession(address);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        // Asked for, so not a link loss to recover from.
+        mReconnect.unwatch(address);
+        session.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly.  Closes every session.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        final String current = mBluetoothDeviceAddress;
+        if (current != null) {
+            mReconnect.unwatch(current);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mSessions.clear();
+        mConnectionState = STATE_DISCONNECTED;
+    }
+
+    /** Closes the session to one device. */
+    public void close(String address) {
+        final LockSession session = address == null ? null : mSessions.remove(address);
+        if (session != null) {
+            mReconnect.unwatch(address);
+            mBackProcess.unwatch(address);
+            mTracer.discard(address);
+            session.close();
+        }
+    }
+
+    /** The session to {@code address}, or null if there is none. */
+    public LockSession getSession(String address) {
+        return address == null ? null : mSessions.get(address);
+    }
+
+    /** Changes how many locks may be connected at once, closing the least recently used. */
+    public void setMaxSessions(int maxSessions) {
+        mSessions.setMaxSessions(maxSessions);
+    }
+
+    public List<LockSession> getSessions() {
+        return mSessions.snapshot();
     }
 
     /**
@@ -291,14 +737,17 @@ public class BluetoothLeService extends Service {
      * callback.
      *
      * @param characteristic The characteristic to read from.
+     *
+     * @return A future holding the GATT status of the read, or null if not connected.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    public Future<Integer> readCharacteristic(final BluetoothGattCharacteristic characteristic) {
         Log.w(TAG, "readCharacteristic");
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final LockSession session = getSession(mBluetoothDeviceAddress);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return null;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        return session.readCharacteristic(characteristic);
     }
 
     /**
@@ -310,27 +759,21 @@ public class BluetoothLeService extends Service {
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
         Log.w(TAG, "setCharacteristicNotification");
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final LockSession session = getSession(mBluetoothDeviceAddress);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        session.setCharacteristicNotification(characteristic, enabled);
+    }
 
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        mBluetoothGatt.writeDescriptor(descriptor);
+    public Future<Integer> SetCharNotification() {
+        return SetCharNotification(mBluetoothDeviceAddress);
     }
 
-    public void SetCharNotification() {
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(UUID.fromString("8653000a-43e6-47b7-9cb0-5fc21d4ae340"));
-        Log.w(TAG, "mCustomService = " + mCustomService);
-        BluetoothGattCharacteristic characteristic = mCustomService.getCharacteristic(UUID.fromString("8653000b-43e6-47b7-9cb0-5fc21d4ae340"));
-        mBluetoothGatt.setCharacteristicNotification(characteristic, true);
-        Log.w(TAG, "characteristic = " + characteristic.getUuid().toString());
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-        Log.w(TAG, "descriptor = " + descriptor.getUuid().toString());
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        mBluetoothGatt.writeDescriptor(descriptor);
+    public Future<Integer> SetCharNotification(String address) {
+        final LockSession session = getSession(address);
+        return session == null ? null : session.enableLockNotification();
     }
 
     /**
@@ -340,84 +783,465 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        final LockSession session = getSession(mBluetoothDeviceAddress);
+        if (session == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return session.getServices();
+    }
+
+    /**
+     * Queues a write of {@code value} to the SmartLock write characteristic of the current
+     * device.
+     *
+     * @return A future holding the GATT status of the (last) write, or null if the write
+     *         could not be queued.
+     */
+    public Future<Integer> writeCustomCharacteristic(final byte[] value) {
+        return writeCustomCharacteristic(mBluetoothDeviceAddress, value);
     }
 
-    public void writeCustomCharacteristic(byte[] value) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public Future<Integer> writeCustomCharacteristic(String address, final byte[] value) {
+        final LockSession session = getSession(address);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return null;
+        }
+        final Future<Integer> future = write(session, value);
+        mBackProcess.retryOnFailure(address, value, future);
+        return future;
+    }
+
+    private Future<Integer> write(LockSession session, byte[] value) {
+        final int op = value[0] & 0xFF;
+        mTracer.queued(session.getAddress(), op & ~SmartLockCodec.FRAME_BINARY, System.nanoTime());
+        if ((op & SmartLockCodec.FRAME_BINARY) != 0) {
+            mJournal.issued(session.getAddress(), op & ~SmartLockCodec.FRAME_BINARY,
+                    System.currentTimeMillis());
+        }
+        if (value.length > 1 && value.length >= 2 + (value[1] & 0xFF)) {
+            final int n = value[1] & 0xFF;
+            if (op == (SmartLockCodec.FRAME_BINARY | SL_UPDATE_CODE_CMD)) {
+                // Each digit is a code of its own.  Batch loads register themselves.
+                final int[] codes = new int[n];
+                for (int i = 0; i < n; i++) {
+                    codes[i] = value[2 + i];
+                }
+                mPendingCodes.put(session.getAddress(), new PendingLoad(codes, 1));
+            } else if (op == (SmartLockCodec.FRAME_BINARY | SL_UNLOCK_CMD)) {
+                final int code = SmartLockCodec.codeOf(value, 2, n);
+                if (code >= 0) {
+                    mPendingUnlocks.put(session.getAddress(), new UnlockAttempt(code));
+                }
+            }
         }
-        /*check if the service is available on the device*/
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(UUID.fromString("8653000a-43e6-47b7-9cb0-5fc21d4ae340"));
-        if(mCustomService == null){
-            Log.w(TAG, "Custom BLE Service not found");
+        return session.write(value);
+    }
+
+    /**
+     * Loads the lock's next batch of codes from the vault: a {@code SL_LOAD_CODES_CMD} frame
+     * replacing the codes the lock holds, then {@code SL_ADD_CODES_CMD} frames for the rest.
+     * Listeners get the codes through {@link LockEventListener#onCodesSent(String, int[])}.
+     * A batch that could not be queued goes back to the vault; if only part of it was, the
+     * lock is marked for a reload.
+     *
+     * @return The codes, or null if the lock is not connected.
+     */
+    public int[] refreshCodes(String address) {
+        final int[] codes = mVault.takeBatch(address);
+        final int frames = SmartLockCodec.batchFrames(codes.length);
+        // Registered first, the lock may answer before the last frame is queued.
+        final PendingLoad load = new PendingLoad(codes, frames);
+        mPendingCodes.put(address, load);
+        final ByteBuffer frame = ByteBuffer.allocate(SmartLockCodec.MAX_BATCH_FRAME_LEN);
+        for (int i = 0; i < codes.length; i += SmartLockCodec.MAX_BATCH_CODES) {
+            frame.clear();
+            SmartLockCodec.encodeCodeBatch(frame,
+                    i == 0 ? SL_LOAD_CODES_CMD : SL_ADD_CODES_CMD, codes, i,
+                    Math.min(SmartLockCodec.MAX_BATCH_CODES, codes.length - i), phoneId(), mClock);
+            final byte[] value = Arrays.copyOf(frame.array(), frame.position());
+            if (writeCustomCharacteristic(address, value) == null) {
+                mPendingCodes.remove(address, load);
+                mVault.putBack(address, codes);
+                if (i > 0) {
+                    // The first frame replaced the lock's codes with part of this batch.
+                    Log.w(TAG, "Code load to " + address + " failed after " + i + " codes");
+                    mVault.markReload(address);
+                }
+                return null;
+            }
+        }
+
+        // The log only keeps event codes, so listeners show the new codes.  A refresh after
+        // SL_CODE_RUN_OUT replaces codes the user may hold, so they must reach the user.
+        mEventLog.append(System.currentTimeMillis(), LockStatusTable.APP_CODES_SENT, address);
+        boolean shown = false;
+        final CopyOnWriteArrayList<LockEventListener> list = mListeners.get(address);
+        if (list != null) {
+            for (LockEventListener l : list) {
+                shown |= l.onCodesSent(address, codes.clone());
+            }
+        }
+        if (shown) {
+            mUnseenCodes.remove(address);
+        } else {
+            Log.i(TAG, "New codes for " + address + " kept until the UI shows them");
+            mUnseenCodes.put(address, codes.clone());
+        }
+        return codes;
+    }
+
+    /**
+     * The codes last loaded into the lock while no listener could show them, e.g. by a
+     * refresh after {@code SL_CODE_RUN_OUT} with no screen open.  Each batch is returned once.
+     *
+     * @return The codes, or null if every load was shown.
+     */
+    public int[] takeUnseenCodes(String address) {
+        return mUnseenCodes.remove(address);
+    }
+
+    /** The current minute, for stamping command frames. */
+    public LockClock getClock() {
+        return mClock;
+    }
+
+    /** Phase timings of every command, for the latency screen. */
+    public CommandTracer getTracer() {
+        return mTracer;
+    }
+
+    /** Codes of every lock, for unlocking without typing. */
+    public CommandJournal getCommandJournal() {
+        return mJournal;
+    }
+
+    public CodeVault getCodeVault() {
+        return mVault;
+    }
+
+    /**
+     * Loads a full set of new codes into each of {@code addresses}, a few locks at a time.
+     * The current device stays connected; the other locks are closed when they are done.
+     *
+     * @param listener Called on the main thread.
+     * @return The running batch, or null if another batch is still running.
+     */
+    public synchronized CodeProvisioner provisionCodes(List<String> addresses,
+                                                       final CodeProvisioner.Listener listener) {
+        if (mProvisioner != null || mBluetoothAdapter == null) {
+            return null;
+        }
+        final CodeProvisioner provisioner = new CodeProvisioner(mProvisionerHost,
+                new CodeProvisioner.Listener() {
+                    @Override
+                    public void onLockDone(CodeProvisioner.Result result, int done, int total) {
+                        listener.onLockDone(result, done, total);
+                    }
+
+                    @Override
+                    public void onFinished(CodeProvisioner.Report report) {
+                        Log.i(TAG, report.toString());
+                        mProvisioner = null;
+                        listener.onFinished(report);
+                    }
+                }, mMainExecutor, phoneId(), mClock, CodeProvisioner.DEFAULT_PARALLEL);
+        mProvisioner = provisioner;
+        provisioner.start(addresses);
+        return provisioner;
+    }
+
+    private final CodeProvisioner.Host mProvisionerHost = new CodeProvisioner.Host() {
+        @Override
+        public boolean isReady(String address) {
+            final LockSession session = getSession(address);
+            return session != null && session.getState() == LockSession.STATE_READY;
+        }
+
+        @Override
+        public boolean connect(String address) {
+            final LockSession session = mSessions.acquire(address);
+            // Discovery, MTU and the update frame go faster at high priority.
+            session.setBurst(true);
+            if (session.getState() != STATE_DISCONNECTED) {
+                return true;
+            }
+            session.resetEvictRetries();
+            return session.connect();
+        }
+
+        @Override
+        public Future<Integer> write(String address, byte[] frame) {
+            final LockSession session = getSession(address);
+            if (session == null || session.getState() != LockSession.STATE_READY) {
+                return null;
+            }
+            mEventLog.append(System.currentTimeMillis(), LockStatusTable.APP_CODES_SENT, address);
+            session.setBurst(true);
+            return BluetoothLeService.this.write(session, frame);
+        }
+
+        @Override
+        public void release(String address) {
+            final LockSession session = getSession(address);
+            if (session != null) {
+                session.setBurst(false);
+            }
+            if (!address.equals(mBluetoothDeviceAddress)) {
+                close(address);
+            }
+        }
+    };
+
+    private long phoneId() {
+        return SmartLockCodec.phoneId(Settings.Secure.getString(getContentResolver(),
+                Settings.Secure.ANDROID_ID));
+    }
+
+    /** Reconnect counts and time-to-reconnect of the current device. */
+    public ReconnectEngine getReconnectEngine() {
+        return mReconnect;
+    }
+
+    /** Wakeups and CPU time of the background worker. */
+    public BackProcess getBackProcess() {
+        return mBackProcess;
+    }
+
+    /** Connection and data events of all sessions, delivered on the main thread. */
+    public GattEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /** Latch, alarm and battery readings the locks sent, next to what getLockStates() has. */
+    public LockTelemetry getTelemetry() {
+        return mTelemetry;
+    }
+
+    /** Lock, connection and code state of every lock; observers run on the main thread. */
+    public LockStateStore getLockStates() {
+        return mLockStates;
+    }
+
+    /**
+     * The connection mode of the link to {@code address}, one of the
+     * {@code ConnectionPolicy.MODE_*} values, or {@link ConnectionTuner#MODE_UNSET}.
+     */
+    public int getLinkMode(String address) {
+        final LockSession session = getSession(address);
+        return session == null ? ConnectionTuner.MODE_UNSET : session.getLinkMode();
+    }
+
+    /** The ATT MTU negotiated with the current device. */
+    public int getMtu() {
+        final LockSession session = getSession(mBluetoothDeviceAddress);
+        return session == null ? FrameFragmenter.DEFAULT_MTU : session.getMtu();
+    }
+
+    /**
+     * The locks used on this phone.  Loaded with a single read on first use, so it is cheap
+     * enough for activity start-up.
+     */
+    public static synchronized KnownLockRegistry getKnownLocks(Context context) {
+        if (sKnownLocks == null) {
+            final File file = new File(context.getApplicationContext().getFilesDir(),
+                    KNOWN_LOCKS_FILE);
+            sKnownLocks = new KnownLockRegistry(file);
+            try {
+                sKnownLocks.load();
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable lock registry", e);
+                file.delete();
+            }
+        }
+        return sKnownLocks;
+    }
+
+    private void rememberLock(String address, String name, int lockState) {
+        try {
+            getKnownLocks(this).record(address, name, LockScanIndex.NO_RSSI, lockState,
+                    System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot update lock registry", e);
+        }
+    }
+
+    public LockEventLog getEventLog() {
+        return mEventLog;
+    }
+
+    /** Changes and remembers how many events the log keeps. */
+    public void setEventLogCapacity(int capacity) {
+        mEventLog.setCapacity(capacity);
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putInt(PREF_LOG_CAPACITY, capacity).apply();
+    }
+
+    /**
+     * Writes the event log as CSV to the app's external files directory, or to internal
+     * storage if there is none.  Blocks; do not call on the UI thread.
+     *
+     * @return The file written.
+     */
+    public File exportEventLog() throws IOException {
+        final File file = exportFile(LOG_EXPORT_FILE);
+        final Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            mEventLog.export(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes the command latency histograms as CSV next to the exported event log.  Blocks;
+     * do not call on the UI thread.
+     *
+     * @return The file written.
+     */
+    public File exportLatency() throws IOException {
+        final File file = exportFile(LATENCY_EXPORT_FILE);
+        final Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            mTracer.export(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private File exportFile(String name) {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        return new File(dir, name);
+    }
+
+    public void registerLockListener(String address, LockEventListener listener) {
+        CopyOnWriteArrayList<LockEventListener> list = mListeners.get(address);
+        if (list == null) {
+            final CopyOnWriteArrayList<LockEventListener> created =
+                    new CopyOnWriteArrayList<LockEventListener>();
+            list = mListeners.putIfAbsent(address, created);
+            if (list == null) {
+                list = created;
+            }
+        }
+        list.addIfAbsent(listener);
+    }
+
+    public void unregisterLockListener(String address, LockEventListener listener) {
+        final CopyOnWriteArrayList<LockEventListener> list = mListeners.get(address);
+        if (list != null) {
+            list.remove(listener);
+        }
+    }
+
+    private void notifyLockMessage(String address, LockStatusTable.Status status) {
+        final CopyOnWriteArrayList<LockEventListener> list = mListeners.get(address);
+        if (list == null) {
             return;
         }
-        /*get the read characteristic from the service*/
-        BluetoothGattCharacteristic mWriteCharacteristic = mCustomService.getCharacteristic(UUID.fromString("8653000c-43e6-47b7-9cb0-5fc21d4ae340"));
-        //mWriteCharacteristic.setValue(value, android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT8,0);
-        mWriteCharacteristic.setValue(value);
-        if(mBluetoothGatt.writeCharacteristic(mWriteCharacteristic) == false){
-            Log.w(TAG, "Failed to write characteristic");
+        for (LockEventListener l : list) {
+            l.onLockMessage(address, status);
         }
     }
 
-    public void ParseSmartLockCode (int result_code) {
+    // Commands sent before a lost link, settled by the lock's state after the reconnect.
+    private void reconcile(String address, List<CommandJournal.Resolution> resolutions) {
+        for (int i = 0; i < resolutions.size(); i++) {
+            final CommandJournal.Resolution r = resolutions.get(i);
+            Log.i(TAG, "Reconciled " + r.entry + ": " + r.outcome);
+            final int event;
+            if (r.outcome == CommandJournal.APPLIED) {
+                event = LockStatusTable.APP_COMMAND_CONFIRMED;
+            } else if (r.outcome == CommandJournal.NOT_APPLIED) {
+                event = LockStatusTable.APP_COMMAND_LOST;
+            } else {
+                event = LockStatusTable.APP_COMMAND_UNCONFIRMED;
+                if (r.entry.command == SL_UPDATE_CODE_CMD || r.entry.command == SL_RESET_CMD) {
+                    // The lock holds either the old codes or the new ones; offer neither.
+                    mPendingCodes.remove(address);
+                    mVault.clearLoaded(address);
+                }
+            }
+            mEventLog.append(System.currentTimeMillis(), event, address);
+        }
+    }
 
-        Log.w(TAG, "ParseSmartLockCode = " + result_code);
+    public void ParseSmartLockCode (String address, int result_code) {
+        final LockStatusTable.Status status = LockStatusTable.decode(result_code);
+        final long now = System.currentTimeMillis();
+        mEventLog.append(now, result_code, address);
+        if (SmartLockCodec.isLockState(result_code)) {
+            reconcile(address, mJournal.reconcile(address, result_code, now));
+        } else {
+            mJournal.answered(address, result_code, now);
+        }
+        final CodeProvisioner provisioner = mProvisioner;
+        if (provisioner != null) {
+            provisioner.onAnswer(address, result_code);
+        }
 
-        switch(result_code) {
-            case SL_LOCK_SUCCESS:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#0DFF00\">" + "Lock successful !" + "</font>");
-                DeviceControlActivity.UpdateLockStatus(SL_LOCK);
-                return;
-            case SL_UNLOCK_SUCCESS:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#0DFF00\">" + "Unlock successful !" + "</font>");
-                DeviceControlActivity.UpdateLockStatus(SL_UNLOCK);
-                break;
+        if (status == LockStatusTable.UNKNOWN) {
+            Log.w(TAG, "ParseSmartLockCode: unknown code " + result_code);
+        }
+        if (status.hasMessage()) {
+            notifyLockMessage(address, status);
+        }
+        if (status.getLockState() != LockStatusTable.NO_CHANGE) {
+            mLockStates.setLockStatus(address, status.getLockState());
+            rememberLock(address, null, status.getLockState());
+        }
+        if (status.getSeverity() == LockStatusTable.Severity.ERROR) {
+            mLockStates.setLastError(address, result_code);
+        } else if (status.getSeverity() == LockStatusTable.Severity.SUCCESS) {
+            mLockStates.setLastError(address, 0);
+        }
+        switch (result_code) {
             case SL_UPDATE_SUCCESS:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#0DFF00\">" + "Update access codes successfully !" + "</font>");
-                break;
-            case SL_RESET_SUCCESS:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#0DFF00\">" + "Reset done !" + "</font>");
-                break;
-            case SL_UNLOCK_FAIL:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Out of Sync! Update required" + "</font>");
-                break;
-            case SL_LOCK_FAIL:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "WARNING ! Locker is not secured !" + "</font>");
-                DeviceControlActivity.UpdateLockStatus(SL_UNUSABLE);
+                final PendingLoad load = mPendingCodes.get(address);
+                if (load != null && load.mFrames.decrementAndGet() <= 0
+                        && mPendingCodes.remove(address, load)) {
+                    // The lock asks for new codes while it still holds the last one.
+                    mLockStates.setCodesLeft(address, load.mCodes.length - 1);
+                    mVault.setLoaded(address, load.mCodes);
+                }
                 break;
             case SL_CODE_INVALID:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Invalid commands." + "</font>");
+                // A batch the lock had no room for; what it holds is no longer known.
+                if (mPendingCodes.remove(address) != null) {
+                    mVault.clearLoaded(address);
+                }
                 break;
-            case SL_DEV_NEED_UPDATE:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Locker has no codes inside. Update required" + "</font>");
+            case SL_UNLOCK_SUCCESS:
+                mLockStates.useCode(address);
+                final UnlockAttempt unlock = mPendingUnlocks.remove(address);
+                if (unlock != null) {
+                    Log.i(TAG, "Tap to unlock: "
+                            + (SystemClock.elapsedRealtime() - unlock.mStartMs) + " ms");
+                    if (mVault.codeUsed(address, unlock.mCode) && mVault.codesLeft(address) == 0) {
+                        // Load the next batch while the lock is still connected, so the next
+                        // unlock does not run into SL_CODE_RUN_OUT.
+                        mBackProcess.onCodeRunOut(address);
+                    }
+                }
                 break;
             case SL_CODE_RUN_OUT:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Codes are running out. Locker needs new codes" + "</font>");
-                break;
-            case SL_CODE_OUT_OF_DATE:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Code is outdated. Update required." + "</font>");
-                break;
-            case SL_DEV_ID_FAIL:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Phone ID is not correct." + "</font>");
+                mLockStates.setCodesLeft(address, 0);
+                mVault.clearLoaded(address);
+                mBackProcess.onCodeRunOut(address);
                 break;
-            case SL_LOCK:
-                DeviceControlActivity.UpdateLockStatus(SL_LOCK);
-                break;
-            case SL_UNLOCK:
-                DeviceControlActivity.UpdateLockStatus(SL_UNLOCK);
-                break;
-            case SL_UNUSABLE:
-                DeviceControlActivity.UpdateLockStatus(SL_UNUSABLE);
+            case SL_RESET_SUCCESS:
+                mLockStates.setCodesLeft(address, 0);
+                mVault.clearLoaded(address);
                 break;
-            default:
-                mDeviceControl.getInstace().updateTheTextView("<font color=\"#FF0000\">" + "Unknown values"  + "</font>");
-                return;
+        }
+        if (result_code == SL_UNLOCK_SUCCESS && sLaunchTime != 0) {
+            Log.i(TAG, "Cold start to unlock: "
+                    + (SystemClock.elapsedRealtime() - sLaunchTime) + " ms");
+            sLaunchTime = 0;
         }
     }
 }
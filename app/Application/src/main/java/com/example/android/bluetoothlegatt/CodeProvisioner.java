@@ -0,0 +1,406 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a full set of {@link SmartLockCodec#MAX_CODE_DIGITS} new access codes into each of a
+ * list of locks.  Up to {@code parallel} locks are connected at once; each gets a fresh code
+ * set from an {@link AccessCodeGenerator} and the lock must answer {@code SL_UPDATE_SUCCESS}.
+ * A lock that fails to connect, take the write or answer is tried again with backoff, up to
+ * {@link #MAX_ATTEMPTS} times.
+ *
+ * <p>All work runs on one provisioner thread, so nothing here waits on a lock.  The host
+ * reports connection and answer events through {@link #onReady}, {@link #onDisconnected} and
+ * {@link #onAnswer} from any thread.  Progress goes to the {@link Listener} through the
+ * executor given to the constructor.
+ *
+ * <p>A provisioner runs one batch.  This class has no Android dependencies.
+ */
+public class CodeProvisioner {
+
+    /** Locks connected at once; the session pool has room for a few more. */
+    public static final int DEFAULT_PARALLEL = 3;
+    public static final int MAX_ATTEMPTS = 3;
+    public static final long CONNECT_TIMEOUT_MS = 10000;
+    public static final long ANSWER_TIMEOUT_MS = 5000;
+    public static final long RETRY_BASE_MS = 500;
+
+    public enum Outcome {
+        PROVISIONED,
+        CONNECT_FAILED,
+        WRITE_FAILED,
+        NO_ANSWER,
+        CANCELLED
+    }
+
+    /** The connections; implemented by BluetoothLeService. */
+    public interface Host {
+        /** Whether the lock is connected and its services are known. */
+        boolean isReady(String address);
+
+        /**
+         * Starts connecting.  The host then calls {@link #onReady} or {@link #onDisconnected}.
+         *
+         * @return false if the connection could not be started.
+         */
+        boolean connect(String address);
+
+        /** Writes a frame, or returns null if the lock is not connected. */
+        Future<Integer> write(String address, byte[] frame);
+
+        /** The provisioner is done with the lock. */
+        void release(String address);
+    }
+
+    public interface Listener {
+        /** One lock is done, {@code done} of {@code total} so far. */
+        void onLockDone(Result result, int done, int total);
+
+        void onFinished(Report report);
+    }
+
+    /** What happened to one lock. */
+    public static final class Result {
+        public final String address;
+        public final Outcome outcome;
+        /** The codes the lock holds now, null unless provisioned. */
+        public final String codes;
+        public final int attempts;
+        public final long elapsedMs;
+
+        Result(String address, Outcome outcome, String codes, int attempts, long elapsedMs) {
+            this.address = address;
+            this.outcome = outcome;
+            this.codes = codes;
+            this.attempts = attempts;
+            this.elapsedMs = elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return address + ": " + (outcome == Outcome.PROVISIONED ? codes : outcome.toString())
+                    + (attempts > 1 ? " (" + attempts + " attempts)" : "");
+        }
+    }
+
+    /** Outcome of a batch. */
+    public static final class Report {
+        public final List<Result> results;
+        public final int provisioned;
+        public final long elapsedMs;
+
+        Report(List<Result> results, long elapsedMs) {
+            this.results = Collections.unmodifiableList(results);
+            int ok = 0;
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i).outcome == Outcome.PROVISIONED) {
+                    ok++;
+                }
+            }
+            provisioned = ok;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public double getLocksPerMinute() {
+            return elapsedMs == 0 ? 0 : provisioned * 60000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return provisioned + " of " + results.size() + " locks provisioned in " + elapsedMs
+                    + " ms, " + (long) getLocksPerMinute() + " locks/min";
+        }
+    }
+
+    private enum State {
+        CONNECTING,
+        WAITING,
+        BACKOFF
+    }
+
+    private final Host mHost;
+    private final Listener mListener;
+    private final Executor mListenerExecutor;
+    private final long mPhoneId;
+    private final LockClock mClock;
+    private final int mParallel;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    // Only used on the provisioner thread.
+    private final AccessCodeGenerator mGenerator = new AccessCodeGenerator();
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+    private final Random mJitter = new Random();
+    private final ArrayDeque<Job> mPending = new ArrayDeque<Job>();
+    private final HashMap<String, Job> mActive = new HashMap<String, Job>();
+    private final List<Result> mResults = new ArrayList<Result>();
+    private int mTotal;
+    private long mStartNs;
+    private boolean mFinished;
+    // Guarded by this.
+    private boolean mStarted;
+
+    /**
+     * @param listenerExecutor Runs listener callbacks, e.g. a main thread Handler.
+     * @param phoneId The phone the locks are pinned to, see {@link SmartLockCodec#phoneId}.
+     * @param clock Stamps the update frames.
+     * @param parallel Locks connected at once.
+     */
+    public CodeProvisioner(Host host, Listener listener, Executor listenerExecutor, long phoneId,
+                           LockClock clock, int parallel) {
+        if (parallel < 1) {
+            throw new IllegalArgumentException("parallel " + parallel);
+        }
+        mHost = host;
+        mListener = listener;
+        mListenerExecutor = listenerExecutor;
+        mPhoneId = phoneId;
+        mClock = clock;
+        mParallel = parallel;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "CodeProvisioner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Starts the batch.  Duplicate addresses are provisioned once. */
+    public synchronized void start(List<String> addresses) {
+        if (mStarted) {
+            throw new IllegalStateException("Already started");
+        }
+        mStarted = true;
+        final Set<String> unique = new LinkedHashSet<String>(addresses);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mStartNs = System.nanoTime();
+                for (String address : unique) {
+                    mPending.add(new Job(address));
+                }
+                mTotal = mPending.size();
+                for (int i = 0; i < mParallel; i++) {
+                    startNext();
+                }
+            }
+        });
+    }
+
+    /** Stops the batch; locks not done yet are reported as {@link Outcome#CANCELLED}. */
+    public void cancel() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Job job;
+                while ((job = mPending.poll()) != null) {
+                    record(job, Outcome.CANCELLED);
+                }
+                for (Job active : new ArrayList<Job>(mActive.values())) {
+                    complete(active, Outcome.CANCELLED);
+                }
+                startNext();
+            }
+        });
+    }
+
+    /** The lock is connected and its services are known. */
+    public void onReady(final String address) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final Job job = mActive.get(address);
+                if (job != null && job.mState == State.CONNECTING) {
+                    send(job);
+                }
+            }
+        });
+    }
+
+    public void onDisconnected(final String address) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final Job job = mActive.get(address);
+                if (job != null && job.mState != State.BACKOFF) {
+                    retry(job, job.mState == State.CONNECTING
+                            ? Outcome.CONNECT_FAILED : Outcome.NO_ANSWER);
+                }
+            }
+        });
+    }
+
+    /** The lock answered with {@code code}.  Answers to other commands are ignored. */
+    public void onAnswer(final String address, int code) {
+        if (code != SmartLockCodec.SL_UPDATE_SUCCESS) {
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final Job job = mActive.get(address);
+                if (job != null && job.mState == State.WAITING) {
+                    complete(job, Outcome.PROVISIONED);
+                }
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Finished.
+        }
+    }
+
+    private void startNext() {
+        final Job job = mPending.poll();
+        if (job == null) {
+            if (mActive.isEmpty() && !mFinished) {
+                finish();
+            }
+            return;
+        }
+        mActive.put(job.mAddress, job);
+        connect(job);
+    }
+
+    private void connect(Job job) {
+        job.mAttempts++;
+        job.mState = State.CONNECTING;
+        if (mHost.isReady(job.mAddress)) {
+            send(job);
+        } else if (mHost.connect(job.mAddress)) {
+            job.arm(CONNECT_TIMEOUT_MS);
+        } else {
+            retry(job, Outcome.CONNECT_FAILED);
+        }
+    }
+
+    private void send(Job job) {
+        job.mCodes.setLength(0);
+        mGenerator.next(job.mCodes, SmartLockCodec.MAX_CODE_DIGITS);
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, SmartLockCodec.SL_UPDATE_CODE_CMD, job.mCodes,
+                mPhoneId, mClock);
+        // The GATT queue keeps the array until the write is issued.
+        final byte[] frame = Arrays.copyOf(mFrame.array(), mFrame.position());
+        if (mHost.write(job.mAddress, frame) == null) {
+            retry(job, Outcome.WRITE_FAILED);
+            return;
+        }
+        job.mState = State.WAITING;
+        job.arm(ANSWER_TIMEOUT_MS);
+    }
+
+    private void retry(final Job job, Outcome outcome) {
+        if (job.mAttempts >= MAX_ATTEMPTS) {
+            complete(job, outcome);
+            return;
+        }
+        job.mState = State.BACKOFF;
+        final long backoff = RETRY_BASE_MS << (job.mAttempts - 1);
+        job.arm(backoff + mJitter.nextInt((int) (backoff / 4) + 1));
+    }
+
+    private void complete(Job job, Outcome outcome) {
+        job.disarm();
+        mActive.remove(job.mAddress);
+        mHost.release(job.mAddress);
+        record(job, outcome);
+        startNext();
+    }
+
+    private void record(Job job, Outcome outcome) {
+        final Result result = new Result(job.mAddress, outcome,
+                outcome == Outcome.PROVISIONED ? job.mCodes.toString() : null, job.mAttempts,
+                elapsedMs());
+        mResults.add(result);
+        final int done = mResults.size();
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onLockDone(result, done, mTotal);
+            }
+        });
+    }
+
+    private void finish() {
+        mFinished = true;
+        final Report report = new Report(new ArrayList<Result>(mResults), elapsedMs());
+        mExecutor.shutdown();
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onFinished(report);
+            }
+        });
+    }
+
+    private long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNs);
+    }
+
+    private class Job implements Runnable {
+        final String mAddress;
+        final StringBuilder mCodes = new StringBuilder(SmartLockCodec.MAX_CODE_DIGITS);
+        State mState;
+        int mAttempts;
+        ScheduledFuture<?> mTimer;
+
+        Job(String address) {
+            mAddress = address;
+        }
+
+        void arm(long delayMs) {
+            disarm();
+            mTimer = mExecutor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        void disarm() {
+            if (mTimer != null) {
+                mTimer.cancel(false);
+                mTimer = null;
+            }
+        }
+
+        // The timer: a connect or answer timed out, or a backoff is over.
+        @Override
+        public void run() {
+            mTimer = null;
+            if (mActive.get(mAddress) != this) {
+                return;
+            }
+            switch (mState) {
+                case CONNECTING:
+                    retry(this, Outcome.CONNECT_FAILED);
+                    break;
+                case WAITING:
+                    retry(this, Outcome.NO_ANSWER);
+                    break;
+                case BACKOFF:
+                    connect(this);
+                    break;
+            }
+        }
+    }
+}
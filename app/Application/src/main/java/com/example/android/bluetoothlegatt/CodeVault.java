@@ -0,0 +1,525 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Access codes kept on the phone, per lock: the codes the lock holds now and a stock of
+ * batches to load next.  {@link #peekCode} gives a code the lock will take in O(1), so an
+ * unlock needs no typing, and {@link #takeBatch} gives the next batch without waiting for
+ * the random generator.  When a lock's stock drops below the low mark it is filled up again
+ * on the background executor.
+ *
+ * <p>A batch is {@link #BATCH_SIZE} codes of {@link SmartLockCodec#CODE_DIGITS} digits, sent
+ * to the lock in two frames.  The vault is saved to one file after every change, also on the
+ * background executor, encrypted with AES-CTR and authenticated with HMAC-SHA256
+ * (encrypt-then-MAC; GCM needs API 19), under a key the caller keeps; the service keeps it
+ * wrapped by an Android Keystore key pair.  A vault made without a key is locked until
+ * {@link #unlock}, which lets the key be fetched on the executor.  Codes take
+ * {@link SmartLockCodec#CODE_BYTES} bytes and addresses six, so a lock with a full stock takes
+ * about 1.5 KB.  The single digit codes of version 1 files are no use with the six digit
+ * firmware: their locks are read without codes and marked for a reload, see
+ * {@link #needsReload}.
+ *
+ * <p>Thread safe.  This class has no Android dependencies.
+ */
+public class CodeVault {
+
+    public static final int KEY_LEN = 32;
+    public static final int BATCH_SIZE = 2 * SmartLockCodec.MAX_BATCH_CODES;
+    /** Stock below which a lock is filled up again. */
+    public static final int DEFAULT_LOW_WATER = 1;
+    /** Stock a lock is filled up to. */
+    public static final int DEFAULT_HIGH_WATER = 2;
+
+    private static final int MAGIC_V1 = 0x534c5601; // "SLV", version 1
+    private static final int MAGIC = 0x534c5602; // "SLV", version 2
+    private static final int IV_LEN = 16;
+    private static final int MAC_LEN = 32;
+    private static final int[] NO_CODES = new int[0];
+    // Saved in place of the cursor of a lock marked for a reload; it then has no codes.
+    private static final int CURSOR_RELOAD = 0xFFFF;
+
+    private static final class Entry {
+        final String mAddress;
+        // The lock's codes; the unused ones are at mCursor and after.
+        int[] mLoaded = NO_CODES;
+        int mCursor;
+        final ArrayDeque<int[]> mStock = new ArrayDeque<int[]>();
+        boolean mRefilling;
+        // The codes the lock holds are unknown and have to be replaced.
+        boolean mReload;
+        // mLoaded, mCursor and mReload were set in memory, so a file read later keeps them.
+        boolean mLoadedSet;
+
+        Entry(String address) {
+            mAddress = address;
+        }
+    }
+
+    private final File mFile;
+    // Null while locked; mMacKey is set first.
+    private volatile byte[] mEncKey;
+    private volatile byte[] mMacKey;
+    private final Executor mExecutor;
+    private final int mLowWater;
+    private final int mHighWater;
+    private final SecureRandom mRandom = new SecureRandom();
+    // Guarded by this.
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final AccessCodeGenerator mInlineGenerator = new AccessCodeGenerator(mRandom);
+    // Only used on the executor.
+    private final AccessCodeGenerator mGenerator = new AccessCodeGenerator(mRandom);
+
+    // Held while a snapshot is taken and written.
+    private final Object mFileLock = new Object();
+    private final AtomicBoolean mSavePending = new AtomicBoolean();
+    private final AtomicLong mSaveFailures = new AtomicLong();
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            mSavePending.set(false);
+            try {
+                save();
+            } catch (IOException e) {
+                mSaveFailures.incrementAndGet();
+            } catch (GeneralSecurityException e) {
+                mSaveFailures.incrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * @param key {@link #KEY_LEN} secret bytes, see {@link #newKey()}.
+     * @param executor Refills and saves; it must run tasks one at a time.
+     */
+    public CodeVault(File file, byte[] key, Executor executor) {
+        this(file, key, executor, DEFAULT_LOW_WATER, DEFAULT_HIGH_WATER);
+    }
+
+    public CodeVault(File file, byte[] key, Executor executor, int lowWater, int highWater) {
+        this(file, executor, lowWater, highWater);
+        unlock(key);
+    }
+
+    /** A locked vault; {@link #unlock} it before the first load or save runs. */
+    public CodeVault(File file, Executor executor) {
+        this(file, executor, DEFAULT_LOW_WATER, DEFAULT_HIGH_WATER);
+    }
+
+    public CodeVault(File file, Executor executor, int lowWater, int highWater) {
+        if (lowWater < 1 || highWater < lowWater) {
+            throw new IllegalArgumentException("lowWater " + lowWater + ", highWater " + highWater);
+        }
+        mFile = file;
+        mExecutor = executor;
+        mLowWater = lowWater;
+        mHighWater = highWater;
+    }
+
+    /**
+     * Sets the key of a vault made without one.  Until then the vault works in memory only;
+     * {@link #load} and {@link #save} throw.
+     *
+     * @param key {@link #KEY_LEN} secret bytes, see {@link #newKey()}.
+     */
+    public void unlock(byte[] key) {
+        if (key.length != KEY_LEN) {
+            throw new IllegalArgumentException("Key must be " + KEY_LEN + " bytes");
+        }
+        mMacKey = Arrays.copyOfRange(key, 16, KEY_LEN);
+        mEncKey = Arrays.copyOf(key, 16);
+    }
+
+    public static byte[] newKey() {
+        final byte[] key = new byte[KEY_LEN];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /**
+     * A code the lock takes, without using it up, or -1 if the vault knows of none.  The lock
+     * refuses its last code, so that one is never offered.
+     */
+    public synchronized int peekCode(String address) {
+        final Entry e = mEntries.get(address);
+        if (e == null || e.mCursor >= e.mLoaded.length - 1) {
+            return -1;
+        }
+        return e.mLoaded[e.mCursor];
+    }
+
+    /** Codes {@link #peekCode} can still give for the lock. */
+    public synchronized int codesLeft(String address) {
+        final Entry e = mEntries.get(address);
+        return e == null ? 0 : Math.max(0, e.mLoaded.length - 1 - e.mCursor);
+    }
+
+    /**
+     * The lock took {@code code}.  O(1) for the code {@link #peekCode} gave.
+     *
+     * @return false if the vault did not know the lock held it.
+     */
+    public synchronized boolean codeUsed(String address, int code) {
+        final Entry e = mEntries.get(address);
+        if (e == null) {
+            return false;
+        }
+        final int[] codes = e.mLoaded;
+        for (int i = e.mCursor; i < codes.length; i++) {
+            if (codes[i] == code) {
+                codes[i] = codes[e.mCursor];
+                codes[e.mCursor] = code;
+                e.mCursor++;
+                e.mLoadedSet = true;
+                scheduleSave();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The lock now holds {@code codes}, e.g. after it answered a code load. */
+    public synchronized void setLoaded(String address, int[] codes) {
+        final Entry e = entry(address);
+        e.mLoaded = codes.clone();
+        e.mCursor = 0;
+        e.mReload = false;
+        e.mLoadedSet = true;
+        scheduleSave();
+    }
+
+    /**
+     * Whether the lock needs a new batch before the vault can offer its codes, e.g. because
+     * they were lost with a version 1 file.  Cleared by {@link #setLoaded}.
+     */
+    public synchronized boolean needsReload(String address) {
+        final Entry e = mEntries.get(address);
+        return e != null && e.mReload;
+    }
+
+    /** The lock holds no codes the app knows of. */
+    public synchronized void clearLoaded(String address) {
+        // Kept even for a lock not read from the file yet, so that load() does not bring the
+        // codes back.
+        final Entry e = entry(address);
+        e.mLoadedSet = true;
+        if (e.mLoaded.length > 0) {
+            e.mLoaded = NO_CODES;
+            e.mCursor = 0;
+            scheduleSave();
+        }
+    }
+
+    /**
+     * What the lock holds is unknown, e.g. after a load that failed half way: drops its codes
+     * and marks it for a reload, see {@link #needsReload}.
+     */
+    public synchronized void markReload(String address) {
+        final Entry e = entry(address);
+        e.mLoaded = NO_CODES;
+        e.mCursor = 0;
+        e.mReload = true;
+        e.mLoadedSet = true;
+        scheduleSave();
+    }
+
+    /** Returns a batch from {@link #takeBatch} that was not loaded; it is the next one taken. */
+    public synchronized void putBack(String address, int[] batch) {
+        entry(address).mStock.addFirst(batch);
+        scheduleSave();
+    }
+
+    /**
+     * Takes the next batch of {@link #BATCH_SIZE} codes to load into the lock.  An empty stock
+     * is not waited for; the batch is then made on the spot.
+     */
+    public synchronized int[] takeBatch(String address) {
+        final Entry e = entry(address);
+        int[] batch = e.mStock.poll();
+        if (batch == null) {
+            batch = mInlineGenerator.nextCodes(new int[BATCH_SIZE]);
+        }
+        refillIfLow(e);
+        scheduleSave();
+        return batch;
+    }
+
+    /** Fills up the lock's stock in the background if it is low. */
+    public synchronized void prepare(String address) {
+        refillIfLow(entry(address));
+    }
+
+    public synchronized int getStock(String address) {
+        final Entry e = mEntries.get(address);
+        return e == null ? 0 : e.mStock.size();
+    }
+
+    public long getSaveFailures() {
+        return mSaveFailures.get();
+    }
+
+    /**
+     * Reads the vault file and merges its locks into those in memory, which win: codes loaded,
+     * used or cleared meanwhile are kept, and the file's unused batches go after the stock
+     * made meanwhile, up to the high mark.  A missing file is an empty vault.
+     *
+     * @throws GeneralSecurityException if the file was not written with this key or was
+     *         changed.
+     */
+    public void load() throws IOException, GeneralSecurityException {
+        if (!mFile.exists()) {
+            return;
+        }
+        final byte[] file = new byte[(int) mFile.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        try {
+            in.readFully(file);
+        } finally {
+            in.close();
+        }
+        final int magic = file.length < 4 + IV_LEN + MAC_LEN ? 0 : readInt(file);
+        if (magic != MAGIC && magic != MAGIC_V1) {
+            throw new IOException("Not a code vault: " + mFile);
+        }
+        final int bodyEnd = file.length - MAC_LEN;
+        final byte[] mac = mac(file, 0, bodyEnd);
+        if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(file, bodyEnd, file.length))) {
+            throw new GeneralSecurityException("Code vault failed authentication");
+        }
+        final byte[] plain = cipher(Cipher.DECRYPT_MODE, Arrays.copyOfRange(file, 4, 4 + IV_LEN))
+                .doFinal(file, 4 + IV_LEN, bodyEnd - 4 - IV_LEN);
+        final List<Entry> entries = parse(plain, magic == MAGIC_V1);
+        Arrays.fill(plain, (byte) 0);
+        synchronized (this) {
+            for (int i = 0; i < entries.size(); i++) {
+                merge(entries.get(i));
+            }
+        }
+    }
+
+    /** Writes the vault file now.  Normally done in the background after every change. */
+    public void save() throws IOException, GeneralSecurityException {
+        // One save at a time, so the file never goes back to an older snapshot.
+        synchronized (mFileLock) {
+            final byte[] plain = serialize();
+            final byte[] iv = new byte[IV_LEN];
+            mRandom.nextBytes(iv);
+            final byte[] encrypted = cipher(Cipher.ENCRYPT_MODE, iv).doFinal(plain);
+            Arrays.fill(plain, (byte) 0);
+
+            final ByteArrayOutputStream bytes =
+                    new ByteArrayOutputStream(4 + IV_LEN + encrypted.length + MAC_LEN);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.write(iv);
+            out.write(encrypted);
+            final byte[] body = bytes.toByteArray();
+            out.write(mac(body, 0, body.length));
+
+            // Written aside and renamed, so a crash never leaves half a vault.
+            final File tmp = new File(mFile.getPath() + ".tmp");
+            final FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        }
+    }
+
+    private void merge(Entry read) {
+        final Entry e = mEntries.get(read.mAddress);
+        if (e == null) {
+            mEntries.put(read.mAddress, read);
+            return;
+        }
+        if (!e.mLoadedSet) {
+            e.mLoaded = read.mLoaded;
+            e.mCursor = read.mCursor;
+            e.mReload = read.mReload;
+        }
+        for (int[] batch : read.mStock) {
+            if (e.mStock.size() >= mHighWater) {
+                break;
+            }
+            e.mStock.add(batch);
+        }
+    }
+
+    private Entry entry(String address) {
+        Entry e = mEntries.get(address);
+        if (e == null) {
+            e = new Entry(address);
+            mEntries.put(address, e);
+        }
+        return e;
+    }
+
+    private void refillIfLow(final Entry e) {
+        if (e.mRefilling || e.mStock.size() >= mLowWater) {
+            return;
+        }
+        e.mRefilling = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refill(e);
+            }
+        });
+    }
+
+    // On the executor.  The codes are made outside the lock.
+    private void refill(Entry e) {
+        final int missing;
+        synchronized (this) {
+            missing = mHighWater - e.mStock.size();
+        }
+        final int[][] batches = new int[Math.max(0, missing)][];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = mGenerator.nextCodes(new int[BATCH_SIZE]);
+        }
+        synchronized (this) {
+            for (int i = 0; i < batches.length && e.mStock.size() < mHighWater; i++) {
+                e.mStock.add(batches[i]);
+            }
+            e.mRefilling = false;
+        }
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        if (mSavePending.compareAndSet(false, true)) {
+            mExecutor.execute(mSave);
+        }
+    }
+
+    // | count (2) | per lock: address (6) | cursor (2) | loaded | stock count (1) | batches |
+    // where a code list is its length (2) and the codes, CODE_BYTES each, and a cursor of
+    // CURSOR_RELOAD marks a lock to reload.  Version 1 had a one byte cursor and lists of one
+    // byte length and digits packed two per byte.
+    private synchronized byte[] serialize() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + mEntries.size()
+                * (10 + (2 + BATCH_SIZE * SmartLockCodec.CODE_BYTES) * (mHighWater + 1)));
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(mEntries.size());
+        for (Entry e : mEntries.values()) {
+            final long address = MacAddress.parse(e.mAddress);
+            out.writeShort((int) (address >>> 32));
+            out.writeInt((int) address);
+            out.writeShort(e.mReload ? CURSOR_RELOAD : e.mCursor);
+            writeCodes(out, e.mLoaded);
+            out.writeByte(e.mStock.size());
+            for (int[] batch : e.mStock) {
+                writeCodes(out, batch);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Entry> parse(byte[] plain, boolean digits) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        final int count = in.readUnsignedShort();
+        final List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            final long address = ((long) in.readUnsignedShort() << 32)
+                    | (in.readInt() & 0xFFFFFFFFL);
+            final Entry e = new Entry(MacAddress.format(address));
+            if (digits) {
+                // Digits the lock no longer takes as codes: keep the lock, not its codes.
+                in.readUnsignedByte();
+                skipDigits(in);
+                final int stock = in.readUnsignedByte();
+                for (int j = 0; j < stock; j++) {
+                    skipDigits(in);
+                }
+                e.mReload = true;
+                entries.add(e);
+                continue;
+            }
+            final int cursor = in.readUnsignedShort();
+            e.mReload = cursor == CURSOR_RELOAD;
+            e.mCursor = e.mReload ? 0 : cursor;
+            e.mLoaded = readCodes(in);
+            final int stock = in.readUnsignedByte();
+            for (int j = 0; j < stock; j++) {
+                e.mStock.add(readCodes(in));
+            }
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static void writeCodes(DataOutputStream out, int[] codes) throws IOException {
+        out.writeShort(codes.length);
+        for (int i = 0; i < codes.length; i++) {
+            out.writeByte(codes[i] >> 16);
+            out.writeShort(codes[i]);
+        }
+    }
+
+    private static int[] readCodes(DataInputStream in) throws IOException {
+        final int[] codes = new int[in.readUnsignedShort()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        }
+        return codes;
+    }
+
+    // A version 1 list: its length, then digits packed two per byte.
+    private static void skipDigits(DataInputStream in) throws IOException {
+        final int n = in.readUnsignedByte();
+        in.readFully(new byte[(n + 1) / 2]);
+    }
+
+    private static int readInt(byte[] b) {
+        return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+    }
+
+    private Cipher cipher(int mode, byte[] iv) throws GeneralSecurityException {
+        final byte[] key = mEncKey;
+        if (key == null) {
+            throw new GeneralSecurityException("Code vault is locked");
+        }
+        final Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private byte[] mac(byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (mEncKey == null) {
+            throw new GeneralSecurityException("Code vault is locked");
+        }
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(mMacKey, "HmacSHA256"));
+        mac.update(data, offset, length);
+        return mac.doFinal();
+    }
+}
@@ -0,0 +1,660 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the commands sent to locks, so the app knows which ones the lock
+ * never confirmed, even across a lost link or a restart.  A command is journaled before it is
+ * written; the lock's answer settles it.  If the link drops first, the command stays pending
+ * until the lock's state is read after the reconnect, see {@link #reconcile}.
+ *
+ * <p>The file is an append-only log of the operations on the journal, each in a fixed size
+ * record with a CRC, and {@link #load} rebuilds the pending commands by replaying them.
+ * Records are buffered in memory and written with one fsync per batch on the background
+ * executor, so {@link #issued} costs no I/O and a burst of commands costs one fsync.  Once
+ * settled records make up most of the file it is rewritten with only the pending commands.
+ *
+ * <p>Thread safe.  This class has no Android dependencies.
+ */
+public class CommandJournal {
+
+    /** The lock carried the command out. */
+    public static final int APPLIED = 0;
+    /** The lock did not carry the command out. */
+    public static final int NOT_APPLIED = 1;
+    /** The lock's state does not tell. */
+    public static final int UNKNOWN = 2;
+
+    /** Records below which the file is never compacted. */
+    public static final int DEFAULT_COMPACT_MIN_RECORDS = 4096;
+
+    // | kind (1) | command or code (1) | address (6) | time ms (8) | CRC32 of the rest (4) |
+    static final int RECORD_LEN = 20;
+    private static final int MAGIC = 0x534c4a01; // "SLJ", version 1
+    private static final int KIND_ISSUED = 1;
+    private static final int KIND_ANSWERED = 2;
+    private static final int KIND_INTERRUPTED = 3;
+    private static final int KIND_RECONCILED = 4;
+
+    /** A command the lock has not confirmed yet. */
+    public static final class Entry {
+        public final String address;
+        public final int command;
+        public final long timeMs;
+        // Sent before the link last dropped.
+        boolean mInterrupted;
+
+        Entry(String address, int command, long timeMs) {
+            this.address = address;
+            this.command = command;
+            this.timeMs = timeMs;
+        }
+
+        @Override
+        public String toString() {
+            return CommandTracer.commandName(command) + " to " + address + " at " + timeMs;
+        }
+    }
+
+    /** How a pending command turned out, judging by the lock's state. */
+    public static final class Resolution {
+        public final Entry entry;
+        /** {@link #APPLIED}, {@link #NOT_APPLIED} or {@link #UNKNOWN}. */
+        public final int outcome;
+
+        Resolution(Entry entry, int outcome) {
+            this.entry = entry;
+            this.outcome = outcome;
+        }
+    }
+
+    private final File mFile;
+    private final Executor mExecutor;
+    private final int mCompactMinRecords;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRecord = new byte[RECORD_LEN];
+
+    // Guarded by this.  Pending commands per lock, oldest first.
+    private final HashMap<String, ArrayList<Entry>> mPending =
+            new HashMap<String, ArrayList<Entry>>();
+    private int mPendingCount;
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(64 * RECORD_LEN);
+    private boolean mLoaded;
+    // Records in the file plus those buffered.
+    private long mRecords;
+
+    // Held while records are written, so batches reach the file in order.
+    private final Object mFileLock = new Object();
+    private FileOutputStream mOut;
+    private final AtomicBoolean mFlushPending = new AtomicBoolean();
+    private final AtomicLong mSyncs = new AtomicLong();
+    private final AtomicLong mCompactions = new AtomicLong();
+    private final AtomicLong mWriteFailures = new AtomicLong();
+    private final AtomicLong mLoadFailures = new AtomicLong();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPending.set(false);
+            try {
+                sync();
+            } catch (IOException e) {
+                mWriteFailures.incrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * @param executor Writes the journal; it must run tasks one at a time, and should run
+     *        {@link #load} first.
+     */
+    public CommandJournal(File file, Executor executor) {
+        this(file, executor, DEFAULT_COMPACT_MIN_RECORDS);
+    }
+
+    public CommandJournal(File file, Executor executor, int compactMinRecords) {
+        mFile = file;
+        mExecutor = executor;
+        mCompactMinRecords = compactMinRecords;
+    }
+
+    /**
+     * Journals a command about to be written.  Only commands that change the lock are kept.
+     * The frames of a code batch are journaled as code updates, the lock answers them alike.
+     *
+     * @return false if the command is not journaled.
+     */
+    public synchronized boolean issued(String address, int command, long timeMs) {
+        if (command == SmartLockCodec.SL_LOAD_CODES_CMD
+                || command == SmartLockCodec.SL_ADD_CODES_CMD) {
+            command = SmartLockCodec.SL_UPDATE_CODE_CMD;
+        }
+        if (!isJournaled(command)) {
+            return false;
+        }
+        append(KIND_ISSUED, command, address, timeMs);
+        return true;
+    }
+
+    /**
+     * The lock answered {@code code}.  Settles the oldest command of the lock that gets this
+     * answer and was sent since the link last came up.
+     *
+     * @return The settled command, or null if none was pending.
+     */
+    public synchronized Entry answered(String address, int code, long timeMs) {
+        final int command = commandOf(code);
+        final ArrayList<Entry> pending = mPending.get(address);
+        if (command < 0 || pending == null || indexOf(pending, command) < 0) {
+            return null;
+        }
+        return (Entry) append(KIND_ANSWERED, code, address, timeMs);
+    }
+
+    /** The link to the lock dropped; its pending commands wait for {@link #reconcile}. */
+    public synchronized void interrupted(String address, long timeMs) {
+        final ArrayList<Entry> pending = mPending.get(address);
+        if (pending != null && !pending.get(pending.size() - 1).mInterrupted) {
+            append(KIND_INTERRUPTED, 0, address, timeMs);
+        }
+    }
+
+    /** Whether the lock has commands sent before a lost link, see {@link #reconcile}. */
+    public synchronized boolean needsReconcile(String address) {
+        final ArrayList<Entry> pending = mPending.get(address);
+        return pending != null && pending.get(0).mInterrupted;
+    }
+
+    /**
+     * Settles the commands sent before the link dropped, given the lock state read after the
+     * reconnect.  The state only tells about the newest lock or unlock command; older ones,
+     * code updates and resets come out {@link #UNKNOWN}.  Commands sent since the reconnect
+     * wait for their answer.
+     *
+     * @param state {@code SL_LOCK}, {@code SL_UNLOCK} or {@code SL_UNUSABLE}.
+     * @return The settled commands, oldest first; empty if there were none.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<Resolution> reconcile(String address, int state, long timeMs) {
+        if (!needsReconcile(address)) {
+            return Collections.emptyList();
+        }
+        return (List<Resolution>) append(KIND_RECONCILED, state, address, timeMs);
+    }
+
+    /** The lock's pending commands, oldest first. */
+    public synchronized List<Entry> getPending(String address) {
+        final ArrayList<Entry> pending = mPending.get(address);
+        return pending == null ? Collections.<Entry>emptyList() : new ArrayList<Entry>(pending);
+    }
+
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /** Records in the file, including those not written yet. */
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    public long getSyncCount() {
+        return mSyncs.get();
+    }
+
+    public long getCompactionCount() {
+        return mCompactions.get();
+    }
+
+    public long getWriteFailures() {
+        return mWriteFailures.get();
+    }
+
+    /** Journal files that could not be replayed and were moved aside. */
+    public long getLoadFailures() {
+        return mLoadFailures.get();
+    }
+
+    /**
+     * Replays the journal file; a missing file is an empty journal.  A torn or corrupt tail,
+     * from a crash during a write, is cut off.  Commands journaled before the load are kept
+     * after those in the file.  Call once, before anything is written.
+     *
+     * @throws IOException if the file could not be replayed.  It is then moved aside to a
+     *         {@code .bad} file and the journal starts empty, apart from the commands
+     *         journaled before the load, and is written as usual.
+     */
+    public void load() throws IOException {
+        synchronized (mFileLock) {
+            long records = 0;
+            final byte[] buffered;
+            synchronized (this) {
+                if (mLoaded) {
+                    throw new IllegalStateException("Journal loaded twice");
+                }
+                buffered = mBuffer.toByteArray();
+                mBuffer.reset();
+                mPending.clear();
+                mPendingCount = 0;
+            }
+            IOException failure = null;
+            if (mFile.exists()) {
+                try {
+                    records = replay();
+                } catch (IOException e) {
+                    failure = e;
+                } catch (IllegalArgumentException e) {
+                    failure = new IOException("Corrupt command journal: " + mFile, e);
+                }
+            }
+            if (failure != null) {
+                mLoadFailures.incrementAndGet();
+                records = 0;
+                moveAside();
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    // Whatever was replayed before the failure.
+                    mPending.clear();
+                    mPendingCount = 0;
+                }
+                mRecords = records;
+                // The app stopped since, so the link did too.
+                for (ArrayList<Entry> entries : mPending.values()) {
+                    for (int i = 0; i < entries.size(); i++) {
+                        entries.get(i).mInterrupted = true;
+                    }
+                }
+                // Replayed again on top of the file.
+                for (int offset = 0; offset < buffered.length; offset += RECORD_LEN) {
+                    apply(buffered, offset);
+                    mBuffer.write(buffered, offset, RECORD_LEN);
+                    mRecords++;
+                }
+                mLoaded = true;
+                if (mBuffer.size() > 0) {
+                    scheduleFlush();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes and fsyncs the records so far on the calling thread.  Normally done in the
+     * background after every change, batching the changes made meanwhile.  If the write
+     * fails, the records stay buffered ahead of those made since and go with the next sync.
+     */
+    public void sync() throws IOException {
+        synchronized (mFileLock) {
+            final byte[] batch;
+            final long records;
+            byte[] snapshot = null;
+            synchronized (this) {
+                if (!mLoaded) {
+                    // Written once load() has read the file.
+                    return;
+                }
+                if (mBuffer.size() == 0) {
+                    return;
+                }
+                batch = mBuffer.toByteArray();
+                mBuffer.reset();
+                records = mRecords;
+                if (mRecords >= mCompactMinRecords && mRecords > 4L * mPendingCount) {
+                    snapshot = snapshot();
+                    mRecords = snapshot.length / RECORD_LEN;
+                }
+            }
+            try {
+                if (snapshot != null) {
+                    compact(snapshot);
+                } else {
+                    append(batch);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    final byte[] since = mBuffer.toByteArray();
+                    mBuffer.reset();
+                    mBuffer.write(batch, 0, batch.length);
+                    mBuffer.write(since, 0, since.length);
+                    if (snapshot != null) {
+                        mRecords = records + since.length / RECORD_LEN;
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /** Writes what is left and closes the file. */
+    public void close() throws IOException {
+        synchronized (mFileLock) {
+            sync();
+            if (mOut != null) {
+                mOut.close();
+                mOut = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getPendingCount() + " pending, " + getRecordCount() + " records, "
+                + mSyncs.get() + " syncs, " + mCompactions.get() + " compactions, "
+                + mWriteFailures.get() + " write failures, " + mLoadFailures.get()
+                + " load failures";
+    }
+
+    /** Lock and unlock commands, code updates and resets. */
+    public static boolean isJournaled(int command) {
+        return command == SmartLockCodec.SL_UNLOCK_CMD || command == SmartLockCodec.SL_LOCK_CMD
+                || command == SmartLockCodec.SL_UPDATE_CODE_CMD
+                || command == SmartLockCodec.SL_RESET_CMD;
+    }
+
+    /** The command a response answers, or -1 for states and unknown codes. */
+    public static int commandOf(int code) {
+        switch (code) {
+            case SmartLockCodec.SL_LOCK_SUCCESS:
+            case SmartLockCodec.SL_LOCK_FAIL:
+                return SmartLockCodec.SL_LOCK_CMD;
+            case SmartLockCodec.SL_UNLOCK_SUCCESS:
+            case SmartLockCodec.SL_UNLOCK_FAIL:
+            case SmartLockCodec.SL_CODE_RUN_OUT:
+            case SmartLockCodec.SL_CODE_OUT_OF_DATE:
+            case SmartLockCodec.SL_DEV_ID_FAIL:
+            case SmartLockCodec.SL_DEV_NEED_UPDATE:
+                return SmartLockCodec.SL_UNLOCK_CMD;
+            case SmartLockCodec.SL_UPDATE_SUCCESS:
+                return SmartLockCodec.SL_UPDATE_CODE_CMD;
+            case SmartLockCodec.SL_RESET_SUCCESS:
+                return SmartLockCodec.SL_RESET_CMD;
+            default:
+                return -1;
+        }
+    }
+
+    // Encodes, applies and buffers one record.  Returns what apply() returns.
+    private Object append(int kind, int value, String address, long timeMs) {
+        encode(mRecord, kind, value, address, timeMs);
+        final Object result = apply(mRecord, 0);
+        mBuffer.write(mRecord, 0, RECORD_LEN);
+        mRecords++;
+        scheduleFlush();
+        return result;
+    }
+
+    private void encode(byte[] r, int kind, int value, String address, long timeMs) {
+        r[0] = (byte) kind;
+        r[1] = (byte) value;
+        final long a = MacAddress.parse(address);
+        for (int i = 0; i < 6; i++) {
+            r[2 + i] = (byte) (a >>> (40 - 8 * i));
+        }
+        for (int i = 0; i < 8; i++) {
+            r[8 + i] = (byte) (timeMs >>> (56 - 8 * i));
+        }
+        mCrc.reset();
+        mCrc.update(r, 0, RECORD_LEN - 4);
+        final int crc = (int) mCrc.getValue();
+        for (int i = 0; i < 4; i++) {
+            r[16 + i] = (byte) (crc >>> (24 - 8 * i));
+        }
+    }
+
+    // Applies a record to the pending commands, live and on replay alike.
+    private Object apply(byte[] r, int offset) {
+        final int kind = r[offset];
+        final int value = r[offset + 1] & 0xFF;
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | (r[offset + 2 + i] & 0xFF);
+        }
+        final String address = MacAddress.format(mac);
+        long timeMs = 0;
+        for (int i = 0; i < 8; i++) {
+            timeMs = (timeMs << 8) | (r[offset + 8 + i] & 0xFF);
+        }
+        ArrayList<Entry> pending = mPending.get(address);
+        switch (kind) {
+            case KIND_ISSUED:
+                if (pending == null) {
+                    pending = new ArrayList<Entry>(2);
+                    mPending.put(address, pending);
+                }
+                pending.add(new Entry(address, value, timeMs));
+                mPendingCount++;
+                return null;
+            case KIND_ANSWERED:
+                final int i = pending == null ? -1 : indexOf(pending, commandOf(value));
+                if (i < 0) {
+                    return null;
+                }
+                return remove(address, pending, i);
+            case KIND_INTERRUPTED:
+                if (pending != null) {
+                    for (int j = 0; j < pending.size(); j++) {
+                        pending.get(j).mInterrupted = true;
+                    }
+                }
+                return null;
+            case KIND_RECONCILED:
+                return reconcileLocked(address, pending, value);
+            default:
+                throw new IllegalArgumentException("Record kind " + kind);
+        }
+    }
+
+    private List<Resolution> reconcileLocked(String address, ArrayList<Entry> pending,
+                                             int state) {
+        final List<Resolution> resolutions = new ArrayList<Resolution>();
+        if (pending == null) {
+            return resolutions;
+        }
+        // The newest lock or unlock before the drop is the one the state tells about.
+        int judged = -1;
+        for (int i = 0; i < pending.size() && pending.get(i).mInterrupted; i++) {
+            final int command = pending.get(i).command;
+            if (command == SmartLockCodec.SL_LOCK_CMD || command == SmartLockCodec.SL_UNLOCK_CMD) {
+                judged = i;
+            }
+        }
+        while (!pending.isEmpty() && pending.get(0).mInterrupted) {
+            final Entry e = pending.get(0);
+            int outcome = UNKNOWN;
+            if (judged == 0 && state != SmartLockCodec.SL_UNUSABLE) {
+                final int wanted = e.command == SmartLockCodec.SL_LOCK_CMD
+                        ? SmartLockCodec.SL_LOCK : SmartLockCodec.SL_UNLOCK;
+                outcome = state == wanted ? APPLIED : NOT_APPLIED;
+            }
+            judged--;
+            resolutions.add(new Resolution(e, outcome));
+            remove(address, pending, 0);
+        }
+        return resolutions;
+    }
+
+    private Entry remove(String address, ArrayList<Entry> pending, int index) {
+        final Entry e = pending.remove(index);
+        mPendingCount--;
+        if (pending.isEmpty()) {
+            mPending.remove(address);
+        }
+        return e;
+    }
+
+    // Answers come for commands sent on the current link only.
+    private static int indexOf(ArrayList<Entry> pending, int command) {
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i).command == command && !pending.get(i).mInterrupted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void scheduleFlush() {
+        if (mLoaded && mFlushPending.compareAndSet(false, true)) {
+            mExecutor.execute(mFlush);
+        }
+    }
+
+    // Under mFileLock, before anything is written.  Returns the number of good records.
+    private long replay() throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+        final byte[] r = new byte[RECORD_LEN];
+        final CRC32 crc = new CRC32();
+        long records = 0;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a command journal: " + mFile);
+            }
+            while (true) {
+                in.readFully(r);
+                crc.reset();
+                crc.update(r, 0, RECORD_LEN - 4);
+                if ((int) crc.getValue() != readInt(r, RECORD_LEN - 4)) {
+                    break;
+                }
+                synchronized (this) {
+                    apply(r, 0);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // A clean end, or a record cut short.
+        } finally {
+            in.close();
+        }
+        final long good = 4 + records * RECORD_LEN;
+        if (mFile.length() > good) {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(good);
+            } finally {
+                file.close();
+            }
+        }
+        return records;
+    }
+
+    // Under mFileLock.  Keeps a file that cannot be replayed for a look later; if it cannot
+    // be renamed it is emptied, so new records never follow it.
+    private void moveAside() {
+        final File bad = new File(mFile.getPath() + ".bad");
+        bad.delete();
+        if (mFile.renameTo(bad) || mFile.delete()) {
+            return;
+        }
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(0);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            mWriteFailures.incrementAndGet();
+        }
+    }
+
+    // Records that replay to the pending commands: per lock, those sent before the drop, the
+    // drop, and those sent since.
+    private byte[] snapshot() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                4 + (mPendingCount + mPending.size()) * RECORD_LEN);
+        final byte[] r = new byte[RECORD_LEN];
+        out.write(magic(), 0, 4);
+        for (ArrayList<Entry> entries : mPending.values()) {
+            for (int i = 0; i < entries.size(); i++) {
+                final Entry e = entries.get(i);
+                encode(r, KIND_ISSUED, e.command, e.address, e.timeMs);
+                out.write(r, 0, RECORD_LEN);
+                final boolean last = i + 1 == entries.size() || !entries.get(i + 1).mInterrupted;
+                if (e.mInterrupted && last) {
+                    encode(r, KIND_INTERRUPTED, 0, e.address, e.timeMs);
+                    out.write(r, 0, RECORD_LEN);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Under mFileLock.  A failed write is cut off again, so the next one does not follow a
+    // torn record.
+    private void append(byte[] batch) throws IOException {
+        if (mOut == null) {
+            final boolean fresh = !mFile.exists() || mFile.length() == 0;
+            mOut = new FileOutputStream(mFile, true);
+            if (fresh) {
+                mOut.write(magic());
+            }
+        }
+        final long length = mFile.length();
+        try {
+            mOut.write(batch);
+            mOut.getFD().sync();
+        } catch (IOException e) {
+            mOut.close();
+            mOut = null;
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+            throw e;
+        }
+        mSyncs.incrementAndGet();
+    }
+
+    // Under mFileLock.  Written aside and renamed, so a crash leaves the old or the new file.
+    private void compact(byte[] snapshot) throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            file.write(snapshot);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mSyncs.incrementAndGet();
+        mCompactions.incrementAndGet();
+    }
+
+    private static byte[] magic() {
+        return new byte[] {(byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8),
+                (byte) MAGIC};
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16
+                | (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times each phase of a command, from the tap to the lock state on screen, and records how
+ * long every stage took into {@link LatencyHistogram}s per command type and per lock.
+ *
+ * <p>The lock's answer does not say which command it answers, and the lock handles one
+ * command at a time, so each lock has at most one command in flight: the one written last.
+ * A new command replaces an unanswered one, which is then counted as abandoned.
+ *
+ * <p>Phases are stamped with {@link System#nanoTime()} from whichever thread sees them; a
+ * phase that never happens for a command, e.g. the tap of a background retry, leaves its two
+ * stages out.  This class has no Android dependencies.
+ */
+public class CommandTracer {
+
+    public static final int PHASE_TAP = 0;
+    public static final int PHASE_ENCODED = 1;
+    public static final int PHASE_QUEUED = 2;
+    /** {@code onCharacteristicWrite} of the (last chunk of the) frame. */
+    public static final int PHASE_WRITTEN = 3;
+    public static final int PHASE_NOTIFIED = 4;
+    /** State observers on the main thread have run. */
+    public static final int PHASE_UPDATED = 5;
+    private static final int PHASES = 6;
+
+    /** Stage i runs from phase i to phase i + 1; the last one is the whole command. */
+    public static final String[] STAGES = {"encode", "queue", "write", "lock", "dispatch", "total"};
+    public static final int STAGE_TOTAL = STAGES.length - 1;
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    /** One command in flight.  Stamps are 0 until the phase happened. */
+    public static final class Trace {
+        final String mAddress;
+        final int mCommand;
+        final AtomicLongArray mStamps = new AtomicLongArray(PHASES);
+
+        Trace(String address, int command) {
+            mAddress = address;
+            mCommand = command;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Trace> mInFlight =
+            new ConcurrentHashMap<String, Trace>();
+    private final ConcurrentHashMap<String, LatencyHistogram[]> mByCommand =
+            new ConcurrentHashMap<String, LatencyHistogram[]>();
+    private final ConcurrentHashMap<String, LatencyHistogram[]> mByLock =
+            new ConcurrentHashMap<String, LatencyHistogram[]>();
+    private final AtomicLong mAbandoned = new AtomicLong();
+
+    /** Starts a command the user asked for. */
+    public void begin(String address, int command, long nowNs) {
+        start(address, command, PHASE_TAP, nowNs);
+    }
+
+    public void mark(String address, int phase, long nowNs) {
+        final Trace trace = mInFlight.get(address);
+        if (trace != null) {
+            trace.mStamps.set(phase, nowNs);
+        }
+    }
+
+    /**
+     * The frame of {@code command} was handed to the GATT queue.  Starts a trace if the command
+     * did not begin with a tap, e.g. a retry or a code refresh.
+     */
+    public void queued(String address, int command, long nowNs) {
+        final Trace trace = mInFlight.get(address);
+        if (trace != null && trace.mCommand == command) {
+            trace.mStamps.set(PHASE_QUEUED, nowNs);
+        } else {
+            start(address, command, PHASE_QUEUED, nowNs);
+        }
+    }
+
+    /**
+     * The lock answered.  The command is no longer in flight; pass the result to
+     * {@link #complete} once the new state is shown.
+     *
+     * @return The answered command, or null if none was in flight.
+     */
+    public Trace notified(String address, long nowNs) {
+        final Trace trace = mInFlight.remove(address);
+        if (trace != null) {
+            trace.mStamps.set(PHASE_NOTIFIED, nowNs);
+        }
+        return trace;
+    }
+
+    /** Records the stages of an answered command. */
+    public void complete(Trace trace, long nowNs) {
+        trace.mStamps.set(PHASE_UPDATED, nowNs);
+        final LatencyHistogram[] command = histograms(mByCommand, commandName(trace.mCommand));
+        final LatencyHistogram[] lock = histograms(mByLock, trace.mAddress);
+        long first = 0;
+        for (int i = 0; i < PHASES - 1; i++) {
+            final long from = trace.mStamps.get(i);
+            final long to = trace.mStamps.get(i + 1);
+            if (first == 0) {
+                first = from;
+            }
+            if (from != 0 && to != 0) {
+                command[i].record(to - from);
+                lock[i].record(to - from);
+            }
+        }
+        if (first != 0) {
+            command[STAGE_TOTAL].record(nowNs - first);
+            lock[STAGE_TOTAL].record(nowNs - first);
+        }
+    }
+
+    /** Drops the command in flight, e.g. because the lock disconnected. */
+    public void discard(String address) {
+        if (mInFlight.remove(address) != null) {
+            mAbandoned.incrementAndGet();
+        }
+    }
+
+    /** Commands replaced or dropped before the lock answered. */
+    public long getAbandonedCount() {
+        return mAbandoned.get();
+    }
+
+    /** Stage histograms by command name, e.g. "unlock", indexed like {@link #STAGES}. */
+    public Map<String, LatencyHistogram[]> getByCommand() {
+        return Collections.<String, LatencyHistogram[]>unmodifiableMap(mByCommand);
+    }
+
+    /** Stage histograms by lock address, indexed like {@link #STAGES}. */
+    public Map<String, LatencyHistogram[]> getByLock() {
+        return Collections.<String, LatencyHistogram[]>unmodifiableMap(mByLock);
+    }
+
+    public void reset() {
+        mByCommand.clear();
+        mByLock.clear();
+        mAbandoned.set(0);
+    }
+
+    /** A few lines per command type for a debug screen: count, p50, p99 and p999 in ms. */
+    public String summary() {
+        final StringBuilder sb = new StringBuilder();
+        for (String name : sorted(mByCommand)) {
+            final LatencyHistogram[] stages = mByCommand.get(name);
+            if (stages[STAGE_TOTAL].getCount() == 0) {
+                continue;
+            }
+            sb.append(name).append(" (").append(stages[STAGE_TOTAL].getCount()).append(")\n");
+            for (int i = 0; i < STAGES.length; i++) {
+                final LatencyHistogram h = stages[i];
+                if (h.getCount() == 0) {
+                    continue;
+                }
+                sb.append(String.format(Locale.US, "  %-8s", STAGES[i]));
+                for (double p : PERCENTILES) {
+                    sb.append(String.format(Locale.US, " %8.1f", h.getValueAtPercentile(p) / 1e6));
+                }
+                sb.append('\n');
+            }
+        }
+        if (sb.length() > 0) {
+            sb.insert(0, String.format(Locale.US, "%-10s %8s %8s %8s ms\n", "", "p50", "p99",
+                    "p999"));
+        }
+        if (mAbandoned.get() > 0) {
+            sb.append(mAbandoned.get()).append(" unanswered\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes every histogram as CSV: group (command or lock), key, stage, count, then mean,
+     * p50, p99, p999 and max in microseconds.
+     */
+    public void export(Writer out) throws IOException {
+        out.write("group,key,stage,count,mean_us,p50_us,p99_us,p999_us,max_us\n");
+        export(out, "command", mByCommand);
+        export(out, "lock", mByLock);
+    }
+
+    private static void export(Writer out, String group, Map<String, LatencyHistogram[]> map)
+            throws IOException {
+        for (String key : sorted(map)) {
+            final LatencyHistogram[] stages = map.get(key);
+            for (int i = 0; i < STAGES.length; i++) {
+                final LatencyHistogram h = stages[i];
+                if (h.getCount() == 0) {
+                    continue;
+                }
+                out.write(String.format(Locale.US, "%s,%s,%s,%d,%d,%d,%d,%d,%d\n", group, key,
+                        STAGES[i], h.getCount(), h.getMean() / 1000,
+                        h.getValueAtPercentile(50) / 1000, h.getValueAtPercentile(99) / 1000,
+                        h.getValueAtPercentile(99.9) / 1000, h.getMax() / 1000));
+            }
+        }
+    }
+
+    public static String commandName(int command) {
+        switch (command) {
+            case SmartLockCodec.SL_UNLOCK_CMD:
+                return "unlock";
+            case SmartLockCodec.SL_LOCK_CMD:
+                return "lock";
+            case SmartLockCodec.SL_UPDATE_CODE_CMD:
+                return "update";
+            case SmartLockCodec.SL_LOAD_CODES_CMD:
+                return "load";
+            case SmartLockCodec.SL_ADD_CODES_CMD:
+                return "add";
+            case SmartLockCodec.SL_APP_READY_CMD:
+                return "ready";
+            case SmartLockCodec.SL_RESET_CMD:
+                return "reset";
+            default:
+                return "0x" + Integer.toHexString(command);
+        }
+    }
+
+    private void start(String address, int command, int phase, long nowNs) {
+        final Trace trace = new Trace(address, command);
+        trace.mStamps.set(phase, nowNs);
+        if (mInFlight.put(address, trace) != null) {
+            mAbandoned.incrementAndGet();
+        }
+    }
+
+    private static LatencyHistogram[] histograms(ConcurrentHashMap<String, LatencyHistogram[]> map,
+                                                 String key) {
+        LatencyHistogram[] stages = map.get(key);
+        if (stages == null) {
+            final LatencyHistogram[] created = new LatencyHistogram[STAGES.length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new LatencyHistogram();
+            }
+            stages = map.putIfAbsent(key, created);
+            if (stages == null) {
+                stages = created;
+            }
+        }
+        return stages;
+    }
+
+    private static List<String> sorted(Map<String, LatencyHistogram[]> map) {
+        final List<String> keys = new ArrayList<String>(map.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Picks the connection mode of a lock link, i.e. its connection priority and PHY, from what
+ * the link is doing.  {@link ConnectionTuner} feeds the policy and applies its answer;
+ * implementations only look at their arguments, so they can be tested without a radio.
+ *
+ * <p>This interface has no Android dependencies.
+ */
+public interface ConnectionPolicy {
+
+    /** {@code CONNECTION_PRIORITY_LOW_POWER}, 1M PHY. */
+    int MODE_LOW_POWER = 0;
+    /** {@code CONNECTION_PRIORITY_BALANCED}, 1M PHY; what Android uses after connecting. */
+    int MODE_BALANCED = 1;
+    /** {@code CONNECTION_PRIORITY_HIGH}, 2M PHY where both ends have it. */
+    int MODE_HIGH = 2;
+    int MODE_COUNT = 3;
+
+    /**
+     * @param current The mode the link is in now.
+     * @param queuedOps GATT operations queued or in flight on the link.
+     * @param burst Whether the app marked the link busy, e.g. while provisioning it.
+     * @param idleMs Time since the link last had an operation queued or a burst, 0 while it
+     *               has.
+     * @return The mode the link should be in.
+     */
+    int select(int current, int queuedOps, boolean burst, long idleMs);
+
+    /**
+     * How long after {@code idleMs} of idling in {@code mode} {@link #select} may answer
+     * differently, or -1 if only new activity can change it.
+     */
+    long recheckMs(int mode, long idleMs);
+}
@@ -0,0 +1,198 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one link in the mode its {@link ConnectionPolicy} asks for.  The session calls
+ * {@link #update()} whenever an operation is queued or completes; a single timer task
+ * covers the policy's idle transitions, so a quiet link has at most one pending task.
+ *
+ * <p>A mode the link refused, e.g. before API 21 or while it has no handle, is only asked
+ * for again on new activity or {@link #REFUSED_RETRY_MS} later.
+ *
+ * <p>Thread safe.  This class has no Android dependencies.
+ */
+public class ConnectionTuner {
+
+    /** Mode of a link that is not ready. */
+    public static final int MODE_UNSET = -1;
+
+    public static final long REFUSED_RETRY_MS = 5000;
+    // Floor of the recheck delay, so a policy answering 0 cannot spin the timer.
+    private static final long MIN_RECHECK_MS = 50;
+
+    /** The radio side; implemented by {@link LockSession}. */
+    public interface Link {
+        int queuedOps();
+
+        /** Asks the stack for {@code mode}; returns false if it could not. */
+        boolean applyMode(int mode);
+    }
+
+    private final Link mLink;
+    private final ConnectionPolicy mPolicy;
+    private final ScheduledExecutorService mTimer;
+
+    private volatile int mMode = MODE_UNSET;
+    // Guarded by this.
+    private boolean mBurst;
+    // Whether the last update saw the link busy; it stayed busy until this one.
+    private boolean mBusy;
+    private long mLastBusyMs;
+    private long mModeSinceMs;
+    private ScheduledFuture<?> mRecheck;
+    private long mRecheckAtMs;
+    private long mSwitches;
+    private int mRefusedMode = MODE_UNSET;
+    private long mRefusedAtMs;
+    private long mRefusals;
+    private final long[] mTimeInModeMs = new long[ConnectionPolicy.MODE_COUNT];
+
+    private final Runnable mRecheckTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionTuner.this) {
+                mRecheck = null;
+                update();
+            }
+        }
+    };
+
+    public ConnectionTuner(Link link, ConnectionPolicy policy, ScheduledExecutorService timer) {
+        mLink = link;
+        mPolicy = policy;
+        mTimer = timer;
+    }
+
+    /** The link is ready, in the balanced mode every new connection starts in. */
+    public synchronized void start() {
+        final long now = nowMs();
+        mMode = ConnectionPolicy.MODE_BALANCED;
+        mModeSinceMs = now;
+        mBusy = false;
+        mLastBusyMs = now;
+        mRefusedMode = MODE_UNSET;
+        update();
+    }
+
+    /** The link is gone. */
+    public synchronized void stop() {
+        if (mMode != MODE_UNSET) {
+            mTimeInModeMs[mMode] += nowMs() - mModeSinceMs;
+        }
+        mMode = MODE_UNSET;
+        mBurst = false;
+        mRefusedMode = MODE_UNSET;
+        if (mRecheck != null) {
+            mRecheck.cancel(false);
+            mRecheck = null;
+        }
+    }
+
+    /** Marks the link busy or not, whatever its queue holds. */
+    public synchronized void setBurst(boolean burst) {
+        if (mBurst != burst) {
+            mBurst = burst;
+            update();
+        }
+    }
+
+    /** Asks the policy again; call after the link's queue changed. */
+    public synchronized void update() {
+        if (mMode == MODE_UNSET) {
+            return;
+        }
+        final long now = nowMs();
+        final int queued = mLink.queuedOps();
+        final boolean busy = queued > 0 || mBurst;
+        if (busy || mBusy) {
+            mLastBusyMs = now;
+        }
+        mBusy = busy;
+        final long idle = now - mLastBusyMs;
+        final int mode = mPolicy.select(mMode, queued, mBurst, idle);
+        if (mode != mMode && mayApply(mode, now)) {
+            if (mLink.applyMode(mode)) {
+                mTimeInModeMs[mMode] += now - mModeSinceMs;
+                mModeSinceMs = now;
+                mMode = mode;
+                mSwitches++;
+                mRefusedMode = MODE_UNSET;
+            } else {
+                mRefusedMode = mode;
+                mRefusedAtMs = now;
+                mRefusals++;
+            }
+        }
+        // A pending recheck that fires early just schedules the next one, so the task is only
+        // replaced when the deadline moves closer, e.g. after a switch to high.
+        long recheck = mPolicy.recheckMs(mMode, idle);
+        if (recheck >= 0) {
+            if (mRefusedMode != MODE_UNSET) {
+                recheck = Math.max(recheck, mRefusedAtMs + REFUSED_RETRY_MS - now);
+            }
+            recheck = Math.max(MIN_RECHECK_MS, recheck);
+        }
+        if (recheck >= 0 && (mRecheck == null || now + recheck < mRecheckAtMs)) {
+            if (mRecheck != null) {
+                mRecheck.cancel(false);
+            }
+            try {
+                mRecheck = mTimer.schedule(mRecheckTask, recheck, TimeUnit.MILLISECONDS);
+                mRecheckAtMs = now + recheck;
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                mRecheck = null;
+            }
+        }
+    }
+
+    // A refused mode is retried once the link was busy again or after a while.
+    private boolean mayApply(int mode, long now) {
+        return mode != mRefusedMode || mLastBusyMs > mRefusedAtMs
+                || now - mRefusedAtMs >= REFUSED_RETRY_MS;
+    }
+
+    /** One of the {@code ConnectionPolicy.MODE_*} values, or {@link #MODE_UNSET}. */
+    public int getMode() {
+        return mMode;
+    }
+
+    public synchronized long getSwitchCount() {
+        return mSwitches;
+    }
+
+    /** Mode switches the link refused. */
+    public synchronized long getRefusalCount() {
+        return mRefusals;
+    }
+
+    /** Time spent in {@code mode} so far. */
+    public synchronized long getTimeInModeMs(int mode) {
+        long time = mTimeInModeMs[mode];
+        if (mode == mMode) {
+            time += nowMs() - mModeSinceMs;
+        }
+        return time;
+    }
+
+    public static String modeName(int mode) {
+        switch (mode) {
+            case ConnectionPolicy.MODE_LOW_POWER:
+                return "low power";
+            case ConnectionPolicy.MODE_BALANCED:
+                return "balanced";
+            case ConnectionPolicy.MODE_HIGH:
+                return "high";
+            default:
+                return "none";
+        }
+    }
+
+    private static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
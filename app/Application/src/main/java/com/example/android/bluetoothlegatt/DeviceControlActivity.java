@@ -21,17 +21,14 @@ import android.app.AlertDialog;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.provider.Settings;
-import android.text.Html;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -40,15 +37,20 @@ import android.view.WindowManager;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.ExpandableListView;
+import android.widget.ListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -58,7 +60,7 @@ import java.util.List;
  */
 public class DeviceControlActivity extends Activity {
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
-    private final DateFormat mTimeFormat = DateFormat.getTimeInstance();
+    private static final LockStatusSpans STATUS_SPANS = new LockStatusSpans();
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
@@ -69,7 +71,6 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private BackProcess mBackProcess;
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
             new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
@@ -81,17 +82,24 @@ public class DeviceControlActivity extends Activity {
     private BluetoothGatt mBluetoothGatt;
 
     private EditText code_text;
-    public static TextView lock_view;
+    private TextView mLockView;
+    // State word of this lock as last shown; UI thread only.
+    private long mLockState = LockStateStore.INITIAL;
     private TextView phone_id_view;
     private String phone_id;
+    private long mPhoneId;
+    // Reused for every command frame; only touched from the UI thread.
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+    // Event log view; the log itself lives in the service.
+    private ListView mEventList;
+    private LockEventAdapter mEventAdapter;
+    private final AtomicBoolean mEventRefreshPending = new AtomicBoolean();
+    private static final int[] LOG_CAPACITIES = {100, 500, 2000, 10000};
+    // Codes listed in the dialog after a load.
+    private static final int CODES_SHOWN = 12;
     //TextView result;
     private static DeviceControlActivity ins;
 
-    public static int SMARTLOCKER_UNUSABLE = 2;
-    public static int SMARTLOCKER_LOCKED = 1;
-    public static int SMARTLOCKER_UNLOCKED = 0;
-    public static int lock_status = SMARTLOCKER_LOCKED;
-
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -102,46 +110,107 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBluetoothLeService.registerLockListener(mDeviceAddress, mLockListener);
+            final int[] unseen = mBluetoothLeService.takeUnseenCodes(mDeviceAddress);
+            if (unseen != null) {
+                showCodes(unseen);
+            }
+            mBluetoothLeService.getEventBus().subscribe(mGattEventSubscriber);
+            mBluetoothLeService.getLockStates().addObserver(mLockStateObserver);
+            showLockState(mBluetoothLeService.getLockStates().get(mDeviceAddress));
+            mEventAdapter = new LockEventAdapter(DeviceControlActivity.this,
+                    mBluetoothLeService.getEventLog(), STATUS_SPANS);
+            mEventList.setAdapter(mEventAdapter);
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService.unregisterLockListener(mDeviceAddress, mLockListener);
+            mBluetoothLeService.getEventBus().unsubscribe(mGattEventSubscriber);
+            mBluetoothLeService.getLockStates().removeObserver(mLockStateObserver);
             mBluetoothLeService.disconnect();
             mBluetoothLeService = null;
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Results reported by the lock this activity controls.
+    private final LockEventListener mLockListener = new LockEventListener() {
+        @Override
+        public void onLockMessage(String address, LockStatusTable.Status status) {
+            // The service already logged it.
+            refreshEventLog();
+        }
+
+        @Override
+        public boolean onCodesSent(String address, final int[] codes) {
+            refreshEventLog();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showCodes(codes);
+                }
+            });
+            return true;
+        }
+    };
+
+    // Lock states of all devices, in batches on the main thread.
+    private final LockStateStore.Observer mLockStateObserver = new LockStateStore.Observer() {
+        @Override
+        public void onLockStatesChanged(String[] addresses, long[] states, int count) {
+            for (int i = 0; i < count; i++) {
+                if (addresses[i].equals(mDeviceAddress)) {
+                    showLockState(states[i]);
+                }
+            }
+        }
+    };
+
+    // Handles various events fired by the Service, on the main thread.
+    // CONNECTED: connected to a GATT server.
+    // DISCONNECTED: disconnected from a GATT server.
+    // SERVICES_DISCOVERED: discovered GATT services.
+    // DATA_AVAILABLE: received data from the device.  This can be a result of read
+    //                 or notification operations.
+    private final GattEventBus.Subscriber mGattEventSubscriber = new GattEventBus.Subscriber() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                Log.w(TAG, "connected to a GATT server.");
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                Log.w(TAG, "disconnected from a GATT server");
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                Log.w(TAG, "discovered GATT services");
-                // Show all the supported services and characteristics on the user interface.
-                //displayGattServices(mBluetoothLeService.getSupportedGattServices());
-                mBluetoothLeService.SetCharNotification();
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                Log.w(TAG, "received data from the device.");
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+        public void onGattEvent(GattEventBus.Event event) {
+            if (!event.getAddress().equals(mDeviceAddress)) {
+                // Another lock connected through the same service.
+                return;
+            }
+            switch (event.getType()) {
+                case CONNECTED:
+                    Log.w(TAG, "connected to a GATT server.");
+                    mConnected = true;
+                    updateConnectionState(R.string.connected);
+                    invalidateOptionsMenu();
+                    refreshEventLog();
+                    break;
+                case DISCONNECTED:
+                    Log.w(TAG, "disconnected from a GATT server");
+                    mConnected = false;
+                    // The service gets the lock back unless the user disconnected it.
+                    updateConnectionState(mBluetoothLeService != null
+                            && mBluetoothLeService.getReconnectEngine().isWatched(mDeviceAddress)
+                            ? R.string.reconnecting : R.string.disconnected);
+                    invalidateOptionsMenu();
+                    refreshEventLog();
+                    clearUI();
+                    break;
+                case SERVICES_DISCOVERED:
+                    Log.w(TAG, "discovered GATT services");
+                    // Show all the supported services and characteristics on the user interface.
+                    //displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                    if (mBluetoothLeService != null) {
+                        mBluetoothLeService.SetCharNotification(mDeviceAddress);
+                    }
+                    break;
+                case DATA_AVAILABLE:
+                    Log.w(TAG, "received data from the device, code " + event.getCode());
+                    break;
             }
         }
     };
@@ -206,12 +275,15 @@ public class DeviceControlActivity extends Activity {
          */
         //mDataField = (TextView) findViewById(R.id.data_value);
 
-        lock_view = (TextView) findViewById(R.id.lock_view);
-        UpdateLockStatus(0xD0);
+        mEventList = (ListView) findViewById(R.id.result_view);
+
+        mLockView = (TextView) findViewById(R.id.lock_view);
+        mLockView.setText(STATUS_SPANS.lockLine(SmartLockCodec.SL_LOCK));
 
         phone_id_view = (TextView) findViewById(R.id.phone_id);
         phone_id = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
         phone_id_view.setText("Phone ID: "+ phone_id);
+        mPhoneId = SmartLockCodec.phoneId(phone_id);
 
         code_text = (EditText) findViewById(R.id.code_text);
         ins = this;
@@ -222,28 +294,25 @@ public class DeviceControlActivity extends Activity {
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
         //SendAppReady();
-        //mBackProcess.start();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterLockListener(mDeviceAddress, mLockListener);
+            mBluetoothLeService.getEventBus().unsubscribe(mGattEventSubscriber);
+            mBluetoothLeService.getLockStates().removeObserver(mLockStateObserver);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -270,6 +339,18 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_provision:
+                provisionKnownLocks();
+                return true;
+            case R.id.menu_log_size:
+                showLogSizeDialog();
+                return true;
+            case R.id.menu_latency:
+                showLatency();
+                return true;
+            case R.id.menu_export_log:
+                exportEventLog();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -286,12 +367,6 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
-    private void displayData(String data) {
-        if (data != null) {
-            mDataField.setText(data);
-        }
-    }
-
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
     // on the UI.
@@ -350,68 +425,42 @@ public class DeviceControlActivity extends Activity {
         mGattServicesList.setAdapter(gattServiceAdapter);
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
     public void onClickUpdateCode(View v) {
-        int size = 3;
-        byte[] value = {0};
-        String AlphaNumericString = "0123456789";
-        StringBuilder sb = new StringBuilder(size);
-        String tmp = "Generate new access code ";
-
         if (mBluetoothLeService == null) {
             Log.w(TAG, "bt service is null");
             return;
         }
-
-        Date now = new Date();
-        long timestamp = now.getTime();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyMMddHHmm");
-        String dateStr = sdf.format(timestamp);
-
-        sb.append(mBluetoothLeService.SL_UPDATE_CODE_CMD + "3");
-
-        for (int i = 0; i < size; i++) {
-            int index = (int)(AlphaNumericString.length() * Math.random());
-            char c = AlphaNumericString.charAt(index);
-            sb.append(c);
-            tmp = tmp + Character.toString(c);
-            tmp += ", ";
-        }
-
-        sb.append(phone_id);
-        sb.append(dateStr);
-
-        Log.w(TAG, "Update code = " + sb.toString());
-
-        value = sb.toString().getBytes();
-
-        updateTheTextView(" <font color=\\\"#FE6026\\\">" + tmp + "</font>");
-
-        mBluetoothLeService.writeCustomCharacteristic(value);
+        // The codes are shown by mLockListener.
+        mBluetoothLeService.refreshCodes(mDeviceAddress);
     }
 
     public void SendAppReady() {
         byte[] value = {0};
-        String s = "";
 
-        s = Integer.toString(mBluetoothLeService.SL_APP_READY_CMD);
-        value = s.getBytes();
+        mFrame.clear();
+        SmartLockCodec.encodeAppReady(mFrame);
+        value = Arrays.copyOf(mFrame.array(), mFrame.position());
         Log.w(TAG, "Send Ready CMD to Smartlock");
         mBluetoothLeService.writeCustomCharacteristic(value);
     }
 
+    // Encodes a command into mFrame and returns the bytes to write.  The GATT queue keeps a
+    // reference to the array until the write is issued, so the result must be a copy.  Only
+    // called for taps, which start the command's trace.
+    private byte[] buildFrame(int cmd, CharSequence digits) {
+        final CommandTracer tracer = mBluetoothLeService.getTracer();
+        tracer.begin(mDeviceAddress, cmd, System.nanoTime());
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, cmd, digits, mPhoneId,
+                mBluetoothLeService.getClock());
+        final byte[] frame = Arrays.copyOf(mFrame.array(), mFrame.position());
+        tracer.mark(mDeviceAddress, CommandTracer.PHASE_ENCODED, System.nanoTime());
+        return frame;
+    }
+
     public void onClickWrite(View v){
         byte[] value = {0};
         String code = code_text.getText().toString();
-        String s = "";
 
         if (mBluetoothLeService == null) {
             Log.w(TAG, "code or bt service is null");
@@ -419,90 +468,83 @@ public class DeviceControlActivity extends Activity {
         }
 
         if (code.isEmpty()) {
+            // Nothing typed: use a code the vault knows the lock holds.
+            final int stored = mBluetoothLeService.getCodeVault().peekCode(mDeviceAddress);
+            if (stored >= 0) {
+                code = String.valueOf(stored);
+            }
+        }
+        if (code.isEmpty() || code.length() > SmartLockCodec.MAX_CODE_DIGITS) {
             showAlert("ERROR", "Please input a valid code");
             return;
         }
 
-        if (lock_status != SMARTLOCKER_UNLOCKED) {
-            Date now = new Date();
-            long timestamp = now.getTime();
-            SimpleDateFormat sdf = new SimpleDateFormat("yyMMddHHmm");
-            String dateStr = sdf.format(timestamp);
-
-            s = Integer.toString(mBluetoothLeService.SL_UNLOCK_CMD) + code.length() + code + phone_id + dateStr;
-            Log.w(TAG, "unlock code = " + s);
+        if (currentLockStatus() != SmartLockCodec.SL_UNLOCK) {
+            value = buildFrame(SmartLockCodec.SL_UNLOCK_CMD, code);
+            Log.w(TAG, "unlock code = " + Arrays.toString(value));
 
-            value = s.getBytes();
-            updateTheTextView(" <font color=\\\"#FE6026\\\">" + "Sending access code " + code + " to unlock Locker" + "</font>");
+            logEvent(LockStatusTable.APP_UNLOCK_SENT);
             mBluetoothLeService.writeCustomCharacteristic(value);
         } else {
-            updateTheTextView(" <font color=\\\"#FE6026\\\">" + "Locker is already unlocked" + "</font>");
+            logEvent(LockStatusTable.APP_ALREADY_UNLOCKED);
         }
 
         code_text.getText().clear();
 
-        InputMethodManager inputManager = ( InputMethodManager ) getSystemService(this.INPUT_METHOD_SERVICE);
-        inputManager.hideSoftInputFromWindow(getCurrentFocus().getWindowToken(), InputMethodManager.HIDE_NOT_ALWAYS);
+        if (getCurrentFocus() != null) {
+            InputMethodManager inputManager = ( InputMethodManager ) getSystemService(this.INPUT_METHOD_SERVICE);
+            inputManager.hideSoftInputFromWindow(getCurrentFocus().getWindowToken(), InputMethodManager.HIDE_NOT_ALWAYS);
+        }
     }
 
     public void OnClickSendLock(View v) {
         byte[] value = {0};
         String code = code_text.getText().toString();
-        String s = "";
 
         if (mBluetoothLeService == null) {
             Log.w(TAG, "code or bt service is null");
             return;
         }
 
-        if (lock_status != SMARTLOCKER_LOCKED) {
-            Date now = new Date();
-            long timestamp = now.getTime();
-            SimpleDateFormat sdf = new SimpleDateFormat("yyMMddHHmm");
-            String dateStr = sdf.format(timestamp);
-
-            s = Integer.toString(mBluetoothLeService.SL_LOCK_CMD) + code.length() + code + phone_id + dateStr;
-            Log.w(TAG, "unlock code = " + s);
+        if (code.length() > SmartLockCodec.MAX_CODE_DIGITS) {
+            showAlert("ERROR", "Please input a valid code");
+            return;
+        }
 
-            value = s.getBytes();
+        if (currentLockStatus() != SmartLockCodec.SL_LOCK) {
+            value = buildFrame(SmartLockCodec.SL_LOCK_CMD, code);
+            Log.w(TAG, "lock code = " + Arrays.toString(value));
 
-            updateTheTextView(" <font color=\\\"#FE6026\\\">" + "Trying to lock Locker ..." + "</font>");
+            logEvent(LockStatusTable.APP_LOCK_SENT);
 
             mBluetoothLeService.writeCustomCharacteristic(value);
         } else {
-            updateTheTextView(" <font color=\\\"#FE6026\\\">" + "Locker is already locked" + "</font>");
+            logEvent(LockStatusTable.APP_ALREADY_LOCKED);
         }
     }
 
     public void OnClickReset(View v) {
         byte[] value = {0};
-        String s = "";
 
         if (mBluetoothLeService == null) {
             Log.w(TAG, "code or bt service is null");
             return;
         }
 
-        Date now = new Date();
-        long timestamp = now.getTime();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyMMddHHmm");
-        String dateStr = sdf.format(timestamp);
-
-        s = Integer.toString(mBluetoothLeService.SL_RESET_CMD) + phone_id + dateStr;
-        Log.w(TAG, "Send Reset CMD = " + s);
+        value = buildFrame(SmartLockCodec.SL_RESET_CMD, "");
+        Log.w(TAG, "Send Reset CMD = " + Arrays.toString(value));
 
-        value = s.getBytes();
-
-        updateTheTextView(" <font color=\\\"#FE6026\\\">" + "Reset Locker" + "</font>");
+        logEvent(LockStatusTable.APP_RESET_SENT);
 
+        // The lock state follows once the lock answers SL_RESET_SUCCESS.
         mBluetoothLeService.writeCustomCharacteristic(value);
-
-        UpdateLockStatus(0xD0);
     }
 
     public void OnClickResultView(View v) {
-        TextView result = (TextView) findViewById(R.id.result_view);
-        result.setText("");
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.getEventLog().clear();
+            refreshEventLog();
+        }
     }
 
     public void showAlert(String title, String context)
@@ -513,35 +555,204 @@ public class DeviceControlActivity extends Activity {
         alert.show();
     }
 
-    public static void UpdateLockStatus(int lock) {
-        if (lock == 0xD0) {
-            lock_view.setText(Html.fromHtml("Lock status : " + "<font color=\"#FF0000\">" + "Lock" + "</font>"));
-            lock_status = SMARTLOCKER_LOCKED;
-        } else if (lock == 0xD1){
-            lock_view.setText(Html.fromHtml("Lock status : " + "<font color=\"#0DFF00\">" + "Unlock" + "</font>"));
-            lock_status = SMARTLOCKER_UNLOCKED;
-        } else if (lock == 0xD2) {
-            lock_view.setText(Html.fromHtml("Lock status : " + "<font color=\"#FF0000\">" + "Unusable" + "</font>"));
-            lock_status = SMARTLOCKER_UNUSABLE;
+    // UI thread only.  A batch is too long for a dialog; the first codes show what was sent.
+    private void showCodes(int[] codes) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(codes.length).append(" codes: ");
+        final int shown = Math.min(codes.length, CODES_SHOWN);
+        for (int i = 0; i < shown; i++) {
+            SmartLockCodec.appendCode(sb.append(i == 0 ? "" : ", "), codes[i]);
+        }
+        if (shown < codes.length) {
+            sb.append(", ...");
+        }
+        showAlert("New access codes", sb.toString());
+    }
+
+    // UI thread only.
+    private void showLockState(long state) {
+        mLockState = state;
+        final CharSequence line = STATUS_SPANS.lockLine(LockStateStore.lockStatus(state));
+        if (line != null) {
+            mLockView.setText(line);
         }
     }
 
+    // The lock status of this lock, locked until it reported one.
+    private int currentLockStatus() {
+        final int lock = LockStateStore.lockStatus(mLockState);
+        return lock == 0 ? SmartLockCodec.SL_LOCK : lock;
+    }
+
     public static DeviceControlActivity getInstace() {
         return ins;
     }
 
-    public void updateTheTextView(final String s) {
-        DeviceControlActivity.this.runOnUiThread(new Runnable() {
+    // Records an app event for the current lock and shows it.
+    private void logEvent(int code) {
+        mBluetoothLeService.getEventLog().append(System.currentTimeMillis(), code, mDeviceAddress);
+        refreshEventLog();
+    }
+
+    // Shows new log events.  Safe from any thread; bursts collapse into one refresh.
+    private void refreshEventLog() {
+        if (mEventRefreshPending.compareAndSet(false, true)) {
+            runOnUiThread(mRefreshEventLog);
+        }
+    }
+
+    private final Runnable mRefreshEventLog = new Runnable() {
+        @Override
+        public void run() {
+            mEventRefreshPending.set(false);
+            if (mEventAdapter != null) {
+                mEventAdapter.refresh();
+            }
+        }
+    };
+
+    private void showLogSizeDialog() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final CharSequence[] items = new CharSequence[LOG_CAPACITIES.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = String.valueOf(LOG_CAPACITIES[i]);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_log_size)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mBluetoothLeService != null) {
+                            mBluetoothLeService.setEventLogCapacity(LOG_CAPACITIES[which]);
+                            refreshEventLog();
+                        }
+                    }
+                })
+                .show();
+    }
+
+    // Loads new codes into every lock the app knows, with a progress dialog.
+    private void provisionKnownLocks() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final List<String> addresses = new ArrayList<String>();
+        for (KnownLockRegistry.KnownLock lock : BluetoothLeService.getKnownLocks(this).getAll()) {
+            addresses.add(lock.getAddress());
+        }
+        final fullprogressbar progress = new fullprogressbar();
+        final CodeProvisioner provisioner = mBluetoothLeService.provisionCodes(addresses,
+                new CodeProvisioner.Listener() {
+                    @Override
+                    public void onLockDone(CodeProvisioner.Result result, int done, int total) {
+                        progress.setTitle(getString(R.string.provision_progress, done, total));
+                        refreshEventLog();
+                    }
+
+                    @Override
+                    public void onFinished(CodeProvisioner.Report report) {
+                        progress.getDialog().dismiss();
+                        final StringBuilder sb = new StringBuilder();
+                        for (CodeProvisioner.Result result : report.results) {
+                            sb.append(result).append('\n');
+                        }
+                        sb.append(getString(R.string.provision_rate,
+                                (long) report.getLocksPerMinute()));
+                        showAlert(getString(R.string.provision_done, report.provisioned,
+                                report.results.size()), sb.toString());
+                    }
+                });
+        if (provisioner == null) {
+            Toast.makeText(this, R.string.provision_busy, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        progress.show(this, getString(R.string.provision_progress, 0, addresses.size()), true,
+                new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        provisioner.cancel();
+                    }
+                });
+    }
+
+    // Percentiles per command type, with buttons to export or clear them.
+    private void showLatency() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final CommandTracer tracer = mBluetoothLeService.getTracer();
+        final String summary = tracer.summary();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_latency)
+                .setMessage(summary.isEmpty() ? getString(R.string.latency_empty) : summary)
+                .setPositiveButton(getString(R.string.latency_export),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                exportLatency();
+                            }
+                        })
+                .setNeutralButton(getString(R.string.latency_reset),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                tracer.reset();
+                            }
+                        })
+                .show();
+    }
+
+    private void exportEventLog() {
+        final BluetoothLeService service = mBluetoothLeService;
+        if (service == null) {
+            return;
+        }
+        exportInBackground(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return service.exportEventLog();
+            }
+        }, R.string.log_exported, R.string.log_export_failed);
+    }
+
+    private void exportLatency() {
+        final BluetoothLeService service = mBluetoothLeService;
+        if (service == null) {
+            return;
+        }
+        exportInBackground(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return service.exportLatency();
+            }
+        }, R.string.latency_exported, R.string.latency_export_failed);
+    }
+
+    // Runs an export off the UI thread and toasts where the file went.
+    private void exportInBackground(final Callable<File> export, final int doneId,
+                                    final int failedId) {
+        new Thread(new Runnable() {
+            @Override
             public void run() {
-                TextView result = (TextView) findViewById(R.id.result_view);
-                result.setMovementMethod(new ScrollingMovementMethod());
-                result.append(Html.fromHtml("[" + mTimeFormat.format(new Date()) + "]" + ": " + s));
-                result.append("\n");
-                int offset= result.getLineCount()*result.getLineHeight();
-                if (offset > result.getHeight()) {
-                    result.scrollTo(0, offset - result.getHeight());
+                String message;
+                try {
+                    final File file = export.call();
+                    message = getString(doneId, file.getPath());
+                } catch (Exception e) {
+                    Log.w(TAG, "Export failed", e);
+                    message = getString(failedId);
                 }
+                final String result = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceControlActivity.this, result, Toast.LENGTH_LONG)
+                                .show();
+                    }
+                });
             }
-        });
+        }).start();
     }
 }
@@ -16,6 +16,7 @@
 
 package com.example.android.bluetoothlegatt;
 
+import android.Manifest;
 import android.app.Activity;
 import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
@@ -26,8 +27,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -39,7 +42,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Set;
 
 /**
@@ -51,8 +54,11 @@ public class DeviceScanActivity extends ListActivity {
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
+    private final LockScanIndex mScanIndex = new LockScanIndex();
+    private LockScanner mScanner;
 
     private static final int REQUEST_ENABLE_BT = 1;
+    private static final int REQUEST_LOCATION = 2;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
 
@@ -64,6 +70,9 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState == null) {
+            BluetoothLeService.sLaunchTime = SystemClock.elapsedRealtime();
+        }
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
 
@@ -87,9 +96,42 @@ public class DeviceScanActivity extends ListActivity {
             return;
         }
 
+        mScanner = new LockScanner(mBluetoothAdapter, mScanIndex, mScanListener);
+
         registerReceiver(mBondStateReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+
+        if (savedInstanceState == null) {
+            // Go straight to the last used lock; back returns to this list.
+            final KnownLockRegistry.KnownLock last =
+                    BluetoothLeService.getKnownLocks(this).getLastUsed();
+            if (last != null) {
+                openDevice(last.getName(), last.getAddress());
+            }
+        }
+    }
+
+    private void openDevice(String name, String address) {
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        startActivity(intent);
     }
 
+    private final LockScanner.Listener mScanListener = new LockScanner.Listener() {
+        @Override
+        public void onScanUpdate() {
+            if (mLeDeviceListAdapter != null) {
+                mLeDeviceListAdapter.refresh();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mScanning = false;
+            invalidateOptionsMenu();
+        }
+    };
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
@@ -137,10 +179,33 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        // Known locks are listed before the scan finds them.
+        for (KnownLockRegistry.KnownLock lock : BluetoothLeService.getKnownLocks(this).getAll()) {
+            mScanIndex.update(lock.getAddress(), lock.getName(), LockScanIndex.NO_RSSI,
+                    SystemClock.elapsedRealtime());
+        }
+        mLeDeviceListAdapter.refresh();
+        // Since Android 6 scan results need the location permission.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION)
+                        != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[] {Manifest.permission.ACCESS_COARSE_LOCATION},
+                    REQUEST_LOCATION);
+        } else {
+            scanLeDevice(true);
+        }
         mBluetoothLeService.disconnect();
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions,
+                                           int[] grantResults) {
+        if (requestCode == REQUEST_LOCATION && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            scanLeDevice(true);
+        }
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         Log.w(TAG, "onActivityResult");
@@ -161,73 +226,81 @@ public class DeviceScanActivity extends ListActivity {
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
-        if (device == null) return;
-        final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+        final String address = mScanIndex.getAddress(position);
+        final String name = mScanIndex.getName(position);
+        try {
+            BluetoothLeService.getKnownLocks(this).record(address, name,
+                    mScanIndex.getRssi(position), KnownLockRegistry.STATE_UNKNOWN,
+                    System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot update lock registry", e);
         }
-        startActivity(intent);
+        scanLeDevice(false);
+        openDevice(name, address);
     }
 
     private void scanLeDevice(final boolean enable) {
         Log.w(TAG, "scanLeDevice = " + enable);
-      /*  if (enable) {
+        mHandler.removeCallbacks(mStopScan);
+        if (enable) {
             // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mHandler.postDelayed(mStopScan, SCAN_PERIOD);
+            mScanning = mScanner.start();
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-        }*/
+            mScanner.stop();
+        }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            mScanning = false;
+            mScanner.stop();
+            invalidateOptionsMenu();
+        }
+    };
+
+    // Adapter for holding devices found through scanning.  Shows the devices of mScanIndex up
+    // to the last refresh(), which the scanner calls at most once per frame.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
         private LayoutInflater mInflator;
+        private int mCount;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
+            mCount = mScanIndex.size();
         }
 
         public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+            mScanIndex.update(device.getAddress(), device.getName(), LockScanIndex.NO_RSSI,
+                    SystemClock.elapsedRealtime());
+        }
+
+        public void refresh() {
+            mCount = mScanIndex.size();
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mBluetoothAdapter.getRemoteDevice(mScanIndex.getAddress(position));
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mScanIndex.clear();
+            refresh();
         }
 
         @Override
         public int getCount() {
-            return mLeDevices.size();
+            return mCount;
         }
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return getDevice(i);
         }
 
         @Override
@@ -249,46 +322,28 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String mac1 = "C5:0B:E4:BB:56:4E";//red
-            final String mac2 = "F8:0B:2A:01:5C:AD";//yellow
-            final String deviceName = device.getName();
-            final String deviceMac = device.getAddress();
-            Log.w(TAG, "MAC : " + deviceMac);
+            final String deviceName = mScanIndex.getName(i);
+            final String deviceMac = mScanIndex.getAddress(i);
+            final int rssi = mScanIndex.getRssi(i);
             if (deviceName != null && deviceName.length() > 0) {
                 viewHolder.deviceName.setText(deviceName);
-
+            } else if (rssi != LockScanIndex.NO_RSSI) {
+                // The scan only reports devices with the SmartLock service.
+                viewHolder.deviceName.setText("SMARTLOCK");
             } else {
-                if (deviceMac.equals(mac1))
-                    viewHolder.deviceName.setText("SMARTLOCK");
-                else if (deviceMac.equals(mac2))
-                    viewHolder.deviceName.setText("SMARTLOCK");
-                else
-                    viewHolder.deviceName.setText(R.string.unknown_device);
+                viewHolder.deviceName.setText(R.string.unknown_device);
             }
 
-            viewHolder.deviceAddress.setText(device.getAddress());
+            if (rssi != LockScanIndex.NO_RSSI) {
+                viewHolder.deviceAddress.setText(deviceMac + "  " + rssi + " dBm");
+            } else {
+                viewHolder.deviceAddress.setText(deviceMac);
+            }
 
             return view;
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-        @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
-        }
-    };
-
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
@@ -308,7 +363,7 @@ public class DeviceScanActivity extends ListActivity {
                 PairedDevMAC = device.getAddress(); // MAC address
                 Log.w(TAG, "Bonded device：" + PairedDevName + ", MAC : " + PairedDevMAC);
                 mLeDeviceListAdapter.addDevice(device);
-                mLeDeviceListAdapter.notifyDataSetChanged();
+                mLeDeviceListAdapter.refresh();
             }
         }
     }
@@ -0,0 +1,168 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits SmartLock frames into ATT sized packets and puts them back together.
+ *
+ * <p>A frame that fits the negotiated MTU is sent unchanged.  A longer frame is split into
+ * chunks that each start with a header byte:
+ * <pre>
+ * | 1 1 | last (1) | seq (5) | payload ... |
+ * </pre>
+ * The header range 0xC0-0xFF never starts a command frame, and single byte packets are
+ * never chunks, so one byte status codes such as {@code SL_LOCK} (0xD0) pass through.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class FrameFragmenter {
+
+    public static final int DEFAULT_MTU = 23;
+    /** Largest ATT MTU the lock is built with, NRF_SDH_BLE_GATT_MAX_MTU_SIZE. */
+    public static final int MAX_MTU = 247;
+    /** ATT opcode and attribute handle. */
+    public static final int ATT_HEADER_LEN = 3;
+
+    public static final int CHUNK = 0xC0;
+    public static final int CHUNK_LAST = 0x20;
+    public static final int CHUNK_SEQ_MASK = 0x1F;
+    public static final int MAX_CHUNKS = CHUNK_SEQ_MASK + 1;
+
+    private volatile int mMtu = DEFAULT_MTU;
+
+    public void setMtu(int mtu) {
+        mMtu = Math.max(DEFAULT_MTU, Math.min(mtu, MAX_MTU));
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /** Largest value that fits one write or notification at the current MTU. */
+    public int getPayloadSize() {
+        return mMtu - ATT_HEADER_LEN;
+    }
+
+    /**
+     * Splits {@code frame} into packets for the current MTU and adds them to {@code out}.
+     *
+     * @return The number of packets added.
+     */
+    public int split(byte[] frame, List<byte[]> out) {
+        final int payload = getPayloadSize();
+        if (frame.length <= payload) {
+            out.add(frame);
+            return 1;
+        }
+        final int chunkData = payload - 1;
+        final int count = (frame.length + chunkData - 1) / chunkData;
+        if (count > MAX_CHUNKS) {
+            throw new IllegalArgumentException("Frame too long: " + frame.length);
+        }
+        for (int seq = 0, off = 0; seq < count; seq++, off += chunkData) {
+            final int len = Math.min(chunkData, frame.length - off);
+            final byte[] chunk = new byte[len + 1];
+            chunk[0] = (byte) (CHUNK | (seq == count - 1 ? CHUNK_LAST : 0) | seq);
+            System.arraycopy(frame, off, chunk, 1, len);
+            out.add(chunk);
+        }
+        return count;
+    }
+
+    public static boolean isChunk(byte[] packet, int len) {
+        return len >= 2 && (packet[0] & CHUNK) == CHUNK;
+    }
+
+    /**
+     * Collects chunks of one incoming frame.  Not thread safe; feed it from the single
+     * thread that delivers notifications.
+     */
+    public static class Reassembler {
+        private final byte[] mBuffer;
+        private int mLength;
+        private int mNextSeq;
+        private byte[] mFrame;
+        private int mFrameLength;
+
+        public Reassembler(int maxFrameLength) {
+            mBuffer = new byte[maxFrameLength];
+        }
+
+        /**
+         * Feeds one received packet.
+         *
+         * @return true if a complete frame is available through {@link #getFrame()}.
+         */
+        public boolean accept(byte[] packet) {
+            return packet != null && accept(packet, packet.length);
+        }
+
+        /** Like {@link #accept(byte[])}, for a packet in the first {@code length} bytes. */
+        public boolean accept(byte[] packet, int length) {
+            if (length == 0) {
+                return false;
+            }
+            if (!isChunk(packet, length)) {
+                // Unfragmented frame; any half assembled frame is lost.
+                mNextSeq = 0;
+                mLength = 0;
+                mFrame = packet;
+                mFrameLength = length;
+                return true;
+            }
+
+            final int seq = packet[0] & CHUNK_SEQ_MASK;
+            if (seq != mNextSeq) {
+                // Out of order chunk: restart on a first chunk, otherwise drop it.
+                mLength = 0;
+                mNextSeq = 0;
+                if (seq != 0) {
+                    return false;
+                }
+            }
+            final int len = length - 1;
+            if (mLength + len > mBuffer.length) {
+                mLength = 0;
+                mNextSeq = 0;
+                return false;
+            }
+            System.arraycopy(packet, 1, mBuffer, mLength, len);
+            mLength += len;
+            mNextSeq++;
+
+            if ((packet[0] & CHUNK_LAST) == 0) {
+                return false;
+            }
+            mFrame = mBuffer;
+            mFrameLength = mLength;
+            mLength = 0;
+            mNextSeq = 0;
+            return true;
+        }
+
+        /**
+         * The last complete frame.  Only valid until the next call to {@link #accept}; it may
+         * be backed by an internal buffer.
+         */
+        public byte[] getFrame() {
+            return mFrame;
+        }
+
+        public int getFrameLength() {
+            return mFrameLength;
+        }
+
+        /** Copy of the last complete frame. */
+        public byte[] copyFrame() {
+            return Arrays.copyOf(mFrame, mFrameLength);
+        }
+
+        public void reset() {
+            mLength = 0;
+            mNextSeq = 0;
+            mFrame = null;
+            mFrameLength = 0;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process dispatcher for GATT events.  Replaces the global {@code sendBroadcast} path:
+ * events are typed, come from a small pool of reusable objects and are handed to the
+ * subscribers on one executor, e.g. the main Looper.  Events published while a delivery is
+ * pending join it, so a burst of notifications costs the executor one task.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class GattEventBus {
+
+    public enum Type {
+        CONNECTED,
+        DISCONNECTED,
+        SERVICES_DISCOVERED,
+        DATA_AVAILABLE
+    }
+
+    public interface Subscriber {
+        /**
+         * Called on the bus executor.  The event is recycled when this returns, so do not keep
+         * a reference to it.
+         */
+        void onGattEvent(Event event);
+    }
+
+    /** Runs the delivery on the publishing thread. */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int POOL_SIZE = 32;
+    private static final int DATA_CAPACITY = 32;
+
+    public final class Event {
+        private Type mType;
+        private String mAddress;
+        private int mStatus;
+        private byte[] mData = new byte[DATA_CAPACITY];
+        private int mLength;
+
+        public Type getType() {
+            return mType;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /** GATT status for connection events. */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /** Frame bytes for {@link Type#DATA_AVAILABLE}; valid up to {@link #getLength()}. */
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /** First byte of the frame, i.e. the SmartLock result code, or -1. */
+        public int getCode() {
+            return mLength > 0 ? mData[0] & 0xFF : -1;
+        }
+
+        // Delivery, on the bus executor.
+        void deliver() {
+            try {
+                for (Subscriber s : mSubscribers) {
+                    s.onGattEvent(this);
+                }
+            } finally {
+                recycle(this);
+            }
+        }
+    }
+
+    private final Executor mExecutor;
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers =
+            new CopyOnWriteArrayList<Subscriber>();
+    private final ArrayBlockingQueue<Event> mFree = new ArrayBlockingQueue<Event>(POOL_SIZE);
+    // Published and not delivered yet, in order.
+    private final ConcurrentLinkedQueue<Event> mPending = new ConcurrentLinkedQueue<Event>();
+    private final AtomicBoolean mDeliveryPending = new AtomicBoolean();
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so an event published from here on gets a delivery of its own.
+            mDeliveryPending.set(false);
+            Event e;
+            while ((e = mPending.poll()) != null) {
+                e.deliver();
+            }
+        }
+    };
+
+    public GattEventBus(Executor executor) {
+        mExecutor = executor;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFree.offer(new Event());
+        }
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        mSubscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    public void publish(Type type, String address, int status) {
+        final Event e = obtain(type, address, status);
+        e.mLength = 0;
+        post(e);
+    }
+
+    public void publishData(String address, byte[] data, int length) {
+        final Event e = obtain(Type.DATA_AVAILABLE, address, 0);
+        if (e.mData.length < length) {
+            e.mData = new byte[length];
+        }
+        if (length > 0) {
+            System.arraycopy(data, 0, e.mData, 0, length);
+        }
+        e.mLength = length;
+        post(e);
+    }
+
+    private void post(Event e) {
+        mPending.offer(e);
+        if (mDeliveryPending.compareAndSet(false, true)) {
+            mExecutor.execute(mDeliver);
+        }
+    }
+
+    private Event obtain(Type type, String address, int status) {
+        Event e = mFree.poll();
+        if (e == null) {
+            // Burst larger than the pool; the extra event is dropped by recycle().
+            e = new Event();
+        }
+        e.mType = type;
+        e.mAddress = address;
+        e.mStatus = status;
+        return e;
+    }
+
+    private void recycle(Event e) {
+        e.mAddress = null;
+        if (e.mData.length > DATA_CAPACITY) {
+            e.mData = new byte[DATA_CAPACITY];
+        }
+        mFree.offer(e);
+    }
+}
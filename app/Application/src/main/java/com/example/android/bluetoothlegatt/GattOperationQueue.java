@@ -0,0 +1,276 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serializes GATT operations for one connection.  Android only allows a single outstanding
+ * read/write per {@code BluetoothGatt}, so every operation is queued here and the next one is
+ * issued directly from the completion callback of the previous one.
+ *
+ * <p>This class has no Android dependencies so it can be driven by a fake GATT in the JVM.
+ */
+public class GattOperationQueue {
+
+    /** Status reported when the peer did not answer within the operation timeout. */
+    public static final int STATUS_TIMEOUT = -1;
+    /** Status reported when the GATT call itself returned false. */
+    public static final int STATUS_NOT_ISSUED = -2;
+    /** Status reported for operations dropped by {@link #clear()}, e.g. on disconnect. */
+    public static final int STATUS_CANCELLED = -3;
+    /** Same value as {@code BluetoothGatt.GATT_SUCCESS}. */
+    public static final int STATUS_SUCCESS = 0;
+
+    public static final long DEFAULT_TIMEOUT_MS = 3000;
+
+    /**
+     * A single GATT request.  {@link #start()} issues the call and returns what the
+     * {@code BluetoothGatt} method returned; completion is signalled later through
+     * {@link GattOperationQueue#onOperationComplete(Object, int)}.
+     */
+    public static abstract class Operation {
+        private final Object mTarget;
+        private final long mTimeoutMs;
+
+        /**
+         * @param target The characteristic or descriptor the completion callback will report,
+         *               or null to accept any completion.
+         * @param timeoutMs How long to wait for the completion callback.
+         */
+        protected Operation(Object target, long timeoutMs) {
+            mTarget = target;
+            mTimeoutMs = timeoutMs;
+        }
+
+        protected abstract boolean start();
+
+        public Object getTarget() {
+            return mTarget;
+        }
+
+        public long getTimeoutMs() {
+            return mTimeoutMs;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Entry> mPending = new ArrayDeque<Entry>();
+    private final ScheduledExecutorService mTimer;
+    private Entry mCurrent;
+
+    private long mCompleted;
+    private long mTimedOut;
+
+    /**
+     * @param timer Executor used to fire operation timeouts.  It is not shut down by the queue.
+     */
+    public GattOperationQueue(ScheduledExecutorService timer) {
+        mTimer = timer;
+    }
+
+    /**
+     * Queues an operation.  It is issued immediately if nothing else is in flight.
+     *
+     * @return A future holding the GATT status of the operation, or one of the
+     *         {@code STATUS_*} values of this class.
+     */
+    public Future<Integer> submit(Operation op) {
+        final Entry entry = new Entry(op);
+        synchronized (mLock) {
+            mPending.add(entry);
+        }
+        startNext();
+        return entry;
+    }
+
+    /**
+     * Reports the completion of the in-flight operation.  Call this from the matching
+     * {@code BluetoothGattCallback} method.
+     *
+     * @param target The characteristic or descriptor passed to the callback.
+     * @param status The GATT status passed to the callback.
+     */
+    public void onOperationComplete(Object target, int status) {
+        final Entry done;
+        synchronized (mLock) {
+            done = mCurrent;
+            if (done == null) {
+                return;
+            }
+            // A late answer for an operation that already timed out must not complete the
+            // operation that replaced it.
+            final Object expected = done.mOp.getTarget();
+            if (expected != null && target != null && expected != target) {
+                return;
+            }
+            mCurrent = null;
+            mCompleted++;
+        }
+        done.finish(status);
+        startNext();
+    }
+
+    /**
+     * Fails the in-flight and all pending operations with {@link #STATUS_CANCELLED}.
+     */
+    public void clear() {
+        final Entry current;
+        final Entry[] pending;
+        synchronized (mLock) {
+            current = mCurrent;
+            mCurrent = null;
+            pending = mPending.toArray(new Entry[mPending.size()]);
+            mPending.clear();
+        }
+        if (current != null) {
+            current.finish(STATUS_CANCELLED);
+        }
+        for (Entry e : pending) {
+            e.finish(STATUS_CANCELLED);
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mPending.size() + (mCurrent != null ? 1 : 0);
+        }
+    }
+
+    public long getCompletedCount() {
+        synchronized (mLock) {
+            return mCompleted;
+        }
+    }
+
+    public long getTimeoutCount() {
+        synchronized (mLock) {
+            return mTimedOut;
+        }
+    }
+
+    private void startNext() {
+        for (;;) {
+            final Entry next;
+            synchronized (mLock) {
+                if (mCurrent != null || mPending.isEmpty()) {
+                    return;
+                }
+                next = mPending.poll();
+                if (next.isDone()) {
+                    continue;
+                }
+                mCurrent = next;
+            }
+
+            next.armTimeout();
+            boolean issued;
+            try {
+                issued = next.mOp.start();
+            } catch (RuntimeException e) {
+                issued = false;
+            }
+            if (issued) {
+                return;
+            }
+
+            synchronized (mLock) {
+                if (mCurrent == next) {
+                    mCurrent = null;
+                }
+            }
+            next.finish(STATUS_NOT_ISSUED);
+        }
+    }
+
+    private void onTimeout(Entry entry) {
+        synchronized (mLock) {
+            if (mCurrent != entry) {
+                return;
+            }
+            mCurrent = null;
+            mTimedOut++;
+        }
+        entry.finish(STATUS_TIMEOUT);
+        startNext();
+    }
+
+    private class Entry implements Future<Integer>, Runnable {
+        final Operation mOp;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile ScheduledFuture<?> mTimeout;
+        private volatile int mStatus;
+        private volatile boolean mCancelled;
+
+        Entry(Operation op) {
+            mOp = op;
+        }
+
+        void armTimeout() {
+            if (mTimer != null && mOp.getTimeoutMs() > 0) {
+                mTimeout = mTimer.schedule(this, mOp.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Timeout task.
+        @Override
+        public void run() {
+            onTimeout(this);
+        }
+
+        void finish(int status) {
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+                mStatus = status;
+                mDone.countDown();
+            }
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (mLock) {
+                // Only operations that have not been issued yet can be withdrawn.
+                if (mCurrent == this || !mPending.remove(this)) {
+                    return false;
+                }
+            }
+            mCancelled = true;
+            finish(STATUS_CANCELLED);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException {
+            mDone.await();
+            return mStatus;
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return mStatus;
+        }
+    }
+}
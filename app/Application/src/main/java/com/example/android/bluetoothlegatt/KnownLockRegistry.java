@@ -0,0 +1,285 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Locks this phone has used, kept in an append-only file of fixed size records.  Every update
+ * appends one record and {@link #load()} reads the whole file with a single read, replaying
+ * the records so that the last one of each lock wins.  The file is rewritten once it holds
+ * many more records than locks.
+ *
+ * <p>A torn last record, e.g. after the process was killed mid-write, is ignored.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class KnownLockRegistry {
+
+    /** Lock state of locks that never reported one. */
+    public static final int STATE_UNKNOWN = -1;
+
+    static final int MAGIC = 0x534C4B52; // "SLKR"
+    static final int VERSION = 1;
+    static final int HEADER_LEN = 8;
+    static final int RECORD_LEN = 64;
+    static final int MAX_NAME_LEN = RECORD_LEN - 18;
+
+    private static final int FLAG_VALID = 0x01;
+    private static final int FLAG_FORGET = 0x02;
+    // Compact when the file holds this many records per live lock.
+    private static final int COMPACT_RATIO = 8;
+    private static final int COMPACT_MIN_RECORDS = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final class KnownLock {
+        private final String mAddress;
+        private final String mName;
+        private final int mRssi;
+        private final int mLockState;
+        private final long mLastSeen;
+
+        KnownLock(String address, String name, int rssi, int lockState, long lastSeen) {
+            mAddress = address;
+            mName = name;
+            mRssi = rssi;
+            mLockState = lockState;
+            mLastSeen = lastSeen;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /** The advertised name, or null. */
+        public String getName() {
+            return mName;
+        }
+
+        /** The last RSSI in dBm, or {@link LockScanIndex#NO_RSSI}. */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /** {@code SL_LOCK}, {@code SL_UNLOCK}, {@code SL_UNUSABLE} or {@link #STATE_UNKNOWN}. */
+        public int getLockState() {
+            return mLockState;
+        }
+
+        /** Wall clock time of the last connection or update, in ms. */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+    }
+
+    private final File mFile;
+    private final LinkedHashMap<String, KnownLock> mLocks = new LinkedHashMap<String, KnownLock>();
+    private final byte[] mRecord = new byte[RECORD_LEN];
+    private OutputStream mOut;
+    private int mRecordCount;
+
+    public KnownLockRegistry(File file) {
+        mFile = file;
+    }
+
+    /** Reads the file, replacing what is in memory.  A missing file is an empty registry. */
+    public synchronized void load() throws IOException {
+        mLocks.clear();
+        mRecordCount = 0;
+        if (!mFile.exists()) {
+            return;
+        }
+        final long length = mFile.length();
+        if (length < HEADER_LEN || length > Integer.MAX_VALUE) {
+            return;
+        }
+        final byte[] data = new byte[(int) length];
+        final InputStream in = new FileInputStream(mFile);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                final int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException("Not a lock registry: " + mFile);
+        }
+        while (buf.remaining() >= RECORD_LEN) {
+            replay(buf);
+            mRecordCount++;
+        }
+        if (buf.hasRemaining()) {
+            // Drop the torn record so that new ones stay aligned.
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(buf.position());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /** Stores the current values of a lock, keeping the old ones for null/unknown arguments. */
+    public synchronized void record(String address, String name, int rssi, int lockState,
+                                    long timeMs) throws IOException {
+        final KnownLock old = mLocks.get(address);
+        if (old != null) {
+            if (name == null) {
+                name = old.getName();
+            }
+            if (rssi == LockScanIndex.NO_RSSI) {
+                rssi = old.getRssi();
+            }
+            if (lockState == STATE_UNKNOWN) {
+                lockState = old.getLockState();
+            }
+        }
+        final KnownLock lock = new KnownLock(address, name, rssi, lockState, timeMs);
+        mLocks.remove(address);
+        mLocks.put(address, lock);
+        append(FLAG_VALID, lock);
+    }
+
+    public synchronized void forget(String address) throws IOException {
+        final KnownLock lock = mLocks.remove(address);
+        if (lock != null) {
+            append(FLAG_FORGET, lock);
+        }
+    }
+
+    public synchronized KnownLock get(String address) {
+        return mLocks.get(address);
+    }
+
+    /** The most recently recorded lock, or null. */
+    public synchronized KnownLock getLastUsed() {
+        KnownLock last = null;
+        for (KnownLock lock : mLocks.values()) {
+            last = lock;
+        }
+        return last;
+    }
+
+    /** All locks, least recently recorded first. */
+    public synchronized List<KnownLock> getAll() {
+        return new ArrayList<KnownLock>(mLocks.values());
+    }
+
+    public synchronized int size() {
+        return mLocks.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    private void append(int flags, KnownLock lock) throws IOException {
+        if (mRecordCount >= COMPACT_MIN_RECORDS
+                && mRecordCount >= COMPACT_RATIO * Math.max(1, mLocks.size())) {
+            compact();
+            if (flags == FLAG_FORGET) {
+                // The rewrite already left the lock out.
+                return;
+            }
+        }
+        if (mOut == null) {
+            final boolean fresh = !mFile.exists() || mFile.length() < HEADER_LEN;
+            mOut = new FileOutputStream(mFile, !fresh);
+            if (fresh) {
+                writeHeader(mOut);
+                mRecordCount = 0;
+            }
+        }
+        encode(flags, lock, mRecord);
+        mOut.write(mRecord);
+        mOut.flush();
+        mRecordCount++;
+    }
+
+    // Rewrites the file with one record per lock, then swaps it in.
+    private void compact() throws IOException {
+        close();
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            writeHeader(out);
+            for (KnownLock lock : mLocks.values()) {
+                encode(FLAG_VALID, lock, mRecord);
+                out.write(mRecord);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mRecordCount = mLocks.size();
+    }
+
+    private static void writeHeader(OutputStream out) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+        header.putInt(MAGIC).putInt(VERSION);
+        out.write(header.array());
+    }
+
+    // Record layout: flags, lock state, rssi, name length, last seen (8), MAC (6), name.
+    private static void encode(int flags, KnownLock lock, byte[] record) {
+        Arrays.fill(record, (byte) 0);
+        final ByteBuffer buf = ByteBuffer.wrap(record);
+        byte[] name = lock.getName() == null ? new byte[0] : lock.getName().getBytes(UTF_8);
+        if (name.length > MAX_NAME_LEN) {
+            name = Arrays.copyOf(name, MAX_NAME_LEN);
+        }
+        buf.put((byte) flags);
+        buf.put((byte) lock.getLockState());
+        buf.put((byte) lock.getRssi());
+        buf.put((byte) name.length);
+        buf.putLong(lock.getLastSeen());
+        final long mac = MacAddress.parse(lock.getAddress());
+        buf.putShort((short) (mac >>> 32));
+        buf.putInt((int) mac);
+        buf.put(name);
+    }
+
+    private void replay(ByteBuffer buf) {
+        final int start = buf.position();
+        final int flags = buf.get();
+        final int lockState = buf.get() & 0xFF;
+        final int rssi = buf.get();
+        final int nameLen = Math.min(buf.get() & 0xFF, MAX_NAME_LEN);
+        final long lastSeen = buf.getLong();
+        final long mac = ((buf.getShort() & 0xFFFFL) << 32) | (buf.getInt() & 0xFFFFFFFFL);
+        final String name = nameLen == 0 ? null
+                : new String(buf.array(), buf.position(), nameLen, UTF_8);
+        buf.position(start + RECORD_LEN);
+
+        final String address = MacAddress.format(mac);
+        mLocks.remove(address);
+        if ((flags & FLAG_VALID) != 0) {
+            mLocks.put(address, new KnownLock(address, name, rssi,
+                    lockState == 0xFF ? STATE_UNKNOWN : lockState, lastSeen));
+        }
+    }
+}
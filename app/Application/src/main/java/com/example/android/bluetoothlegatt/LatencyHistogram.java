@@ -0,0 +1,112 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of recorded durations in log-linear buckets, the layout HdrHistogram uses: values
+ * below 128 have a bucket each, and every power of two above that is split into 64 buckets,
+ * so a percentile is within 1.6% of the recorded value.  Values are in nanoseconds by
+ * convention and are capped at {@link #MAX_VALUE}.
+ *
+ * <p>{@link #record} is a single atomic increment plus a compare-and-set for a new maximum,
+ * so binder, main and worker threads can record at the same time without a lock.  Readers
+ * see a slightly torn view while recording goes on, which is fine for percentiles.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    /** Largest value told apart from the others, about 69 s in nanoseconds. */
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        mCounts.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Lost to another thread; try again against its maximum.
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * The value that {@code percentile} percent of the recorded values are at or below, e.g.
+     * 99.9 for the p999.  Reported as the top of its bucket, never above the maximum.
+     */
+    public long getValueAtPercentile(double percentile) {
+        final int buckets = mCounts.length();
+        final long[] counts = new long[buckets];
+        long total = 0;
+        for (int i = 0; i < buckets; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(lowestValue(i + 1) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /** Forgets everything recorded so far.  Values recorded meanwhile may be lost. */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        // Shifted so the value lands in [HALF_COUNT, SUB_COUNT).
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    static long lowestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = index / HALF_COUNT - 1;
+        return (long) (index % HALF_COUNT + HALF_COUNT) << shift;
+    }
+}
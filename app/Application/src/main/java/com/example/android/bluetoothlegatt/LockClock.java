@@ -0,0 +1,138 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The current minute as the five packed BCD bytes, yy MM dd HH mm, that end every command
+ * frame.  The bytes are worked out once per minute, by a task scheduled at the minute
+ * boundary, and {@link #writeTimestamp} only copies them, so building a command allocates
+ * nothing and does no calendar arithmetic.
+ *
+ * <p>A command built just after a boundary, before the task ran, or after the system clock
+ * was set, notices that the current time is outside the cached minute and works it out on
+ * the spot.  Time zone changes are not visible that way; call {@link #refresh()} for them.
+ *
+ * <p>Thread safe.  This class has no Android dependencies.
+ */
+public class LockClock {
+
+    private static final long MINUTE_MS = 60000;
+
+    /** One minute, never changed once published. */
+    private static final class Minute {
+        final byte[] bcd = new byte[SmartLockCodec.TIMESTAMP_LEN];
+        long startMs;
+        long endMs;
+        long stamp;
+    }
+
+    // Guarded by this.
+    private final Calendar mCalendar = Calendar.getInstance();
+    private volatile Minute mMinute;
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mTick;
+
+    private final Runnable mTickTask = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    public LockClock() {
+        mMinute = compute(System.currentTimeMillis());
+    }
+
+    /** Works out the minute ahead of each boundary on {@code scheduler}. */
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        mScheduler = scheduler;
+        scheduleTick(mMinute);
+    }
+
+    public synchronized void stop() {
+        mScheduler = null;
+        if (mTick != null) {
+            mTick.cancel(false);
+            mTick = null;
+        }
+    }
+
+    /** Works out the current minute again, e.g. after the time zone changed. */
+    public void refresh() {
+        update(System.currentTimeMillis());
+    }
+
+    /** Writes the current minute as five BCD bytes at the buffer position. */
+    public void writeTimestamp(ByteBuffer dst) {
+        dst.put(current().bcd);
+    }
+
+    /** Copies the five BCD bytes of the current minute into {@code dst} at {@code offset}. */
+    public void copyTimestamp(byte[] dst, int offset) {
+        System.arraycopy(current().bcd, 0, dst, offset, SmartLockCodec.TIMESTAMP_LEN);
+    }
+
+    /** The current minute as a decimal number yyMMddHHmm, e.g. 2410171530. */
+    public long getStamp() {
+        return current().stamp;
+    }
+
+    private Minute current() {
+        final Minute minute = mMinute;
+        final long now = System.currentTimeMillis();
+        if (now >= minute.startMs && now < minute.endMs) {
+            return minute;
+        }
+        return update(now);
+    }
+
+    private synchronized Minute update(long now) {
+        final Minute minute = compute(now);
+        mMinute = minute;
+        if (mScheduler != null) {
+            scheduleTick(minute);
+        }
+        return minute;
+    }
+
+    // Only called with the lock held, or from the constructor.
+    private Minute compute(long now) {
+        mCalendar.setTimeZone(TimeZone.getDefault());
+        mCalendar.setTimeInMillis(now);
+        final Minute minute = new Minute();
+        final int[] fields = {
+                mCalendar.get(Calendar.YEAR) % 100,
+                mCalendar.get(Calendar.MONTH) + 1,
+                mCalendar.get(Calendar.DAY_OF_MONTH),
+                mCalendar.get(Calendar.HOUR_OF_DAY),
+                mCalendar.get(Calendar.MINUTE)};
+        for (int i = 0; i < fields.length; i++) {
+            minute.bcd[i] = (byte) (((fields[i] / 10) << 4) | (fields[i] % 10));
+            minute.stamp = minute.stamp * 100 + fields[i];
+        }
+        minute.startMs = now - mCalendar.get(Calendar.SECOND) * 1000L
+                - mCalendar.get(Calendar.MILLISECOND);
+        minute.endMs = minute.startMs + MINUTE_MS;
+        return minute;
+    }
+
+    private void scheduleTick(Minute minute) {
+        if (mTick != null) {
+            mTick.cancel(false);
+        }
+        final long delay = Math.max(0, minute.endMs - System.currentTimeMillis());
+        try {
+            mTick = mScheduler.schedule(mTickTask, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The scheduler was shut down; commands still get the right minute.
+            mScheduler = null;
+            mTick = null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps up to {@code maxSessions} lock sessions keyed by MAC address.  When a new session
+ * would exceed the limit, the least recently used one is closed first.
+ *
+ * <p>This class has no Android dependencies so it can be used with simulated sessions.
+ */
+public class LockConnectionPool<S extends LockConnectionPool.Session> {
+
+    /** Android refuses GATT clients beyond about 7 concurrent links on most phones. */
+    public static final int DEFAULT_MAX_SESSIONS = 7;
+
+    public interface Session {
+        String getAddress();
+
+        /** Releases the connection.  Called without the pool lock held. */
+        void close();
+    }
+
+    public interface Factory<S> {
+        S create(String address);
+    }
+
+    private final Factory<S> mFactory;
+    // Access ordered, so iteration starts at the least recently used session.
+    private final LinkedHashMap<String, S> mSessions = new LinkedHashMap<String, S>(16, 0.75f, true);
+    private int mMaxSessions;
+
+    public LockConnectionPool(int maxSessions, Factory<S> factory) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be at least 1");
+        }
+        mMaxSessions = maxSessions;
+        mFactory = factory;
+    }
+
+    /**
+     * Returns the session for {@code address}, creating it if needed.  Marks it as the most
+     * recently used one.
+     */
+    public S acquire(String address) {
+        final List<S> evicted = new ArrayList<S>(1);
+        final S session;
+        synchronized (this) {
+            S existing = mSessions.get(address);
+            if (existing != null) {
+                return existing;
+            }
+            trimLocked(mMaxSessions - 1, evicted);
+            session = mFactory.create(address);
+            mSessions.put(address, session);
+        }
+        closeAll(evicted);
+        return session;
+    }
+
+    /** Returns the session for {@code address} or null, and marks it as recently used. */
+    public synchronized S get(String address) {
+        return mSessions.get(address);
+    }
+
+    /** Removes the session without closing it. */
+    public synchronized S remove(String address) {
+        return mSessions.remove(address);
+    }
+
+    /**
+     * Closes the least recently used session other than {@code keep}, e.g. after the platform
+     * refused a new connection.
+     *
+     * @return true if a session was closed.
+     */
+    public boolean evictEldest(String keep) {
+        S victim = null;
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, S>> it = mSessions.entrySet().iterator();
+                    it.hasNext(); ) {
+                final Map.Entry<String, S> e = it.next();
+                if (!e.getKey().equals(keep)) {
+                    victim = e.getValue();
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        victim.close();
+        return true;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be at least 1");
+        }
+        final List<S> evicted = new ArrayList<S>();
+        synchronized (this) {
+            mMaxSessions = maxSessions;
+            trimLocked(maxSessions, evicted);
+        }
+        closeAll(evicted);
+    }
+
+    public synchronized int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    public synchronized int size() {
+        return mSessions.size();
+    }
+
+    /** Sessions from least to most recently used. */
+    public synchronized List<S> snapshot() {
+        return new ArrayList<S>(mSessions.values());
+    }
+
+    public void clear() {
+        final List<S> all;
+        synchronized (this) {
+            all = new ArrayList<S>(mSessions.values());
+            mSessions.clear();
+        }
+        closeAll(all);
+    }
+
+    private void trimLocked(int size, List<S> evicted) {
+        final Iterator<S> it = mSessions.values().iterator();
+        while (mSessions.size() > size && it.hasNext()) {
+            evicted.add(it.next());
+            it.remove();
+        }
+    }
+
+    private static <S extends Session> void closeAll(List<S> sessions) {
+        for (S s : sessions) {
+            s.close();
+        }
+    }
+}
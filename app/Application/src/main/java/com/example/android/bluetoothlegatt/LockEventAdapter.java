@@ -0,0 +1,96 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.text.SpannableStringBuilder;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.Calendar;
+
+/**
+ * Shows a {@link LockEventLog} in a ListView.  The adapter only sees the events up to the last
+ * {@link #refresh()}, so the ListView never observes the log changing under it.  Rows are
+ * recycled and each keeps its own SpannableStringBuilder.
+ */
+public class LockEventAdapter extends BaseAdapter {
+
+    private final LockEventLog mLog;
+    private final LockStatusSpans mSpans;
+    private final LayoutInflater mInflater;
+    private final Calendar mCalendar = Calendar.getInstance();
+    private long mFirst;
+    private int mCount;
+
+    public LockEventAdapter(Context context, LockEventLog log, LockStatusSpans spans) {
+        mLog = log;
+        mSpans = spans;
+        mInflater = LayoutInflater.from(context);
+        refresh();
+    }
+
+    /** Picks up the events appended or dropped since the last call.  UI thread only. */
+    public void refresh() {
+        synchronized (mLog) {
+            mFirst = mLog.getFirstSequence();
+            mCount = (int) (mLog.getNextSequence() - mFirst);
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mFirst + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final TextView row = convertView != null ? (TextView) convertView
+                : (TextView) mInflater.inflate(R.layout.listitem_event, parent, false);
+        SpannableStringBuilder text = (SpannableStringBuilder) row.getTag();
+        if (text == null) {
+            text = new SpannableStringBuilder();
+            row.setTag(text);
+        }
+        text.clear();
+        text.clearSpans();
+
+        final long seq = mFirst + position;
+        final long time = mLog.getTime(seq);
+        // Events dropped since the last refresh show as empty rows.
+        if (time >= 0) {
+            mCalendar.setTimeInMillis(time);
+            text.append('[');
+            appendTwoDigits(text, mCalendar.get(Calendar.HOUR_OF_DAY)).append(':');
+            appendTwoDigits(text, mCalendar.get(Calendar.MINUTE)).append(':');
+            appendTwoDigits(text, mCalendar.get(Calendar.SECOND)).append("]: ");
+            final CharSequence message = mSpans.describe(mLog.getCode(seq));
+            if (message != null) {
+                text.append(message);
+            }
+        }
+        row.setText(text);
+        return row;
+    }
+
+    private static SpannableStringBuilder appendTwoDigits(SpannableStringBuilder b, int value) {
+        return b.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
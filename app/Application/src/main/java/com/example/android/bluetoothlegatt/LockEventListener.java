@@ -0,0 +1,24 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Receives the SmartLock results of one device.  Register it with
+ * {@link BluetoothLeService#registerLockListener(String, LockEventListener)}.  Methods are
+ * called on a background thread of the service.  Lock state changes go through
+ * {@link BluetoothLeService#getLockStates()}.
+ */
+public interface LockEventListener {
+
+    /**
+     * The lock answered a command.  Only called for entries that have a message.
+     */
+    void onLockMessage(String address, LockStatusTable.Status status);
+
+    /**
+     * New access codes were sent to the lock, by the user or because it ran out.  The array
+     * is the listener's own.
+     *
+     * @return true if the codes are shown to the user.  If no listener shows them, the service
+     *         keeps them for {@link BluetoothLeService#takeUnseenCodes(String)}.
+     */
+    boolean onCodesSent(String address, int[] codes);
+}
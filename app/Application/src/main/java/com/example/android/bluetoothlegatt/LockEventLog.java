@@ -0,0 +1,206 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Fixed capacity log of lock events, kept in parallel primitive arrays.  Once full, each
+ * append overwrites the oldest entry, so memory and append cost stay constant however long
+ * the app runs.
+ *
+ * <p>Entries are addressed by sequence number: the n-th event ever appended has sequence n.
+ * A view can keep showing the range it last refreshed while new events arrive.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class LockEventLog {
+
+    public static final int DEFAULT_CAPACITY = 500;
+    public static final int MIN_CAPACITY = 16;
+    public static final int MAX_CAPACITY = 100000;
+
+    /** Device index of events that do not belong to a device. */
+    public static final short NO_DEVICE = -1;
+
+    private long[] mTimes;
+    private byte[] mCodes;
+    private short[] mDevices;
+    private int mSize;
+    // Sequence number of the next event; its slot is mNext % capacity.
+    private long mNext;
+
+    private final ArrayList<String> mAddresses = new ArrayList<String>();
+    private final HashMap<String, Short> mDeviceIndex = new HashMap<String, Short>();
+
+    public LockEventLog(int capacity) {
+        allocate(checkCapacity(capacity));
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param code A {@link LockStatusTable} code.
+     * @param address The lock it belongs to, or null.
+     */
+    public synchronized void append(long timeMs, int code, String address) {
+        final int slot = (int) (mNext % mTimes.length);
+        mTimes[slot] = timeMs;
+        mCodes[slot] = (byte) code;
+        mDevices[slot] = deviceIndexLocked(address);
+        mNext++;
+        if (mSize < mTimes.length) {
+            mSize++;
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int getCapacity() {
+        return mTimes.length;
+    }
+
+    /** Changes the capacity, keeping the newest events that still fit. */
+    public synchronized void setCapacity(int capacity) {
+        checkCapacity(capacity);
+        if (capacity == mTimes.length) {
+            return;
+        }
+        final long[] times = mTimes;
+        final byte[] codes = mCodes;
+        final short[] devices = mDevices;
+        final int keep = Math.min(mSize, capacity);
+        final long first = mNext - keep;
+        allocate(capacity);
+        for (long seq = first; seq < mNext; seq++) {
+            final int from = (int) (seq % times.length);
+            final int to = (int) (seq % capacity);
+            mTimes[to] = times[from];
+            mCodes[to] = codes[from];
+            mDevices[to] = devices[from];
+        }
+        mSize = keep;
+    }
+
+    /** Sequence number of the oldest event still held. */
+    public synchronized long getFirstSequence() {
+        return mNext - mSize;
+    }
+
+    /** Sequence number the next event will get, i.e. the number of events ever appended. */
+    public synchronized long getNextSequence() {
+        return mNext;
+    }
+
+    public synchronized boolean contains(long seq) {
+        return seq >= mNext - mSize && seq < mNext;
+    }
+
+    /** The time of event {@code seq}, or -1 if it is no longer held. */
+    public synchronized long getTime(long seq) {
+        return contains(seq) ? mTimes[slot(seq)] : -1;
+    }
+
+    /** The code of event {@code seq}, or {@link LockStatusTable#UNKNOWN_CODE}. */
+    public synchronized int getCode(long seq) {
+        return contains(seq) ? mCodes[slot(seq)] & 0xFF : LockStatusTable.UNKNOWN_CODE;
+    }
+
+    /** The lock address of event {@code seq}, or null. */
+    public synchronized String getAddress(long seq) {
+        if (!contains(seq)) {
+            return null;
+        }
+        final short device = mDevices[slot(seq)];
+        return device == NO_DEVICE ? null : mAddresses.get(device);
+    }
+
+    /** Drops all events.  Sequence numbers keep counting. */
+    public synchronized void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Writes the held events as CSV lines "time,address,code,message", oldest first.  The
+     * events are copied under the lock and written without it.
+     */
+    public void export(Writer out) throws IOException {
+        final long[] times;
+        final byte[] codes;
+        final String[] addresses;
+        synchronized (this) {
+            times = new long[mSize];
+            codes = new byte[mSize];
+            addresses = new String[mSize];
+            long seq = mNext - mSize;
+            for (int i = 0; i < mSize; i++, seq++) {
+                final int slot = slot(seq);
+                times[i] = mTimes[slot];
+                codes[i] = mCodes[slot];
+                final short device = mDevices[slot];
+                addresses[i] = device == NO_DEVICE ? "" : mAddresses.get(device);
+            }
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        final Date date = new Date();
+        for (int i = 0; i < times.length; i++) {
+            final int code = codes[i] & 0xFF;
+            final LockStatusTable.Status status = LockStatusTable.describe(code);
+            date.setTime(times[i]);
+            out.write(format.format(date));
+            out.write(',');
+            out.write(addresses[i]);
+            out.write(String.format(Locale.US, ",0x%02X,", code));
+            if (status.hasMessage()) {
+                out.write(status.getMessage());
+            } else if (status.getLockState() != LockStatusTable.NO_CHANGE) {
+                out.write("Lock status : ");
+                out.write(LockStatusTable.lockStateName(status.getLockState()));
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % mTimes.length);
+    }
+
+    private short deviceIndexLocked(String address) {
+        if (address == null) {
+            return NO_DEVICE;
+        }
+        final Short index = mDeviceIndex.get(address);
+        if (index != null) {
+            return index;
+        }
+        if (mAddresses.size() >= Short.MAX_VALUE) {
+            // More distinct locks than a short can index; not expected on one phone.
+            return NO_DEVICE;
+        }
+        final short created = (short) mAddresses.size();
+        mAddresses.add(address);
+        mDeviceIndex.put(address, created);
+        return created;
+    }
+
+    private void allocate(int capacity) {
+        mTimes = new long[capacity];
+        mCodes = new byte[capacity];
+        mDevices = new short[capacity];
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Devices seen by the scanner, deduplicated on the MAC address packed into a long.  Lookups go
+ * through an open-addressed hash table, so an advertisement costs O(1) however many locks are
+ * in range.  Entries keep their discovery order, which is the row order of the device list.
+ *
+ * <p>RSSI is smoothed with an exponential moving average (alpha 1/4) kept in fixed point.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class LockScanIndex {
+
+    /** RSSI value Android reports when it has none, e.g. for bonded devices. */
+    public static final int NO_RSSI = 127;
+
+    // Stored value of entries without an RSSI.
+    private static final int RSSI_NONE = Integer.MIN_VALUE;
+    private static final int RSSI_FRACTION_BITS = 4;
+    private static final int RSSI_SMOOTHING_SHIFT = 2;
+    // MACs are 48 bits, so no key is ever -1.
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Hash table: key MAC and entry index per slot.
+    private long[] mKeys;
+    private int[] mSlots;
+    private int mMask;
+
+    // Entries in discovery order.
+    private long[] mMacs;
+    private String[] mAddresses;
+    private String[] mNames;
+    private int[] mRssi;
+    private long[] mLastSeen;
+    private int mCount;
+
+    private boolean mChanged;
+
+    public LockScanIndex() {
+        allocateTable(INITIAL_CAPACITY * 2);
+        mMacs = new long[INITIAL_CAPACITY];
+        mAddresses = new String[INITIAL_CAPACITY];
+        mNames = new String[INITIAL_CAPACITY];
+        mRssi = new int[INITIAL_CAPACITY];
+        mLastSeen = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Records an advertisement.
+     *
+     * @param address The MAC as "AA:BB:CC:DD:EE:FF".
+     * @param name The advertised name, or null.
+     * @param rssi The RSSI in dBm, or {@link #NO_RSSI}.
+     * @return The index of the device.
+     */
+    public int update(String address, String name, int rssi, long nowMs) {
+        return update(MacAddress.parse(address), address, name, rssi, nowMs);
+    }
+
+    public synchronized int update(long mac, String address, String name, int rssi, long nowMs) {
+        int slot = slotOf(mac);
+        int index;
+        if (mKeys[slot] == mac) {
+            index = mSlots[slot];
+        } else {
+            index = mCount++;
+            ensureEntryCapacity(mCount);
+            mMacs[index] = mac;
+            mAddresses[index] = address != null ? address : MacAddress.format(mac);
+            mRssi[index] = RSSI_NONE;
+            mKeys[slot] = mac;
+            mSlots[slot] = index;
+            if (mCount * 2 > mKeys.length) {
+                rehash(mKeys.length * 2);
+            }
+            mChanged = true;
+        }
+        if (name != null && !name.equals(mNames[index])) {
+            mNames[index] = name;
+            mChanged = true;
+        }
+        if (rssi != NO_RSSI) {
+            final int old = mRssi[index];
+            final int sample = rssi << RSSI_FRACTION_BITS;
+            final int smoothed = old == RSSI_NONE ? sample
+                    : old + ((sample - old) >> RSSI_SMOOTHING_SHIFT);
+            if (old == RSSI_NONE || smoothed >> RSSI_FRACTION_BITS != old >> RSSI_FRACTION_BITS) {
+                mChanged = true;
+            }
+            mRssi[index] = smoothed;
+        }
+        mLastSeen[index] = nowMs;
+        return index;
+    }
+
+    /**
+     * Returns whether anything visible changed since the last call, and resets the flag.  The UI
+     * calls this once per frame so bursts of advertisements cost one redraw.
+     */
+    public synchronized boolean takeChanges() {
+        final boolean changed = mChanged;
+        mChanged = false;
+        return changed;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /** The index of {@code mac}, or -1. */
+    public synchronized int indexOf(long mac) {
+        final int slot = slotOf(mac);
+        return mKeys[slot] == mac ? mSlots[slot] : -1;
+    }
+
+    public synchronized long getMac(int index) {
+        return mMacs[index];
+    }
+
+    public synchronized String getAddress(int index) {
+        return mAddresses[index];
+    }
+
+    public synchronized String getName(int index) {
+        return mNames[index];
+    }
+
+    /** The smoothed RSSI in dBm, or {@link #NO_RSSI}. */
+    public synchronized int getRssi(int index) {
+        final int rssi = mRssi[index];
+        return rssi == RSSI_NONE ? NO_RSSI : rssi >> RSSI_FRACTION_BITS;
+    }
+
+    public synchronized long getLastSeen(int index) {
+        return mLastSeen[index];
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mAddresses, 0, mCount, null);
+        Arrays.fill(mNames, 0, mCount, null);
+        mCount = 0;
+        mChanged = true;
+    }
+
+    // The slot holding mac, or the empty slot where it would go.
+    private int slotOf(long mac) {
+        int slot = hash(mac) & mMask;
+        while (mKeys[slot] != EMPTY && mKeys[slot] != mac) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    private static int hash(long mac) {
+        final long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private void rehash(int tableSize) {
+        allocateTable(tableSize);
+        for (int i = 0; i < mCount; i++) {
+            final int slot = slotOf(mMacs[i]);
+            mKeys[slot] = mMacs[i];
+            mSlots[slot] = i;
+        }
+    }
+
+    private void allocateTable(int tableSize) {
+        mKeys = new long[tableSize];
+        mSlots = new int[tableSize];
+        mMask = tableSize - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void ensureEntryCapacity(int count) {
+        if (count <= mMacs.length) {
+            return;
+        }
+        final int capacity = mMacs.length * 2;
+        mMacs = Arrays.copyOf(mMacs, capacity);
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mRssi = Arrays.copyOf(mRssi, capacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+    }
+}
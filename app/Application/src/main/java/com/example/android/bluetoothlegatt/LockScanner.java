@@ -0,0 +1,188 @@
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scans for SmartLocks only.  On API 21+ the controller filters on the SmartLock service UUID
+ * and, where supported, batches results; older phones use the UUID-filtered legacy scan.
+ * Results go into a {@link LockScanIndex}, and the listener is told about changes at most
+ * once per frame, on the main thread.
+ */
+public class LockScanner {
+    private final static String TAG = LockScanner.class.getSimpleName();
+
+    /** Minimum time between two {@link Listener#onScanUpdate()} calls. */
+    public static final long FRAME_INTERVAL_MS = 100;
+    /** Batch delay when the controller supports offloaded batching. */
+    public static final long REPORT_DELAY_MS = 500;
+
+    private static final UUID SERVICE_UUID = LockSession.SERVICE_UUID;
+
+    public interface Listener {
+        /** The index changed since the last call. */
+        void onScanUpdate();
+
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final LockScanIndex mIndex;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mScanning;
+    // Only created on API 21+, so the class is never loaded on older phones.
+    private LollipopScan mLollipopScan;
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mIndex.takeChanges()) {
+                mListener.onScanUpdate();
+            }
+            if (mScanning) {
+                mHandler.postDelayed(this, FRAME_INTERVAL_MS);
+            }
+        }
+    };
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mIndex.update(device.getAddress(), device.getName(), rssi,
+                    SystemClock.elapsedRealtime());
+        }
+    };
+
+    public LockScanner(BluetoothAdapter adapter, LockScanIndex index, Listener listener) {
+        mAdapter = adapter;
+        mIndex = index;
+        mListener = listener;
+    }
+
+    public LockScanIndex getIndex() {
+        return mIndex;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /** Starts scanning.  Main thread only. */
+    public boolean start() {
+        if (mScanning) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (mLollipopScan == null) {
+                mLollipopScan = new LollipopScan();
+            }
+            if (!mLollipopScan.start()) {
+                return false;
+            }
+        } else if (!mAdapter.startLeScan(new UUID[] {SERVICE_UUID}, mLeScanCallback)) {
+            Log.w(TAG, "startLeScan failed");
+            return false;
+        }
+        mScanning = true;
+        mHandler.postDelayed(mFrame, FRAME_INTERVAL_MS);
+        return true;
+    }
+
+    /** Stops scanning and delivers pending results.  Main thread only. */
+    public void stop() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mLollipopScan != null) {
+            mLollipopScan.stop();
+        } else {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+        mHandler.removeCallbacks(mFrame);
+        mFrame.run();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class LollipopScan extends ScanCallback {
+        private final List<ScanFilter> mFilters = Collections.singletonList(
+                new ScanFilter.Builder().setServiceUuid(new ParcelUuid(SERVICE_UUID)).build());
+        private BluetoothLeScanner mScanner;
+
+        boolean start() {
+            mScanner = mAdapter.getBluetoothLeScanner();
+            if (mScanner == null) {
+                // Bluetooth is off.
+                return false;
+            }
+            final long delay = mAdapter.isOffloadedScanBatchingSupported() ? REPORT_DELAY_MS : 0;
+            final ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .setReportDelay(delay)
+                    .build();
+            mScanner.startScan(mFilters, settings, this);
+            return true;
+        }
+
+        void stop() {
+            if (mScanner == null) {
+                return;
+            }
+            try {
+                mScanner.flushPendingScanResults(this);
+                mScanner.stopScan(this);
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off while scanning.
+                Log.w(TAG, "stopScan: " + e);
+            }
+            mScanner = null;
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            add(result, SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            final long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < results.size(); i++) {
+                add(results.get(i), now);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "onScanFailed: " + errorCode);
+            mScanning = false;
+            mHandler.removeCallbacks(mFrame);
+            mListener.onScanFailed(errorCode);
+        }
+
+        private void add(ScanResult result, long now) {
+            final BluetoothDevice device = result.getDevice();
+            final ScanRecord record = result.getScanRecord();
+            final String name = record != null ? record.getDeviceName() : null;
+            mIndex.update(device.getAddress(), name, result.getRssi(), now);
+        }
+    }
+}
@@ -0,0 +1,711 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One GATT connection to a SmartLock.  Each session owns its {@code BluetoothGatt}, its
+ * connection state and its own {@link GattOperationQueue}, so several locks can be talked to
+ * at the same time.
+ */
+public class LockSession implements LockConnectionPool.Session {
+    private final static String TAG = LockSession.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    /** Services discovered and MTU negotiated; commands can be written. */
+    public static final int STATE_READY = 3;
+
+    /** Status the stack reports when it has no room for another connection, among others. */
+    public static final int GATT_ERROR = 133;
+
+    // Parsed once; looked up on every connection and write.
+    public static final UUID SERVICE_UUID = UUID.fromString(SampleGattAttributes.SMARTLOCK_SERVICE);
+    public static final UUID NOTIFY_UUID = UUID.fromString(SampleGattAttributes.SMARTLOCK_NOTIFY);
+    public static final UUID WRITE_UUID = UUID.fromString(SampleGattAttributes.SMARTLOCK_WRITE);
+    public static final UUID CCCD_UUID =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    // Completion token for MTU requests, which have no characteristic to match on.
+    private static final Object MTU_REQUEST = new Object();
+
+    /**
+     * Session events.  Connection state changes, discovery and frames come on the decoder
+     * thread of the {@link NotificationPipeline}, in the order the stack reported them; the
+     * rest on the Bluetooth binder thread.
+     */
+    public interface Callback {
+        void onStateChanged(LockSession session, int status, int newState);
+
+        void onServicesDiscovered(LockSession session);
+
+        void onFrame(LockSession session, byte[] frame, int length);
+
+        void onCharacteristicRead(LockSession session, BluetoothGattCharacteristic characteristic);
+
+        /** A write to the SmartLock write characteristic, i.e. one chunk of a frame, is done. */
+        void onCharacteristicWrite(LockSession session, int status);
+    }
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final String mAddress;
+    private final Callback mCallback;
+    private final GattOperationQueue mQueue;
+    private final ConnectionTuner mTuner;
+    private final FrameFragmenter mFragmenter = new FrameFragmenter();
+    // Used on the decoder thread only.
+    private final FrameFragmenter.Reassembler mReassembler =
+            new FrameFragmenter.Reassembler(FrameFragmenter.MAX_CHUNKS * FrameFragmenter.MAX_MTU);
+    // Notifications and connection events on their way from the binder thread to the decoder
+    // thread.
+    private final NotificationPipeline.Ring mNotifications;
+    // A disconnect that missed the ring; the decoder drops the partial frame before the next.
+    private volatile boolean mResetPending;
+
+    private volatile BluetoothGatt mGatt;
+    // Whether mGatt was opened with autoConnect, so the stack keeps reconnecting it.
+    private boolean mGattAuto;
+    // A background autoConnect handle racing a direct attempt on mGatt; adopted if it wins.
+    private BluetoothGatt mBackgroundGatt;
+    private volatile int mState = STATE_DISCONNECTED;
+    private volatile long mConnectStartMs;
+    private volatile long mConnectTimeMs = -1;
+    private volatile long mFirstCommandMs = -1;
+
+    // Handles resolved by the last discovery on mGatt.  The BluetoothGatt keeps its services
+    // across reconnects, so they stay usable until close().
+    private volatile BluetoothGattCharacteristic mWriteChar;
+    private volatile BluetoothGattCharacteristic mNotifyChar;
+    private volatile BluetoothGattDescriptor mNotifyCccd;
+    // Ready from the cached handles; cleared by the first successful write, or by a failure
+    // that sends the session back to discovery.
+    private volatile boolean mSpeculative;
+    private volatile boolean mReadyFromCache;
+
+    // Reconnect attempts after the pool made room for this session.  Guarded by this.
+    private int mEvictRetries;
+
+    LockSession(Context context, BluetoothAdapter adapter, String address,
+                ScheduledExecutorService timer, ConnectionPolicy policy,
+                NotificationPipeline pipeline, Callback callback) {
+        mContext = context;
+        mAdapter = adapter;
+        mAddress = address;
+        mCallback = callback;
+        mQueue = new GattOperationQueue(timer);
+        mTuner = new ConnectionTuner(mLink, policy, timer);
+        mNotifications = pipeline.open(new NotificationPipeline.Consumer() {
+            @Override
+            public void onPacket(byte[] packet, int length, long receivedNs) {
+                if (mResetPending) {
+                    mResetPending = false;
+                    mReassembler.reset();
+                }
+                if (mReassembler.accept(packet, length)) {
+                    mCallback.onFrame(LockSession.this, mReassembler.getFrame(),
+                            mReassembler.getFrameLength());
+                }
+            }
+
+            @Override
+            public void onEvent(int event, int status) {
+                if (event == STATE_DISCONNECTED) {
+                    mReassembler.reset();
+                }
+                deliver(event, status);
+            }
+
+            @Override
+            public void onFailed(RuntimeException e) {
+                Log.e(TAG, "Notification from " + mAddress + " failed", e);
+                mReassembler.reset();
+            }
+        });
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState >= STATE_CONNECTED;
+    }
+
+    public int getMtu() {
+        return mFragmenter.getMtu();
+    }
+
+    /** Time from {@link #connect()} to the link coming up, or -1 if not connected yet. */
+    public long getConnectTimeMs() {
+        return mConnectTimeMs;
+    }
+
+    /**
+     * Time from {@link #connect()} to the first successful write after it, or -1 if there was
+     * none yet.
+     */
+    public long getFirstCommandMs() {
+        return mFirstCommandMs;
+    }
+
+    /** Whether the session became ready from cached handles, without service discovery. */
+    public boolean isReadyFromCache() {
+        return mReadyFromCache;
+    }
+
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    /**
+     * The connection mode the link is in, one of the {@code ConnectionPolicy.MODE_*} values,
+     * or {@link ConnectionTuner#MODE_UNSET} if it is not ready.
+     */
+    public int getLinkMode() {
+        return mTuner.getMode();
+    }
+
+    public ConnectionTuner getTuner() {
+        return mTuner;
+    }
+
+    /** Keeps the link in high priority, e.g. while a batch of commands goes to the lock. */
+    public void setBurst(boolean burst) {
+        mTuner.setBurst(burst);
+    }
+
+    /**
+     * Claims the one retry a refused connection gets after the pool made room for it.
+     *
+     * @return false if it was used since {@link #resetEvictRetries()}.
+     */
+    synchronized boolean tryEvictRetry() {
+        if (mEvictRetries > 0) {
+            return false;
+        }
+        mEvictRetries++;
+        return true;
+    }
+
+    /** A new connection asked for; it gets its own retry. */
+    synchronized void resetEvictRetries() {
+        mEvictRetries = 0;
+    }
+
+    public synchronized boolean connect() {
+        mConnectStartMs = SystemClock.elapsedRealtime();
+        mConnectTimeMs = -1;
+        mFirstCommandMs = -1;
+
+        // Previously connected device.  Try to reconnect.
+        if (mGatt != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for " + mAddress);
+            if (mGatt.connect()) {
+                mState = STATE_CONNECTING;
+                return true;
+            }
+            // Stale: leaking it is what leads to status 133 later.
+            Log.w(TAG, "Closing stale BluetoothGatt for " + mAddress);
+            closeGatt();
+        }
+        return openDirect();
+    }
+
+    /**
+     * Connects on a fresh handle with {@code autoConnect=false}, closing the previous one
+     * unless it is a background connection, which keeps running next to the new one.
+     */
+    public synchronized boolean connectDirect() {
+        if (isConnected()) {
+            return true;
+        }
+        mConnectStartMs = SystemClock.elapsedRealtime();
+        mConnectTimeMs = -1;
+        mFirstCommandMs = -1;
+        if (mGatt != null) {
+            if (mGattAuto && mBackgroundGatt == null) {
+                mBackgroundGatt = mGatt;
+                mGatt = null;
+                clearHandles();
+            } else {
+                closeGatt();
+            }
+        }
+        return openDirect();
+    }
+
+    /**
+     * Starts an {@code autoConnect=true} connection that waits for the lock to come in range,
+     * unless one is pending already.
+     */
+    public synchronized boolean connectBackground() {
+        if (isConnected() || mBackgroundGatt != null || (mGatt != null && mGattAuto)) {
+            return true;
+        }
+        final BluetoothDevice device = mAdapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            return false;
+        }
+        mBackgroundGatt = device.connectGatt(mContext, true, mGattCallback);
+        if (mGatt == null) {
+            mState = STATE_CONNECTING;
+        }
+        return mBackgroundGatt != null;
+    }
+
+    /** Closes the handle of a direct attempt that is not connected; a background one stays. */
+    public synchronized void closeDirect() {
+        if (mGatt != null && !isConnected()) {
+            closeGatt();
+            if (mBackgroundGatt == null) {
+                mState = STATE_DISCONNECTED;
+            }
+        }
+    }
+
+    private boolean openDirect() {
+        final BluetoothDevice device = mAdapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mGatt = device.connectGatt(mContext, false, mGattCallback);
+        mGattAuto = false;
+        Log.d(TAG, "Trying to create a new connection to " + mAddress);
+        mState = STATE_CONNECTING;
+        return mGatt != null;
+    }
+
+    private void closeGatt() {
+        mQueue.clear();
+        mGatt.close();
+        mGatt = null;
+        clearHandles();
+    }
+
+    /**
+     * Ends the connection the user asked to end.  A connected handle is disconnected and
+     * reports it; the background handle and a direct attempt that never connected are closed,
+     * so the lock does not reconnect by itself when it comes back in range.
+     */
+    public synchronized void disconnect() {
+        if (mBackgroundGatt != null) {
+            mBackgroundGatt.close();
+            mBackgroundGatt = null;
+        }
+        if (mGatt == null) {
+            mState = STATE_DISCONNECTED;
+            return;
+        }
+        if (isConnected()) {
+            mGatt.disconnect();
+        } else {
+            closeGatt();
+            mState = STATE_DISCONNECTED;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mTuner.stop();
+        mQueue.clear();
+        if (mBackgroundGatt != null) {
+            mBackgroundGatt.close();
+            mBackgroundGatt = null;
+        }
+        mNotifications.close();
+        if (mGatt == null) {
+            return;
+        }
+        closeGatt();
+        mState = STATE_DISCONNECTED;
+    }
+
+    public Future<Integer> readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            return null;
+        }
+        return submit(new GattOperationQueue.Operation(characteristic,
+                GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+            @Override
+            protected boolean start() {
+                return gatt.readCharacteristic(characteristic);
+            }
+        });
+    }
+
+    public Future<Integer> setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                         boolean enabled) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            return null;
+        }
+        gatt.setCharacteristicNotification(characteristic, enabled);
+        final BluetoothGattDescriptor descriptor = characteristic == mNotifyChar
+                ? mNotifyCccd : characteristic.getDescriptor(CCCD_UUID);
+        return writeDescriptor(gatt, descriptor, enabled
+                ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+    }
+
+    /** Enables notifications on the SmartLock read characteristic. */
+    public Future<Integer> enableLockNotification() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            return null;
+        }
+        final BluetoothGattCharacteristic characteristic = mNotifyChar;
+        if (characteristic == null || mNotifyCccd == null) {
+            Log.w(TAG, "SmartLock read characteristic not found on " + mAddress);
+            return null;
+        }
+        return setCharacteristicNotification(characteristic, true);
+    }
+
+    /**
+     * Queues a write of {@code value} to the SmartLock write characteristic, split into
+     * chunks if it does not fit the negotiated MTU.
+     *
+     * @return A future holding the GATT status of the (last) write, or null if the write could
+     *         not be queued.
+     */
+    public Future<Integer> write(byte[] value) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            Log.w(TAG, "Not connected to " + mAddress);
+            return null;
+        }
+        final BluetoothGattCharacteristic mWriteCharacteristic = mWriteChar;
+        if (mWriteCharacteristic == null) {
+            Log.w(TAG, "Custom BLE Service not found");
+            return null;
+        }
+
+        final List<byte[]> packets = new ArrayList<byte[]>(1);
+        mFragmenter.split(value, packets);
+        Future<Integer> last = null;
+        for (final byte[] packet : packets) {
+            last = mQueue.submit(new GattOperationQueue.Operation(mWriteCharacteristic,
+                    GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+                @Override
+                protected boolean start() {
+                    mWriteCharacteristic.setValue(packet);
+                    if (gatt.writeCharacteristic(mWriteCharacteristic) == false) {
+                        Log.w(TAG, "Failed to write characteristic");
+                        rediscover(gatt);
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        }
+        // A frame of several chunks is a burst.
+        mTuner.update();
+        return last;
+    }
+
+    private Future<Integer> submit(GattOperationQueue.Operation op) {
+        final Future<Integer> future = mQueue.submit(op);
+        mTuner.update();
+        return future;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt == null ? null : gatt.getServices();
+    }
+
+    private Future<Integer> writeDescriptor(final BluetoothGatt gatt,
+                                            final BluetoothGattDescriptor descriptor,
+                                            final byte[] value) {
+        return submit(new GattOperationQueue.Operation(descriptor,
+                GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+            @Override
+            protected boolean start() {
+                // The value is set at issue time; an earlier queued write to the same
+                // descriptor would otherwise see this one's value.
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+        });
+    }
+
+    /**
+     * Asks the peer for a larger ATT MTU.  Devices before Lollipop cannot negotiate and stay at
+     * the default of 23 bytes.
+     */
+    private Future<Integer> requestMtu(final BluetoothGatt gatt, final int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        return submit(new GattOperationQueue.Operation(MTU_REQUEST,
+                GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+            @Override
+            protected boolean start() {
+                return gatt.requestMtu(mtu);
+            }
+        });
+    }
+
+    // Looks up the SmartLock characteristics once per discovery.
+    private boolean resolveHandles(BluetoothGatt gatt) {
+        clearHandles();
+        final BluetoothGattService service = gatt.getService(SERVICE_UUID);
+        if (service == null) {
+            Log.w(TAG, "SmartLock service not found on " + mAddress);
+            return false;
+        }
+        final BluetoothGattCharacteristic notify = service.getCharacteristic(NOTIFY_UUID);
+        mNotifyCccd = notify == null ? null : notify.getDescriptor(CCCD_UUID);
+        mNotifyChar = notify;
+        mWriteChar = service.getCharacteristic(WRITE_UUID);
+        return mWriteChar != null;
+    }
+
+    private void clearHandles() {
+        mWriteChar = null;
+        mNotifyChar = null;
+        mNotifyCccd = null;
+        mSpeculative = false;
+    }
+
+    private void onReady(BluetoothGatt gatt, boolean fromCache) {
+        mTuner.start();
+        // Queued ahead of anything the UI sends in response to the event.
+        requestMtu(gatt, FrameFragmenter.MAX_MTU);
+        mReadyFromCache = fromCache;
+        mState = STATE_READY;
+        Log.i(TAG, mAddress + " ready " + (SystemClock.elapsedRealtime() - mConnectStartMs)
+                + " ms after connect" + (fromCache ? " (cached GATT table)" : ""));
+        post(STATE_READY, BluetoothGatt.GATT_SUCCESS);
+    }
+
+    // Behind the notifications received so far, so the service never handles the answer to a
+    // command after the disconnect that followed it.
+    private void post(int event, int status) {
+        if (mNotifications.offerEvent(event, status)) {
+            return;
+        }
+        // The decoder is stuck a whole ring behind; late and out of order beats never.
+        Log.w(TAG, "Notification ring of " + mAddress + " full, event " + event + " not queued");
+        if (event == STATE_DISCONNECTED) {
+            mResetPending = true;
+        }
+        deliver(event, status);
+    }
+
+    private void deliver(int event, int status) {
+        if (event == STATE_READY) {
+            mCallback.onServicesDiscovered(this);
+        } else {
+            mCallback.onStateChanged(this, status, event);
+        }
+    }
+
+    // The cached handles did not work on this link: drop them and discover again.
+    private void rediscover(BluetoothGatt gatt) {
+        if (!mSpeculative) {
+            return;
+        }
+        Log.w(TAG, "Cached GATT table of " + mAddress + " is stale, rediscovering");
+        clearHandles();
+        mState = STATE_CONNECTED;
+        gatt.discoverServices();
+    }
+
+    // Connection priority and PHY; both are hints the stack may ignore.
+    private final ConnectionTuner.Link mLink = new ConnectionTuner.Link() {
+        @Override
+        public int queuedOps() {
+            return mQueue.size();
+        }
+
+        @Override
+        public boolean applyMode(int mode) {
+            final BluetoothGatt gatt = mGatt;
+            if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                return false;
+            }
+            final int priority = mode == ConnectionPolicy.MODE_HIGH
+                    ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                    : mode == ConnectionPolicy.MODE_BALANCED
+                    ? BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+                    : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+            if (!gatt.requestConnectionPriority(priority)) {
+                return false;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                final int phy = mode == ConnectionPolicy.MODE_HIGH
+                        ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            }
+            Log.i(TAG, mAddress + " link mode " + ConnectionTuner.modeName(mode));
+            return true;
+        }
+    };
+
+    /**
+     * Sorts out which handle a connection event is for.  A background handle that connects
+     * wins the race and replaces the direct one; a direct one that connects ends the
+     * background one.  Events of handles replaced meanwhile close them.
+     *
+     * @return Whether the event is for the current handle and should be handled.
+     */
+    private synchronized boolean isCurrent(BluetoothGatt gatt, int newState) {
+        final boolean connected = newState == BluetoothProfile.STATE_CONNECTED;
+        if (gatt == mBackgroundGatt) {
+            if (!connected) {
+                // The stack keeps trying an autoConnect handle by itself.
+                return false;
+            }
+            Log.i(TAG, "Background connection to " + mAddress + " came up first");
+            if (mGatt != null) {
+                closeGatt();
+            }
+            mGatt = gatt;
+            mGattAuto = true;
+            mBackgroundGatt = null;
+            return true;
+        }
+        if (gatt != mGatt) {
+            Log.w(TAG, "Closing replaced BluetoothGatt of " + mAddress);
+            gatt.close();
+            return false;
+        }
+        if (connected && mBackgroundGatt != null) {
+            mBackgroundGatt.close();
+            mBackgroundGatt = null;
+        }
+        return true;
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (!isCurrent(gatt, newState)) {
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mState = STATE_CONNECTED;
+                mConnectTimeMs = SystemClock.elapsedRealtime() - mConnectStartMs;
+                Log.i(TAG, "Connected to " + mAddress + " in " + mConnectTimeMs + " ms.");
+                post(STATE_CONNECTED, status);
+                if (mWriteChar != null) {
+                    // Same BluetoothGatt as before, so the same GATT table: send commands
+                    // right away.  A failing write falls back to discovery.
+                    mSpeculative = true;
+                    onReady(gatt, true);
+                } else {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mState = STATE_DISCONNECTED;
+                mTuner.stop();
+                mQueue.clear();
+                mFragmenter.setMtu(FrameFragmenter.DEFAULT_MTU);
+                Log.i(TAG, "Disconnected from " + mAddress + ", status " + status);
+                post(STATE_DISCONNECTED, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Log.w(TAG, "onServicesDiscovered");
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                resolveHandles(gatt);
+                onReady(gatt, false);
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            Log.w(TAG, "onCharacteristicRead");
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mCallback.onCharacteristicRead(LockSession.this, characteristic);
+            }
+            mQueue.onOperationComplete(characteristic, status);
+            mTuner.update();
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicWrite received: " + status);
+                rediscover(gatt);
+            } else {
+                mSpeculative = false;
+                if (mFirstCommandMs < 0) {
+                    mFirstCommandMs = SystemClock.elapsedRealtime() - mConnectStartMs;
+                    Log.i(TAG, "First command to " + mAddress + " written " + mFirstCommandMs
+                            + " ms after connect" + (mReadyFromCache ? " (cached GATT table)" : ""));
+                }
+            }
+            mCallback.onCharacteristicWrite(LockSession.this, status);
+            mQueue.onOperationComplete(characteristic, status);
+            mTuner.update();
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+                rediscover(gatt);
+            } else {
+                mSpeculative = false;
+            }
+            mQueue.onOperationComplete(descriptor, status);
+            mTuner.update();
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.w(TAG, "onMtuChanged mtu = " + mtu + ", status = " + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mFragmenter.setMtu(mtu);
+            }
+            mQueue.onOperationComplete(MTU_REQUEST, status);
+            mTuner.update();
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            // Only a copy here; the decoder thread does the rest, see onPacket().
+            mNotifications.offer(characteristic.getValue(), System.nanoTime());
+        }
+    };
+}
@@ -0,0 +1,232 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Current state of every lock, one {@code long} per device updated by compare-and-set.  A
+ * state word packs all fields, so a single read is a consistent snapshot:
+ * <pre>
+ * | version (32) | last error (8) | codes left (8) | 0 (5) | connection (3) | lock status (8) |
+ * </pre>
+ * The version goes up by one with every change.  Lock status and last error hold the
+ * {@code SL_*} code, 0 if none; codes left is {@link #CODES_UNKNOWN} until the app loaded codes
+ * and {@link #CODES_MANY} for that many or more.
+ *
+ * <p>Writers never block: a change marks the device dirty and, if no flush is pending,
+ * posts one to the observer executor.  Observers then get every device that changed since the
+ * last flush, once, with its latest word.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class LockStateStore {
+
+    /** Codes-left value of locks the app has not loaded codes into. */
+    public static final int CODES_UNKNOWN = 0xFF;
+    /** Codes-left value of locks holding this many codes or more. */
+    public static final int CODES_MANY = CODES_UNKNOWN - 1;
+
+    private static final int LOCK_SHIFT = 0;
+    private static final int CONNECTION_SHIFT = 8;
+    private static final int CODES_SHIFT = 16;
+    private static final int ERROR_SHIFT = 24;
+    private static final int VERSION_SHIFT = 32;
+    private static final long LOCK_MASK = 0xFFL << LOCK_SHIFT;
+    private static final long CONNECTION_MASK = 0x7L << CONNECTION_SHIFT;
+    private static final long CODES_MASK = 0xFFL << CODES_SHIFT;
+    private static final long ERROR_MASK = 0xFFL << ERROR_SHIFT;
+    private static final long VERSION_ONE = 1L << VERSION_SHIFT;
+
+    /** Word of a device nothing is known about. */
+    public static final long INITIAL = (long) CODES_UNKNOWN << CODES_SHIFT;
+
+    public interface Observer {
+        /**
+         * Devices that changed since the last call, with their state words.  The arrays are
+         * reused after the call returns.
+         */
+        void onLockStatesChanged(String[] addresses, long[] states, int count);
+    }
+
+    private static final class Slot {
+        final String mAddress;
+        final AtomicLong mState = new AtomicLong(INITIAL);
+        final AtomicBoolean mDirty = new AtomicBoolean();
+
+        Slot(String address) {
+            mAddress = address;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Slot> mSlots = new ConcurrentHashMap<String, Slot>();
+    private final ConcurrentLinkedQueue<Slot> mDirty = new ConcurrentLinkedQueue<Slot>();
+    private final AtomicBoolean mFlushPending = new AtomicBoolean();
+    private final CopyOnWriteArrayList<Observer> mObservers = new CopyOnWriteArrayList<Observer>();
+    private final Executor mExecutor;
+    // Owned by the flush, which the executor runs one at a time.
+    private String[] mBatchAddresses = new String[8];
+    private long[] mBatchStates = new long[8];
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param executor Runs observer callbacks, e.g. a main thread Handler.  It must run tasks
+     *                 one at a time.
+     */
+    public LockStateStore(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public void addObserver(Observer observer) {
+        mObservers.addIfAbsent(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        mObservers.remove(observer);
+    }
+
+    /** The state word of a device, {@link #INITIAL} if it never changed. */
+    public long get(String address) {
+        final Slot slot = mSlots.get(address);
+        return slot == null ? INITIAL : slot.mState.get();
+    }
+
+    /** @param status {@code SL_LOCK}, {@code SL_UNLOCK} or {@code SL_UNUSABLE}. */
+    public long setLockStatus(String address, int status) {
+        return update(address, LOCK_MASK, (long) (status & 0xFF) << LOCK_SHIFT);
+    }
+
+    /** @param state One of the {@code LockSession.STATE_*} values. */
+    public long setConnectionState(String address, int state) {
+        return update(address, CONNECTION_MASK, (long) (state & 0x7) << CONNECTION_SHIFT);
+    }
+
+    public long setCodesLeft(String address, int codes) {
+        final int clamped = codes < 0 ? 0 : Math.min(codes, CODES_MANY);
+        return update(address, CODES_MASK, (long) clamped << CODES_SHIFT);
+    }
+
+    /** @param error The {@code SL_*} error code, or 0 to clear it. */
+    public long setLastError(String address, int error) {
+        return update(address, ERROR_MASK, (long) (error & 0xFF) << ERROR_SHIFT);
+    }
+
+    /** Takes one code off the count, if it is known, not zero and not {@link #CODES_MANY}. */
+    public long useCode(String address) {
+        final Slot slot = slot(address);
+        for (;;) {
+            final long old = slot.mState.get();
+            final int codes = codesLeft(old);
+            if (codes == 0 || codes >= CODES_MANY) {
+                return old;
+            }
+            final long next = ((old & ~CODES_MASK) | ((long) (codes - 1) << CODES_SHIFT))
+                    + VERSION_ONE;
+            if (slot.mState.compareAndSet(old, next)) {
+                changed(slot);
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Replaces the bits of {@code mask} with {@code value}.  Setting the current value is not
+     * a change.
+     *
+     * @return The new state word.
+     */
+    public long update(String address, long mask, long value) {
+        final Slot slot = slot(address);
+        for (;;) {
+            final long old = slot.mState.get();
+            if ((old & mask) == value) {
+                return old;
+            }
+            final long next = ((old & ~mask) | value) + VERSION_ONE;
+            if (slot.mState.compareAndSet(old, next)) {
+                changed(slot);
+                return next;
+            }
+        }
+    }
+
+    public static int lockStatus(long state) {
+        return (int) ((state & LOCK_MASK) >>> LOCK_SHIFT);
+    }
+
+    public static int connectionState(long state) {
+        return (int) ((state & CONNECTION_MASK) >>> CONNECTION_SHIFT);
+    }
+
+    public static int codesLeft(long state) {
+        return (int) ((state & CODES_MASK) >>> CODES_SHIFT);
+    }
+
+    public static int lastError(long state) {
+        return (int) ((state & ERROR_MASK) >>> ERROR_SHIFT);
+    }
+
+    /** Number of changes so far, modulo 2^32. */
+    public static int version(long state) {
+        return (int) (state >>> VERSION_SHIFT);
+    }
+
+    private Slot slot(String address) {
+        Slot slot = mSlots.get(address);
+        if (slot == null) {
+            final Slot created = new Slot(address);
+            slot = mSlots.putIfAbsent(address, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+        return slot;
+    }
+
+    private void changed(Slot slot) {
+        if (slot.mDirty.compareAndSet(false, true)) {
+            mDirty.offer(slot);
+        }
+        if (mFlushPending.compareAndSet(false, true)) {
+            mExecutor.execute(mFlush);
+        }
+    }
+
+    private void flush() {
+        // Cleared first: a change after this point posts another flush.
+        mFlushPending.set(false);
+        int count = 0;
+        Slot slot;
+        while ((slot = mDirty.poll()) != null) {
+            slot.mDirty.set(false);
+            if (count == mBatchAddresses.length) {
+                final String[] addresses = new String[count * 2];
+                final long[] states = new long[count * 2];
+                System.arraycopy(mBatchAddresses, 0, addresses, 0, count);
+                System.arraycopy(mBatchStates, 0, states, 0, count);
+                mBatchAddresses = addresses;
+                mBatchStates = states;
+            }
+            mBatchAddresses[count] = slot.mAddress;
+            // Read after clearing the flag, so a later change is either in this word or
+            // queued for the next flush.
+            mBatchStates[count] = slot.mState.get();
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        for (Observer observer : mObservers) {
+            observer.onLockStatesChanged(mBatchAddresses, mBatchStates, count);
+        }
+    }
+}
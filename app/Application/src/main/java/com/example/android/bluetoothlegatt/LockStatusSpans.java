@@ -0,0 +1,97 @@
+package com.example.android.bluetoothlegatt;
+
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+
+/**
+ * Styled text for the {@link LockStatusTable} entries.  Everything is built once, so showing a
+ * lock result only appends an existing {@code Spanned} to the view.
+ */
+public final class LockStatusSpans {
+
+    public static final int COLOR_SUCCESS = 0xFF0DFF00;
+    public static final int COLOR_ERROR = 0xFFFF0000;
+    public static final int COLOR_INFO = 0xFFFE6026;
+
+    private static final String LOCK_STATUS = "Lock status : ";
+
+    private final CharSequence[] mMessages = new CharSequence[0x100];
+    private final CharSequence mUnknown;
+    private final CharSequence mLocked;
+    private final CharSequence mUnlocked;
+    private final CharSequence mUnusable;
+
+    public LockStatusSpans() {
+        for (int code = 0; code < mMessages.length; code++) {
+            final LockStatusTable.Status status = LockStatusTable.describe(code);
+            if (status != LockStatusTable.UNKNOWN && status.hasMessage()) {
+                mMessages[code] = colored(status.getMessage(), colorOf(status));
+            }
+        }
+        mUnknown = colored(LockStatusTable.UNKNOWN.getMessage(), COLOR_ERROR);
+        mLocked = lockLine(SmartLockCodec.SL_LOCK, COLOR_ERROR);
+        mUnlocked = lockLine(SmartLockCodec.SL_UNLOCK, COLOR_SUCCESS);
+        mUnusable = lockLine(SmartLockCodec.SL_UNUSABLE, COLOR_ERROR);
+    }
+
+    /** The styled message of {@code status}, or null if it has none. */
+    public CharSequence message(LockStatusTable.Status status) {
+        if (status == LockStatusTable.UNKNOWN) {
+            return mUnknown;
+        }
+        return mMessages[status.getCode()];
+    }
+
+    /** The text of an event log entry: its message, or the lock state it reports. */
+    public CharSequence describe(int code) {
+        final LockStatusTable.Status status = LockStatusTable.describe(code);
+        final CharSequence message = message(status);
+        return message != null ? message : lockLine(status.getLockState());
+    }
+
+    /**
+     * "Lock status : ..." for one of the {@code SL_LOCK}, {@code SL_UNLOCK} or
+     * {@code SL_UNUSABLE} states, or null for other values.
+     */
+    public CharSequence lockLine(int lockState) {
+        switch (lockState) {
+            case SmartLockCodec.SL_LOCK:
+                return mLocked;
+            case SmartLockCodec.SL_UNLOCK:
+                return mUnlocked;
+            case SmartLockCodec.SL_UNUSABLE:
+                return mUnusable;
+            default:
+                return null;
+        }
+    }
+
+    public static int colorOf(LockStatusTable.Status status) {
+        switch (status.getSeverity()) {
+            case SUCCESS:
+                return COLOR_SUCCESS;
+            case APP:
+                return COLOR_INFO;
+            default:
+                return COLOR_ERROR;
+        }
+    }
+
+    /** Styles a one-off line, e.g. the echo of a command the user just sent. */
+    public static CharSequence colored(CharSequence text, int color) {
+        final SpannableString s = new SpannableString(text);
+        s.setSpan(new ForegroundColorSpan(color), 0, text.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return s;
+    }
+
+    private static CharSequence lockLine(int lockState, int color) {
+        final SpannableStringBuilder b = new SpannableStringBuilder(LOCK_STATUS);
+        b.append(LockStatusTable.lockStateName(lockState));
+        b.setSpan(new ForegroundColorSpan(color), LOCK_STATUS.length(), b.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return b;
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Precomputed description of every SmartLock response and lock state code.  Entries are
+ * immutable and looked up by code, so decoding a notification neither branches on the code
+ * nor allocates.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public final class LockStatusTable {
+
+    public enum Severity {
+        /** A command completed. */
+        SUCCESS,
+        /** A command failed or the lock needs attention. */
+        ERROR,
+        /** A plain lock state report. */
+        STATE,
+        /** Something the app did, recorded in the event log. */
+        APP
+    }
+
+    /** Lock state of entries that leave it unchanged. */
+    public static final int NO_CHANGE = -1;
+
+    /** Code of the entry returned for values outside the table. */
+    public static final int UNKNOWN_CODE = -1;
+
+    // App events share the byte code space with the lock responses so the event log can
+    // store both.  decode() never returns them.
+    public static final int APP_UNLOCK_SENT = SmartLockCodec.SL_UNLOCK_CMD;
+    public static final int APP_LOCK_SENT = SmartLockCodec.SL_LOCK_CMD;
+    public static final int APP_CODES_SENT = SmartLockCodec.SL_UPDATE_CODE_CMD;
+    public static final int APP_READY_SENT = SmartLockCodec.SL_APP_READY_CMD;
+    public static final int APP_RESET_SENT = SmartLockCodec.SL_RESET_CMD;
+    public static final int APP_ALREADY_UNLOCKED = 0x05;
+    public static final int APP_ALREADY_LOCKED = 0x06;
+    public static final int APP_CONNECTED = 0x07;
+    public static final int APP_DISCONNECTED = 0x08;
+    // Commands sent before a lost link, settled after the reconnect.
+    public static final int APP_COMMAND_CONFIRMED = 0x09;
+    public static final int APP_COMMAND_LOST = 0x0A;
+    public static final int APP_COMMAND_UNCONFIRMED = 0x0B;
+
+    private static final int TABLE_SIZE = 0x100;
+
+    public static final class Status {
+        private final int mCode;
+        private final Severity mSeverity;
+        private final String mMessage;
+        private final int mLockState;
+
+        Status(int code, Severity severity, String message, int lockState) {
+            mCode = code;
+            mSeverity = severity;
+            mMessage = message;
+            mLockState = lockState;
+        }
+
+        /** The response code, or {@link #UNKNOWN_CODE}. */
+        public int getCode() {
+            return mCode;
+        }
+
+        public Severity getSeverity() {
+            return mSeverity;
+        }
+
+        /** Text shown to the user, or null for plain state reports. */
+        public String getMessage() {
+            return mMessage;
+        }
+
+        public boolean hasMessage() {
+            return mMessage != null;
+        }
+
+        /** The lock state after this response, or {@link #NO_CHANGE}. */
+        public int getLockState() {
+            return mLockState;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("0x%02X %s %s", mCode & 0xFF, mSeverity, mMessage);
+        }
+    }
+
+    public static final Status UNKNOWN =
+            new Status(UNKNOWN_CODE, Severity.ERROR, "Unknown values", NO_CHANGE);
+
+    private static final Status[] TABLE = new Status[TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            TABLE[i] = UNKNOWN;
+        }
+        put(SmartLockCodec.SL_LOCK_SUCCESS, Severity.SUCCESS,
+                "Lock successful !", SmartLockCodec.SL_LOCK);
+        put(SmartLockCodec.SL_UNLOCK_SUCCESS, Severity.SUCCESS,
+                "Unlock successful !", SmartLockCodec.SL_UNLOCK);
+        put(SmartLockCodec.SL_UPDATE_SUCCESS, Severity.SUCCESS,
+                "Update access codes successfully !", NO_CHANGE);
+        put(SmartLockCodec.SL_RESET_SUCCESS, Severity.SUCCESS,
+                "Reset done !", SmartLockCodec.SL_LOCK);
+        put(SmartLockCodec.SL_DEV_NEED_UPDATE, Severity.ERROR,
+                "Locker has no codes inside. Update required", NO_CHANGE);
+        put(SmartLockCodec.SL_CODE_RUN_OUT, Severity.ERROR,
+                "Codes are running out. Locker needs new codes", NO_CHANGE);
+        put(SmartLockCodec.SL_UNLOCK_FAIL, Severity.ERROR,
+                "Out of Sync! Update required", NO_CHANGE);
+        put(SmartLockCodec.SL_LOCK_FAIL, Severity.ERROR,
+                "WARNING ! Locker is not secured !", SmartLockCodec.SL_UNUSABLE);
+        put(SmartLockCodec.SL_CODE_OUT_OF_DATE, Severity.ERROR,
+                "Code is outdated. Update required.", NO_CHANGE);
+        put(SmartLockCodec.SL_CODE_INVALID, Severity.ERROR,
+                "Invalid commands.", NO_CHANGE);
+        put(SmartLockCodec.SL_DEV_ID_FAIL, Severity.ERROR,
+                "Phone ID is not correct.", NO_CHANGE);
+        put(SmartLockCodec.SL_LOCK, Severity.STATE, null, SmartLockCodec.SL_LOCK);
+        put(SmartLockCodec.SL_UNLOCK, Severity.STATE, null, SmartLockCodec.SL_UNLOCK);
+        put(SmartLockCodec.SL_UNUSABLE, Severity.STATE, null, SmartLockCodec.SL_UNUSABLE);
+
+        put(APP_UNLOCK_SENT, Severity.APP, "Sending access code to unlock Locker", NO_CHANGE);
+        put(APP_LOCK_SENT, Severity.APP, "Trying to lock Locker ...", NO_CHANGE);
+        put(APP_CODES_SENT, Severity.APP, "Generate new access codes", NO_CHANGE);
+        put(APP_READY_SENT, Severity.APP, "App ready", NO_CHANGE);
+        put(APP_RESET_SENT, Severity.APP, "Reset Locker", NO_CHANGE);
+        put(APP_ALREADY_UNLOCKED, Severity.APP, "Locker is already unlocked", NO_CHANGE);
+        put(APP_ALREADY_LOCKED, Severity.APP, "Locker is already locked", NO_CHANGE);
+        put(APP_CONNECTED, Severity.APP, "Connected", NO_CHANGE);
+        put(APP_DISCONNECTED, Severity.APP, "Disconnected", NO_CHANGE);
+        put(APP_COMMAND_CONFIRMED, Severity.APP,
+                "Command sent before the link was lost went through", NO_CHANGE);
+        put(APP_COMMAND_LOST, Severity.APP,
+                "Command sent before the link was lost did not go through", NO_CHANGE);
+        put(APP_COMMAND_UNCONFIRMED, Severity.APP,
+                "Command sent before the link was lost may not have gone through", NO_CHANGE);
+    }
+
+    private LockStatusTable() {
+    }
+
+    private static void put(int code, Severity severity, String message, int lockState) {
+        TABLE[code] = new Status(code, severity, message, lockState);
+    }
+
+    /**
+     * Returns the entry for a response byte.  Never null: codes outside the table map to
+     * {@link #UNKNOWN}.
+     */
+    public static Status decode(int code) {
+        final Status status = describe(code);
+        return status.mSeverity == Severity.APP ? UNKNOWN : status;
+    }
+
+    /** Decodes the first byte of a notification frame. */
+    public static Status decode(byte[] frame, int length) {
+        return length > 0 ? decode(frame[0] & 0xFF) : UNKNOWN;
+    }
+
+    /** Like {@link #decode(int)}, but also returns the app event entries. */
+    public static Status describe(int code) {
+        if (code < 0 || code >= TABLE_SIZE) {
+            return UNKNOWN;
+        }
+        return TABLE[code];
+    }
+
+    /** "Lock", "Unlock" or "Unusable", or null for other values. */
+    public static String lockStateName(int lockState) {
+        switch (lockState) {
+            case SmartLockCodec.SL_LOCK:
+                return "Lock";
+            case SmartLockCodec.SL_UNLOCK:
+                return "Unlock";
+            case SmartLockCodec.SL_UNUSABLE:
+                return "Unusable";
+            default:
+                return null;
+        }
+    }
+
+    public static boolean isKnown(int code) {
+        return decode(code) != UNKNOWN;
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the locks report in their telemetry notifications, see {@code SL_TELEMETRY} in
+ * smartlock.h:
+ * <pre>
+ * | 0x20 | version (1) | type (1) | len (1) | value (len) | type | len | value | ... |
+ * </pre>
+ * Values are unsigned and big endian.  A {@link Reader} walks the items in place, so decoding
+ * copies nothing out of the notification.  Items of unknown types are skipped and an item
+ * left out keeps its last value, so older and newer firmware can report what they have.
+ *
+ * <p>The latest values of a lock are packed into one {@code long}, replaced by
+ * compare-and-set, so a single read is a consistent snapshot:
+ * <pre>
+ * | 0 (3) | present (5) | battery mV (16) | codes left (16) | alarms (8) | latch (8) | status (8) |
+ * </pre>
+ * Present has one bit per {@code FIELD_*}, set once the lock reported that field.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class LockTelemetry {
+
+    public static final int FIELD_LOCK_STATUS = 1;
+    public static final int FIELD_LATCH = 1 << 1;
+    public static final int FIELD_ALARMS = 1 << 2;
+    public static final int FIELD_CODES_LEFT = 1 << 3;
+    public static final int FIELD_BATTERY = 1 << 4;
+
+    /** Latch sensor values, {@code LOCKER_CONNECT} and {@code LOCKER_DISCONNECT}. */
+    public static final int LATCH_CLOSED = 0;
+    public static final int LATCH_OPEN = 1;
+
+    /** State of a lock that has not sent telemetry. */
+    public static final long EMPTY = 0;
+
+    private static final int LOCK_SHIFT = 0;
+    private static final int LATCH_SHIFT = 8;
+    private static final int ALARMS_SHIFT = 16;
+    private static final int CODES_SHIFT = 24;
+    private static final int BATTERY_SHIFT = 40;
+    private static final int PRESENT_SHIFT = 56;
+    private static final int[] SHIFTS = {
+            LOCK_SHIFT, LATCH_SHIFT, ALARMS_SHIFT, CODES_SHIFT, BATTERY_SHIFT};
+    private static final long[] MAXIMA = {0xFF, 0xFF, 0xFF, 0xFFFF, 0xFFFF};
+
+    /**
+     * Cursor over the items of one notification.  It reads the array it was reset to and keeps
+     * no copy, so the array must not change until the cursor is done.  Not thread safe.
+     */
+    public static final class Reader {
+        private byte[] mFrame;
+        private int mEnd;
+        private int mNext;
+        private int mVersion;
+        private int mType;
+        private int mValueOffset;
+        private int mValueLength;
+        private boolean mTruncated;
+
+        /**
+         * Points the cursor before the first item of a notification.
+         *
+         * @return false if {@code frame} is not a telemetry notification.
+         */
+        public boolean reset(byte[] frame, int offset, int length) {
+            mFrame = frame;
+            mEnd = offset + length;
+            mType = 0;
+            mValueLength = 0;
+            mTruncated = false;
+            if (length < 2 || (frame[offset] & 0xFF) != SmartLockCodec.SL_TELEMETRY) {
+                mNext = mEnd;
+                mVersion = 0;
+                return false;
+            }
+            mVersion = frame[offset + 1] & 0xFF;
+            mNext = offset + 2;
+            return mVersion > 0;
+        }
+
+        /**
+         * Moves to the next item.
+         *
+         * @return false past the last item, or if the next one runs past the notification.
+         */
+        public boolean next() {
+            if (mNext + 2 > mEnd) {
+                mTruncated = mNext != mEnd;
+                mNext = mEnd;
+                return false;
+            }
+            final int type = mFrame[mNext] & 0xFF;
+            final int length = mFrame[mNext + 1] & 0xFF;
+            if (mNext + 2 + length > mEnd) {
+                mTruncated = true;
+                mNext = mEnd;
+                return false;
+            }
+            mType = type;
+            mValueOffset = mNext + 2;
+            mValueLength = length;
+            mNext = mValueOffset + length;
+            return true;
+        }
+
+        public int getVersion() {
+            return mVersion;
+        }
+
+        /** One of the {@code SmartLockCodec.TLV_*} types, or one this app does not know. */
+        public int getType() {
+            return mType;
+        }
+
+        public int getValueLength() {
+            return mValueLength;
+        }
+
+        /** The value as an unsigned big endian number; longer values keep the last 8 bytes. */
+        public long getValue() {
+            long value = 0;
+            for (int i = 0; i < mValueLength; i++) {
+                value = (value << 8) | (mFrame[mValueOffset + i] & 0xFF);
+            }
+            return value;
+        }
+
+        /** Whether the last {@link #next()} stopped at a cut off item. */
+        public boolean isTruncated() {
+            return mTruncated;
+        }
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> mStates =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong mReports = new AtomicLong();
+    private final AtomicLong mTruncated = new AtomicLong();
+
+    /** The latest values of {@code address}, or {@link #EMPTY}. */
+    public long get(String address) {
+        final AtomicLong state = mStates.get(address);
+        return state == null ? EMPTY : state.get();
+    }
+
+    /**
+     * Merges the items of a notification into the state of {@code address}.  The items before
+     * a cut off one still count.
+     *
+     * @param items Reset to the notification; read to the end.
+     * @return The {@code FIELD_*} bits whose value changed or that were reported for the first
+     *         time, 0 if none.
+     */
+    public int apply(String address, Reader items) {
+        int reported = 0;
+        long values = 0;
+        while (items.next()) {
+            final int field = field(items.getType());
+            if (field < 0) {
+                continue;
+            }
+            final long value = Math.min(items.getValue(), MAXIMA[field]);
+            reported |= 1 << field;
+            values = (values & ~(MAXIMA[field] << SHIFTS[field])) | value << SHIFTS[field];
+        }
+        if (items.isTruncated()) {
+            mTruncated.incrementAndGet();
+        }
+        mReports.incrementAndGet();
+        if (reported == 0) {
+            return 0;
+        }
+        long mask = (long) reported << PRESENT_SHIFT;
+        for (int field = 0; field < SHIFTS.length; field++) {
+            if ((reported & 1 << field) != 0) {
+                mask |= MAXIMA[field] << SHIFTS[field];
+            }
+        }
+        values |= (long) reported << PRESENT_SHIFT;
+        final AtomicLong state = slot(address);
+        long old;
+        long updated;
+        do {
+            old = state.get();
+            updated = (old & ~mask) | values;
+        } while (updated != old && !state.compareAndSet(old, updated));
+        return changed(old, updated);
+    }
+
+    /** Drops what {@code address} reported, e.g. once the lock is forgotten. */
+    public void remove(String address) {
+        mStates.remove(address);
+    }
+
+    public long getReportCount() {
+        return mReports.get();
+    }
+
+    /** Notifications whose last item was cut off. */
+    public long getTruncatedCount() {
+        return mTruncated.get();
+    }
+
+    public static boolean has(long state, int field) {
+        return (present(state) & field) != 0;
+    }
+
+    /** The {@code FIELD_*} bits the lock has reported so far. */
+    public static int present(long state) {
+        return (int) (state >>> PRESENT_SHIFT);
+    }
+
+    /** {@code SL_LOCK}, {@code SL_UNLOCK} or {@code SL_UNUSABLE}. */
+    public static int lockStatus(long state) {
+        return (int) (state >>> LOCK_SHIFT) & 0xFF;
+    }
+
+    /** {@link #LATCH_CLOSED} or {@link #LATCH_OPEN}. */
+    public static int latch(long state) {
+        return (int) (state >>> LATCH_SHIFT) & 0xFF;
+    }
+
+    /** Codes an unlock can still use, as the lock counts them. */
+    public static int codesLeft(long state) {
+        return (int) (state >>> CODES_SHIFT) & 0xFFFF;
+    }
+
+    /** Failed lock checks since the latch last closed; 255 or more reads as 255. */
+    public static int alarmCount(long state) {
+        return (int) (state >>> ALARMS_SHIFT) & 0xFF;
+    }
+
+    public static int batteryMv(long state) {
+        return (int) (state >>> BATTERY_SHIFT) & 0xFFFF;
+    }
+
+    @Override
+    public String toString() {
+        return mStates.size() + " locks, " + mReports.get() + " reports, " + mTruncated.get()
+                + " truncated";
+    }
+
+    // Index into SHIFTS and MAXIMA, -1 for types this app does not know.
+    private static int field(int type) {
+        switch (type) {
+            case SmartLockCodec.TLV_LOCK_STATUS:
+                return 0;
+            case SmartLockCodec.TLV_LATCH:
+                return 1;
+            case SmartLockCodec.TLV_ALARM_CNT:
+                return 2;
+            case SmartLockCodec.TLV_CODES_LEFT:
+                return 3;
+            case SmartLockCodec.TLV_BATTERY_MV:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    private static int changed(long old, long updated) {
+        int changed = 0;
+        for (int field = 0; field < SHIFTS.length; field++) {
+            final int bit = 1 << field;
+            final long mask = MAXIMA[field] << SHIFTS[field];
+            if ((present(updated) & bit) != 0
+                    && ((present(old) & bit) == 0 || (old & mask) != (updated & mask))) {
+                changed |= bit;
+            }
+        }
+        return changed;
+    }
+
+    private AtomicLong slot(String address) {
+        AtomicLong state = mStates.get(address);
+        if (state == null) {
+            final AtomicLong created = new AtomicLong(EMPTY);
+            state = mStates.putIfAbsent(address, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+}
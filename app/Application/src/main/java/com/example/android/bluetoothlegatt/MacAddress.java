@@ -0,0 +1,52 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Bluetooth addresses packed into the low 48 bits of a long, the form the scanner keys its
+ * table on and the vault, journal and lock registry write to their files.
+ *
+ * <p>This class has no Android dependencies.
+ */
+final class MacAddress {
+
+    private static final int LENGTH = 17;
+
+    private MacAddress() {
+    }
+
+    /** Packs "AA:BB:CC:DD:EE:FF"; either case is accepted. */
+    static long parse(CharSequence address) {
+        if (address.length() != LENGTH) {
+            throw new IllegalArgumentException("Not a MAC address: " + address);
+        }
+        long mac = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    throw new IllegalArgumentException("Not a MAC address: " + address);
+                }
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not a MAC address: " + address);
+            }
+            mac = (mac << 4) | digit;
+        }
+        return mac;
+    }
+
+    /** The inverse of {@link #parse(CharSequence)}, with upper case digits. */
+    static String format(long mac) {
+        final char[] out = new char[LENGTH];
+        for (int i = 0, shift = 44; i < LENGTH; i += 3, shift -= 8) {
+            out[i] = Character.toUpperCase(Character.forDigit((int) (mac >>> shift) & 0xF, 16));
+            out[i + 1] = Character.toUpperCase(
+                    Character.forDigit((int) (mac >>> (shift - 4)) & 0xF, 16));
+            if (i + 2 < LENGTH) {
+                out[i + 2] = ':';
+            }
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes lock notifications off the Bluetooth binder thread.  Each session gets a {@link Ring}
+ * of preallocated packet slots; its GATT callback only copies the packet into the next slot
+ * and returns.  One decoder thread drains every ring in turn and hands the packets to the
+ * session's {@link Consumer}, which reassembles and parses them.  A slow parse then delays
+ * the next parse, not the next GATT callback.
+ *
+ * <p>A ring has one producer, the session's GATT callbacks, which the stack delivers one at
+ * a time, and one consumer, the decoder thread, so neither side takes a lock.  A full ring
+ * drops the packet and counts it.  Connection events take the same ring, so the consumer
+ * sees them in order with the packets; a few slots are kept free for them.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class NotificationPipeline {
+
+    /** Packets a ring holds; a power of two. */
+    public static final int DEFAULT_CAPACITY = 64;
+    // ATT payload of a notification at the default MTU.  A larger MTU grows a slot once.
+    private static final int SLOT_LEN = FrameFragmenter.DEFAULT_MTU - 3;
+    // Packets taken from one ring before the next gets its turn.
+    private static final int BATCH = 16;
+    private static final int EVENT = -1;
+    // Slots only events may take, so a burst of packets does not crowd out a disconnect.
+    private static final int EVENT_RESERVE = 4;
+
+    /** Receives the packets of one ring on the decoder thread. */
+    public interface Consumer {
+        /**
+         * @param packet Valid up to {@code length} until this returns.
+         * @param receivedNs {@link System#nanoTime()} of the GATT callback.
+         */
+        void onPacket(byte[] packet, int length, long receivedNs);
+
+        /** An event queued by {@link Ring#offerEvent}, after the packets before it. */
+        void onEvent(int event, int status);
+
+        /**
+         * {@link #onPacket} or {@link #onEvent} threw; the decoder goes on with the next
+         * packet.  Must not throw.
+         */
+        void onFailed(RuntimeException e);
+    }
+
+    public final class Ring {
+        private final Consumer mConsumer;
+        private final int mMask;
+        private final byte[][] mPackets;
+        private final int[] mLengths;
+        private final long[] mStamps;
+        // Next slot to read; written by the decoder only.
+        private final AtomicLong mHead = new AtomicLong();
+        // Next slot to write; written by the producer only.
+        private final AtomicLong mTail = new AtomicLong();
+        // The producer's last view of mHead, so it reads the shared one only when full.
+        private long mHeadCache;
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private volatile boolean mClosed;
+
+        Ring(Consumer consumer, int capacity) {
+            if (Integer.bitCount(capacity) != 1 || capacity <= EVENT_RESERVE) {
+                throw new IllegalArgumentException("Capacity not a power of two above "
+                        + EVENT_RESERVE + ": " + capacity);
+            }
+            mConsumer = consumer;
+            mMask = capacity - 1;
+            mPackets = new byte[capacity][SLOT_LEN];
+            mLengths = new int[capacity];
+            mStamps = new long[capacity];
+        }
+
+        /**
+         * Copies a packet in; producer thread only.
+         *
+         * @return false if the ring was full and the packet dropped.
+         */
+        public boolean offer(byte[] packet, long receivedNs) {
+            if (packet == null) {
+                return false;
+            }
+            final long tail = mTail.get();
+            if (!hasRoom(tail, EVENT_RESERVE)) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            final int slot = (int) tail & mMask;
+            if (mPackets[slot].length < packet.length) {
+                mPackets[slot] = new byte[packet.length];
+            }
+            System.arraycopy(packet, 0, mPackets[slot], 0, packet.length);
+            mLengths[slot] = packet.length;
+            mStamps[slot] = receivedNs;
+            publish(tail);
+            return true;
+        }
+
+        /**
+         * Queues {@link Consumer#onEvent} behind the packets so far, e.g. a disconnect;
+         * producer thread only.
+         *
+         * @return false if even the slots kept for events are taken, i.e. the decoder is
+         *         stuck; the caller has to deliver the event some other way.
+         */
+        public boolean offerEvent(int event, int status) {
+            final long tail = mTail.get();
+            if (!hasRoom(tail, 0)) {
+                return false;
+            }
+            final int slot = (int) tail & mMask;
+            mLengths[slot] = EVENT;
+            mStamps[slot] = ((long) event << 32) | (status & 0xFFFFFFFFL);
+            publish(tail);
+            return true;
+        }
+
+        /** Packets dropped because the decoder fell a whole ring behind. */
+        public long getDropped() {
+            return mDropped.get();
+        }
+
+        /** Packets and events the consumer threw on. */
+        public long getFailed() {
+            return mFailed.get();
+        }
+
+        /**
+         * Stops delivery, e.g. once the GATT handle is closed.  The next {@link #offer} opens
+         * the ring again, after the packets not taken yet.
+         */
+        public void close() {
+            mClosed = true;
+            mRings.remove(this);
+        }
+
+        private boolean hasRoom(long tail, int reserve) {
+            if (tail - mHeadCache > mMask - reserve) {
+                mHeadCache = mHead.get();
+                if (tail - mHeadCache > mMask - reserve) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // A full volatile write, so the decoder either sees the slot or is seen asleep.
+        private void publish(long tail) {
+            if (mClosed) {
+                mClosed = false;
+                mRings.addIfAbsent(this);
+            }
+            mTail.set(tail + 1);
+            if (mSleeping) {
+                LockSupport.unpark(mThread);
+            }
+        }
+
+        private boolean isEmpty() {
+            return mHead.get() == mTail.get();
+        }
+
+        // Decoder thread.  Returns the number of packets delivered.
+        private int drain(int max) {
+            long head = mHead.get();
+            final long end = Math.min(mTail.get(), head + max);
+            final int count = (int) (end - head);
+            for (; head < end; head++) {
+                final int slot = (int) head & mMask;
+                final int length = mLengths[slot];
+                try {
+                    if (length == EVENT) {
+                        mConsumer.onEvent((int) (mStamps[slot] >> 32), (int) mStamps[slot]);
+                    } else {
+                        final long now = System.nanoTime();
+                        mQueueDelay.record(now - mStamps[slot]);
+                        mConsumer.onPacket(mPackets[slot], length, mStamps[slot]);
+                    }
+                } catch (RuntimeException e) {
+                    // One bad packet must not stop the decoder for every lock.
+                    mFailed.incrementAndGet();
+                    mConsumer.onFailed(e);
+                } finally {
+                    // The slot is the producer's again.
+                    mHead.lazySet(head + 1);
+                }
+            }
+            return count;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Ring> mRings = new CopyOnWriteArrayList<Ring>();
+    private final LatencyHistogram mQueueDelay = new LatencyHistogram();
+    private final String mName;
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mSleeping;
+
+    public NotificationPipeline(String name) {
+        mName = name;
+    }
+
+    /** A ring of {@link #DEFAULT_CAPACITY} packets delivered to {@code consumer}. */
+    public Ring open(Consumer consumer) {
+        return open(consumer, DEFAULT_CAPACITY);
+    }
+
+    public Ring open(Consumer consumer, int capacity) {
+        final Ring ring = new Ring(consumer, capacity);
+        mRings.add(ring);
+        return ring;
+    }
+
+    /** Starts the decoder thread. */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode();
+            }
+        }, mName);
+        mThread = thread;
+        thread.start();
+    }
+
+    /** Stops the decoder thread once it is done with the packet at hand. */
+    public synchronized void stop() {
+        final Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(thread);
+        mThread = null;
+    }
+
+    /** Time packets waited in a ring, from the GATT callback to the decoder, in nanoseconds. */
+    public LatencyHistogram getQueueDelay() {
+        return mQueueDelay;
+    }
+
+    /** Packets dropped by all open rings. */
+    public long getDropped() {
+        long dropped = 0;
+        for (Ring ring : mRings) {
+            dropped += ring.getDropped();
+        }
+        return dropped;
+    }
+
+    /** Packets and events the consumers of all open rings threw on. */
+    public long getFailed() {
+        long failed = 0;
+        for (Ring ring : mRings) {
+            failed += ring.getFailed();
+        }
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return mQueueDelay.getCount() + " packets, queue delay p50 "
+                + mQueueDelay.getValueAtPercentile(50) / 1000 + " us, p99 "
+                + mQueueDelay.getValueAtPercentile(99) / 1000 + " us, " + getDropped()
+                + " dropped, " + getFailed() + " failed";
+    }
+
+    private void decode() {
+        while (mRunning) {
+            int delivered = 0;
+            for (Ring ring : mRings) {
+                delivered += ring.drain(BATCH);
+            }
+            if (delivered > 0) {
+                continue;
+            }
+            mSleeping = true;
+            // A producer that published before this saw mSleeping false, so look once more.
+            if (allEmpty() && mRunning) {
+                LockSupport.park(this);
+            }
+            mSleeping = false;
+        }
+    }
+
+    private boolean allEmpty() {
+        for (Ring ring : mRings) {
+            if (!ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
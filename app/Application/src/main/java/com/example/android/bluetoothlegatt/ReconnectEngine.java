@@ -0,0 +1,262 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets watched locks back after the link drops.  On a loss the lock gets a background
+ * {@code autoConnect=true} connection, which never times out but may take a while, and a
+ * race of direct connections next to it: the first right away, the next ones after a
+ * jittered exponential backoff, up to {@link #MAX_DIRECT_ATTEMPTS}.  A direct attempt that
+ * fails with status 133 or hangs has its GATT handle closed, so failed handles do not pile up
+ * in the stack and cause more 133s.  Whichever connection comes up first wins.
+ *
+ * <p>All work runs on the executor given to the constructor; the transport is only called
+ * from there.  Events may be reported from any thread.  Only the set of watched locks changes
+ * at once, so {@link #isWatched} agrees with the last watch or unwatch call.  This class has
+ * no Android dependencies.
+ */
+public class ReconnectEngine {
+
+    public static final long DIRECT_TIMEOUT_MS = 10000;
+    public static final long BACKOFF_BASE_MS = 250;
+    public static final long BACKOFF_MAX_MS = 15000;
+    public static final int MAX_DIRECT_ATTEMPTS = 8;
+    /** {@code GATT_ERROR}, what the stack reports when it ran out of client handles, among others. */
+    public static final int GATT_ERROR = 133;
+
+    /** The connections; implemented by BluetoothLeService. */
+    public interface Transport {
+        /** Starts a direct connection on a fresh GATT handle; the result is reported back. */
+        boolean connectDirect(String address);
+
+        /** Starts a background auto connection, unless one is pending already. */
+        boolean connectBackground(String address);
+
+        /** Closes the handle of a direct attempt that failed or hangs. */
+        void closeDirect(String address);
+    }
+
+    private final Transport mTransport;
+    private final ScheduledExecutorService mExecutor;
+    private final long mDirectTimeoutMs;
+    private final long mBackoffBaseMs;
+    private final Random mJitter = new Random();
+    private final ConcurrentHashMap<String, Target> mTargets =
+            new ConcurrentHashMap<String, Target>();
+    private final LatencyHistogram mTimeToReconnect = new LatencyHistogram();
+
+    // Only written on the executor.
+    private volatile long mReconnects;
+    private volatile long mFailedAttempts;
+    private volatile long mTimeouts;
+    private volatile long mClosedHandles;
+
+    public ReconnectEngine(Transport transport, ScheduledExecutorService executor) {
+        this(transport, executor, DIRECT_TIMEOUT_MS, BACKOFF_BASE_MS);
+    }
+
+    public ReconnectEngine(Transport transport, ScheduledExecutorService executor,
+                           long directTimeoutMs, long backoffBaseMs) {
+        mTransport = transport;
+        mExecutor = executor;
+        mDirectTimeoutMs = directTimeoutMs;
+        mBackoffBaseMs = backoffBaseMs;
+    }
+
+    /** Keeps {@code address} connected from now on. */
+    public void watch(String address) {
+        mTargets.putIfAbsent(address, new Target(address));
+    }
+
+    /** Stops reconnecting {@code address}, e.g. because the user disconnected it. */
+    public void unwatch(String address) {
+        final Target target = mTargets.remove(address);
+        if (target == null) {
+            return;
+        }
+        // Its timer belongs to the executor; one that fires first finds the target gone.
+        post(new Runnable() {
+            @Override
+            public void run() {
+                target.disarm();
+            }
+        });
+    }
+
+    /** Whether a link loss of {@code address} will be recovered from. */
+    public boolean isWatched(String address) {
+        return mTargets.containsKey(address);
+    }
+
+    /** Whether the engine is getting {@code address} back. */
+    public boolean isReconnecting(String address) {
+        final Target target = mTargets.get(address);
+        return target != null && target.mLost;
+    }
+
+    /** The link to {@code address} came up, by whichever connection. */
+    public void onConnected(final String address) {
+        final long now = System.nanoTime();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final Target target = mTargets.get(address);
+                if (target == null || !target.mLost) {
+                    return;
+                }
+                mTimeToReconnect.record(now - target.mLostNs);
+                mReconnects++;
+                target.mLost = false;
+                target.mDirectPending = false;
+                target.disarm();
+            }
+        });
+    }
+
+    /** The link to {@code address} went down, or a connection attempt to it failed. */
+    public void onDisconnected(final String address, final int status) {
+        final long now = System.nanoTime();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final Target target = mTargets.get(address);
+                if (target == null) {
+                    return;
+                }
+                if (!target.mLost) {
+                    target.mLost = true;
+                    target.mLostNs = now;
+                    target.mAttempts = 0;
+                    mTransport.connectBackground(address);
+                    attempt(target);
+                } else if (target.mDirectPending) {
+                    target.mDirectPending = false;
+                    mFailedAttempts++;
+                    if (status == GATT_ERROR) {
+                        closeDirect(target);
+                    }
+                    backoff(target);
+                }
+            }
+        });
+    }
+
+    /** Time from a link loss to the link coming back, in nanoseconds. */
+    public LatencyHistogram getTimeToReconnect() {
+        return mTimeToReconnect;
+    }
+
+    public long getReconnectCount() {
+        return mReconnects;
+    }
+
+    public long getFailedAttemptCount() {
+        return mFailedAttempts;
+    }
+
+    public long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /** Direct attempt handles closed after a 133 or a timeout. */
+    public long getClosedHandleCount() {
+        return mClosedHandles;
+    }
+
+    @Override
+    public String toString() {
+        return mReconnects + " reconnects, p50 "
+                + TimeUnit.NANOSECONDS.toMillis(mTimeToReconnect.getValueAtPercentile(50))
+                + " ms, p99 "
+                + TimeUnit.NANOSECONDS.toMillis(mTimeToReconnect.getValueAtPercentile(99))
+                + " ms, " + mFailedAttempts + " failed attempts, " + mTimeouts + " timeouts, "
+                + mClosedHandles + " handles closed";
+    }
+
+    private void attempt(Target target) {
+        target.mAttempts++;
+        if (mTransport.connectDirect(target.mAddress)) {
+            target.mDirectPending = true;
+            target.arm(mDirectTimeoutMs);
+        } else {
+            mFailedAttempts++;
+            backoff(target);
+        }
+    }
+
+    // Full jitter over the upper half, so locks that dropped together do not retry together.
+    private void backoff(Target target) {
+        if (target.mAttempts >= MAX_DIRECT_ATTEMPTS) {
+            // The background connection carries on alone.
+            return;
+        }
+        final long delay = Math.min(BACKOFF_MAX_MS, mBackoffBaseMs << (target.mAttempts - 1));
+        target.arm(delay / 2 + (long) (mJitter.nextDouble() * (delay / 2)));
+    }
+
+    private void closeDirect(Target target) {
+        mTransport.closeDirect(target.mAddress);
+        mClosedHandles++;
+    }
+
+    private void post(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    private class Target implements Runnable {
+        final String mAddress;
+        // Set on the executor; read anywhere through isReconnecting().
+        volatile boolean mLost;
+        long mLostNs;
+        int mAttempts;
+        boolean mDirectPending;
+        ScheduledFuture<?> mTimer;
+
+        Target(String address) {
+            mAddress = address;
+        }
+
+        void arm(long delayMs) {
+            disarm();
+            try {
+                mTimer = mExecutor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
+
+        void disarm() {
+            if (mTimer != null) {
+                mTimer.cancel(false);
+                mTimer = null;
+            }
+        }
+
+        // The timer: a direct attempt hangs, or a backoff is over.
+        @Override
+        public void run() {
+            mTimer = null;
+            if (mTargets.get(mAddress) != this || !mLost) {
+                return;
+            }
+            if (mDirectPending) {
+                mDirectPending = false;
+                mTimeouts++;
+                mFailedAttempts++;
+                closeDirect(this);
+                backoff(this);
+            } else {
+                attempt(this);
+            }
+        }
+    }
+}
@@ -25,6 +25,9 @@ public class SampleGattAttributes {
     private static HashMap<String, String> attributes = new HashMap();
     public static String HEART_RATE_MEASUREMENT = "00002a37-0000-1000-8000-00805f9b34fb";
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    public static String SMARTLOCK_SERVICE = "8653000a-43e6-47b7-9cb0-5fc21d4ae340";
+    public static String SMARTLOCK_NOTIFY = "8653000b-43e6-47b7-9cb0-5fc21d4ae340";
+    public static String SMARTLOCK_WRITE = "8653000c-43e6-47b7-9cb0-5fc21d4ae340";
 
     static {
         // Sample Services.
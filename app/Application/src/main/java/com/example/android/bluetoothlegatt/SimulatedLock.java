@@ -0,0 +1,348 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The SmartLock firmware's command handling, {@code smart_lock_parse_data()} in smartlock.c,
+ * redone in Java so the app can be exercised without a board.  It keeps the same state as
+ * {@code sl_info}: the access codes, the {@code code_valid} countdown, the phone ID the lock
+ * pins itself to after the first unlock, and the date the codes were issued.  The codes are
+ * kept like codestore.c keeps them, in an open-addressed table of {@link #SLOTS} slots with
+ * linear probing, counting how often each code was loaded; flash is not simulated.
+ *
+ * <p>The checks run in the firmware's order and keep its quirks: a lock with one code left
+ * already answers {@code SL_CODE_RUN_OUT}, the date comparison goes field by field, and a lock
+ * command on an open latch leaves the lock unusable without an answer.  Fields are read from
+ * the decoded frame rather than at the fixed offsets of the ASCII frame layout.
+ *
+ * <p>Not thread safe; each simulated lock is driven by one thread at a time.  This class has
+ * no Android dependencies.
+ */
+public class SimulatedLock {
+
+    /** Returned by {@link #receive} when the lock does not answer. */
+    public static final int NO_RESPONSE = -1;
+
+    /** {@code CS_SLOTS}; the table holds at most half as many codes. */
+    public static final int SLOTS = 512;
+    public static final int MAX_CODES = SLOTS / 2;
+
+    private static final int MAX_USES = 0xFF;
+    private static final int ALARM_LIMIT = 20;
+
+    private final String mAddress;
+    private final FrameFragmenter.Reassembler mReassembler =
+            new FrameFragmenter.Reassembler(SmartLockCodec.MAX_BATCH_FRAME_LEN);
+    private final SmartLockCodec.Command mCommand = new SmartLockCodec.Command();
+    // A slot is free when its uses are 0.
+    private final int[] mKeys = new int[SLOTS];
+    private final byte[] mUses = new byte[SLOTS];
+    private int mCodes;
+
+    private int mLockStatus;
+    private int mCodeValid;
+    private int mAlarmCount;
+    // yyMMddHHmm of the last code update, as a decimal number.
+    private long mCodeDate;
+    private long mDevId;
+    private long mPinnedId;
+    private boolean mDevLock;
+    private boolean mUpdated;
+    private boolean mBeep;
+    // The latch sensor, LOCKER_PIN; the test sets it.
+    private boolean mLatchClosed = true;
+
+    private long mFrames;
+    private long mBadFrames;
+
+    public SimulatedLock(String address) {
+        mAddress = address;
+        reset();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Feeds one written packet, which may be a chunk of a longer frame.
+     *
+     * @return The {@code SL_*} code the lock notifies, or {@link #NO_RESPONSE}.
+     */
+    public int receive(byte[] packet) {
+        if (!mReassembler.accept(packet)) {
+            return NO_RESPONSE;
+        }
+        final ByteBuffer frame = ByteBuffer.wrap(mReassembler.getFrame(), 0,
+                mReassembler.getFrameLength());
+        if (!SmartLockCodec.decodeCommand(frame, mCommand)) {
+            mBadFrames++;
+            return NO_RESPONSE;
+        }
+        mFrames++;
+        return parse(mCommand);
+    }
+
+    /** {@code smart_lock_parse_data()}. */
+    int parse(SmartLockCodec.Command cmd) {
+        switch (cmd.opcode) {
+            case SmartLockCodec.SL_UNLOCK_CMD:
+                if (mCodeValid <= 1) {
+                    return SmartLockCodec.SL_CODE_RUN_OUT;
+                }
+                if (!compareDevId(cmd.phoneId)) {
+                    return SmartLockCodec.SL_DEV_ID_FAIL;
+                }
+                if (!compareDate(cmd.timestamp)) {
+                    return SmartLockCodec.SL_CODE_OUT_OF_DATE;
+                }
+                final int userCode = SmartLockCodec.codeOf(cmd.codes, 0, cmd.codeCount);
+                if (userCode >= 0 && consume(userCode)) {
+                    mDevLock = true;
+                    mLockStatus = SmartLockCodec.SL_UNLOCK;
+                    return SmartLockCodec.SL_UNLOCK_SUCCESS;
+                }
+                return SmartLockCodec.SL_UNLOCK_FAIL;
+
+            case SmartLockCodec.SL_UPDATE_CODE_CMD:
+                // Each digit is a code of its own.
+                clearCodes();
+                for (int i = 0; i < cmd.codeCount; i++) {
+                    add(cmd.codes[i]);
+                }
+                setInfo(cmd);
+                return SmartLockCodec.SL_UPDATE_SUCCESS;
+
+            case SmartLockCodec.SL_LOAD_CODES_CMD:
+            case SmartLockCodec.SL_ADD_CODES_CMD:
+                if (cmd.opcode == SmartLockCodec.SL_ADD_CODES_CMD
+                        && mCodes + cmd.batchSize() > MAX_CODES) {
+                    return SmartLockCodec.SL_CODE_INVALID;
+                }
+                if (cmd.opcode == SmartLockCodec.SL_LOAD_CODES_CMD) {
+                    clearCodes();
+                }
+                for (int i = 0; i < cmd.batchSize(); i++) {
+                    add(cmd.batchCode(i));
+                }
+                setInfo(cmd);
+                return SmartLockCodec.SL_UPDATE_SUCCESS;
+
+            case SmartLockCodec.SL_LOCK_CMD:
+                mLockStatus = SmartLockCodec.SL_LOCK;
+                if (mLatchClosed) {
+                    return SmartLockCodec.SL_LOCK_SUCCESS;
+                }
+                mLockStatus = SmartLockCodec.SL_UNUSABLE;
+                return NO_RESPONSE;
+
+            case SmartLockCodec.SL_APP_READY_CMD:
+                return NO_RESPONSE;
+
+            case SmartLockCodec.SL_RESET_CMD:
+                reset();
+                return SmartLockCodec.SL_RESET_SUCCESS;
+
+            default:
+                return NO_RESPONSE;
+        }
+    }
+
+    /**
+     * {@code smart_lock_detect()}: re-reads the latch of an unusable lock.
+     *
+     * @return The code the lock notifies, or {@link #NO_RESPONSE}.
+     */
+    public int detect() {
+        if (mLockStatus != SmartLockCodec.SL_UNUSABLE) {
+            return NO_RESPONSE;
+        }
+        if (mLatchClosed) {
+            mAlarmCount = 0;
+            mBeep = false;
+            mLockStatus = SmartLockCodec.SL_LOCK;
+            return SmartLockCodec.SL_LOCK_SUCCESS;
+        }
+        if (mAlarmCount > ALARM_LIMIT) {
+            mBeep = true;
+        } else {
+            mAlarmCount++;
+        }
+        return SmartLockCodec.SL_LOCK_FAIL;
+    }
+
+    /** {@code smart_lock_init()}. */
+    public void reset() {
+        clearCodes();
+        mCodeValid = 0;
+        mAlarmCount = 0;
+        mCodeDate = 0;
+        mDevId = 0;
+        mPinnedId = 0;
+        mDevLock = false;
+        mUpdated = false;
+        mBeep = false;
+        mLockStatus = mLatchClosed ? SmartLockCodec.SL_LOCK : SmartLockCodec.SL_UNLOCK;
+        mReassembler.reset();
+    }
+
+    /**
+     * {@code smart_lock_build_telemetry()}: the notification the firmware sends after a
+     * command that changed the lock and in answer to {@code SL_APP_READY_CMD}.
+     *
+     * @return The number of bytes written.
+     */
+    public int encodeTelemetry(ByteBuffer dst) {
+        return SmartLockCodec.encodeTelemetry(dst, mLockStatus,
+                mLatchClosed ? LockTelemetry.LATCH_CLOSED : LockTelemetry.LATCH_OPEN,
+                mAlarmCount, mCodeValid > 1 ? mCodeValid - 1 : 0);
+    }
+
+    public void setLatchClosed(boolean closed) {
+        mLatchClosed = closed;
+    }
+
+    public int getLockStatus() {
+        return mLockStatus;
+    }
+
+    public int getCodeValid() {
+        return mCodeValid;
+    }
+
+    /** Distinct codes held. */
+    public int getCodeCount() {
+        return mCodes;
+    }
+
+    public int getAlarmCount() {
+        return mAlarmCount;
+    }
+
+    public boolean isDevLocked() {
+        return mDevLock;
+    }
+
+    public boolean isUpdated() {
+        return mUpdated;
+    }
+
+    public boolean isBeeping() {
+        return mBeep;
+    }
+
+    /** The phone ID sent with the last code update. */
+    public long getDevId() {
+        return mDevId;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getBadFrameCount() {
+        return mBadFrames;
+    }
+
+    private void clearCodes() {
+        mCodeValid = 0;
+        mCodes = 0;
+        Arrays.fill(mUses, (byte) 0);
+    }
+
+    private void setInfo(SmartLockCodec.Command cmd) {
+        mDevId = cmd.phoneId;
+        mCodeDate = cmd.timestamp;
+        mUpdated = true;
+    }
+
+    // cs_home(): Fibonacci hashing.
+    private static int home(int code) {
+        return (code * 0x9E3779B1) >>> (32 - Integer.numberOfTrailingZeros(SLOTS));
+    }
+
+    // cs_put() with one use.
+    private boolean add(int code) {
+        int i = home(code);
+        while (mUses[i] != 0 && mKeys[i] != code) {
+            i = (i + 1) & (SLOTS - 1);
+        }
+        if (mUses[i] == 0) {
+            if (mCodes >= MAX_CODES) {
+                return false;
+            }
+            mKeys[i] = code;
+            mCodes++;
+        } else if ((mUses[i] & 0xFF) == MAX_USES) {
+            return false;
+        }
+        mUses[i]++;
+        mCodeValid++;
+        return true;
+    }
+
+    // cs_take(): a code used up leaves no tombstone, the codes after it shift back.
+    private boolean consume(int code) {
+        int i = home(code);
+        while (mUses[i] != 0 && mKeys[i] != code) {
+            i = (i + 1) & (SLOTS - 1);
+        }
+        if (mUses[i] == 0) {
+            return false;
+        }
+        mCodeValid--;
+        if (--mUses[i] != 0) {
+            return true;
+        }
+        mCodes--;
+        int j = i;
+        for (;;) {
+            j = (j + 1) & (SLOTS - 1);
+            if (mUses[j] == 0) {
+                break;
+            }
+            final int h = home(mKeys[j]);
+            if (((j - h) & (SLOTS - 1)) >= ((j - i) & (SLOTS - 1))) {
+                mKeys[i] = mKeys[j];
+                mUses[i] = mUses[j];
+                i = j;
+            }
+        }
+        mUses[i] = 0;
+        return true;
+    }
+
+    // smart_lock_compare_dev_id(): the first unlock attempt records the phone, later ones must
+    // match once a code was used.
+    private boolean compareDevId(long phoneId) {
+        if (mDevLock) {
+            return phoneId == mPinnedId;
+        }
+        mPinnedId = phoneId;
+        return true;
+    }
+
+    // smart_lock_compare_date(), field by field like the firmware.
+    private boolean compareDate(long now) {
+        final long code = mCodeDate;
+        if (field(now, 4) > field(code, 4) || field(now, 3) > field(code, 3)) {
+            return false;
+        }
+        if (field(now, 2) > field(code, 2)) {
+            return false;
+        }
+        if (field(now, 1) > field(code, 1)) {
+            return false;
+        }
+        return field(now, 0) <= field(code, 0) + 1;
+    }
+
+    // Two digit field of yyMMddHHmm, 0 being the minutes.
+    private static int field(long stamp, int index) {
+        for (int i = 0; i < index; i++) {
+            stamp /= 100;
+        }
+        return (int) (stamp % 100);
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives many {@link SimulatedLock}s from one process through the app's own protocol code:
+ * frames are built with {@link SmartLockCodec}, split by {@link FrameFragmenter}, written
+ * through a {@link GattOperationQueue} per lock, and the answers are decoded with
+ * {@link LockStatusTable} into a shared {@link LockEventLog}, like
+ * {@code BluetoothLeService.ParseSmartLockCode} does.  The fake radio is a thread pool that
+ * delivers every write and notification after a fixed link latency.
+ *
+ * <p>Each lock runs the same script until it has sent its share of commands: load ten codes,
+ * then unlock and lock again with one code after the other, and load new codes when the lock
+ * runs out of them.  {@link #run} reports throughput, latency percentiles from frame build to
+ * decoded answer, and the heap the fleet holds.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class SimulatedLockFleet {
+
+    private static final String CODES = "0123456789";
+    // Fleet clock, yyMMddHHmm 2410171530; the locks compare code dates against it.
+    private static final long CLOCK_MS;
+
+    static {
+        final Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(2024, Calendar.OCTOBER, 17, 15, 30);
+        CLOCK_MS = c.getTimeInMillis();
+    }
+
+    /** Outcome of one {@link #run}. */
+    public static final class Result {
+        public final int locks;
+        public final long commands;
+        public final long errors;
+        public final long elapsedNs;
+        public final long p50Us;
+        public final long p90Us;
+        public final long p99Us;
+        public final long maxUs;
+        public final long heapBytes;
+
+        Result(int locks, long commands, long errors, long elapsedNs, long[] latencies,
+               int count, long heapBytes) {
+            this.locks = locks;
+            this.commands = commands;
+            this.errors = errors;
+            this.elapsedNs = elapsedNs;
+            Arrays.sort(latencies, 0, count);
+            p50Us = percentile(latencies, count, 50);
+            p90Us = percentile(latencies, count, 90);
+            p99Us = percentile(latencies, count, 99);
+            maxUs = count == 0 ? 0 : latencies[count - 1] / 1000;
+            this.heapBytes = heapBytes;
+        }
+
+        public double getCommandsPerSecond() {
+            return elapsedNs == 0 ? 0 : commands * 1e9 / elapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            return locks + " locks, " + commands + " commands (" + errors + " errors) in "
+                    + elapsedNs / 1000000 + " ms, " + (long) getCommandsPerSecond()
+                    + " cmd/s, latency us p50 " + p50Us + " p90 " + p90Us + " p99 " + p99Us
+                    + " max " + maxUs + ", heap " + heapBytes / 1024 + " KiB";
+        }
+
+        private static long percentile(long[] sorted, int count, int p) {
+            if (count == 0) {
+                return 0;
+            }
+            return sorted[Math.min(count - 1, (int) ((long) count * p / 100))] / 1000;
+        }
+    }
+
+    private final ScheduledExecutorService mRadio;
+    private final long mLatencyUs;
+    private final List<Link> mLinks;
+    private final LockEventLog mEventLog = new LockEventLog(LockEventLog.MAX_CAPACITY);
+
+    private boolean mMeasureHeap = true;
+
+    // Per run.
+    private volatile int mBudget;
+    private volatile CountDownLatch mDone;
+    private long[] mLatencies;
+    private final AtomicInteger mLatencyCount = new AtomicInteger();
+    private final AtomicLong mCommands = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    /**
+     * @param locks Number of simulated locks.
+     * @param radioThreads Threads of the fake radio.
+     * @param linkLatencyUs Delay of every write and notification, 0 for none.
+     * @param mtu ATT MTU of every link.
+     */
+    public SimulatedLockFleet(int locks, int radioThreads, long linkLatencyUs, int mtu) {
+        mRadio = Executors.newScheduledThreadPool(radioThreads);
+        mLatencyUs = linkLatencyUs;
+        final SyntheticAdvertiser addresses = new SyntheticAdvertiser(locks, locks);
+        mLinks = new ArrayList<Link>(locks);
+        for (int i = 0; i < locks; i++) {
+            mLinks.add(new Link(new SimulatedLock(addresses.getAddress(i)), i, mtu));
+        }
+    }
+
+    public int size() {
+        return mLinks.size();
+    }
+
+    public SimulatedLock getLock(int index) {
+        return mLinks.get(index).mLock;
+    }
+
+    public LockEventLog getEventLog() {
+        return mEventLog;
+    }
+
+    /** Whether {@link #run} forces a GC before and after to measure the heap; on by default. */
+    public void setMeasureHeap(boolean measure) {
+        mMeasureHeap = measure;
+    }
+
+    /**
+     * Runs the script on every lock at once.
+     *
+     * @param commandsPerLock Commands each lock is sent before it stops.
+     * @param timeoutMs How long to wait for the fleet to finish.
+     * @return The measurements, or null on timeout.
+     */
+    public Result run(int commandsPerLock, long timeoutMs) throws InterruptedException {
+        mBudget = commandsPerLock;
+        mLatencies = new long[mLinks.size() * commandsPerLock];
+        mLatencyCount.set(0);
+        mCommands.set(0);
+        mErrors.set(0);
+        mDone = new CountDownLatch(mLinks.size());
+        final long heapBefore = mMeasureHeap ? usedHeap() : 0;
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < mLinks.size(); i++) {
+            mLinks.get(i).begin();
+        }
+        if (!mDone.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long heap = mMeasureHeap ? Math.max(0, usedHeap() - heapBefore) : 0;
+        return new Result(mLinks.size(), mCommands.get(), mErrors.get(), elapsed, mLatencies,
+                mLatencyCount.get(), heap);
+    }
+
+    public void shutdown() {
+        mRadio.shutdownNow();
+    }
+
+    private void radio(Runnable task) {
+        if (mLatencyUs > 0) {
+            mRadio.schedule(task, mLatencyUs, TimeUnit.MICROSECONDS);
+        } else {
+            mRadio.execute(task);
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** App side of one connection: queue, fragmenter and the command script. */
+    private class Link {
+        final SimulatedLock mLock;
+        final GattOperationQueue mQueue = new GattOperationQueue(mRadio);
+        final FrameFragmenter mFragmenter = new FrameFragmenter();
+        final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+        final Calendar mNow = Calendar.getInstance();
+        final List<byte[]> mPackets = new ArrayList<byte[]>(2);
+        final long mPhoneId;
+        int mSent;
+        int mNextCode;
+        long mCommandStart;
+
+        Link(SimulatedLock lock, int index, int mtu) {
+            mLock = lock;
+            mPhoneId = 0x1000000000000000L | index;
+            mFragmenter.setMtu(mtu);
+            mNow.setTimeInMillis(CLOCK_MS);
+        }
+
+        void begin() {
+            mSent = 0;
+            mNextCode = 0;
+            mLock.reset();
+            send(SmartLockCodec.SL_UPDATE_CODE_CMD, CODES);
+        }
+
+        void send(int cmd, CharSequence digits) {
+            if (mSent == mBudget) {
+                mDone.countDown();
+                return;
+            }
+            mSent++;
+            mCommandStart = System.nanoTime();
+            mFrame.clear();
+            SmartLockCodec.encodeCommand(mFrame, cmd, digits, mPhoneId, mNow);
+            mPackets.clear();
+            mFragmenter.split(Arrays.copyOf(mFrame.array(), mFrame.position()), mPackets);
+            for (int i = 0; i < mPackets.size(); i++) {
+                mQueue.submit(new Write(this, mPackets.get(i)));
+            }
+        }
+
+        // Runs on the radio, in the lock's place.  A write that timed out may still be
+        // delivered while the next one is, so the lock is only entered by one of them.
+        void onWrite(Write write) {
+            final int response;
+            synchronized (mLock) {
+                response = mLock.receive(write.mPacket);
+            }
+            mQueue.onOperationComplete(write.mPacket, GattOperationQueue.STATUS_SUCCESS);
+            if (response != SimulatedLock.NO_RESPONSE) {
+                radio(new Notification(this, response));
+            }
+        }
+
+        // The BluetoothLeService side of a notification.
+        void onNotification(int code) {
+            final LockStatusTable.Status status = LockStatusTable.decode(code);
+            mEventLog.append(CLOCK_MS, code, mLock.getAddress());
+            mLatencies[mLatencyCount.getAndIncrement()] = System.nanoTime() - mCommandStart;
+            mCommands.incrementAndGet();
+            if (status.getSeverity() == LockStatusTable.Severity.ERROR
+                    && code != SmartLockCodec.SL_CODE_RUN_OUT) {
+                mErrors.incrementAndGet();
+            }
+
+            switch (code) {
+                case SmartLockCodec.SL_UNLOCK_SUCCESS:
+                    send(SmartLockCodec.SL_LOCK_CMD, "");
+                    break;
+                case SmartLockCodec.SL_UPDATE_SUCCESS:
+                    mNextCode = 0;
+                    unlockWithNextCode();
+                    break;
+                case SmartLockCodec.SL_LOCK_SUCCESS:
+                    unlockWithNextCode();
+                    break;
+                default:
+                    send(SmartLockCodec.SL_UPDATE_CODE_CMD, CODES);
+                    break;
+            }
+        }
+
+        private void unlockWithNextCode() {
+            send(SmartLockCodec.SL_UNLOCK_CMD, CODES.subSequence(mNextCode, mNextCode + 1));
+            mNextCode = (mNextCode + 1) % CODES.length();
+        }
+    }
+
+    private class Write extends GattOperationQueue.Operation implements Runnable {
+        final Link mLink;
+        final byte[] mPacket;
+
+        Write(Link link, byte[] packet) {
+            super(packet, GattOperationQueue.DEFAULT_TIMEOUT_MS);
+            mLink = link;
+            mPacket = packet;
+        }
+
+        @Override
+        protected boolean start() {
+            radio(this);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            mLink.onWrite(this);
+        }
+    }
+
+    private static class Notification implements Runnable {
+        final Link mLink;
+        final int mCode;
+
+        Notification(Link link, int code) {
+            mLink = link;
+            mCode = code;
+        }
+
+        @Override
+        public void run() {
+            mLink.onNotification(mCode);
+        }
+    }
+}
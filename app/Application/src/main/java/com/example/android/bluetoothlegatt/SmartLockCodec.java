@@ -0,0 +1,398 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+
+/**
+ * Binary encoding of the SmartLock protocol.
+ *
+ * <p>Command frame layout:
+ * <pre>
+ * | 0x80 | cmd (1) | n (1) | n code digits | phone ID (8) | BCD yyMMddHHmm (5) |
+ * </pre>
+ * The opcode byte carries {@link #FRAME_BINARY} so the lock can tell it apart from the
+ * legacy ASCII frames, whose first byte is always an ASCII digit.  The phone ID is the
+ * 16 hex digit ANDROID_ID packed into 8 bytes, which the lock unpacks into the same 16
+ * nibbles it used to receive as text.  {@code SL_APP_READY_CMD} is sent as the opcode byte
+ * alone.
+ *
+ * <p>A code is the number its digits spell, so an unlock frame carries the digits of one code.
+ * {@link #SL_LOAD_CODES_CMD} and {@link #SL_ADD_CODES_CMD} carry up to
+ * {@link #MAX_BATCH_CODES} codes instead, {@link #CODE_BYTES} bytes each, big endian; a batch
+ * longer than that is a load followed by adds.
+ *
+ * <p>Responses are a single byte holding one of the {@code SL_*} result codes.  The lock also
+ * sends {@link #SL_TELEMETRY} notifications of two or more bytes, read by
+ * {@link LockTelemetry}.
+ *
+ * <p>All methods write into or read from caller supplied buffers and do not allocate.
+ * This class has no Android dependencies.
+ */
+public final class SmartLockCodec {
+
+    // Commands, see smartlock.h.
+    public static final int SL_UNLOCK_CMD = 0x0;
+    public static final int SL_LOCK_CMD = 0x1;
+    public static final int SL_UPDATE_CODE_CMD = 0x2;
+    public static final int SL_APP_READY_CMD = 0x3;
+    public static final int SL_RESET_CMD = 0x4;
+    public static final int SL_LOAD_CODES_CMD = 0x5;
+    public static final int SL_ADD_CODES_CMD = 0x6;
+
+    // Responses.
+    public static final int SL_LOCK_SUCCESS = 0x10;
+    public static final int SL_UNLOCK_SUCCESS = 0x11;
+    public static final int SL_UPDATE_SUCCESS = 0x12;
+    public static final int SL_RESET_SUCCESS = 0x13;
+    public static final int SL_DEV_NEED_UPDATE = 0x14;
+    public static final int SL_CODE_RUN_OUT = 0x15;
+    public static final int SL_UNLOCK_FAIL = 0x16;
+    public static final int SL_LOCK_FAIL = 0x17;
+    public static final int SL_CODE_OUT_OF_DATE = 0x18;
+    public static final int SL_CODE_INVALID = 0x19;
+    public static final int SL_DEV_ID_FAIL = 0x1A;
+
+    // Lock states.
+    public static final int SL_LOCK = 0xD0;
+    public static final int SL_UNLOCK = 0xD1;
+    public static final int SL_UNUSABLE = 0xD2;
+
+    // Telemetry notification, see LockTelemetry.
+    public static final int SL_TELEMETRY = 0x20;
+    public static final int TELEMETRY_VERSION = 1;
+    public static final int TLV_LOCK_STATUS = 0x01;
+    public static final int TLV_LATCH = 0x02;
+    public static final int TLV_ALARM_CNT = 0x03;
+    public static final int TLV_CODES_LEFT = 0x04;
+    public static final int TLV_BATTERY_MV = 0x05;
+
+    public static final int FRAME_BINARY = 0x80;
+    public static final int MAX_CODE_DIGITS = 10;
+    public static final int PHONE_ID_LEN = 8;
+    public static final int TIMESTAMP_LEN = 5;
+    public static final int HEADER_LEN = 2;
+    public static final int MAX_FRAME_LEN = HEADER_LEN + MAX_CODE_DIGITS + PHONE_ID_LEN
+            + TIMESTAMP_LEN;
+    /** Digits of the codes the app makes; the lock takes codes up to {@link #MAX_CODE}. */
+    public static final int CODE_DIGITS = 6;
+    public static final int MAX_CODE = 0xFFFFFF;
+    public static final int CODE_BYTES = 3;
+    public static final int MAX_BATCH_CODES = 0xFF / CODE_BYTES;
+    public static final int MAX_BATCH_FRAME_LEN = HEADER_LEN + MAX_BATCH_CODES * CODE_BYTES
+            + PHONE_ID_LEN + TIMESTAMP_LEN;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SmartLockCodec() {
+    }
+
+    /** Decoded form of a command frame, reused between calls to {@link #decodeCommand}. */
+    public static final class Command {
+        public int opcode;
+        /** Bytes in {@link #codes}: digits, or {@link #CODE_BYTES} per code of a batch. */
+        public int codeCount;
+        public final byte[] codes = new byte[MAX_BATCH_CODES * CODE_BYTES];
+        public long phoneId;
+        /** yyMMddHHmm as a decimal number, e.g. 2410171530. */
+        public long timestamp;
+
+        /** Codes of a load or add command. */
+        public int batchSize() {
+            return codeCount / CODE_BYTES;
+        }
+
+        public int batchCode(int index) {
+            return getCode(codes, index * CODE_BYTES);
+        }
+    }
+
+    /**
+     * Maps an ANDROID_ID to the 8-byte phone ID.  The usual 16 hex digit ID is packed
+     * losslessly; anything else is hashed with 64-bit FNV-1a.
+     */
+    public static long phoneId(CharSequence androidId) {
+        final int len = androidId.length();
+        if (len == 16) {
+            long id = 0;
+            int i = 0;
+            for (; i < len; i++) {
+                final int nibble = Character.digit(androidId.charAt(i), 16);
+                if (nibble < 0) {
+                    break;
+                }
+                id = (id << 4) | nibble;
+            }
+            if (i == len) {
+                return id;
+            }
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < len; i++) {
+            hash ^= androidId.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    public static int encodeUnlock(ByteBuffer dst, CharSequence code, long phoneId,
+                                   Calendar now) {
+        return encodeCommand(dst, SL_UNLOCK_CMD, code, phoneId, now);
+    }
+
+    public static int encodeLock(ByteBuffer dst, CharSequence code, long phoneId,
+                                 Calendar now) {
+        return encodeCommand(dst, SL_LOCK_CMD, code, phoneId, now);
+    }
+
+    public static int encodeUpdateCodes(ByteBuffer dst, CharSequence codes, long phoneId,
+                                        Calendar now) {
+        return encodeCommand(dst, SL_UPDATE_CODE_CMD, codes, phoneId, now);
+    }
+
+    public static int encodeReset(ByteBuffer dst, long phoneId, Calendar now) {
+        return encodeCommand(dst, SL_RESET_CMD, "", phoneId, now);
+    }
+
+    public static int encodeAppReady(ByteBuffer dst) {
+        dst.put((byte) (FRAME_BINARY | SL_APP_READY_CMD));
+        return 1;
+    }
+
+    /**
+     * Writes a full command frame at the buffer position.
+     *
+     * @param digits Access code digits, at most {@link #MAX_CODE_DIGITS}.
+     *
+     * @return The number of bytes written.
+     */
+    public static int encodeCommand(ByteBuffer dst, int opcode, CharSequence digits,
+                                    long phoneId, Calendar now) {
+        final int start = putCommand(dst, opcode, digits, phoneId);
+        putTimestamp(dst, now);
+        return dst.position() - start;
+    }
+
+    /**
+     * Writes a full command frame stamped with the clock's current minute.  Allocates
+     * nothing.
+     *
+     * @return The number of bytes written.
+     */
+    public static int encodeCommand(ByteBuffer dst, int opcode, CharSequence digits,
+                                    long phoneId, LockClock clock) {
+        final int start = putCommand(dst, opcode, digits, phoneId);
+        clock.writeTimestamp(dst);
+        return dst.position() - start;
+    }
+
+    // Everything but the timestamp; returns the start position.
+    private static int putCommand(ByteBuffer dst, int opcode, CharSequence digits,
+                                  long phoneId) {
+        final int n = digits.length();
+        if (n > MAX_CODE_DIGITS) {
+            throw new IllegalArgumentException("Too many code digits: " + n);
+        }
+        final int start = dst.position();
+        dst.put((byte) (FRAME_BINARY | opcode));
+        dst.put((byte) n);
+        for (int i = 0; i < n; i++) {
+            final int d = digits.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                dst.position(start);
+                throw new IllegalArgumentException("Not a digit: " + digits.charAt(i));
+            }
+            dst.put((byte) d);
+        }
+        dst.putLong(phoneId);
+        return start;
+    }
+
+    /**
+     * Writes a load or add frame stamped with the clock's current minute.  Allocates nothing.
+     *
+     * @param opcode {@link #SL_LOAD_CODES_CMD} or {@link #SL_ADD_CODES_CMD}.
+     * @param count At most {@link #MAX_BATCH_CODES}.
+     *
+     * @return The number of bytes written.
+     */
+    public static int encodeCodeBatch(ByteBuffer dst, int opcode, int[] codes, int offset,
+                                      int count, long phoneId, LockClock clock) {
+        final int start = putCodeBatch(dst, opcode, codes, offset, count, phoneId);
+        clock.writeTimestamp(dst);
+        return dst.position() - start;
+    }
+
+    public static int encodeCodeBatch(ByteBuffer dst, int opcode, int[] codes, int offset,
+                                      int count, long phoneId, Calendar now) {
+        final int start = putCodeBatch(dst, opcode, codes, offset, count, phoneId);
+        putTimestamp(dst, now);
+        return dst.position() - start;
+    }
+
+    // Everything but the timestamp; returns the start position.
+    private static int putCodeBatch(ByteBuffer dst, int opcode, int[] codes, int offset,
+                                    int count, long phoneId) {
+        if (count < 1 || count > MAX_BATCH_CODES) {
+            throw new IllegalArgumentException("Codes per frame: " + count);
+        }
+        for (int i = offset; i < offset + count; i++) {
+            if (codes[i] < 0 || codes[i] > MAX_CODE) {
+                throw new IllegalArgumentException("Not a code: " + codes[i]);
+            }
+        }
+        final int start = dst.position();
+        dst.put((byte) (FRAME_BINARY | opcode));
+        dst.put((byte) (count * CODE_BYTES));
+        for (int i = offset; i < offset + count; i++) {
+            dst.put((byte) (codes[i] >> 16));
+            dst.put((byte) (codes[i] >> 8));
+            dst.put((byte) codes[i]);
+        }
+        dst.putLong(phoneId);
+        return start;
+    }
+
+    /** Frames a batch of {@code count} codes takes: one load, then adds. */
+    public static int batchFrames(int count) {
+        return Math.max(1, (count + MAX_BATCH_CODES - 1) / MAX_BATCH_CODES);
+    }
+
+    /** The {@link #CODE_BYTES} byte code at {@code offset}. */
+    public static int getCode(byte[] frame, int offset) {
+        return (frame[offset] & 0xFF) << 16 | (frame[offset + 1] & 0xFF) << 8
+                | (frame[offset + 2] & 0xFF);
+    }
+
+    /**
+     * The code {@code n} digits spell, the way the lock reads an unlock.
+     *
+     * @return -1 if they are not a code.
+     */
+    public static int codeOf(byte[] digits, int offset, int n) {
+        int code = 0;
+        for (int i = offset; i < offset + n; i++) {
+            if (digits[i] < 0 || digits[i] > 9) {
+                return -1;
+            }
+            code = code * 10 + digits[i];
+            if (code > MAX_CODE) {
+                return -1;
+            }
+        }
+        return n > 0 ? code : -1;
+    }
+
+    /** Appends the digits of {@code code}, zero padded to {@link #CODE_DIGITS}. */
+    public static StringBuilder appendCode(StringBuilder sb, int code) {
+        final int start = sb.length();
+        sb.append(code);
+        while (sb.length() - start < CODE_DIGITS) {
+            sb.insert(start, '0');
+        }
+        return sb;
+    }
+
+    /** Writes {@code now} as five packed BCD bytes, yy MM dd HH mm. */
+    public static void putTimestamp(ByteBuffer dst, Calendar now) {
+        dst.put(bcd(now.get(Calendar.YEAR) % 100));
+        dst.put(bcd(now.get(Calendar.MONTH) + 1));
+        dst.put(bcd(now.get(Calendar.DAY_OF_MONTH)));
+        dst.put(bcd(now.get(Calendar.HOUR_OF_DAY)));
+        dst.put(bcd(now.get(Calendar.MINUTE)));
+    }
+
+    /**
+     * Reads one command frame from the buffer position.
+     *
+     * @return false if the frame is not a well formed binary frame.
+     */
+    public static boolean decodeCommand(ByteBuffer src, Command out) {
+        if (!src.hasRemaining()) {
+            return false;
+        }
+        final int op = src.get() & 0xFF;
+        if ((op & FRAME_BINARY) == 0) {
+            return false;
+        }
+        out.opcode = op & ~FRAME_BINARY;
+        out.codeCount = 0;
+        out.phoneId = 0;
+        out.timestamp = 0;
+        if (out.opcode == SL_APP_READY_CMD && !src.hasRemaining()) {
+            return true;
+        }
+        if (!src.hasRemaining()) {
+            return false;
+        }
+        final int n = src.get() & 0xFF;
+        final boolean batch = out.opcode == SL_LOAD_CODES_CMD || out.opcode == SL_ADD_CODES_CMD;
+        if (batch ? n == 0 || n % CODE_BYTES != 0 : n > MAX_CODE_DIGITS) {
+            return false;
+        }
+        if (src.remaining() < n + PHONE_ID_LEN + TIMESTAMP_LEN) {
+            return false;
+        }
+        src.get(out.codes, 0, n);
+        out.codeCount = n;
+        out.phoneId = src.getLong();
+        long ts = 0;
+        for (int i = 0; i < TIMESTAMP_LEN; i++) {
+            final int b = src.get() & 0xFF;
+            ts = ts * 100 + (b >> 4) * 10 + (b & 0x0F);
+        }
+        out.timestamp = ts;
+        return true;
+    }
+
+    /**
+     * Reads a response byte.
+     *
+     * @return The {@code SL_*} code, or -1 if the buffer is empty.
+     */
+    public static int decodeResponse(ByteBuffer src) {
+        return src.hasRemaining() ? src.get() & 0xFF : -1;
+    }
+
+    /**
+     * Writes a telemetry notification the way {@code smart_lock_build_telemetry()} does.
+     *
+     * @return The number of bytes written.
+     */
+    public static int encodeTelemetry(ByteBuffer dst, int lockStatus, int latch, int alarms,
+                                      int codesLeft) {
+        final int start = dst.position();
+        dst.put((byte) SL_TELEMETRY);
+        dst.put((byte) TELEMETRY_VERSION);
+        putItem(dst, TLV_LOCK_STATUS, lockStatus);
+        putItem(dst, TLV_LATCH, latch);
+        putItem(dst, TLV_ALARM_CNT, Math.min(alarms, 0xFF));
+        putItem(dst, TLV_CODES_LEFT, Math.min(codesLeft, 0xFFFF));
+        return dst.position() - start;
+    }
+
+    /** Whether a notification is a telemetry one rather than a response byte. */
+    public static boolean isTelemetry(byte[] frame, int length) {
+        return length >= 2 && (frame[0] & 0xFF) == SL_TELEMETRY;
+    }
+
+    public static boolean isLockState(int code) {
+        return code == SL_LOCK || code == SL_UNLOCK || code == SL_UNUSABLE;
+    }
+
+    // One byte, or two for larger values, as smart_lock_put_tlv() does.
+    private static void putItem(ByteBuffer dst, int type, int value) {
+        dst.put((byte) type);
+        if (value > 0xFF) {
+            dst.put((byte) 2);
+            dst.put((byte) (value >> 8));
+        } else {
+            dst.put((byte) 1);
+        }
+        dst.put((byte) value);
+    }
+
+    private static byte bcd(int value) {
+        return (byte) (((value / 10) << 4) | (value % 10));
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * A fleet of fake locks that feeds advertisements into a {@link LockScanIndex}, to load the
+ * scanner and the device list with more locks than fit in a room.  Each device keeps a random
+ * walk RSSI between -100 and -30 dBm.
+ *
+ * <p>This class has no Android dependencies.
+ */
+public class SyntheticAdvertiser {
+
+    private static final int MIN_RSSI = -100;
+    private static final int MAX_RSSI = -30;
+    // Random static addresses have the two top bits set.
+    private static final long STATIC_RANDOM = 0xC00000000000L;
+    private static final long ADDRESS_MASK = 0x3FFFFFFFFFFFL;
+
+    private final Random mRandom;
+    private final long[] mMacs;
+    private final String[] mAddresses;
+    private final String[] mNames;
+    private final int[] mRssi;
+
+    public SyntheticAdvertiser(int devices, long seed) {
+        mRandom = new Random(seed);
+        mMacs = new long[devices];
+        mAddresses = new String[devices];
+        mNames = new String[devices];
+        mRssi = new int[devices];
+        final HashSet<Long> used = new HashSet<Long>();
+        for (int i = 0; i < devices; i++) {
+            long mac;
+            do {
+                mac = STATIC_RANDOM | (mRandom.nextLong() & ADDRESS_MASK);
+            } while (!used.add(mac));
+            mMacs[i] = mac;
+            mAddresses[i] = MacAddress.format(mac);
+            mNames[i] = "SMARTLOCK-" + i;
+            mRssi[i] = MIN_RSSI + mRandom.nextInt(MAX_RSSI - MIN_RSSI + 1);
+        }
+    }
+
+    public int getDeviceCount() {
+        return mMacs.length;
+    }
+
+    public String getAddress(int device) {
+        return mAddresses[device];
+    }
+
+    /** Feeds {@code count} advertisements from randomly picked devices into {@code index}. */
+    public void emit(LockScanIndex index, int count, long nowMs) {
+        for (int i = 0; i < count; i++) {
+            final int device = mRandom.nextInt(mMacs.length);
+            int rssi = mRssi[device] + mRandom.nextInt(7) - 3;
+            rssi = Math.max(MIN_RSSI, Math.min(MAX_RSSI, rssi));
+            mRssi[device] = rssi;
+            index.update(mMacs[device], mAddresses[device], mNames[device], rssi, nowMs);
+        }
+    }
+}
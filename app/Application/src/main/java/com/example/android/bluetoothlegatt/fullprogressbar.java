@@ -41,6 +41,13 @@ public class fullprogressbar {
         return dialog;
     }
 
+    public void setTitle(CharSequence title) {
+        if (dialog != null) {
+            final TextView tv = (TextView) dialog.findViewById(R.id.id_title);
+            tv.setText(title);
+        }
+    }
+
     public Dialog getDialog() {
         return dialog;
     }
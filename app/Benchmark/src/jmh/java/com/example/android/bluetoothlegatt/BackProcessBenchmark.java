@@ -0,0 +1,136 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What idle locks cost {@link BackProcess}: the wakeups of its scheduler thread and the CPU
+ * time it spends, over one second of idle links.  Poll and keep-alive intervals are scaled
+ * down 100 times, so a second here stands for 100 s of a real idle link.
+ *
+ * <p>With {@code answers} the fake lock answers each {@code SL_APP_READY_CMD} with a
+ * notification after one 7.5 ms connection interval, like the firmware; without, it stays
+ * silent, so every keep-alive goes out.  The {@code wakeups}, {@code cpuMicros} and
+ * {@code writes} counters are per second of idle time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class BackProcessBenchmark {
+
+    private static final long POLL_INTERVAL_MS = BackProcess.DEFAULT_POLL_INTERVAL_MS / 100;
+    private static final long KEEP_ALIVE_MS = BackProcess.DEFAULT_KEEP_ALIVE_MS / 100;
+    private static final long CONNECTION_INTERVAL_US = 7500;
+    private static final long IDLE_MS = 1000;
+
+    @Param({"1", "8"})
+    public int locks;
+
+    @Param({"false", "true"})
+    public boolean answers;
+
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final AtomicLong mWrites = new AtomicLong();
+    private ScheduledExecutorService mRadio;
+    private BackProcess mBackProcess;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long wakeups;
+        public long cpuMicros;
+        public long writes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRadio = Executors.newSingleThreadScheduledExecutor();
+        mBackProcess = new BackProcess(new FakeHost(), new BackProcess.CpuClock() {
+            @Override
+            public long threadCpuTimeNanos() {
+                return mThreads.getCurrentThreadCpuTime();
+            }
+        }, POLL_INTERVAL_MS, KEEP_ALIVE_MS);
+        for (int i = 0; i < locks; i++) {
+            mBackProcess.watch(address(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mBackProcess.stop();
+        mRadio.shutdownNow();
+        System.out.println();
+        System.out.println(mBackProcess);
+    }
+
+    @Benchmark
+    public long idle(Counters counters) throws InterruptedException {
+        final long wakeups = mBackProcess.getWakeups();
+        final long cpu = mBackProcess.getCpuTimeNanos();
+        final long writes = mWrites.get();
+        Thread.sleep(IDLE_MS);
+        counters.wakeups += mBackProcess.getWakeups() - wakeups;
+        counters.cpuMicros += TimeUnit.NANOSECONDS.toMicros(mBackProcess.getCpuTimeNanos() - cpu);
+        counters.writes += mWrites.get() - writes;
+        return counters.wakeups;
+    }
+
+    private static String address(int i) {
+        return String.format("C0:FF:EE:00:00:%02X", i);
+    }
+
+    // Every write goes out at once; the lock may answer it a connection interval later.
+    private class FakeHost implements BackProcess.Host {
+        @Override
+        public Future<Integer> write(final String address, byte[] frame) {
+            mWrites.incrementAndGet();
+            if (answers) {
+                mRadio.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBackProcess.onNotification(address);
+                    }
+                }, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+            }
+            final FutureTask<Integer> written = new FutureTask<Integer>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, GattOperationQueue.STATUS_SUCCESS);
+            written.run();
+            return written;
+        }
+
+        @Override
+        public void refreshCodes(String address) {
+        }
+
+        @Override
+        public void onTaskFailed(RuntimeException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CodeProvisioner} batch against {@link SimulatedLock}s.  Connecting takes
+ * {@code connectMs} and every packet and answer one connection interval, so with latency the
+ * score is the locks provisioned per minute on a real fleet; without it, the app side cost.
+ * One op is one lock provisioned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class CodeProvisionerBenchmark {
+
+    private static final int LOCKS = 100;
+    private static final long CONNECTION_INTERVAL_US = 7500;
+
+    @Param({"1", "3", "7"})
+    public int parallel;
+
+    @Param({"0", "100"})
+    public long connectMs;
+
+    private final List<String> mAddresses = new ArrayList<String>(LOCKS);
+    private final Map<String, SimulatedLock> mLocks = new HashMap<String, SimulatedLock>();
+    private final LockClock mClock = new LockClock();
+    private ScheduledExecutorService mRadio;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(LOCKS, LOCKS);
+        for (int i = 0; i < LOCKS; i++) {
+            final String address = advertiser.getAddress(i);
+            mAddresses.add(address);
+            mLocks.put(address, new SimulatedLock(address));
+        }
+        mRadio = Executors.newScheduledThreadPool(2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRadio.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCKS)
+    public CodeProvisioner.Report provision() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final CodeProvisioner.Report[] report = new CodeProvisioner.Report[1];
+        final CodeProvisioner.Listener listener = new CodeProvisioner.Listener() {
+            @Override
+            public void onLockDone(CodeProvisioner.Result result, int count, int total) {
+            }
+
+            @Override
+            public void onFinished(CodeProvisioner.Report r) {
+                report[0] = r;
+                done.countDown();
+            }
+        };
+        final FleetHost host = new FleetHost();
+        final CodeProvisioner provisioner = new CodeProvisioner(host, listener, DIRECT,
+                0x1234567890abcdefL, mClock, parallel);
+        host.mProvisioner = provisioner;
+        provisioner.start(mAddresses);
+        if (!done.await(5, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Batch did not finish");
+        }
+        if (report[0].provisioned != LOCKS) {
+            throw new IllegalStateException(report[0].toString());
+        }
+        return report[0];
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /** Connections to the simulated locks over the fake radio. */
+    private class FleetHost implements CodeProvisioner.Host {
+        volatile CodeProvisioner mProvisioner;
+        final Map<String, Boolean> mConnected = new HashMap<String, Boolean>();
+        final FrameFragmenter mFragmenter = new FrameFragmenter();
+
+        @Override
+        public synchronized boolean isReady(String address) {
+            return mConnected.containsKey(address);
+        }
+
+        @Override
+        public boolean connect(final String address) {
+            mRadio.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FleetHost.this) {
+                        mConnected.put(address, Boolean.TRUE);
+                    }
+                    mProvisioner.onReady(address);
+                }
+            }, TimeUnit.MILLISECONDS.toMicros(connectMs), TimeUnit.MICROSECONDS);
+            return true;
+        }
+
+        @Override
+        public Future<Integer> write(final String address, byte[] frame) {
+            final List<byte[]> packets = new ArrayList<byte[]>(2);
+            synchronized (this) {
+                if (!mConnected.containsKey(address)) {
+                    return null;
+                }
+                mFragmenter.split(frame, packets);
+            }
+            final SimulatedLock lock = mLocks.get(address);
+            final FutureTask<Integer> written = new FutureTask<Integer>(new Runnable() {
+                @Override
+                public void run() {
+                    int answer = SimulatedLock.NO_RESPONSE;
+                    synchronized (lock) {
+                        for (int i = 0; i < packets.size(); i++) {
+                            answer = lock.receive(packets.get(i));
+                        }
+                    }
+                    if (answer != SimulatedLock.NO_RESPONSE) {
+                        mProvisioner.onAnswer(address, answer);
+                    }
+                }
+            }, GattOperationQueue.STATUS_SUCCESS);
+            mRadio.schedule(written, CONNECTION_INTERVAL_US * (packets.size() + 1),
+                    TimeUnit.MICROSECONDS);
+            return written;
+        }
+
+        @Override
+        public synchronized void release(String address) {
+            mConnected.remove(address);
+        }
+    }
+}
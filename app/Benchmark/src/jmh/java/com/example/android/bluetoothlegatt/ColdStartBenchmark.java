@@ -0,0 +1,200 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start to unlock, before and after {@link KnownLockRegistry}: the time from launch until
+ * the lock has answered an unlock.  The lock advertises every {@code ADV_INTERVAL_US} plus a
+ * random delay of up to {@code ADV_DELAY_MAX_US}, as the firmware does, with a random phase
+ * at launch.  Connecting takes an advertisement: the link is up {@code LINK_SETUP_MS} after the
+ * phone hears one while it is initiating.
+ *
+ * <p>{@code scanThenConnect} is the old launch: scan until the lock shows up in the
+ * {@link LockScanIndex}, then connect, which waits for its next advertisement.
+ * {@code knownLock} is the new one: load the registry, take the last used lock and connect at
+ * once, so the first advertisement already brings the link up.  The user's tap in the list
+ * and scan batching ({@link LockScanner#REPORT_DELAY_MS}) are left out, both of which only add
+ * to the old launch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class ColdStartBenchmark {
+
+    // APP_ADV_INTERVAL in ble_m.c, 300 units of 0.625 ms.
+    private static final long ADV_INTERVAL_US = 187500;
+    // advDelay, added to every advertising event by the controller.
+    private static final int ADV_DELAY_MAX_US = 10000;
+    private static final long LINK_SETUP_MS = 30;
+    private static final long CONNECTION_INTERVAL_US = 7500;
+    private static final int KNOWN_LOCKS = 20;
+    private static final int UPDATES_PER_LOCK = 5;
+
+    private final Random mRandom = new Random(1);
+    private final List<byte[]> mUnlock = new ArrayList<byte[]>(FrameFragmenter.MAX_CHUNKS);
+    private File mFile;
+    private ScheduledExecutorService mRadio;
+    private GattOperationQueue mQueue;
+    private SimulatedLock mLock;
+    private String mAddress;
+    private long mMac;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("known_locks", ".bin");
+        mFile.delete();
+        // A phone that has used a few locks for a while; the last one recorded is opened.
+        final KnownLockRegistry registry = new KnownLockRegistry(mFile);
+        final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(KNOWN_LOCKS, 1);
+        long now = 0;
+        for (int round = 0; round < UPDATES_PER_LOCK; round++) {
+            for (int i = 0; i < KNOWN_LOCKS; i++) {
+                registry.record(advertiser.getAddress(i), "SMARTLOCK-" + i, -60,
+                        KnownLockRegistry.STATE_UNKNOWN, ++now);
+            }
+        }
+        registry.close();
+        mAddress = advertiser.getAddress(KNOWN_LOCKS - 1);
+        mMac = MacAddress.parse(mAddress);
+
+        mRadio = Executors.newSingleThreadScheduledExecutor();
+        mQueue = new GattOperationQueue(mRadio);
+        mLock = new SimulatedLock(mAddress);
+        final ByteBuffer frame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+        SmartLockCodec.encodeCommand(frame, SmartLockCodec.SL_UNLOCK_CMD, "104729",
+                SmartLockCodec.phoneId("9774d56d682e549c"), Calendar.getInstance());
+        new FrameFragmenter().split(Arrays.copyOf(frame.array(), frame.position()), mUnlock);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRadio.shutdownNow();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int scanThenConnect() throws InterruptedException {
+        final Launch launch = new Launch(new LockScanIndex());
+        launch.start();
+        return launch.await();
+    }
+
+    @Benchmark
+    public int knownLock() throws IOException, InterruptedException {
+        final KnownLockRegistry registry = new KnownLockRegistry(mFile);
+        registry.load();
+        final KnownLockRegistry.KnownLock last = registry.getLastUsed();
+        if (last == null || !mAddress.equals(last.getAddress())) {
+            throw new IllegalStateException("Last used lock not found");
+        }
+        final Launch launch = new Launch(null);
+        launch.start();
+        return launch.await();
+    }
+
+    // One launch: the lock's advertising events on the radio, and what the phone does with
+    // them.  With an index the phone scans first, without one it is initiating from the start.
+    private final class Launch implements Runnable {
+        final LockScanIndex mIndex;
+        final CountDownLatch mAnswered = new CountDownLatch(1);
+        volatile boolean mInitiating;
+        volatile int mAdvertisements;
+
+        Launch(LockScanIndex index) {
+            mIndex = index;
+            mInitiating = index == null;
+        }
+
+        void start() {
+            mRadio.schedule(this, mRandom.nextInt((int) ADV_INTERVAL_US + ADV_DELAY_MAX_US),
+                    TimeUnit.MICROSECONDS);
+        }
+
+        int await() throws InterruptedException {
+            if (!mAnswered.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Unlock not answered");
+            }
+            return mAdvertisements;
+        }
+
+        // An advertising event.
+        @Override
+        public void run() {
+            mAdvertisements++;
+            if (mInitiating) {
+                mRadio.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        unlock();
+                    }
+                }, LINK_SETUP_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            mIndex.update(mMac, mAddress, "SMARTLOCK", -60, mAdvertisements);
+            if (mIndex.indexOf(mMac) >= 0) {
+                // In the list; the old launch connects now.
+                mInitiating = true;
+            }
+            mRadio.schedule(this, ADV_INTERVAL_US + mRandom.nextInt(ADV_DELAY_MAX_US),
+                    TimeUnit.MICROSECONDS);
+        }
+
+        void unlock() {
+            for (int i = 0; i < mUnlock.size(); i++) {
+                final byte[] packet = mUnlock.get(i);
+                mQueue.submit(new GattOperationQueue.Operation(packet,
+                        GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+                    @Override
+                    protected boolean start() {
+                        mRadio.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                onWrite(packet);
+                            }
+                        }, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+                        return true;
+                    }
+                });
+            }
+        }
+
+        // On the radio, in the lock's place; the answer is notified one interval later.
+        void onWrite(byte[] packet) {
+            final int response = mLock.receive(packet);
+            mQueue.onOperationComplete(packet, GattOperationQueue.STATUS_SUCCESS);
+            if (response != SimulatedLock.NO_RESPONSE) {
+                mRadio.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mAnswered.countDown();
+                    }
+                }, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+}
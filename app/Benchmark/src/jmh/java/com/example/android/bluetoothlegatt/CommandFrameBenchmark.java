@@ -0,0 +1,82 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command frames as DeviceControlActivity builds them in onClickWrite, OnClickSendLock and
+ * onClickUpdateCode: encode into the reused buffer, copy for the GATT queue, split at the MTU.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CommandFrameBenchmark {
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+    private final Calendar mNow = Calendar.getInstance();
+    private final FrameFragmenter mFragmenter = new FrameFragmenter();
+    private final List<byte[]> mPackets = new ArrayList<byte[]>(2);
+    private final SmartLockCodec.Command mCommand = new SmartLockCodec.Command();
+    private final long mPhoneId = SmartLockCodec.phoneId("9774d56d682e549c");
+    private ByteBuffer mEncoded;
+
+    @Setup
+    public void setUp() {
+        mFragmenter.setMtu(mtu);
+        mFrame.clear();
+        SmartLockCodec.encodeUpdateCodes(mFrame, "0123456789", mPhoneId, mNow);
+        mEncoded = ByteBuffer.wrap(Arrays.copyOf(mFrame.array(), mFrame.position()));
+    }
+
+    @Benchmark
+    public List<byte[]> unlock() {
+        return build(SmartLockCodec.SL_UNLOCK_CMD, "7");
+    }
+
+    @Benchmark
+    public List<byte[]> lock() {
+        return build(SmartLockCodec.SL_LOCK_CMD, "");
+    }
+
+    @Benchmark
+    public List<byte[]> updateCodes() {
+        return build(SmartLockCodec.SL_UPDATE_CODE_CMD, "0123456789");
+    }
+
+    @Benchmark
+    public long phoneId() {
+        return SmartLockCodec.phoneId("9774d56d682e549c");
+    }
+
+    /** The lock's side: decode a full update frame. */
+    @Benchmark
+    public SmartLockCodec.Command decode() {
+        mEncoded.rewind();
+        SmartLockCodec.decodeCommand(mEncoded, mCommand);
+        return mCommand;
+    }
+
+    private List<byte[]> build(int cmd, CharSequence digits) {
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, cmd, digits, mPhoneId, mNow);
+        mPackets.clear();
+        mFragmenter.split(Arrays.copyOf(mFrame.array(), mFrame.position()), mPackets);
+        return mPackets;
+    }
+}
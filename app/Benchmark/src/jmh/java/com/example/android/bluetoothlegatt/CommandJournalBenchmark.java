@@ -0,0 +1,153 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CommandJournal} costs.  {@code append} journals a command and its answer, either
+ * batched, with the background executor doing one fsync per batch, or with an fsync after
+ * each command.  {@code recover} replays a journal of {@link #RECORDS} records, as written
+ * without compaction and as compacted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandJournalBenchmark {
+
+    static final int RECORDS = 100000;
+    private static final int LOCKS = 100;
+
+    @State(Scope.Thread)
+    public static class Append {
+        @Param({"batched", "each"})
+        public String sync;
+
+        ExecutorService mExecutor;
+        File mFile;
+        CommandJournal mJournal;
+        final String[] mAddresses = new String[LOCKS];
+        int mNext;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mExecutor = Executors.newSingleThreadExecutor();
+            mFile = File.createTempFile("journal", ".bin");
+            mFile.delete();
+            mJournal = new CommandJournal(mFile, mExecutor);
+            mJournal.load();
+            final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(LOCKS, LOCKS);
+            for (int i = 0; i < LOCKS; i++) {
+                mAddresses[i] = advertiser.getAddress(i);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            mJournal.close();
+            mExecutor.shutdown();
+            System.out.println();
+            System.out.println("Journal: " + mJournal);
+            mFile.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Recover {
+        @Param({"false", "true"})
+        public boolean compacted;
+
+        File mFile;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mFile = File.createTempFile("journal", ".bin");
+            mFile.delete();
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final CommandJournal journal = new CommandJournal(mFile, executor,
+                    compacted ? CommandJournal.DEFAULT_COMPACT_MIN_RECORDS : Integer.MAX_VALUE);
+            journal.load();
+            fill(journal);
+            journal.close();
+            executor.shutdown();
+            System.out.println();
+            System.out.println("Journal: " + journal + ", " + mFile.length() + " bytes");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mFile.delete();
+        }
+    }
+
+    @Benchmark
+    public boolean append(Append s) throws IOException {
+        final String address = s.mAddresses[s.mNext++ % LOCKS];
+        final long now = System.currentTimeMillis();
+        s.mJournal.issued(address, SmartLockCodec.SL_LOCK_CMD, now);
+        final boolean answered =
+                s.mJournal.answered(address, SmartLockCodec.SL_LOCK_SUCCESS, now) != null;
+        if ("each".equals(s.sync)) {
+            s.mJournal.sync();
+        }
+        return answered;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int recover(Recover s) throws IOException {
+        final CommandJournal journal = new CommandJournal(s.mFile, DISCARD, Integer.MAX_VALUE);
+        journal.load();
+        return journal.getPendingCount();
+    }
+
+    // A busy fleet: commands and their answers, every 50th command lost with its link and
+    // settled after the reconnect, and at the end one unanswered command per lock.
+    static void fill(CommandJournal journal) throws IOException {
+        final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(LOCKS, LOCKS);
+        long now = 1700000000000L;
+        // Counted here, as compaction keeps the journal's own count down.
+        int records = 0;
+        for (int i = 0; records < RECORDS - LOCKS; i++) {
+            final String address = advertiser.getAddress(i % LOCKS);
+            final boolean lock = (i / LOCKS) % 2 == 0;
+            journal.issued(address, lock ? SmartLockCodec.SL_LOCK_CMD
+                    : SmartLockCodec.SL_UNLOCK_CMD, now++);
+            records += 2;
+            if (i % 50 == 49) {
+                journal.interrupted(address, now++);
+                journal.reconcile(address, lock ? SmartLockCodec.SL_LOCK
+                        : SmartLockCodec.SL_UNLOCK, now++);
+                records++;
+            } else {
+                journal.answered(address, lock ? SmartLockCodec.SL_LOCK_SUCCESS
+                        : SmartLockCodec.SL_UNLOCK_SUCCESS, now++);
+            }
+        }
+        for (int i = 0; i < LOCKS; i++) {
+            journal.issued(advertiser.getAddress(i), SmartLockCodec.SL_LOCK_CMD, now++);
+        }
+        journal.sync();
+    }
+
+    // Nothing is written after a replay.
+    private static final Executor DISCARD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+}
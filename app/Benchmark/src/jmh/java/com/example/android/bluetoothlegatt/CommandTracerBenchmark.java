@@ -0,0 +1,44 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What tracing adds to a command: the five phase stamps and the recording of six stages
+ * into two sets of histograms.  The {@code record} case has four threads hammering one
+ * histogram, as binder, main and worker threads would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandTracerBenchmark {
+
+    private static final String ADDRESS = "C0:FF:EE:00:00:01";
+
+    private final CommandTracer mTracer = new CommandTracer();
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    @Benchmark
+    public void command() {
+        final long now = System.nanoTime();
+        mTracer.begin(ADDRESS, SmartLockCodec.SL_UNLOCK_CMD, now);
+        mTracer.mark(ADDRESS, CommandTracer.PHASE_ENCODED, now + 2000);
+        mTracer.queued(ADDRESS, SmartLockCodec.SL_UNLOCK_CMD, now + 4000);
+        mTracer.mark(ADDRESS, CommandTracer.PHASE_WRITTEN, now + 7500000);
+        final CommandTracer.Trace trace = mTracer.notified(ADDRESS, now + 15000000);
+        mTracer.complete(trace, now + 15200000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void record() {
+        mHistogram.record(System.nanoTime() & 0xFFFFFFF);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** SampleGattAttributes.lookup, called per service and characteristic on the services page. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GattAttributesBenchmark {
+
+    private final String mKnown = new String(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+    private final String mUnknown = new String(SampleGattAttributes.SMARTLOCK_WRITE);
+
+    @Benchmark
+    public String lookupKnown() {
+        return SampleGattAttributes.lookup(mKnown, "Unknown");
+    }
+
+    @Benchmark
+    public String lookupUnknown() {
+        return SampleGattAttributes.lookup(mUnknown, "Unknown");
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link GattOperationQueue} against a fake GATT that answers every operation on its own
+ * callback thread {@code latencyUs} after it is issued, as the binder thread does on a phone.
+ * With {@code latencyUs} 0 the answer is immediate and the score is the queue itself: the
+ * hand-off between threads, the timeout armed and cancelled per operation, and issuing the
+ * next one from the completion.  7500 is one connection interval.
+ *
+ * <p>{@code burst} queues {@code BURST} writes at once and waits for the last; one op is one
+ * write.  {@code single} is the time from submitting one write to its future completing; the
+ * p99 and p99.9 of its distribution are the tail latency.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+public class GattOperationQueueBenchmark {
+
+    private static final int BURST = 16;
+
+    @Param({"0", "7500"})
+    public long latencyUs;
+
+    private final Object mCharacteristic = new Object();
+    private ScheduledExecutorService mTimer;
+    private ScheduledExecutorService mBinder;
+    private GattOperationQueue mQueue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mBinder = Executors.newSingleThreadScheduledExecutor();
+        mQueue = new GattOperationQueue(mTimer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mQueue.clear();
+        mBinder.shutdownNow();
+        mTimer.shutdownNow();
+        if (mQueue.getTimeoutCount() != 0) {
+            throw new IllegalStateException(mQueue.getTimeoutCount() + " operations timed out");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public int burst() throws Exception {
+        Future<Integer> last = null;
+        for (int i = 0; i < BURST; i++) {
+            last = mQueue.submit(new Write());
+        }
+        return check(last);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int single() throws Exception {
+        return check(mQueue.submit(new Write()));
+    }
+
+    private static int check(Future<Integer> op)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final int status = op.get(5, TimeUnit.SECONDS);
+        if (status != GattOperationQueue.STATUS_SUCCESS) {
+            throw new IllegalStateException("Write failed with status " + status);
+        }
+        return status;
+    }
+
+    // A write with response to the same characteristic, acknowledged on the callback thread.
+    private final class Write extends GattOperationQueue.Operation implements Runnable {
+
+        Write() {
+            super(mCharacteristic, GattOperationQueue.DEFAULT_TIMEOUT_MS);
+        }
+
+        @Override
+        protected boolean start() {
+            if (latencyUs == 0) {
+                mBinder.execute(this);
+            } else {
+                mBinder.schedule(this, latencyUs, TimeUnit.MICROSECONDS);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            mQueue.onOperationComplete(mCharacteristic, GattOperationQueue.STATUS_SUCCESS);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Round trip of a one-chunk lock command and a two-chunk code update, at the 23 byte default
+ * MTU, over a link model for each connection mode.  Every chunk and the answer take one
+ * connection interval plus their air time: Android's minimum interval for the priority,
+ * and half the air time on the 2M PHY.
+ *
+ * <p>{@code ADAPTIVE} runs a {@link ConnectionTuner} with the {@link AdaptiveConnectionPolicy}
+ * on the link; a mode change it asks for takes effect six connection events later, like a
+ * connection parameter update.  {@code REFUSED} runs the same tuner on a link that refuses
+ * every switch, as before API 21, and fails the trial if the tuner asked for more switches
+ * than the commands and its {@link ConnectionTuner#REFUSED_RETRY_MS} retries account for.
+ * Its setup also leaves such a link idle past short policy timeouts, where a refused switch
+ * to low power used to reschedule the recheck with no delay.
+ * Commands per second are 1000 over the mean.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LinkModeBenchmark {
+
+    private static final String ADDRESS = "C0:FF:EE:00:00:01";
+    private static final long PHONE_ID = 0x1234567890abcdefL;
+    private static final String CODES = "0123456789";
+    // Indexed by ConnectionPolicy.MODE_*.
+    private static final long[] INTERVAL_NS = {100000000, 30000000, 11250000};
+    // Link layer, L2CAP and ATT header bytes around each chunk.
+    private static final int PDU_OVERHEAD = 17;
+    private static final long IFS_NS = 150000;
+    private static final int UPDATE_EVENTS = 6;
+
+    @Param({"LOW_POWER", "BALANCED", "HIGH", "ADAPTIVE", "REFUSED"})
+    public String mode;
+
+    private final SimulatedLock mLock = new SimulatedLock(ADDRESS);
+    private final FrameFragmenter mFragmenter = new FrameFragmenter();
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+    private final LockClock mClock = new LockClock();
+    private final List<byte[]> mPackets = new ArrayList<byte[]>(2);
+    private ScheduledExecutorService mTimer;
+    private ConnectionTuner mTuner;
+
+    // The link model.
+    private int mMode;
+    private int mPendingMode;
+    private long mSwitchAtNs;
+    private int mQueued;
+    private final AtomicLong mApplied = new AtomicLong();
+    private long mTunes;
+    private long mStartMs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        mLock.setLatchClosed(true);
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        if (mode.equals("REFUSED")) {
+            checkIdleRefusal();
+        }
+        if (mode.equals("ADAPTIVE") || mode.equals("REFUSED")) {
+            final boolean refuse = mode.equals("REFUSED");
+            mMode = ConnectionPolicy.MODE_BALANCED;
+            mTuner = new ConnectionTuner(new ConnectionTuner.Link() {
+                @Override
+                public int queuedOps() {
+                    return mQueued;
+                }
+
+                @Override
+                public boolean applyMode(int mode) {
+                    mApplied.incrementAndGet();
+                    if (refuse) {
+                        return false;
+                    }
+                    mPendingMode = mode;
+                    mSwitchAtNs = System.nanoTime() + UPDATE_EVENTS * INTERVAL_NS[mMode];
+                    return true;
+                }
+            }, new AdaptiveConnectionPolicy(), mTimer);
+            mStartMs = System.currentTimeMillis();
+            mTuner.start();
+        } else {
+            mMode = mode.equals("HIGH") ? ConnectionPolicy.MODE_HIGH
+                    : mode.equals("BALANCED") ? ConnectionPolicy.MODE_BALANCED
+                    : ConnectionPolicy.MODE_LOW_POWER;
+        }
+        mPendingMode = mMode;
+    }
+
+    private void checkIdleRefusal() throws InterruptedException {
+        final AtomicLong applied = new AtomicLong();
+        final ConnectionTuner tuner = new ConnectionTuner(new ConnectionTuner.Link() {
+            @Override
+            public int queuedOps() {
+                return 0;
+            }
+
+            @Override
+            public boolean applyMode(int mode) {
+                applied.incrementAndGet();
+                return false;
+            }
+        }, new AdaptiveConnectionPolicy(10, 20), mTimer);
+        tuner.start();
+        Thread.sleep(500);
+        tuner.stop();
+        System.out.println();
+        System.out.println(applied.get() + " refused switches in 500 ms idle");
+        if (applied.get() > 1) {
+            throw new IllegalStateException("Tuner kept retrying a refused switch");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mTuner != null) {
+            mTuner.stop();
+        }
+        mTimer.shutdownNow();
+        if (mode.equals("REFUSED")) {
+            final long retries = (System.currentTimeMillis() - mStartMs)
+                    / ConnectionTuner.REFUSED_RETRY_MS + 1;
+            System.out.println();
+            System.out.println(mApplied.get() + " refused switches for " + mTunes + " updates");
+            if (mApplied.get() > mTunes + retries) {
+                throw new IllegalStateException("Tuner kept retrying a refused switch");
+            }
+        }
+    }
+
+    @Benchmark
+    public int lock() {
+        return send(SmartLockCodec.SL_LOCK_CMD, "");
+    }
+
+    @Benchmark
+    public int update() {
+        return send(SmartLockCodec.SL_UPDATE_CODE_CMD, CODES);
+    }
+
+    private int send(int cmd, CharSequence digits) {
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, cmd, digits, PHONE_ID, mClock);
+        mPackets.clear();
+        mFragmenter.split(Arrays.copyOf(mFrame.array(), mFrame.position()), mPackets);
+        mQueued = mPackets.size();
+        tune();
+        int answer = SimulatedLock.NO_RESPONSE;
+        for (int i = 0; i < mPackets.size(); i++) {
+            final byte[] packet = mPackets.get(i);
+            LockSupport.parkNanos(eventNs(packet.length));
+            answer = mLock.receive(packet);
+            mQueued--;
+            tune();
+        }
+        // The notification goes out in the next event.
+        LockSupport.parkNanos(eventNs(1));
+        if (answer == SimulatedLock.NO_RESPONSE) {
+            throw new IllegalStateException("No answer");
+        }
+        return answer;
+    }
+
+    private void tune() {
+        if (mTuner != null) {
+            mTunes++;
+            mTuner.update();
+        }
+    }
+
+    // Wait for the next connection event, then the packet and its empty acknowledgement.
+    private long eventNs(int payload) {
+        if (mPendingMode != mMode && System.nanoTime() >= mSwitchAtNs) {
+            mMode = mPendingMode;
+        }
+        final long bitNs = mMode == ConnectionPolicy.MODE_HIGH ? 500 : 1000;
+        return INTERVAL_NS[mMode] + (payload + PDU_OVERHEAD) * 8 * bitNs + IFS_NS
+                + (PDU_OVERHEAD - 7) * 8 * bitNs;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Stress test of {@link LockStateStore}: four GATT-like writer threads, one per field, change
+ * the same few locks while a UI-like reader takes snapshots and a single observer thread
+ * receives the batches.  The run fails if a snapshot holds a value no writer wrote, if a
+ * field does not end up with the last value its writer set (a lost update), or if the
+ * observer did not end up with the latest word of every lock.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LockStateStoreBenchmark {
+
+    private static final int LOCKS = 16;
+    private static final int FIELDS = 4;
+    private static final int[] STATUSES =
+            {SmartLockCodec.SL_LOCK, SmartLockCodec.SL_UNLOCK, SmartLockCodec.SL_UNUSABLE};
+
+    private String[] mAddresses;
+    private ExecutorService mObserverThread;
+    private LockStateStore mStore;
+    private final AtomicInteger mNextWriter = new AtomicInteger();
+    // Last value each writer set, per field and lock.
+    private final AtomicIntegerArray mLast = new AtomicIntegerArray(FIELDS * LOCKS);
+    // Latest word per lock as seen by the observer; observer thread only.
+    private long[] mObserved;
+    private volatile long mBatches;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        final Random mRandom = new Random(Thread.currentThread().getId());
+        int mField = -1;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(LOCKS, 7);
+        mAddresses = new String[LOCKS];
+        for (int i = 0; i < LOCKS; i++) {
+            mAddresses[i] = advertiser.getAddress(i);
+        }
+        mObserverThread = Executors.newSingleThreadExecutor();
+        mStore = new LockStateStore(mObserverThread);
+        mObserved = new long[LOCKS];
+        for (int i = 0; i < LOCKS; i++) {
+            mObserved[i] = LockStateStore.INITIAL;
+            mLast.set(2 * LOCKS + i, LockStateStore.CODES_UNKNOWN);
+        }
+        mStore.addObserver(new LockStateStore.Observer() {
+            @Override
+            public void onLockStatesChanged(String[] addresses, long[] states, int count) {
+                for (int i = 0; i < count; i++) {
+                    final int lock = indexOf(addresses[i]);
+                    // Batches may only move a lock forward.
+                    if (LockStateStore.version(states[i])
+                            - LockStateStore.version(mObserved[lock]) < 0) {
+                        throw new IllegalStateException("Observer went back in time");
+                    }
+                    mObserved[lock] = states[i];
+                }
+                mBatches++;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        // Every flush was posted before this task, so it runs after all of them.
+        mObserverThread.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        mObserverThread.shutdown();
+
+        for (int i = 0; i < LOCKS; i++) {
+            final long state = mStore.get(mAddresses[i]);
+            if (mObserved[i] != state) {
+                throw new IllegalStateException("Observer missed the last change of lock " + i);
+            }
+            if (LockStateStore.lockStatus(state) != mLast.get(i)
+                    || LockStateStore.connectionState(state) != mLast.get(LOCKS + i)
+                    || LockStateStore.codesLeft(state) != mLast.get(2 * LOCKS + i)
+                    || LockStateStore.lastError(state) != mLast.get(3 * LOCKS + i)) {
+                throw new IllegalStateException("Lost update on lock " + i + ": "
+                        + Long.toHexString(state));
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("store")
+    @GroupThreads(FIELDS)
+    public long write(Writer writer) {
+        if (writer.mField < 0) {
+            writer.mField = mNextWriter.getAndIncrement() % FIELDS;
+        }
+        final Random random = writer.mRandom;
+        final int lock = random.nextInt(LOCKS);
+        final String address = mAddresses[lock];
+        final int value;
+        final long state;
+        switch (writer.mField) {
+            case 0:
+                value = STATUSES[random.nextInt(STATUSES.length)];
+                state = mStore.setLockStatus(address, value);
+                break;
+            case 1:
+                value = random.nextInt(4);
+                state = mStore.setConnectionState(address, value);
+                break;
+            case 2:
+                value = random.nextInt(10);
+                state = mStore.setCodesLeft(address, value);
+                break;
+            default:
+                value = random.nextBoolean() ? 0 : SmartLockCodec.SL_UNLOCK_FAIL;
+                state = mStore.setLastError(address, value);
+                break;
+        }
+        mLast.set(writer.mField * LOCKS + lock, value);
+        return state;
+    }
+
+    @Benchmark
+    @Group("store")
+    @GroupThreads(1)
+    public long read() {
+        long sum = 0;
+        for (int i = 0; i < LOCKS; i++) {
+            final long state = mStore.get(mAddresses[i]);
+            final int status = LockStateStore.lockStatus(state);
+            final int codes = LockStateStore.codesLeft(state);
+            final int error = LockStateStore.lastError(state);
+            if ((status != 0 && status != SmartLockCodec.SL_LOCK
+                    && status != SmartLockCodec.SL_UNLOCK && status != SmartLockCodec.SL_UNUSABLE)
+                    || LockStateStore.connectionState(state) > 3
+                    || (codes >= 10 && codes != LockStateStore.CODES_UNKNOWN)
+                    || (error != 0 && error != SmartLockCodec.SL_UNLOCK_FAIL)) {
+                throw new IllegalStateException("Torn state word " + Long.toHexString(state));
+            }
+            sum += state;
+        }
+        return sum;
+    }
+
+    private int indexOf(String address) {
+        for (int i = 0; i < LOCKS; i++) {
+            if (mAddresses[i].equals(address)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Unknown lock " + address);
+    }
+}
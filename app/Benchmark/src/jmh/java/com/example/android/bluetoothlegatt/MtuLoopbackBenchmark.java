@@ -0,0 +1,151 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands over a loopback link at several ATT MTUs: the frame is split by
+ * {@link FrameFragmenter}, every chunk is a write through a {@link GattOperationQueue} that
+ * the {@link SimulatedLock} acknowledges one 7.5 ms connection interval later, and the answer
+ * comes back as a notification one more interval later.  One op is one command answered.
+ *
+ * <p>{@code frameBytes} per second is the goodput of the link, and {@code roundTrips} over
+ * the ops is the writes a command takes.  {@code unlock} is a short frame, {@code loadCodes}
+ * a full batch of {@link SmartLockCodec#MAX_BATCH_CODES} codes, as
+ * {@code BluetoothLeService.refreshCodes} sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 3)
+public class MtuLoopbackBenchmark {
+
+    private static final long CONNECTION_INTERVAL_US = 7500;
+    private static final String ADDRESS = "C0:FF:EE:00:00:01";
+
+    @Param({"23", "64", "185", "247"})
+    public int mtu;
+
+    @Param({"unlock", "loadCodes"})
+    public String command;
+
+    private final FrameFragmenter mFragmenter = new FrameFragmenter();
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_BATCH_FRAME_LEN);
+    private final List<byte[]> mPackets = new ArrayList<byte[]>(FrameFragmenter.MAX_CHUNKS);
+    private final Calendar mNow = Calendar.getInstance();
+    private final LockClock mClock = new LockClock();
+    private final long mPhoneId = SmartLockCodec.phoneId("9774d56d682e549c");
+    private final int[] mCodes = new int[SmartLockCodec.MAX_BATCH_CODES];
+    private final SimulatedLock mLock = new SimulatedLock(ADDRESS);
+    private final Semaphore mAnswered = new Semaphore(0);
+    private ScheduledExecutorService mRadio;
+    private GattOperationQueue mQueue;
+    private long mCommands;
+    private long mWrites;
+    private long mBytes;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long frameBytes;
+        public long roundTrips;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRadio = Executors.newSingleThreadScheduledExecutor();
+        mQueue = new GattOperationQueue(mRadio);
+        mFragmenter.setMtu(mtu);
+        for (int i = 0; i < mCodes.length; i++) {
+            mCodes[i] = 100000 + 7919 * i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRadio.shutdownNow();
+        System.out.println();
+        System.out.println("MTU " + mtu + ", " + command + ": " + mBytes / mCommands
+                + " bytes and " + (double) mWrites / mCommands + " round trips per command");
+    }
+
+    @Benchmark
+    public int send(Counters counters) throws InterruptedException {
+        mFrame.clear();
+        if ("loadCodes".equals(command)) {
+            SmartLockCodec.encodeCodeBatch(mFrame, SmartLockCodec.SL_LOAD_CODES_CMD, mCodes, 0,
+                    mCodes.length, mPhoneId, mClock);
+        } else {
+            SmartLockCodec.encodeCommand(mFrame, SmartLockCodec.SL_UNLOCK_CMD, "104729",
+                    mPhoneId, mNow);
+        }
+        mPackets.clear();
+        final int writes = mFragmenter.split(Arrays.copyOf(mFrame.array(), mFrame.position()),
+                mPackets);
+        for (int i = 0; i < mPackets.size(); i++) {
+            mQueue.submit(new Write(mPackets.get(i)));
+        }
+        if (!mAnswered.tryAcquire(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Command not answered");
+        }
+        counters.frameBytes += mFrame.position();
+        counters.roundTrips += writes;
+        mCommands++;
+        mWrites += writes;
+        mBytes += mFrame.position();
+        return writes;
+    }
+
+    // A write with response: the lock takes the chunk and the stack confirms it at the next
+    // connection event.
+    private final class Write extends GattOperationQueue.Operation implements Runnable {
+        final byte[] mPacket;
+
+        Write(byte[] packet) {
+            super(packet, GattOperationQueue.DEFAULT_TIMEOUT_MS);
+            mPacket = packet;
+        }
+
+        @Override
+        protected boolean start() {
+            mRadio.schedule(this, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            final int response = mLock.receive(mPacket);
+            mQueue.onOperationComplete(mPacket, GattOperationQueue.STATUS_SUCCESS);
+            if (response != SimulatedLock.NO_RESPONSE) {
+                mRadio.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mAnswered.release();
+                    }
+                }, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lock notification from the binder thread to the UI: reassembly, the event bus, status
+ * decoding and the event log, i.e. what LockSession, BluetoothLeService.publishFrame and
+ * ParseSmartLockCode do per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NotificationBenchmark {
+
+    private static final String ADDRESS = "C0:11:22:33:44:55";
+    private static final byte[][] PACKETS = {
+            {(byte) SmartLockCodec.SL_UNLOCK_SUCCESS},
+            {(byte) SmartLockCodec.SL_UNLOCK},
+            {(byte) SmartLockCodec.SL_LOCK_SUCCESS},
+            {(byte) SmartLockCodec.SL_LOCK},
+            {(byte) SmartLockCodec.SL_CODE_OUT_OF_DATE},
+    };
+
+    private final FrameFragmenter.Reassembler mReassembler =
+            new FrameFragmenter.Reassembler(SmartLockCodec.MAX_FRAME_LEN);
+    private final GattEventBus mBus = new GattEventBus(GattEventBus.DIRECT);
+    private final LockEventLog mLog = new LockEventLog(LockEventLog.DEFAULT_CAPACITY);
+    private Blackhole mBlackhole;
+    private int mNext;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mBus.subscribe(new GattEventBus.Subscriber() {
+            @Override
+            public void onGattEvent(GattEventBus.Event event) {
+                blackhole.consume(event.getCode());
+            }
+        });
+    }
+
+    @Benchmark
+    public void notification() {
+        final byte[] packet = PACKETS[mNext];
+        mNext = (mNext + 1) % PACKETS.length;
+        if (!mReassembler.accept(packet)) {
+            return;
+        }
+        final int code = mReassembler.getFrame()[0] & 0xFF;
+        final LockStatusTable.Status status = LockStatusTable.decode(code);
+        mLog.append(System.currentTimeMillis(), code, ADDRESS);
+        mBlackhole.consume(status);
+        mBus.publishData(ADDRESS, mReassembler.getFrame(), mReassembler.getFrameLength());
+    }
+
+    @Benchmark
+    public LockStatusTable.Status decode() {
+        final int code = PACKETS[mNext][0] & 0xFF;
+        mNext = (mNext + 1) % PACKETS.length;
+        return LockStatusTable.decode(code);
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress test of the notification path under 1 kHz bursts: the benchmark thread plays the
+ * binder thread and delivers one notification per lock every millisecond, either decoding it
+ * in the callback like before ({@code inline}) or through a {@link NotificationPipeline}.
+ * Every 50th parse stalls for {@code stallUs}, like a GC pause or a slow disk write would.
+ *
+ * <p>One op is a burst of {@link #BURST} ticks until the UI thread has seen every
+ * notification.  The teardown prints the callback residence time and the end-to-end latency,
+ * from when the packet was due to the UI thread seeing it.  The run fails if the UI thread
+ * sees a lock's notifications out of order or misses one the pipeline did not count as
+ * dropped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NotificationPipelineBenchmark {
+
+    static final int BURST = 100;
+    private static final long TICK_NS = 1000000;
+    private static final int STALL_EVERY = 50;
+    // Answers only: a two byte packet starting with a lock state would read as a chunk.
+    private static final int[] CODES = {SmartLockCodec.SL_UNLOCK_SUCCESS,
+            SmartLockCodec.SL_LOCK_SUCCESS, SmartLockCodec.SL_CODE_RUN_OUT,
+            SmartLockCodec.SL_LOCK_FAIL};
+
+    @Param({"inline", "pipeline"})
+    public String mode;
+
+    @Param({"1", "7"})
+    public int locks;
+
+    @Param({"0", "5000"})
+    public long stallUs;
+
+    private ExecutorService mUi;
+    private NotificationPipeline mPipeline;
+    private Lock[] mLocks;
+    private GattEventBus mBus;
+    private final LockStateStore.Observer mNoOp = new LockStateStore.Observer() {
+        @Override
+        public void onLockStatesChanged(String[] addresses, long[] states, int count) {
+        }
+    };
+    private LockStateStore mStates;
+    private final LockEventLog mLog = new LockEventLog(LockEventLog.DEFAULT_CAPACITY);
+    private final LatencyHistogram mResidence = new LatencyHistogram();
+    private final LatencyHistogram mEndToEnd = new LatencyHistogram();
+    private final AtomicInteger mSeen = new AtomicInteger();
+    private volatile String mError;
+    private int mParsed;
+
+    // One lock: its packets, when each was due, and what the UI saw of it.
+    private final class Lock implements NotificationPipeline.Consumer {
+        final String mAddress;
+        final byte[][] mPackets = new byte[BURST][];
+        final long[] mDue = new long[BURST];
+        final FrameFragmenter.Reassembler mReassembler =
+                new FrameFragmenter.Reassembler(SmartLockCodec.MAX_FRAME_LEN);
+        NotificationPipeline.Ring mRing;
+        // UI thread only.
+        int mNextSeen;
+
+        Lock(String address) {
+            mAddress = address;
+            for (int i = 0; i < BURST; i++) {
+                mPackets[i] = new byte[] {(byte) CODES[i % CODES.length], (byte) i};
+            }
+        }
+
+        // What LockSession, publishFrame and ParseSmartLockCode do with a notification.
+        @Override
+        public void onPacket(byte[] packet, int length, long receivedNs) {
+            if (!mReassembler.accept(packet, length)) {
+                return;
+            }
+            final byte[] frame = mReassembler.getFrame();
+            final int code = frame[0] & 0xFF;
+            final String line = String.format(Locale.US, "Received code: %d, frame length %d",
+                    code, mReassembler.getFrameLength());
+            final LockStatusTable.Status status = LockStatusTable.decode(code);
+            mLog.append(System.currentTimeMillis(), code, mAddress);
+            if (status.getLockState() != LockStatusTable.NO_CHANGE) {
+                mStates.setLockStatus(mAddress, status.getLockState());
+            }
+            if (++mParsed % STALL_EVERY == 0 && stallUs > 0 && line.length() > 0) {
+                final long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(stallUs);
+                while (System.nanoTime() < end) {
+                    // A stall.
+                }
+            }
+            mBus.publishData(mAddress, frame, mReassembler.getFrameLength());
+        }
+
+        @Override
+        public void onEvent(int event, int status) {
+            mReassembler.reset();
+        }
+
+        @Override
+        public void onFailed(RuntimeException e) {
+            mError = mAddress + ": " + e;
+        }
+
+        // On the UI thread.
+        void seen(int seq) {
+            mEndToEnd.record(System.nanoTime() - mDue[seq]);
+            if (seq != mNextSeen) {
+                mError = mAddress + ": saw " + seq + ", expected " + mNextSeen;
+            }
+            mNextSeen = seq + 1;
+            mSeen.incrementAndGet();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mUi = Executors.newSingleThreadExecutor();
+        mBus = new GattEventBus(mUi);
+        mStates = new LockStateStore(mUi);
+        mStates.addObserver(mNoOp);
+        final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(locks, locks);
+        mLocks = new Lock[locks];
+        for (int i = 0; i < locks; i++) {
+            mLocks[i] = new Lock(advertiser.getAddress(i));
+        }
+        mBus.subscribe(new GattEventBus.Subscriber() {
+            @Override
+            public void onGattEvent(GattEventBus.Event event) {
+                for (Lock lock : mLocks) {
+                    if (lock.mAddress.equals(event.getAddress())) {
+                        lock.seen(event.getData()[1]);
+                    }
+                }
+            }
+        });
+        if ("pipeline".equals(mode)) {
+            mPipeline = new NotificationPipeline("decoder");
+            for (Lock lock : mLocks) {
+                lock.mRing = mPipeline.open(lock);
+            }
+            mPipeline.start();
+        }
+    }
+
+    // The teardown prints the last iteration only.
+    @Setup(Level.Iteration)
+    public void resetHistograms() {
+        mResidence.reset();
+        mEndToEnd.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.stop();
+        }
+        mUi.shutdown();
+        System.out.println();
+        System.out.println(String.format(Locale.US,
+                "Residence us p50 %.1f p99 %.1f p999 %.1f max %.1f; end to end ms p50 %.2f"
+                        + " p99 %.2f p999 %.2f max %.2f",
+                mResidence.getValueAtPercentile(50) / 1e3, mResidence.getValueAtPercentile(99) / 1e3,
+                mResidence.getValueAtPercentile(99.9) / 1e3, mResidence.getMax() / 1e3,
+                mEndToEnd.getValueAtPercentile(50) / 1e6, mEndToEnd.getValueAtPercentile(99) / 1e6,
+                mEndToEnd.getValueAtPercentile(99.9) / 1e6, mEndToEnd.getMax() / 1e6));
+        if (mPipeline != null) {
+            System.out.println("Pipeline: " + mPipeline);
+        }
+    }
+
+    @Benchmark
+    public int burst() throws InterruptedException {
+        mSeen.set(0);
+        for (Lock lock : mLocks) {
+            lock.mNextSeen = 0;
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < BURST; i++) {
+            final long due = start + i * TICK_NS;
+            final long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            for (Lock lock : mLocks) {
+                lock.mDue[i] = due;
+                final long t = System.nanoTime();
+                if (lock.mRing != null) {
+                    lock.mRing.offer(lock.mPackets[i], due);
+                } else {
+                    lock.onPacket(lock.mPackets[i], lock.mPackets[i].length, due);
+                }
+                mResidence.record(System.nanoTime() - t);
+            }
+        }
+        final int expected = BURST * locks
+                - (int) (mPipeline == null ? 0 : mPipeline.getDropped());
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mSeen.get() < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("UI saw " + mSeen.get() + " of " + expected);
+            }
+            LockSupport.parkNanos(100000);
+        }
+        if (mError != null && (mPipeline == null || mPipeline.getDropped() == 0)) {
+            throw new IllegalStateException(mError);
+        }
+        return mSeen.get();
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from a link loss to the link being back, through {@link ReconnectEngine}, over a fake
+ * transport that injects faults: a direct attempt fails with status 133 after
+ * {@code FAIL_MS} with probability {@code failRate}, hangs with probability
+ * {@code hangRate}, and otherwise connects after {@code DIRECT_MS}.  The background auto
+ * connection always comes up, but only after {@code BACKGROUND_MS}.
+ *
+ * <p>The transport counts open handles and fails the run if a lock ever holds more than a
+ * direct and a background one, i.e. if handles leak.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReconnectBenchmark {
+
+    private static final String ADDRESS = "C0:FF:EE:00:00:01";
+    private static final long DIRECT_MS = 40;
+    private static final long FAIL_MS = 20;
+    private static final long BACKGROUND_MS = 1500;
+    // Scaled down from the defaults so a run does not take minutes.
+    private static final long DIRECT_TIMEOUT_MS = 500;
+    private static final long BACKOFF_BASE_MS = 25;
+
+    @Param({"0", "0.5", "0.9"})
+    public double failRate;
+
+    @Param({"0", "0.2"})
+    public double hangRate;
+
+    private ScheduledExecutorService mExecutor;
+    private ScheduledExecutorService mRadio;
+    private FaultyTransport mTransport;
+    private ReconnectEngine mEngine;
+    private final Semaphore mUp = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mRadio = Executors.newSingleThreadScheduledExecutor();
+        mTransport = new FaultyTransport();
+        mEngine = new ReconnectEngine(mTransport, mExecutor, DIRECT_TIMEOUT_MS, BACKOFF_BASE_MS);
+        mEngine.watch(ADDRESS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRadio.shutdownNow();
+        mExecutor.shutdownNow();
+        System.out.println();
+        System.out.println("Engine: " + mEngine);
+    }
+
+    @Benchmark
+    public int reconnect() throws InterruptedException {
+        mTransport.drop();
+        mEngine.onDisconnected(ADDRESS, 8);
+        if (!mUp.tryAcquire(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Not reconnected");
+        }
+        return mTransport.mHandles;
+    }
+
+    /**
+     * One lock over a radio that loses attempts.  Like LockSession, a connection that comes
+     * up ends the other handle, and events of closed handles are dropped.
+     */
+    private class FaultyTransport implements ReconnectEngine.Transport {
+        private final Random mRandom = new Random(1);
+        private Handle mDirect;
+        private Handle mBackground;
+        private boolean mConnected;
+        volatile int mHandles;
+
+        private class Handle implements Runnable {
+            final boolean mAuto;
+            final boolean mFails;
+            ScheduledFuture<?> mEvent;
+
+            Handle(boolean auto) {
+                mAuto = auto;
+                final double roll = mRandom.nextDouble();
+                mFails = !auto && roll < failRate;
+                final boolean hangs = !auto && !mFails && roll < failRate + hangRate;
+                if (!hangs) {
+                    mEvent = mRadio.schedule(this, auto ? BACKGROUND_MS : mFails ? FAIL_MS
+                            : DIRECT_MS, TimeUnit.MILLISECONDS);
+                }
+                mHandles++;
+                if (mHandles > 2) {
+                    throw new IllegalStateException(mHandles + " handles open");
+                }
+            }
+
+            void close() {
+                if (mEvent != null) {
+                    mEvent.cancel(false);
+                }
+                mHandles--;
+            }
+
+            @Override
+            public void run() {
+                synchronized (FaultyTransport.this) {
+                    if (this != mDirect && this != mBackground) {
+                        return;
+                    }
+                    if (mFails) {
+                        mEngine.onDisconnected(ADDRESS, ReconnectEngine.GATT_ERROR);
+                        return;
+                    }
+                    // Up: the other handle goes.
+                    final Handle other = this == mDirect ? mBackground : mDirect;
+                    if (other != null) {
+                        other.close();
+                    }
+                    mDirect = this;
+                    mBackground = null;
+                    mConnected = true;
+                }
+                mEngine.onConnected(ADDRESS);
+                mUp.release();
+            }
+        }
+
+        synchronized void drop() {
+            mConnected = false;
+            // An auto connection that is up reconnects by itself once the link is lost.
+            if (mDirect != null && mDirect.mAuto) {
+                mDirect.mEvent = mRadio.schedule(mDirect, BACKGROUND_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public synchronized boolean connectDirect(String address) {
+            if (mConnected) {
+                return true;
+            }
+            if (mDirect != null) {
+                if (mDirect.mAuto && mBackground == null) {
+                    mBackground = mDirect;
+                } else {
+                    mDirect.close();
+                }
+            }
+            mDirect = new Handle(false);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean connectBackground(String address) {
+            if (mConnected || mBackground != null || (mDirect != null && mDirect.mAuto)) {
+                return true;
+            }
+            mBackground = new Handle(true);
+            return true;
+        }
+
+        @Override
+        public synchronized void closeDirect(String address) {
+            if (mDirect != null && !mConnected) {
+                mDirect.close();
+                mDirect = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device list deduplication: advertisements from a fleet of locks going into the scan index,
+ * as LockScanner delivers them.  One op is one advertisement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScanBenchmark {
+
+    @Param({"10", "1000"})
+    public int devices;
+
+    private SyntheticAdvertiser mAdvertiser;
+    private LockScanIndex mIndex;
+    private long mNow;
+
+    @Setup
+    public void setUp() {
+        mAdvertiser = new SyntheticAdvertiser(devices, 1);
+        mIndex = new LockScanIndex();
+        // Every device was seen once, so the benchmark measures updates.
+        mAdvertiser.emit(mIndex, devices * 20, 0);
+    }
+
+    @Benchmark
+    public boolean advertisement() {
+        mAdvertiser.emit(mIndex, 1, ++mNow);
+        return mIndex.takeChanges();
+    }
+
+    @Benchmark
+    public int advertisementByAddress() {
+        final String address = mAdvertiser.getAddress((int) (++mNow % devices));
+        return mIndex.update(address, null, -60, mNow);
+    }
+}
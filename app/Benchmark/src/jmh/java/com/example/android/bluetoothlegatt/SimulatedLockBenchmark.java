@@ -0,0 +1,180 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One service holding 1, 4 and 8 locks at once.  {@code fleet} is the whole command path
+ * against a fleet of {@link SimulatedLock}s, with no link latency so the app side is what is
+ * measured; one op is one command answered.  {@code connect} is the time from asking the
+ * {@link LockConnectionPool} for every lock until each has answered the
+ * {@code SL_APP_READY_CMD} sent once its link is up with its telemetry.  A link comes up
+ * {@code LINK_SETUP_MS} after its session asks for it, in parallel with the others, like
+ * locks already advertising.
+ */
+@State(Scope.Benchmark)
+public class SimulatedLockBenchmark {
+
+    private static final int COMMANDS = 1600;
+    private static final int RADIO_THREADS = 4;
+    // Connection request to the first connection event at a 7.5 ms interval, a few intervals.
+    private static final long LINK_SETUP_MS = 30;
+    private static final long CONNECTION_INTERVAL_US = 7500;
+
+    @Param({"1", "4", "8"})
+    public int locks;
+
+    private SimulatedLockFleet mFleet;
+    private ScheduledExecutorService mRadio;
+    private LockConnectionPool<Session> mPool;
+    private String[] mAddresses;
+    private volatile CountDownLatch mReady;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mFleet = new SimulatedLockFleet(locks, RADIO_THREADS, 0, FrameFragmenter.DEFAULT_MTU);
+        mFleet.setMeasureHeap(false);
+        mRadio = Executors.newScheduledThreadPool(RADIO_THREADS);
+        // Large enough for all, so no session is evicted on the way.
+        mPool = new LockConnectionPool<Session>(locks,
+                new LockConnectionPool.Factory<Session>() {
+                    @Override
+                    public Session create(String address) {
+                        return new Session(address);
+                    }
+                });
+        final SyntheticAdvertiser advertiser = new SyntheticAdvertiser(locks, locks);
+        mAddresses = new String[locks];
+        for (int i = 0; i < locks; i++) {
+            mAddresses[i] = advertiser.getAddress(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFleet.shutdown();
+        mPool.clear();
+        mRadio.shutdownNow();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(COMMANDS)
+    public SimulatedLockFleet.Result fleet() throws InterruptedException {
+        final SimulatedLockFleet.Result result = mFleet.run(COMMANDS / locks, 60000);
+        if (result == null) {
+            throw new IllegalStateException("Fleet did not finish");
+        }
+        return result;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int connect() throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(locks);
+        mReady = ready;
+        for (int i = 0; i < locks; i++) {
+            mPool.acquire(mAddresses[i]).connect();
+        }
+        if (!ready.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Not all locks answered");
+        }
+        final int connected = mPool.size();
+        mPool.clear();
+        return connected;
+    }
+
+    // A LockSession with the radio faked: the link comes up, the app says it is ready, and
+    // the lock answers with its telemetry.
+    private final class Session implements LockConnectionPool.Session, Runnable {
+        final String mAddress;
+        final SimulatedLock mLock;
+        final GattOperationQueue mQueue = new GattOperationQueue(mRadio);
+        final LockTelemetry mTelemetry = new LockTelemetry();
+        final LockTelemetry.Reader mReader = new LockTelemetry.Reader();
+        final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+
+        Session(String address) {
+            mAddress = address;
+            mLock = new SimulatedLock(address);
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        void connect() {
+            mRadio.schedule(this, LINK_SETUP_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // The link is up.
+        @Override
+        public void run() {
+            final ByteBuffer ready = ByteBuffer.allocate(1);
+            SmartLockCodec.encodeAppReady(ready);
+            final byte[] packet = ready.array();
+            mQueue.submit(new GattOperationQueue.Operation(packet,
+                    GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+                @Override
+                protected boolean start() {
+                    mRadio.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            onWrite(packet);
+                        }
+                    }, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+                    return true;
+                }
+            });
+        }
+
+        // On the radio, in the lock's place; the firmware answers with its telemetry.
+        void onWrite(byte[] packet) {
+            mLock.receive(packet);
+            mQueue.onOperationComplete(packet, GattOperationQueue.STATUS_SUCCESS);
+            final byte[] telemetry;
+            synchronized (mFrame) {
+                mFrame.clear();
+                mLock.encodeTelemetry(mFrame);
+                telemetry = new byte[mFrame.position()];
+                System.arraycopy(mFrame.array(), 0, telemetry, 0, telemetry.length);
+            }
+            mRadio.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onNotification(telemetry);
+                }
+            }, CONNECTION_INTERVAL_US, TimeUnit.MICROSECONDS);
+        }
+
+        void onNotification(byte[] telemetry) {
+            if (mReader.reset(telemetry, 0, telemetry.length)) {
+                mTelemetry.apply(mAddress, mReader);
+            }
+            mReady.countDown();
+        }
+
+        @Override
+        public void close() {
+            mQueue.clear();
+        }
+    }
+}
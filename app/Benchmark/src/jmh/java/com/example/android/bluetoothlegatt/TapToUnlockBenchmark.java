@@ -0,0 +1,156 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time from an unlock tap to the lock's answer, over a link where every packet and answer
+ * takes one 7.5 ms connection interval.
+ *
+ * <p>Without the vault codes are made when needed, like before: the tap after the last usable
+ * code gets {@code SL_CODE_RUN_OUT}, and only then are new codes loaded and the unlock sent
+ * again.  With the vault, the next batch is loaded in {@code SL_LOAD_CODES_CMD} and
+ * {@code SL_ADD_CODES_CMD} frames right after the last usable code is taken, between taps, so
+ * every tap is a single unlock.  Compare the upper percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TapToUnlockBenchmark {
+
+    private static final String ADDRESS = "C0:FF:EE:00:00:01";
+    private static final long CONNECTION_INTERVAL_NS = 7500000;
+    private static final long PHONE_ID = 0x1234567890abcdefL;
+
+    @Param({"false", "true"})
+    public boolean vault;
+
+    private final SimulatedLock mLock = new SimulatedLock(ADDRESS);
+    private final FrameFragmenter mFragmenter = new FrameFragmenter();
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_BATCH_FRAME_LEN);
+    private final LockClock mClock = new LockClock();
+    private final List<byte[]> mPackets = new ArrayList<byte[]>(2);
+    private final AccessCodeGenerator mGenerator = new AccessCodeGenerator();
+    private final StringBuilder mCodes = new StringBuilder(SmartLockCodec.MAX_CODE_DIGITS);
+    private final StringBuilder mCode = new StringBuilder(SmartLockCodec.CODE_DIGITS);
+    private ExecutorService mVaultExecutor;
+    private File mVaultFile;
+    private CodeVault mVault;
+    // Codes the app made without the vault, and the next one to try.
+    private String mOnDemandCodes = "";
+    private int mNextCode;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mVaultExecutor = Executors.newSingleThreadExecutor();
+        mVaultFile = File.createTempFile("vault", ".bin");
+        mVault = new CodeVault(mVaultFile, CodeVault.newKey(), mVaultExecutor);
+        mVault.prepare(ADDRESS);
+        if (vault) {
+            load(mVault.takeBatch(ADDRESS));
+        } else {
+            loadOnDemand();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mVaultExecutor.shutdown();
+        mVaultFile.delete();
+    }
+
+    // Between taps: the service loads the next batch once the last usable code is taken.
+    @Setup(Level.Invocation)
+    public void betweenTaps() {
+        if (vault && mVault.codesLeft(ADDRESS) == 0) {
+            load(mVault.takeBatch(ADDRESS));
+        }
+    }
+
+    @Benchmark
+    public int tap() {
+        if (vault) {
+            final int code = mVault.peekCode(ADDRESS);
+            final int answer = unlock(code);
+            mVault.codeUsed(ADDRESS, code);
+            return answer;
+        }
+        int answer = unlock(mOnDemandCodes.charAt(mNextCode++) - '0');
+        if (answer == SmartLockCodec.SL_CODE_RUN_OUT) {
+            loadOnDemand();
+            answer = unlock(mOnDemandCodes.charAt(mNextCode++) - '0');
+        }
+        return answer;
+    }
+
+    private void loadOnDemand() {
+        mCodes.setLength(0);
+        mOnDemandCodes = mGenerator.next(mCodes, SmartLockCodec.MAX_CODE_DIGITS).toString();
+        mNextCode = 0;
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, SmartLockCodec.SL_UPDATE_CODE_CMD, mOnDemandCodes,
+                PHONE_ID, mClock);
+        if (send() != SmartLockCodec.SL_UPDATE_SUCCESS) {
+            throw new IllegalStateException("Update failed");
+        }
+    }
+
+    private void load(int[] codes) {
+        for (int i = 0; i < codes.length; i += SmartLockCodec.MAX_BATCH_CODES) {
+            mFrame.clear();
+            SmartLockCodec.encodeCodeBatch(mFrame, i == 0 ? SmartLockCodec.SL_LOAD_CODES_CMD
+                    : SmartLockCodec.SL_ADD_CODES_CMD, codes, i,
+                    Math.min(SmartLockCodec.MAX_BATCH_CODES, codes.length - i), PHONE_ID, mClock);
+            if (send() != SmartLockCodec.SL_UPDATE_SUCCESS) {
+                throw new IllegalStateException("Load failed");
+            }
+        }
+        mVault.setLoaded(ADDRESS, codes);
+    }
+
+    private int unlock(int code) {
+        mCode.setLength(0);
+        mCode.append(code);
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, SmartLockCodec.SL_UNLOCK_CMD, mCode, PHONE_ID,
+                mClock);
+        final int answer = send();
+        if (answer != SmartLockCodec.SL_UNLOCK_SUCCESS
+                && answer != SmartLockCodec.SL_CODE_RUN_OUT) {
+            throw new IllegalStateException("Unlock answered " + answer);
+        }
+        return answer;
+    }
+
+    // The command in mFrame and its answer over the link.
+    private int send() {
+        mPackets.clear();
+        mFragmenter.split(Arrays.copyOf(mFrame.array(), mFrame.position()), mPackets);
+        int answer = SimulatedLock.NO_RESPONSE;
+        for (int i = 0; i < mPackets.size(); i++) {
+            LockSupport.parkNanos(CONNECTION_INTERVAL_NS);
+            answer = mLock.receive(mPackets.get(i));
+        }
+        LockSupport.parkNanos(CONNECTION_INTERVAL_NS);
+        return answer;
+    }
+}
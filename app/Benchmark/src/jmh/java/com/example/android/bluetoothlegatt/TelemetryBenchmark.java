@@ -0,0 +1,79 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a telemetry notification into the per-lock model, what
+ * BluetoothLeService.publishTelemetry does per notification.  {@code zeroCopy} walks the items
+ * in place with {@link LockTelemetry.Reader}; {@code copying} only decodes, the usual way of
+ * copying each value out and reading it through a ByteBuffer, and allocates per item.
+ * {@code unchanged} is the common case of a lock reporting what the app already has.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TelemetryBenchmark {
+
+    private static final String ADDRESS = "C0:11:22:33:44:55";
+
+    private final LockTelemetry mTelemetry = new LockTelemetry();
+    private final LockTelemetry.Reader mItems = new LockTelemetry.Reader();
+    private final byte[][] mFrames = new byte[2][];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final SimulatedLock lock = new SimulatedLock(ADDRESS);
+        // A fresh lock, then one left open with codes loaded.
+        final ByteBuffer frame = ByteBuffer.allocate(FrameFragmenter.DEFAULT_MTU - 3);
+        lock.encodeTelemetry(frame);
+        mFrames[0] = Arrays.copyOf(frame.array(), frame.position());
+        frame.clear();
+        SmartLockCodec.encodeTelemetry(frame, SmartLockCodec.SL_UNUSABLE,
+                LockTelemetry.LATCH_OPEN, 3, 7);
+        mFrames[1] = Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    @Benchmark
+    public int zeroCopy() {
+        final byte[] frame = mFrames[mNext];
+        mNext ^= 1;
+        mItems.reset(frame, 0, frame.length);
+        return mTelemetry.apply(ADDRESS, mItems);
+    }
+
+    @Benchmark
+    public int unchanged() {
+        final byte[] frame = mFrames[0];
+        mItems.reset(frame, 0, frame.length);
+        return mTelemetry.apply(ADDRESS, mItems);
+    }
+
+    @Benchmark
+    public long copying() {
+        final byte[] frame = mFrames[mNext];
+        mNext ^= 1;
+        long state = 0;
+        int pos = 2;
+        while (pos + 2 <= frame.length) {
+            final int type = frame[pos] & 0xFF;
+            final int length = frame[pos + 1] & 0xFF;
+            final byte[] value = Arrays.copyOfRange(frame, pos + 2, pos + 2 + length);
+            final ByteBuffer buffer = ByteBuffer.wrap(value);
+            final int v = length == 2 ? buffer.getShort() & 0xFFFF : buffer.get() & 0xFF;
+            state = (state << 8) ^ (type * 31 + v);
+            pos += 2 + length;
+        }
+        return state;
+    }
+}
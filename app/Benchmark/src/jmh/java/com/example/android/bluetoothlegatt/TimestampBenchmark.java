@@ -0,0 +1,60 @@
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timestamp of a command frame, the way the app has made it: a new SimpleDateFormat per
+ * command, a reused Calendar, and the {@link LockClock}.  Run with {@code -prof gc} and look
+ * at the bytes allocated per op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimestampBenchmark {
+
+    private final ByteBuffer mFrame = ByteBuffer.allocate(SmartLockCodec.MAX_FRAME_LEN);
+    private final Calendar mNow = Calendar.getInstance();
+    private final LockClock mClock = new LockClock();
+    private final long mPhoneId = SmartLockCodec.phoneId("9774d56d682e549c");
+
+    /** The first version: {@code new SimpleDateFormat("yyMMddHHmm").format(new Date())}. */
+    @Benchmark
+    public String simpleDateFormat() {
+        final Date now = new Date();
+        return new SimpleDateFormat("yyMMddHHmm").format(now.getTime());
+    }
+
+    @Benchmark
+    public ByteBuffer calendar() {
+        mFrame.clear();
+        mNow.setTimeInMillis(System.currentTimeMillis());
+        SmartLockCodec.putTimestamp(mFrame, mNow);
+        return mFrame;
+    }
+
+    @Benchmark
+    public ByteBuffer clock() {
+        mFrame.clear();
+        mClock.writeTimestamp(mFrame);
+        return mFrame;
+    }
+
+    /** A whole unlock frame stamped by the clock, into the reused buffer. */
+    @Benchmark
+    public ByteBuffer unlockFrame() {
+        mFrame.clear();
+        SmartLockCodec.encodeCommand(mFrame, SmartLockCodec.SL_UNLOCK_CMD, "7", mPhoneId, mClock);
+        return mFrame;
+    }
+}
@@ -38,6 +38,7 @@
  *
  */
 
+#include <string.h>
 #include "ble_m.h"
 #include "nordic_common.h"
 #include "nrf_sdh.h"
@@ -54,6 +55,7 @@
 #include "nrf_ble_gatt.h"
 #include "nrf_ble_qwr.h"
 #include "app_uart.h"
+#include "app_util_platform.h"
 #include "nrf_uart.h"
 
 #include "uarts.h"
@@ -83,6 +85,8 @@ NRF_LOG_MODULE_REGISTER();
 #define APP_ADV_INTERVAL                300                                         /**< The advertising interval (in units of 0.625 ms. This value corresponds to 187.5 ms). */
 #define APP_ADV_DURATION                18000                                       /**< The advertising duration (180 seconds) in units of 10 milliseconds. */
 
+#define ANSWER_QUEUE_LEN                16                                          /**< Answers waiting for a SoftDevice buffer; a code batch answers one per frame. */
+
 #define UART_TX_BUF_SIZE                256                                         /**< UART TX buffer size. */
 #define UART_RX_BUF_SIZE                256                                         /**< UART RX buffer size. */
 
@@ -95,6 +99,11 @@ static uint16_t                m_conn_handle  = BLE_CONN_HANDLE_INVALID;
 static ble_gap_conn_sec_mode_t m_sec_mode;                                          /**< Holds GAP security requirements. */
 static ble_advdata_t           m_advdata;                                           /**< Variable holding advertised data. */
 static uint16_t                m_ble_uarts_max_data_len = BLE_GATT_ATT_MTU_DEFAULT - 3;   /**< Maximum length of data (in bytes) that can be transmitted to the peer by the Nordic UART service module. */
+static uint8_t                 m_pending_frame[BLE_UARTS_MAX_DATA_LEN];             /**< Frame the SoftDevice had no buffer for, sent again on TX complete. */
+static uint16_t                m_pending_len;                                       /**< Length of m_pending_frame, 0 if none. */
+static uint8_t                 m_answers[ANSWER_QUEUE_LEN];                         /**< Answer bytes waiting for a SoftDevice buffer, oldest at m_answer_head. */
+static uint8_t                 m_answer_head;                                       /**< Index of the oldest queued answer. */
+static uint8_t                 m_answer_count;                                      /**< Number of queued answers. */
 
 static ble_uuid_t m_adv_uuids[] =                                                   /**< Universally unique service identifiers. */
 {
@@ -160,70 +169,140 @@ void uart_event_handle(app_uart_evt_t * p_event)
     }
 }
 
-void uarts_ble_send_data(uint8_t data)
+/* Sends m_pending_frame, or keeps it for the next TX complete if the
+ * SoftDevice has no buffer free.  Called with interrupts masked. */
+static void uarts_ble_send_pending(void)
+{
+	uint8_t notify[BLE_UARTS_MAX_DATA_LEN];
+	uint16_t len = m_pending_len;
+	uint32_t err_code;
+
+	memcpy(notify, m_pending_frame, len);
+	err_code = ble_uarts_data_send(&m_uarts, notify, &len, m_conn_handle);
+	if (err_code == NRF_ERROR_RESOURCES)
+		return;
+	if (err_code != NRF_SUCCESS)
+	{
+		NRF_LOG_WARNING("Frame 0x%02x not sent, error 0x%x", m_pending_frame[0], err_code);
+	}
+	m_pending_len = 0;
+}
+
+/* Sends the queued answers in order, then m_pending_frame, stopping at the
+ * first one the SoftDevice has no buffer for; the rest go on TX complete.
+ * Called with interrupts masked. */
+static void uarts_ble_flush(void)
 {
-  uint8_t notify[2] = {0, '\n'};
-  uint16_t len = 1;
+	uint8_t notify[2] = {0, '\n'};
+	uint16_t len;
+	uint32_t err_code;
+
+	while (m_answer_count > 0)
+	{
+		notify[0] = m_answers[m_answer_head];
+		len = 1;
+		err_code = ble_uarts_data_send(&m_uarts, notify, &len, m_conn_handle);
+		if (err_code == NRF_ERROR_RESOURCES)
+			return;
+		if (err_code != NRF_SUCCESS)
+		{
+			NRF_LOG_WARNING("Answer 0x%02x not sent, error 0x%x", notify[0], err_code);
+		}
+		m_answer_head = (m_answer_head + 1) % ANSWER_QUEUE_LEN;
+		m_answer_count--;
+	}
+
+	if (m_pending_len > 0)
+	{
+		uarts_ble_send_pending();
+	}
+}
 
-	notify[0] = data;
+/* Answers are queued ahead of telemetry and never dropped while connected.
+ * Called from the main loop, so with the queue full it waits for the
+ * TX complete events to make room. */
+void uarts_ble_send_data(uint8_t data)
+{
+	bool queued = false;
 
-	//NRF_LOG_INFO("Send data to user = %x", notify[0]);
+	//NRF_LOG_INFO("Send data to user = %x", data);
 	smart_lock_pulse_led();
 
-	ble_uarts_data_send(&m_uarts, notify, &len, m_conn_handle);
+	while (!queued && m_conn_handle != BLE_CONN_HANDLE_INVALID)
+	{
+		CRITICAL_REGION_ENTER();
+		if (m_answer_count < ANSWER_QUEUE_LEN)
+		{
+			m_answers[(m_answer_head + m_answer_count) % ANSWER_QUEUE_LEN] = data;
+			m_answer_count++;
+			queued = true;
+		}
+		uarts_ble_flush();
+		CRITICAL_REGION_EXIT();
+		if (!queued)
+		{
+			(void)sd_app_evt_wait();
+		}
+	}
+}
+
+/* A frame waiting for a buffer is replaced by a newer one: the app only
+ * needs the latest telemetry.  It goes out after the queued answers. */
+void uarts_ble_send_frame(uint8_t const * data, uint16_t len)
+{
+	if (len == 0 || len > BLE_UARTS_MAX_DATA_LEN)
+		return;
+
+	CRITICAL_REGION_ENTER();
+	memcpy(m_pending_frame, data, len);
+	m_pending_len = len;
+	uarts_ble_flush();
+	CRITICAL_REGION_EXIT();
 }
 
 
 /**@brief Function for handling the data from the Nordic UART Service.
  *
- * @details This function will process the data received from the Nordic UART BLE Service and send
- *          it to the UART module.
+ * @details This function will queue the data received from the Nordic UART BLE Service for the
+ *          main loop and echo it to the UART module.
  *
  * @param[in] p_evt       Nordic UART Service event.
  */
 /**@snippet [Handling the data received over BLE] */
 static void uarts_data_handler(ble_uarts_evt_t * p_evt)
 {
-    uint8_t code[BLE_UARTS_MAX_DATA_LEN] = {0};
-
     if (p_evt->type == BLE_UARTS_EVT_RX_DATA)
     {
-        uint32_t err_code;
-
         NRF_LOG_DEBUG("Received data from BLE NUS. Writing data on UART.");
 
         NRF_LOG_HEXDUMP_DEBUG(p_evt->params.rx_data.p_data, p_evt->params.rx_data.length);
 
+        // Parsed by smart_lock_process() in the main loop, so a command that
+        // beeps or answers does not hold up the BLE stack.
+        if (!smart_lock_rx_put(p_evt->params.rx_data.p_data, p_evt->params.rx_data.length))
+        {
+            NRF_LOG_INFO("Receive ring full, packet dropped");
+        }
+
+        // Echo for debugging; bytes the UART FIFO has no room for are dropped
+        // rather than waited for.
         for (uint32_t i = 0; i < p_evt->params.rx_data.length; i++)
         {
-            do
+            uint32_t err_code = app_uart_put(p_evt->params.rx_data.p_data[i]);
+            if ((err_code != NRF_SUCCESS) && (err_code != NRF_ERROR_BUSY) &&
+                (err_code != NRF_ERROR_NO_MEM))
             {
-              code[i] = p_evt->params.rx_data.p_data[i];
-              if (code[i] >= 0x30 && code[i] <= 0x39)
-                code[i] = code[i] - 0x30;
-              else
-                code[i] = code[i] - 0x57;
-
-              //NRF_LOG_INFO("READ DATA = 0x%x", code[i]);
-              err_code = app_uart_put(p_evt->params.rx_data.p_data[i]);
-              if ((err_code != NRF_SUCCESS) && (err_code != NRF_ERROR_BUSY))
-              {
                 NRF_LOG_ERROR("Failed receiving NUS message. Error 0x%x. ", err_code);
                 APP_ERROR_CHECK(err_code);
-              }
-            } while (err_code == NRF_ERROR_BUSY);
-        }
-        if (p_evt->params.rx_data.p_data[p_evt->params.rx_data.length - 1] == '\r')
-        {
-            while (app_uart_put('\n') == NRF_ERROR_BUSY);
+            }
         }
-
-        smart_lock_parse_data(code, p_evt->params.rx_data.length);
     }
 
     if (p_evt->type == BLE_UARTS_EVT_TX_RDY)
     {
-       // No implement needed.
+        CRITICAL_REGION_ENTER();
+        uarts_ble_flush();
+        CRITICAL_REGION_EXIT();
     }
 }
 
@@ -244,6 +323,8 @@ static void ble_evt_handler(ble_evt_t const * p_ble_evt, void * p_context)
             err_code = bsp_indication_set(BSP_INDICATE_IDLE);
             APP_ERROR_CHECK(err_code);
             m_conn_handle = BLE_CONN_HANDLE_INVALID;
+            m_pending_len = 0;
+            m_answer_count = 0;
             pm_peers_delete();
             break;
 
@@ -100,6 +100,8 @@ void services_init(void);
 
 void uarts_ble_send_data(uint8_t data);
 
+void uarts_ble_send_frame(uint8_t const * data, uint16_t len);
+
 
 /**@brief Function for getting the advertising module instance.
  *
@@ -0,0 +1,617 @@
+#include <stdbool.h>
+#include <stdint.h>
+#include <string.h>
+#include "app_error.h"
+#include "fds.h"
+#include "nrf_log.h"
+
+#include "codestore.h"
+
+#define CS_MASK                         (CS_SLOTS - 1)
+#define CS_CHUNKS                       (CS_MAX_CODES / CS_CHUNK_CODES)
+#define CS_HEADER_WORDS                 2 //gen and index/count of chunk and log records
+#define CS_INFO_WORDS                   ((sizeof(cs_info_t) + 3) / 4)
+#define CS_GC_WORDS                     512 //freeable words that are worth a garbage collection
+
+#define CS_OP_NONE                      0
+#define CS_OP_SNAPSHOT                  1
+#define CS_OP_LOG                       2
+#define CS_OP_CLEANUP                   3
+
+/* Commits the chunks of its generation */
+typedef struct
+{
+	uint32_t gen;
+	uint16_t chunks;
+	uint16_t codes;
+	uint8_t date[CS_DATE_LEN];
+	uint8_t pad[2];
+} cs_info_t;
+
+/* Up to CS_CHUNK_CODES codes of a snapshot, each |uses (8)|code (24)| */
+typedef struct
+{
+	uint32_t gen;
+	uint16_t index;
+	uint16_t count;
+	uint32_t entries[CS_CHUNK_CODES];
+} cs_chunk_t;
+
+/* Codes used since the snapshot of gen */
+typedef struct
+{
+	uint32_t gen;
+	uint32_t count;
+	uint32_t codes[CS_USED_MAX];
+} cs_used_t;
+
+/* The table: a slot is free when its uses are 0. Deletion shifts the
+ * following codes back instead of leaving tombstones, so lookups never
+ * slow down however many codes were used. */
+static uint32_t cs_keys[CS_SLOTS];
+static uint8_t cs_uses[CS_SLOTS];
+static int cs_codes = 0;
+static int cs_count = 0;
+static uint8_t cs_date[CS_DATE_LEN];
+
+/* Flash state, main loop only */
+static bool cs_registered = false;
+static bool cs_loaded = false;
+static bool cs_dirty = false;
+static bool cs_gc_wait = false;
+static int cs_op = CS_OP_NONE;
+static uint32_t cs_op_words = 0;
+static uint32_t cs_gen = 0;
+static int cs_log_records = 0;
+static uint32_t cs_used[CS_USED_MAX];
+static int cs_used_n = 0;
+static uint16_t cs_cleanup[2];
+static int cs_cleanup_n = 0;
+static code_store_stats_t cs_stats;
+
+/* The snapshot being written: its chunks, then the info record, then the
+ * delete of the previous generation. FDS reads the buffers until each
+ * write completes. */
+static cs_chunk_t cs_snap_chunks[CS_CHUNKS];
+static cs_info_t cs_snap_info;
+static int cs_snap_step = -1;
+static cs_used_t cs_log;
+
+/* Set by the FDS event handler */
+static volatile bool cs_fds_ready = false;
+static volatile bool cs_fds_failed = false;
+static volatile bool cs_op_done = false;
+static volatile bool cs_gc_done = false;
+static volatile ret_code_t cs_op_result = NRF_SUCCESS;
+
+static uint32_t cs_home(uint32_t code)
+{
+	/* Fibonacci hashing, so codes made in sequence still spread out */
+	return (code * 2654435761u) >> (32 - CS_SLOTS_BITS);
+}
+
+static int cs_find(uint32_t code)
+{
+	uint32_t i = cs_home(code);
+
+	while (cs_uses[i] != 0)
+	{
+		if (cs_keys[i] == code)
+			return i;
+		i = (i + 1) & CS_MASK;
+	}
+	return -1;
+}
+
+static void cs_remove(uint32_t i)
+{
+	uint32_t j = i, home;
+
+	for (;;)
+	{
+		j = (j + 1) & CS_MASK;
+		if (cs_uses[j] == 0)
+			break;
+
+		/* j can move back to i unless its home slot lies after i */
+		home = cs_home(cs_keys[j]);
+		if (((j - home) & CS_MASK) >= ((j - i) & CS_MASK))
+		{
+			cs_keys[i] = cs_keys[j];
+			cs_uses[i] = cs_uses[j];
+			i = j;
+		}
+	}
+	cs_uses[i] = 0;
+}
+
+static bool cs_put(uint32_t code, int uses)
+{
+	uint32_t i = cs_home(code);
+
+	if (code > CS_CODE_MAX || uses <= 0)
+		return false;
+
+	while (cs_uses[i] != 0 && cs_keys[i] != code)
+	{
+		i = (i + 1) & CS_MASK;
+	}
+
+	if (cs_uses[i] == 0)
+	{
+		if (cs_codes >= CS_MAX_CODES)
+			return false;
+		cs_keys[i] = code;
+		cs_codes++;
+	}
+	else if (cs_uses[i] + uses > CS_MAX_USES)
+	{
+		return false;
+	}
+
+	cs_uses[i] += uses;
+	cs_count += uses;
+	return true;
+}
+
+static bool cs_take(uint32_t code)
+{
+	int i = cs_find(code);
+
+	if (i < 0)
+		return false;
+
+	cs_count--;
+	if (--cs_uses[i] == 0)
+	{
+		cs_remove(i);
+		cs_codes--;
+	}
+	return true;
+}
+
+static void cs_clear_table(void)
+{
+	memset(cs_uses, 0, sizeof(cs_uses));
+	cs_codes = 0;
+	cs_count = 0;
+}
+
+static void cs_fds_evt_handler(fds_evt_t const * p_evt)
+{
+	switch (p_evt->id)
+	{
+		case FDS_EVT_INIT:
+			if (p_evt->result == NRF_SUCCESS)
+				cs_fds_ready = true;
+			else
+				cs_fds_failed = true;
+			break;
+		case FDS_EVT_WRITE:
+			if ((p_evt->write.file_id & ~1) == CS_FILE_ID)
+			{
+				cs_op_result = p_evt->result;
+				cs_op_done = true;
+			}
+			break;
+		case FDS_EVT_DEL_FILE:
+			if ((p_evt->del.file_id & ~1) == CS_FILE_ID)
+			{
+				cs_op_result = p_evt->result;
+				cs_op_done = true;
+			}
+			break;
+		case FDS_EVT_GC:
+			cs_gc_done = true;
+			break;
+		default:
+			break;
+	}
+}
+
+static void cs_collect_garbage(void)
+{
+	cs_gc_done = false;
+	cs_gc_wait = true;
+	if (fds_gc() != NRF_SUCCESS)
+		cs_gc_wait = false;
+}
+
+/* Start an FDS operation; its event ends it. */
+static ret_code_t cs_start(int op, uint16_t file_id, uint16_t key, void const *data, uint32_t words)
+{
+	fds_record_t record;
+	ret_code_t err_code;
+
+	cs_op_done = false;
+	if (data == NULL)
+	{
+		err_code = fds_file_delete(file_id);
+	}
+	else
+	{
+		record.file_id = file_id;
+		record.key = key;
+		record.data.p_data = data;
+		record.data.length_words = words;
+		err_code = fds_record_write(NULL, &record);
+	}
+
+	if (err_code == NRF_SUCCESS)
+	{
+		cs_op = op;
+		cs_op_words = data == NULL ? 0 : words;
+	}
+	else if (err_code == FDS_ERR_NO_SPACE_IN_FLASH)
+	{
+		NRF_LOG_INFO("Code store: flash full, collecting garbage");
+		cs_stats.failures++;
+		cs_collect_garbage();
+	}
+	/* Otherwise the FDS queue is full; the next pass tries again */
+	return err_code;
+}
+
+static void cs_snapshot_begin(void)
+{
+	int n = 0;
+
+	memset(&cs_snap_info, 0, sizeof(cs_snap_info));
+	for (uint32_t i = 0; i < CS_SLOTS; i++)
+	{
+		cs_chunk_t *chunk = &cs_snap_chunks[n / CS_CHUNK_CODES];
+
+		if (cs_uses[i] == 0)
+			continue;
+		chunk->entries[n % CS_CHUNK_CODES] = (uint32_t)cs_uses[i] << 24 | cs_keys[i];
+		n++;
+	}
+
+	cs_snap_info.gen = cs_gen + 1;
+	cs_snap_info.chunks = (n + CS_CHUNK_CODES - 1) / CS_CHUNK_CODES;
+	cs_snap_info.codes = n;
+	memcpy(cs_snap_info.date, cs_date, CS_DATE_LEN);
+	for (int c = 0; c < cs_snap_info.chunks; c++)
+	{
+		cs_snap_chunks[c].gen = cs_snap_info.gen;
+		cs_snap_chunks[c].index = c;
+		cs_snap_chunks[c].count = n - c * CS_CHUNK_CODES < CS_CHUNK_CODES ?
+					n - c * CS_CHUNK_CODES : CS_CHUNK_CODES;
+	}
+
+	/* Codes used until now are in the snapshot */
+	cs_used_n = 0;
+	cs_dirty = false;
+	cs_snap_step = 0;
+}
+
+static void cs_snapshot_step(void)
+{
+	uint16_t file_id = CS_FILE_ID + (cs_snap_info.gen & 1);
+	int step = cs_snap_step;
+
+	if (step < cs_snap_info.chunks)
+		cs_start(CS_OP_SNAPSHOT, file_id, CS_REC_CHUNK, &cs_snap_chunks[step],
+			 CS_HEADER_WORDS + cs_snap_chunks[step].count);
+	else if (step == cs_snap_info.chunks)
+		cs_start(CS_OP_SNAPSHOT, file_id, CS_REC_INFO, &cs_snap_info, CS_INFO_WORDS);
+	else
+		cs_start(CS_OP_SNAPSHOT, CS_FILE_ID + ((cs_snap_info.gen + 1) & 1), 0, NULL, 0);
+}
+
+static void cs_snapshot_done(void)
+{
+	fds_stat_t stat;
+
+	if (cs_snap_step == cs_snap_info.chunks)
+	{
+		/* Committed: from now on the log goes to the new file */
+		cs_gen = cs_snap_info.gen;
+		cs_log_records = 0;
+		cs_stats.snapshots++;
+	}
+
+	if (cs_snap_step++ <= cs_snap_info.chunks)
+		return;
+
+	cs_snap_step = -1;
+	if (fds_stat(&stat) == NRF_SUCCESS && stat.freeable_words >= CS_GC_WORDS)
+		cs_collect_garbage();
+}
+
+static void cs_log_write(void)
+{
+	cs_log.gen = cs_gen;
+	cs_log.count = cs_used_n;
+	memcpy(cs_log.codes, cs_used, cs_used_n * sizeof(cs_used[0]));
+	if (cs_start(CS_OP_LOG, CS_FILE_ID + (cs_gen & 1), CS_REC_USED, &cs_log,
+		     CS_HEADER_WORDS + cs_used_n) == NRF_SUCCESS)
+		cs_used_n = 0;
+}
+
+static void cs_op_finished(void)
+{
+	int op = cs_op;
+
+	cs_op = CS_OP_NONE;
+	if (cs_op_result != NRF_SUCCESS)
+	{
+		/* Redo the step; used codes that did not make it into the log
+		 * go into the next snapshot */
+		NRF_LOG_INFO("Code store: flash operation failed, 0x%x", cs_op_result);
+		cs_stats.failures++;
+		if (op == CS_OP_LOG)
+			cs_dirty = true;
+		return;
+	}
+
+	cs_stats.words += cs_op_words;
+	switch (op)
+	{
+		case CS_OP_SNAPSHOT:
+			cs_snapshot_done();
+			break;
+		case CS_OP_LOG:
+			cs_stats.log_records++;
+			cs_log_records++;
+			break;
+		case CS_OP_CLEANUP:
+			cs_cleanup_n--;
+			break;
+	}
+}
+
+static bool cs_read_info(uint16_t file_id, cs_info_t *info)
+{
+	fds_record_desc_t desc;
+	fds_find_token_t token;
+	fds_flash_record_t record;
+	bool found = false;
+
+	memset(&token, 0, sizeof(token));
+	while (fds_record_find(file_id, CS_REC_INFO, &desc, &token) == NRF_SUCCESS)
+	{
+		if (fds_record_open(&desc, &record) != NRF_SUCCESS)
+			continue;
+		if (record.p_header->length_words == CS_INFO_WORDS &&
+		    (!found || ((cs_info_t const *)record.p_data)->gen > info->gen))
+		{
+			memcpy(info, record.p_data, sizeof(*info));
+			found = true;
+		}
+		fds_record_close(&desc);
+	}
+	return found;
+}
+
+/* The newest committed snapshot and the codes used since. */
+static void cs_load(void)
+{
+	fds_record_desc_t desc;
+	fds_find_token_t token;
+	fds_flash_record_t record;
+	cs_info_t info[2];
+	bool valid[2];
+	int f;
+
+	valid[0] = cs_read_info(CS_FILE_ID, &info[0]);
+	valid[1] = cs_read_info(CS_FILE_ID + 1, &info[1]);
+	if (!valid[0] && !valid[1])
+	{
+		/* Leftovers of a snapshot that never committed */
+		cs_cleanup[0] = CS_FILE_ID;
+		cs_cleanup[1] = CS_FILE_ID + 1;
+		cs_cleanup_n = 2;
+		NRF_LOG_INFO("Code store: no codes in flash");
+		return;
+	}
+
+	f = valid[0] && (!valid[1] || info[0].gen > info[1].gen) ? 0 : 1;
+	cs_gen = info[f].gen;
+	memcpy(cs_date, info[f].date, CS_DATE_LEN);
+	cs_cleanup[0] = CS_FILE_ID + (f ^ 1);
+	cs_cleanup_n = 1;
+
+	memset(&token, 0, sizeof(token));
+	while (fds_record_find(CS_FILE_ID + f, CS_REC_CHUNK, &desc, &token) == NRF_SUCCESS)
+	{
+		cs_chunk_t const *chunk;
+
+		if (fds_record_open(&desc, &record) != NRF_SUCCESS)
+			continue;
+		chunk = record.p_data;
+		if (chunk->gen == cs_gen && chunk->count <= CS_CHUNK_CODES)
+		{
+			for (int i = 0; i < chunk->count; i++)
+				cs_put(chunk->entries[i] & CS_CODE_MAX, chunk->entries[i] >> 24);
+		}
+		fds_record_close(&desc);
+	}
+
+	memset(&token, 0, sizeof(token));
+	while (fds_record_find(CS_FILE_ID + f, CS_REC_USED, &desc, &token) == NRF_SUCCESS)
+	{
+		cs_used_t const *used;
+
+		if (fds_record_open(&desc, &record) != NRF_SUCCESS)
+			continue;
+		used = record.p_data;
+		if (used->gen == cs_gen && used->count <= CS_USED_MAX)
+		{
+			for (uint32_t i = 0; i < used->count; i++)
+				cs_take(used->codes[i]);
+			cs_log_records++;
+		}
+		fds_record_close(&desc);
+	}
+
+	NRF_LOG_INFO("Code store: generation %d, %d codes, %d uses", cs_gen, cs_codes, cs_count);
+}
+
+/* Register with FDS and read the codes back once it is up, see
+ * code_store_process(). Calling it again drops the table and reads it
+ * back from flash. */
+void code_store_init(void)
+{
+	ret_code_t err_code;
+
+	cs_clear_table();
+	memset(cs_date, 0, sizeof(cs_date));
+	cs_loaded = false;
+	cs_dirty = false;
+	cs_gc_wait = false;
+	cs_op = CS_OP_NONE;
+	cs_gen = 0;
+	cs_log_records = 0;
+	cs_used_n = 0;
+	cs_cleanup_n = 0;
+	cs_snap_step = -1;
+	cs_fds_ready = false;
+	cs_fds_failed = false;
+
+	if (!cs_registered)
+	{
+		err_code = fds_register(cs_fds_evt_handler);
+		APP_ERROR_CHECK(err_code);
+		cs_registered = true;
+	}
+
+	/* The peer manager may have started FDS already; it then reports
+	 * FDS_EVT_INIT again */
+	err_code = fds_init();
+	APP_ERROR_CHECK(err_code);
+}
+
+/* Main loop work: one flash operation at a time, snapshots before log
+ * records. Used codes are logged as soon as the previous operation is
+ * done, so codes used meanwhile go into one record.
+ * Returns true on the pass the codes were read back from flash. */
+bool code_store_process(void)
+{
+	bool loaded_now = false;
+
+	if (!cs_loaded)
+	{
+		if (!cs_fds_ready && !cs_fds_failed)
+			return false;
+		if (cs_fds_ready)
+			cs_load();
+		else
+			NRF_LOG_INFO("Code store: no flash, codes are lost on reset");
+		cs_loaded = true;
+		loaded_now = true;
+	}
+
+	if (cs_fds_failed)
+		return loaded_now;
+
+	if (cs_op != CS_OP_NONE)
+	{
+		if (!cs_op_done)
+			return loaded_now;
+		cs_op_finished();
+	}
+
+	if (cs_gc_wait)
+	{
+		if (!cs_gc_done)
+			return loaded_now;
+		cs_gc_wait = false;
+	}
+
+	if (cs_cleanup_n > 0)
+		cs_start(CS_OP_CLEANUP, cs_cleanup[cs_cleanup_n - 1], 0, NULL, 0);
+	else if (cs_snap_step >= 0)
+		cs_snapshot_step();
+	else if (cs_dirty || cs_log_records >= CS_LOG_RECORDS_MAX)
+	{
+		cs_snapshot_begin();
+		cs_snapshot_step();
+	}
+	else if (cs_used_n > 0)
+		cs_log_write();
+
+	return loaded_now;
+}
+
+/* Whether the codes were read back from flash, so commands can use them */
+bool code_store_ready(void)
+{
+	return cs_loaded;
+}
+
+/* Whether changes still wait to be written */
+bool code_store_busy(void)
+{
+	if (cs_fds_failed)
+		return false;
+	return cs_op != CS_OP_NONE || cs_gc_wait || cs_dirty || cs_used_n > 0 ||
+	       cs_cleanup_n > 0 || cs_snap_step >= 0;
+}
+
+void code_store_clear(void)
+{
+	cs_clear_table();
+	cs_used_n = 0;
+	cs_dirty = true;
+}
+
+/* Load code once more. Returns false if it is not a code or the table is full. */
+bool code_store_add(uint32_t code)
+{
+	if (!cs_put(code, 1))
+		return false;
+	cs_dirty = true;
+	return true;
+}
+
+/* Use code up once. Returns false if the lock does not hold it. */
+bool code_store_consume(uint32_t code)
+{
+	if (!cs_take(code))
+		return false;
+
+	/* A snapshot still to come has it already */
+	if (cs_dirty || cs_fds_failed)
+		return true;
+
+	if (cs_used_n == CS_USED_MAX)
+	{
+		cs_used_n = 0;
+		cs_dirty = true;
+	}
+	else
+	{
+		cs_used[cs_used_n++] = code;
+	}
+	return true;
+}
+
+/* Unlocks the codes allow, a code loaded twice counts twice */
+int code_store_count(void)
+{
+	return cs_count;
+}
+
+/* Distinct codes held */
+int code_store_codes(void)
+{
+	return cs_codes;
+}
+
+/* Expiry of the codes, yymmddhhmm one digit per byte; saved with them */
+void code_store_set_date(uint8_t const *date)
+{
+	memcpy(cs_date, date, CS_DATE_LEN);
+	cs_dirty = true;
+}
+
+uint8_t const * code_store_date(void)
+{
+	return cs_date;
+}
+
+void code_store_get_stats(code_store_stats_t *stats)
+{
+	*stats = cs_stats;
+}
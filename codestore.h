@@ -0,0 +1,58 @@
+#include <stdint.h>
+#include <stdbool.h>
+
+#ifndef CODESTORE_H__
+#define CODESTORE_H__
+
+//Access codes in an open-addressed hash table, a code is the number its digits spell
+#define CS_SLOTS_BITS                   9
+#define CS_SLOTS                        (1 << CS_SLOTS_BITS)
+#define CS_MAX_CODES                    (CS_SLOTS / 2) //at most half full, so probes stay short
+#define CS_MAX_USES                     0xFF //times one code can be loaded
+#define CS_CODE_MAX                     0xFFFFFF //codes are 3 bytes in a load frame
+#define CS_DATE_LEN                     10 //SL_CODE_TIME_LEN
+
+//Flash: a snapshot of the table per generation, in file CS_FILE_ID + (gen & 1),
+//followed by a log of the codes used since. Snapshot records are written before
+//the info record that commits them; then the other file is deleted.
+#define CS_FILE_ID                      0x5C00
+#define CS_REC_INFO                     0x0001
+#define CS_REC_CHUNK                    0x0002
+#define CS_REC_USED                     0x0003
+#define CS_CHUNK_CODES                  64
+#define CS_USED_MAX                     32 //used codes waiting for one log record
+#define CS_LOG_RECORDS_MAX              32 //log records before the next snapshot
+
+typedef struct
+{
+	uint32_t snapshots;     //committed snapshots
+	uint32_t log_records;   //used-code log records written
+	uint32_t words;         //data words written, record headers not counted
+	uint32_t failures;      //flash operations that failed and were redone
+} code_store_stats_t;
+
+void code_store_init(void);
+
+bool code_store_process(void);
+
+bool code_store_ready(void);
+
+void code_store_clear(void);
+
+bool code_store_add(uint32_t code);
+
+bool code_store_consume(uint32_t code);
+
+int code_store_count(void);
+
+int code_store_codes(void);
+
+void code_store_set_date(uint8_t const *date);
+
+uint8_t const * code_store_date(void);
+
+bool code_store_busy(void);
+
+void code_store_get_stats(code_store_stats_t *stats);
+
+#endif // CODESTORE_H__
@@ -0,0 +1,275 @@
+/* Measures codestore.c on a Linux host: the time a lookup, a use and a load
+ * of a code take against a linear scan of the same codes, and what keeping
+ * the codes costs in flash, on the simulated FDS of fds_host.c.
+ *
+ *   make codestore_bench && ./codestore_bench            256 codes
+ *   ./codestore_bench -c 200 -u 4                        200 codes, 4 unlocks per main loop pass
+ *
+ * Flash time is estimated from the nRF52840 datasheet: 41 us per word
+ * written, 85 ms per page erased. Exits non-zero if the codes read back
+ * after a reset differ from those in RAM. */
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "bsp.h"
+#include "codestore.h"
+#include "fds_host.h"
+
+#define BENCH_ROUNDS                    2000
+#define BENCH_WORD_US                   41
+#define BENCH_ERASE_MS                  85
+
+static uint32_t codes[CS_MAX_CODES];
+static uint32_t misses[CS_MAX_CODES];
+static uint32_t order[CS_MAX_CODES];
+
+void host_error_check(ret_code_t err_code, char const *file, int line)
+{
+	if (err_code != NRF_SUCCESS)
+	{
+		fprintf(stderr, "%s:%d: error 0x%x\n", file, line, err_code);
+		exit(1);
+	}
+}
+
+static uint64_t host_ns(void)
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000u + ts.tv_nsec;
+}
+
+/* Main loop passes until the store has nothing left to write */
+static int settle(void)
+{
+	int passes = 0;
+
+	do
+	{
+		host_fds_run();
+		code_store_process();
+		passes++;
+	} while (code_store_busy() || !code_store_ready());
+	return passes;
+}
+
+static void load(int n)
+{
+	code_store_clear();
+	for (int i = 0; i < n; i++)
+	{
+		if (!code_store_add(codes[i]))
+		{
+			fprintf(stderr, "code %d not added\n", i);
+			exit(1);
+		}
+	}
+}
+
+/* The 10-slot array smartlock.c scanned before, grown to n codes */
+static int linear_find(uint32_t const *table, int n, uint32_t code)
+{
+	for (int i = 0; i < n; i++)
+	{
+		if (table[i] == code)
+			return i;
+	}
+	return -1;
+}
+
+static void bench_lookup(int n)
+{
+	static uint32_t table[CS_MAX_CODES];
+	uint64_t start, hash_use = 0, hash_miss = 0, hash_add = 0, scan_use = 0, scan_miss = 0;
+	volatile int sink = 0;
+
+	for (int r = 0; r < BENCH_ROUNDS; r++)
+	{
+		code_store_clear();
+		start = host_ns();
+		for (int i = 0; i < n; i++)
+			sink += code_store_add(codes[i]);
+		hash_add += host_ns() - start;
+
+		start = host_ns();
+		for (int i = 0; i < n; i++)
+			sink += code_store_consume(misses[order[i]]);
+		hash_miss += host_ns() - start;
+
+		start = host_ns();
+		for (int i = 0; i < n; i++)
+			sink += code_store_consume(codes[order[i]]);
+		hash_use += host_ns() - start;
+
+		memcpy(table, codes, n * sizeof(table[0]));
+		start = host_ns();
+		for (int i = 0; i < n; i++)
+			sink += linear_find(table, n, misses[order[i]]);
+		scan_miss += host_ns() - start;
+
+		start = host_ns();
+		for (int i = 0; i < n; i++)
+		{
+			int slot = linear_find(table, n, codes[order[i]]);
+
+			table[slot] = 0xFFFFFFFF;
+			sink += slot;
+		}
+		scan_use += host_ns() - start;
+	}
+
+	printf("%d codes, ns per code:\n", n);
+	printf("  hash table  add %6.1f  use %6.1f  miss %6.1f\n",
+	       (double)hash_add / BENCH_ROUNDS / n, (double)hash_use / BENCH_ROUNDS / n,
+	       (double)hash_miss / BENCH_ROUNDS / n);
+	printf("  linear scan            use %6.1f  miss %6.1f\n",
+	       (double)scan_use / BENCH_ROUNDS / n, (double)scan_miss / BENCH_ROUNDS / n);
+}
+
+static void flash_report(char const *name, host_fds_stats_t const *before, int count)
+{
+	host_fds_stats_t now;
+	uint64_t words, records, erased;
+
+	host_fds_get_stats(&now);
+	words = now.words_written - before->words_written;
+	records = now.records_written - before->records_written;
+	erased = now.pages_erased - before->pages_erased;
+	printf("  %-26s %5llu records %7llu words %3llu erases  %6.1f words  %7.2f ms flash each\n",
+	       name, (unsigned long long)records, (unsigned long long)words,
+	       (unsigned long long)erased, (double)words / count,
+	       (words * BENCH_WORD_US / 1000.0 + erased * BENCH_ERASE_MS) / count);
+}
+
+/* Every code the store holds is back after a reset */
+static bool check_reset(void)
+{
+	int count = code_store_count(), held = code_store_codes();
+
+	code_store_init();
+	settle();
+	if (code_store_count() != count || code_store_codes() != held)
+	{
+		printf("reset: %d uses of %d codes read back, expected %d of %d\n",
+		       code_store_count(), code_store_codes(), count, held);
+		return false;
+	}
+	return true;
+}
+
+static bool bench_flash(int n, int per_pass, int loads)
+{
+	host_fds_stats_t before;
+	code_store_stats_t stats;
+	int count;
+	bool ok = true;
+
+	printf("flash, %d codes, %d unlocks per main loop pass:\n", n, per_pass);
+
+	host_fds_get_stats(&before);
+	for (int l = 0; l < loads; l++)
+	{
+		load(n);
+		settle();
+	}
+	flash_report("load", &before, loads);
+
+	host_fds_get_stats(&before);
+	for (int i = 0; i < n; i += per_pass)
+	{
+		for (int j = i; j < i + per_pass && j < n; j++)
+			code_store_consume(codes[order[j]]);
+		host_fds_run();
+		code_store_process();
+		if (i == n / 2)
+			ok &= check_reset();
+	}
+	settle();
+	flash_report("unlock", &before, n);
+	ok &= check_reset();
+
+	/* A power cut halfway through a load keeps the codes of the last one */
+	load(n);
+	settle();
+	count = code_store_count();
+	load(n / 2);
+	host_fds_run();
+	code_store_process();
+	host_fds_power_cut();
+	code_store_init();
+	settle();
+	if (code_store_count() != count)
+	{
+		printf("power cut: %d uses read back, expected %d\n", code_store_count(), count);
+		ok = false;
+	}
+
+	code_store_get_stats(&stats);
+	printf("  %u snapshots, %u log records, %u failed operations, %d words in use\n",
+	       stats.snapshots, stats.log_records, stats.failures, host_fds_words_used());
+	return ok;
+}
+
+static void usage(char const *name)
+{
+	fprintf(stderr, "usage: %s [-c codes] [-u unlocks per pass] [-l loads]\n", name);
+	exit(2);
+}
+
+int main(int argc, char **argv)
+{
+	int n = CS_MAX_CODES, per_pass = 1, loads = 20, opt;
+	bool ok;
+
+	while ((opt = getopt(argc, argv, "c:u:l:")) != -1)
+	{
+		switch (opt)
+		{
+			case 'c': n = atoi(optarg); break;
+			case 'u': per_pass = atoi(optarg); break;
+			case 'l': loads = atoi(optarg); break;
+			default: usage(argv[0]);
+		}
+	}
+	if (n < 1 || n > CS_MAX_CODES || per_pass < 1 || loads < 1)
+		usage(argv[0]);
+
+	/* Six digit codes as the app makes them, and as many it never loaded */
+	srand(1);
+	for (int i = 0; i < n; i++)
+	{
+		do
+		{
+			codes[i] = rand() % 1000000;
+		} while (linear_find(codes, i, codes[i]) >= 0);
+		order[i] = i;
+	}
+	for (int i = 0; i < n; i++)
+	{
+		do
+		{
+			misses[i] = rand() % 1000000;
+		} while (linear_find(codes, n, misses[i]) >= 0);
+	}
+	for (int i = n - 1; i > 0; i--)
+	{
+		int j = rand() % (i + 1);
+		uint32_t t = order[i];
+
+		order[i] = order[j];
+		order[j] = t;
+	}
+
+	code_store_init();
+	settle();
+
+	bench_lookup(n);
+	ok = bench_flash(n, per_pass, loads);
+	return ok ? 0 : 1;
+}
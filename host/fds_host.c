@@ -0,0 +1,322 @@
+/* Flash Data Storage on simulated flash: the FDS calls codestore.c makes,
+ * with the same page layout, space accounting and event order, so the
+ * host build measures what the board would write and erase.
+ *
+ * Operations queue up like in FDS and complete in host_fds_run(), which
+ * stands in for the SoC flash events; a write reads the caller's buffer
+ * only then. host_fds_power_cut() drops what is still queued. */
+#include <stdbool.h>
+#include <stdint.h>
+#include <string.h>
+
+#include "fds.h"
+#include "fds_host.h"
+
+#define HOST_FDS_PAGES                  2 //FDS_VIRTUAL_PAGES less the swap page
+#define HOST_FDS_PAGE_WORDS             1024 //FDS_VIRTUAL_PAGE_SIZE
+#define HOST_FDS_PAGE_HEADER            2
+#define HOST_FDS_HEADER_WORDS           3
+#define HOST_FDS_QUEUE                  4 //FDS_OP_QUEUE_SIZE
+#define HOST_FDS_MAX_USERS              4 //FDS_MAX_USERS
+#define HOST_FDS_MAX_RECORDS            1024
+
+#define HOST_OP_INIT                    0
+#define HOST_OP_WRITE                   1
+#define HOST_OP_DEL_FILE                2
+#define HOST_OP_GC                      3
+
+typedef struct
+{
+	int type;
+	int page;
+	fds_record_t record;
+	uint16_t file_id;
+} host_fds_op_t;
+
+typedef struct
+{
+	int page;
+	int offset;
+	bool valid;
+} host_fds_rec_t;
+
+static uint32_t flash[HOST_FDS_PAGES][HOST_FDS_PAGE_WORDS];
+static int page_used[HOST_FDS_PAGES] = {HOST_FDS_PAGE_HEADER, HOST_FDS_PAGE_HEADER};
+static int page_reserved[HOST_FDS_PAGES];
+static host_fds_rec_t recs[HOST_FDS_MAX_RECORDS];
+static int rec_count;
+static uint32_t next_record_id = 1;
+
+static fds_cb_t users[HOST_FDS_MAX_USERS];
+static int user_count;
+static host_fds_op_t queue[HOST_FDS_QUEUE];
+static int queue_len;
+static host_fds_stats_t stats;
+
+static fds_header_t *header_of(host_fds_rec_t const *rec)
+{
+	return (fds_header_t *)&flash[rec->page][rec->offset];
+}
+
+static void send(fds_evt_t const *evt)
+{
+	for (int i = 0; i < user_count; i++)
+		users[i](evt);
+}
+
+static ret_code_t enqueue(host_fds_op_t const *op)
+{
+	if (queue_len == HOST_FDS_QUEUE)
+		return FDS_ERR_NO_SPACE_IN_QUEUES;
+	queue[queue_len++] = *op;
+	return NRF_SUCCESS;
+}
+
+ret_code_t fds_register(fds_cb_t cb)
+{
+	if (user_count == HOST_FDS_MAX_USERS)
+		return FDS_ERR_USER_LIMIT_REACHED;
+	users[user_count++] = cb;
+	return NRF_SUCCESS;
+}
+
+ret_code_t fds_init(void)
+{
+	host_fds_op_t op = {.type = HOST_OP_INIT};
+
+	return enqueue(&op);
+}
+
+ret_code_t fds_record_write(fds_record_desc_t * p_desc, fds_record_t const * p_record)
+{
+	int words = HOST_FDS_HEADER_WORDS + p_record->data.length_words;
+	host_fds_op_t op = {.type = HOST_OP_WRITE, .record = *p_record};
+	ret_code_t err_code;
+
+	/* Space is reserved when the write is queued, like FDS does */
+	for (op.page = 0; op.page < HOST_FDS_PAGES; op.page++)
+	{
+		if (HOST_FDS_PAGE_WORDS - page_used[op.page] - page_reserved[op.page] >= words)
+			break;
+	}
+	if (op.page == HOST_FDS_PAGES || rec_count == HOST_FDS_MAX_RECORDS)
+		return FDS_ERR_NO_SPACE_IN_FLASH;
+
+	err_code = enqueue(&op);
+	if (err_code == NRF_SUCCESS)
+		page_reserved[op.page] += words;
+	return err_code;
+}
+
+ret_code_t fds_file_delete(uint16_t file_id)
+{
+	host_fds_op_t op = {.type = HOST_OP_DEL_FILE, .file_id = file_id};
+
+	return enqueue(&op);
+}
+
+ret_code_t fds_gc(void)
+{
+	host_fds_op_t op = {.type = HOST_OP_GC};
+
+	return enqueue(&op);
+}
+
+ret_code_t fds_record_find(uint16_t file_id, uint16_t record_key, fds_record_desc_t * p_desc,
+			   fds_find_token_t * p_token)
+{
+	int i = 0;
+
+	/* The token points at the header of the last record found */
+	if (p_token->p_addr != NULL)
+	{
+		while (i < rec_count && (uint32_t const *)header_of(&recs[i]) != p_token->p_addr)
+			i++;
+		i++;
+	}
+
+	for (; i < rec_count; i++)
+	{
+		fds_header_t const *header = header_of(&recs[i]);
+
+		if (recs[i].valid && header->file_id == file_id && header->record_key == record_key)
+		{
+			p_token->p_addr = (uint32_t const *)header;
+			memset(p_desc, 0, sizeof(*p_desc));
+			p_desc->record_id = header->record_id;
+			p_desc->p_record = (uint32_t const *)header;
+			return NRF_SUCCESS;
+		}
+	}
+	return FDS_ERR_NOT_FOUND;
+}
+
+ret_code_t fds_record_open(fds_record_desc_t * p_desc, fds_flash_record_t * p_flash_record)
+{
+	p_flash_record->p_header = (fds_header_t const *)p_desc->p_record;
+	p_flash_record->p_data = p_desc->p_record + HOST_FDS_HEADER_WORDS;
+	p_desc->record_is_open = true;
+	return NRF_SUCCESS;
+}
+
+ret_code_t fds_record_close(fds_record_desc_t * p_desc)
+{
+	p_desc->record_is_open = false;
+	return NRF_SUCCESS;
+}
+
+ret_code_t fds_stat(fds_stat_t * p_stat)
+{
+	memset(p_stat, 0, sizeof(*p_stat));
+	p_stat->pages_available = HOST_FDS_PAGES;
+	for (int i = 0; i < rec_count; i++)
+	{
+		int words = HOST_FDS_HEADER_WORDS + header_of(&recs[i])->length_words;
+
+		if (recs[i].valid)
+		{
+			p_stat->valid_records++;
+			p_stat->words_used += words;
+		}
+		else
+		{
+			p_stat->dirty_records++;
+			p_stat->freeable_words += words;
+		}
+	}
+	for (int p = 0; p < HOST_FDS_PAGES; p++)
+		p_stat->words_reserved += page_reserved[p];
+	return NRF_SUCCESS;
+}
+
+static void run_write(host_fds_op_t const *op, fds_evt_t *evt)
+{
+	int words = op->record.data.length_words;
+	host_fds_rec_t *rec = &recs[rec_count++];
+	fds_header_t header = {0};
+
+	rec->page = op->page;
+	rec->offset = page_used[op->page];
+	rec->valid = true;
+	header.record_key = op->record.key;
+	header.length_words = words;
+	header.file_id = op->record.file_id;
+	header.record_id = next_record_id++;
+	memcpy(&flash[rec->page][rec->offset], &header, sizeof(header));
+	memcpy(&flash[rec->page][rec->offset + HOST_FDS_HEADER_WORDS], op->record.data.p_data,
+	       words * sizeof(uint32_t));
+
+	page_used[op->page] += HOST_FDS_HEADER_WORDS + words;
+	page_reserved[op->page] -= HOST_FDS_HEADER_WORDS + words;
+	stats.words_written += HOST_FDS_HEADER_WORDS + words;
+	stats.records_written++;
+
+	evt->write.record_id = header.record_id;
+	evt->write.file_id = header.file_id;
+	evt->write.record_key = header.record_key;
+}
+
+/* Deleting only marks the headers, no words are written */
+static void run_del_file(host_fds_op_t const *op, fds_evt_t *evt)
+{
+	for (int i = 0; i < rec_count; i++)
+	{
+		if (header_of(&recs[i])->file_id == op->file_id)
+			recs[i].valid = false;
+	}
+	evt->del.file_id = op->file_id;
+}
+
+/* Every page holding deleted records is copied to the swap page without
+ * them and erased */
+static void run_gc(void)
+{
+	static uint32_t swap[HOST_FDS_PAGE_WORDS];
+
+	for (int p = 0; p < HOST_FDS_PAGES; p++)
+	{
+		int used = HOST_FDS_PAGE_HEADER, kept = 0;
+		bool dirty = false;
+
+		for (int i = 0; i < rec_count; i++)
+			dirty |= recs[i].page == p && !recs[i].valid;
+		if (!dirty)
+			continue;
+
+		for (int i = 0; i < rec_count; i++)
+		{
+			int words;
+
+			if (recs[i].page != p)
+			{
+				recs[kept++] = recs[i];
+				continue;
+			}
+			if (!recs[i].valid)
+				continue;
+			words = HOST_FDS_HEADER_WORDS + header_of(&recs[i])->length_words;
+			memcpy(&swap[used], header_of(&recs[i]), words * sizeof(uint32_t));
+			recs[i].offset = used;
+			recs[kept++] = recs[i];
+			used += words;
+			stats.words_written += words;
+		}
+		memcpy(flash[p], swap, sizeof(swap));
+		rec_count = kept;
+		page_used[p] = used;
+		stats.pages_erased++;
+	}
+	stats.gc_runs++;
+}
+
+void host_fds_run(void)
+{
+	while (queue_len > 0)
+	{
+		host_fds_op_t op = queue[0];
+		fds_evt_t evt;
+
+		memmove(queue, queue + 1, --queue_len * sizeof(queue[0]));
+		memset(&evt, 0, sizeof(evt));
+		evt.result = NRF_SUCCESS;
+		switch (op.type)
+		{
+			case HOST_OP_INIT:
+				evt.id = FDS_EVT_INIT;
+				break;
+			case HOST_OP_WRITE:
+				evt.id = FDS_EVT_WRITE;
+				run_write(&op, &evt);
+				break;
+			case HOST_OP_DEL_FILE:
+				evt.id = FDS_EVT_DEL_FILE;
+				run_del_file(&op, &evt);
+				break;
+			case HOST_OP_GC:
+				evt.id = FDS_EVT_GC;
+				run_gc();
+				break;
+		}
+		send(&evt);
+	}
+}
+
+void host_fds_power_cut(void)
+{
+	queue_len = 0;
+	memset(page_reserved, 0, sizeof(page_reserved));
+}
+
+int host_fds_words_used(void)
+{
+	int words = 0;
+
+	for (int p = 0; p < HOST_FDS_PAGES; p++)
+		words += page_used[p] - HOST_FDS_PAGE_HEADER;
+	return words;
+}
+
+void host_fds_get_stats(host_fds_stats_t *out)
+{
+	*out = stats;
+}
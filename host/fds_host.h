@@ -0,0 +1,23 @@
+/* Simulated flash behind the host build's fds.h, see fds_host.c. */
+#ifndef FDS_HOST_H__
+#define FDS_HOST_H__
+
+#include <stdint.h>
+
+typedef struct
+{
+	uint64_t words_written;         //record headers included
+	uint64_t records_written;
+	uint64_t pages_erased;
+	uint64_t gc_runs;
+} host_fds_stats_t;
+
+void host_fds_run(void);
+
+void host_fds_power_cut(void);
+
+int host_fds_words_used(void);
+
+void host_fds_get_stats(host_fds_stats_t *stats);
+
+#endif // FDS_HOST_H__
@@ -0,0 +1,519 @@
+/* Runs smartlock.c on a Linux host: replays a stream of written packets
+ * through the receive ring and the dispatcher, the way uarts_data_handler()
+ * and the main loop drive them on the board, and reports commands per second
+ * and the time the BLE event handler and the main loop spend per call.
+ *
+ *   make && ./smartlock_host                  generated stream
+ *   ./smartlock_host -w stream.bin -n 5000    record the generated stream
+ *   ./smartlock_host -r stream.bin -b 32      replay a recorded stream
+ *
+ * It then checks the size limits of a written frame: SL_RX_PACKET_MAX per
+ * packet and SL_FRAME_MAX_LEN per reassembled frame.
+ *
+ * A stream file is a sequence of |len (1)|packet (len)| records, one per
+ * GATT write. */
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "app_timer.h"
+#include "bsp.h"
+#include "fds_host.h"
+#include "smartlock.h"
+
+#define HOST_MAX_TIMERS                 8
+#define HOST_MAX_PINS                   64
+#define HOST_ATT_PAYLOAD                20 //default MTU, as the app splits frames
+#define HOST_CHUNK_PAYLOAD              (HOST_ATT_PAYLOAD - 1)
+
+typedef struct
+{
+	uint8_t *data;
+	size_t len;
+	size_t cap;
+	size_t packets;
+} host_stream_t;
+
+static uint8_t pins[HOST_MAX_PINS];
+static host_timer_t *timers[HOST_MAX_TIMERS];
+static int timer_count;
+static uint64_t now_ms;
+
+static uint32_t delay_calls;
+static uint64_t delay_ms_total;
+static uint64_t responses[256];
+static uint64_t response_count;
+static uint64_t telemetry_count;
+static uint64_t expected[256];
+
+/* Board */
+
+void host_error_check(ret_code_t err_code, char const *file, int line)
+{
+	if (err_code != NRF_SUCCESS)
+	{
+		fprintf(stderr, "%s:%d: error 0x%x\n", file, line, err_code);
+		exit(1);
+	}
+}
+
+void nrf_gpio_cfg_output(uint32_t pin)
+{
+}
+
+void nrf_gpio_cfg_input(uint32_t pin, int pull)
+{
+}
+
+void nrf_gpio_pin_set(uint32_t pin)
+{
+	pins[pin % HOST_MAX_PINS] = 1;
+}
+
+void nrf_gpio_pin_clear(uint32_t pin)
+{
+	pins[pin % HOST_MAX_PINS] = 0;
+}
+
+void nrf_gpio_pin_toggle(uint32_t pin)
+{
+	pins[pin % HOST_MAX_PINS] ^= 1;
+}
+
+uint32_t nrf_gpio_pin_read(uint32_t pin)
+{
+	/* LOCKER_PIN stays LOCKER_CONNECT: every lock command finds the latch shut */
+	return pins[pin % HOST_MAX_PINS];
+}
+
+void nrf_delay_ms(uint32_t ms_time)
+{
+	delay_calls++;
+	delay_ms_total += ms_time;
+}
+
+uint32_t app_timer_create(app_timer_id_t const * p_timer_id, app_timer_mode_t mode,
+			  app_timer_timeout_handler_t timeout_handler)
+{
+	host_timer_t *timer = *p_timer_id;
+
+	if (timer_count == HOST_MAX_TIMERS)
+		return 4; //NRF_ERROR_NO_MEM
+
+	timer->handler = timeout_handler;
+	timer->mode = mode;
+	timer->running = 0;
+	timers[timer_count++] = timer;
+	return NRF_SUCCESS;
+}
+
+uint32_t app_timer_start(app_timer_id_t timer_id, uint32_t timeout_ticks, void * p_context)
+{
+	timer_id->interval = timeout_ticks;
+	timer_id->expiry = now_ms + timeout_ticks;
+	timer_id->running = 1;
+	return NRF_SUCCESS;
+}
+
+uint32_t app_timer_stop(app_timer_id_t timer_id)
+{
+	timer_id->running = 0;
+	return NRF_SUCCESS;
+}
+
+/* One pass of the main loop, after the flash operations it started are done */
+static void host_main_loop(void)
+{
+	host_fds_run();
+	smart_lock_process();
+}
+
+/* Fire the timers due up to now_ms + ms, earliest first, like the RTC would. */
+static void host_advance(uint64_t ms)
+{
+	uint64_t end = now_ms + ms;
+
+	for (;;)
+	{
+		host_timer_t *next = NULL;
+
+		for (int i = 0; i < timer_count; i++)
+		{
+			if (timers[i]->running && timers[i]->expiry <= end &&
+			    (next == NULL || timers[i]->expiry < next->expiry))
+				next = timers[i];
+		}
+		if (next == NULL)
+			break;
+
+		now_ms = next->expiry;
+		if (next->mode == APP_TIMER_MODE_REPEATED)
+			next->expiry += next->interval;
+		else
+			next->running = 0;
+		next->handler(NULL);
+		/* The main loop wakes up for every timer interrupt */
+		host_main_loop();
+	}
+	now_ms = end;
+}
+
+/* ble_m.c */
+
+void uarts_ble_send_data(uint8_t data)
+{
+	responses[data]++;
+	response_count++;
+	smart_lock_pulse_led();
+}
+
+void uarts_ble_send_frame(uint8_t const * data, uint16_t len)
+{
+	if (len >= 2 && data[0] == SL_TELEMETRY)
+		telemetry_count++;
+}
+
+/* Streams */
+
+static void stream_put(host_stream_t *s, uint8_t const *packet, int len)
+{
+	if (s->len + 1 + len > s->cap)
+	{
+		s->cap = s->cap ? 2 * s->cap : 4096;
+		s->data = realloc(s->data, s->cap);
+		if (s->data == NULL)
+		{
+			perror("realloc");
+			exit(1);
+		}
+	}
+	s->data[s->len++] = len;
+	memcpy(s->data + s->len, packet, len);
+	s->len += len;
+	s->packets++;
+}
+
+/* SmartLockCodec.encodeCommand() and FrameFragmenter.split() of the app */
+static void stream_command(host_stream_t *s, uint8_t cmd, char const *digits, int response)
+{
+	static uint8_t const dev_id[SL_FRAME_DEV_ID_LEN] = {0x12, 0x34, 0x56, 0x78, 0x9a, 0xbc, 0xde, 0xf0};
+	static uint8_t const date[SL_FRAME_TIME_LEN] = {0x24, 0x10, 0x17, 0x15, 0x30};
+	uint8_t frame[SL_FRAME_MAX_LEN];
+	uint8_t chunk[HOST_ATT_PAYLOAD];
+	int n = strlen(digits), len = 0;
+
+	frame[len++] = SL_FRAME_BINARY | cmd;
+	if (cmd != SL_APP_READY_CMD)
+	{
+		frame[len++] = n;
+		for (int i = 0; i < n; i++)
+			frame[len++] = digits[i] - '0';
+		memcpy(frame + len, dev_id, sizeof(dev_id));
+		len += sizeof(dev_id);
+		memcpy(frame + len, date, sizeof(date));
+		len += sizeof(date);
+	}
+
+	if (len <= HOST_ATT_PAYLOAD)
+	{
+		stream_put(s, frame, len);
+	}
+	else
+	{
+		for (int seq = 0, pos = 0; pos < len; seq++)
+		{
+			int part = len - pos < HOST_CHUNK_PAYLOAD ? len - pos : HOST_CHUNK_PAYLOAD;
+
+			chunk[0] = SL_FRAME_CHUNK | seq | (pos + part == len ? SL_FRAME_CHUNK_LAST : 0);
+			memcpy(chunk + 1, frame + pos, part);
+			stream_put(s, chunk, part + 1);
+			pos += part;
+		}
+	}
+
+	if (response >= 0)
+		expected[response]++;
+}
+
+/* The app's script: load ten codes, then unlock and lock with one code after
+ * the other until the lock runs out and asks for new ones. */
+static void stream_generate(host_stream_t *s, long commands)
+{
+	char digit[2] = {0, 0};
+	long sent = 0;
+
+	while (sent < commands)
+	{
+		stream_command(s, SL_UPDATE_CODE_CMD, "0123456789", SL_UPDATE_SUCCESS);
+		stream_command(s, SL_APP_READY_CMD, "", -1);
+		sent += 2;
+		for (int i = 0; i < SL_CODE_NUM - 1 && sent < commands; i++)
+		{
+			digit[0] = '0' + i;
+			stream_command(s, SL_UNLOCK_CMD, digit, SL_UNLOCK_SUCCESS);
+			stream_command(s, SL_LOCK_CMD, "", SL_LOCK_SUCCESS);
+			sent += 2;
+		}
+		if (sent < commands)
+		{
+			digit[0] = '0' + SL_CODE_NUM - 1;
+			stream_command(s, SL_UNLOCK_CMD, digit, SL_CODE_RUN_OUT);
+			sent++;
+		}
+	}
+}
+
+static void stream_read(host_stream_t *s, char const *path)
+{
+	uint8_t packet[256];
+	FILE *f = fopen(path, "rb");
+	int len;
+
+	if (f == NULL)
+	{
+		perror(path);
+		exit(1);
+	}
+	while ((len = fgetc(f)) != EOF)
+	{
+		if (fread(packet, 1, len, f) != (size_t)len)
+		{
+			fprintf(stderr, "%s: record cut off\n", path);
+			exit(1);
+		}
+		stream_put(s, packet, len);
+	}
+	fclose(f);
+}
+
+static void stream_write(host_stream_t const *s, char const *path)
+{
+	FILE *f = fopen(path, "wb");
+
+	if (f == NULL || fwrite(s->data, 1, s->len, f) != s->len || fclose(f) != 0)
+	{
+		perror(path);
+		exit(1);
+	}
+}
+
+/* Measurement */
+
+static uint64_t host_ns(void)
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000u + ts.tv_nsec;
+}
+
+static int compare_u64(void const *a, void const *b)
+{
+	uint64_t x = *(uint64_t const *)a, y = *(uint64_t const *)b;
+
+	return x < y ? -1 : x > y;
+}
+
+static void report(char const *name, uint64_t *samples, size_t n)
+{
+	if (n == 0)
+		return;
+
+	qsort(samples, n, sizeof(samples[0]), compare_u64);
+	printf("%-22s p50 %6llu ns  p99 %6llu ns  max %8llu ns\n", name,
+	       (unsigned long long)samples[n / 2], (unsigned long long)samples[n * 99 / 100],
+	       (unsigned long long)samples[n - 1]);
+}
+
+/* Limits */
+
+/* The largest frame, a load of SL_CMD_CODES_MAX code bytes, in packets of
+ * SL_RX_PACKET_MAX, and one byte more than the reassembler takes. */
+static bool check_frame_limits(void)
+{
+	static uint8_t const date[SL_FRAME_TIME_LEN] = {0x24, 0x10, 0x17, 0x15, 0x30};
+	uint8_t frame[SL_FRAME_MAX_LEN + 1];
+	uint8_t chunk[SL_RX_PACKET_MAX + 1];
+	uint8_t const *out;
+	uint32_t dropped = smart_lock_rx_dropped();
+	uint64_t loaded = responses[SL_UPDATE_SUCCESS];
+	int len = 0, part = SL_RX_PACKET_MAX - 1, ret;
+	bool ok = true;
+
+	frame[len++] = SL_FRAME_BINARY | SL_LOAD_CODES_CMD;
+	frame[len++] = SL_CMD_CODES_MAX;
+	for (int i = 0; i < SL_CMD_CODES_MAX / SL_CODE_BYTES; i++)
+	{
+		uint32_t code = 100000 + 7919 * i;
+
+		frame[len++] = code >> 16;
+		frame[len++] = code >> 8;
+		frame[len++] = code;
+	}
+	memset(frame + len, 0x11, SL_FRAME_DEV_ID_LEN);
+	len += SL_FRAME_DEV_ID_LEN;
+	memcpy(frame + len, date, SL_FRAME_TIME_LEN);
+	len += SL_FRAME_TIME_LEN;
+
+	/* Through the receive ring and the dispatcher, answered like any load */
+	chunk[0] = SL_FRAME_CHUNK;
+	memcpy(chunk + 1, frame, part);
+	ok &= smart_lock_rx_put(chunk, part + 1);
+	chunk[0] = SL_FRAME_CHUNK | SL_FRAME_CHUNK_LAST | 1;
+	memcpy(chunk + 1, frame + part, len - part);
+	ok &= smart_lock_rx_put(chunk, len - part + 1);
+	host_main_loop();
+	host_main_loop();
+	if (!ok || responses[SL_UPDATE_SUCCESS] != loaded + 1)
+	{
+		printf("limits: %d byte frame in %d byte packets not loaded\n", len, SL_RX_PACKET_MAX);
+		ok = false;
+	}
+
+	/* A packet longer than an ATT payload at the largest MTU, or empty */
+	if (smart_lock_rx_put(chunk, SL_RX_PACKET_MAX + 1) || smart_lock_rx_put(chunk, 0) ||
+	    smart_lock_rx_dropped() != dropped + 2)
+	{
+		printf("limits: packet of %d bytes or empty not dropped\n", SL_RX_PACKET_MAX + 1);
+		ok = false;
+	}
+
+	/* One byte over SL_FRAME_MAX_LEN drops the frame; the next one starts clean */
+	frame[len++] = 0;
+	chunk[0] = SL_FRAME_CHUNK;
+	memcpy(chunk + 1, frame, part);
+	ret = smart_lock_reassemble(chunk, part + 1, &out);
+	chunk[0] = SL_FRAME_CHUNK | SL_FRAME_CHUNK_LAST | 1;
+	memcpy(chunk + 1, frame + part, len - part);
+	if (ret != 0 || smart_lock_reassemble(chunk, len - part + 1, &out) != -1)
+	{
+		printf("limits: %d byte frame not dropped\n", len);
+		ok = false;
+	}
+	chunk[0] = SL_FRAME_CHUNK | SL_FRAME_CHUNK_LAST;
+	if (smart_lock_reassemble(chunk, 3, &out) != 2)
+	{
+		printf("limits: no frame after a dropped one\n");
+		ok = false;
+	}
+
+	/* A chunk out of sequence */
+	chunk[0] = SL_FRAME_CHUNK | 2;
+	if (smart_lock_reassemble(chunk, 3, &out) != -1)
+	{
+		printf("limits: chunk out of sequence not dropped\n");
+		ok = false;
+	}
+
+	if (ok)
+		printf("limits: %d byte frames in %d byte packets\n", SL_FRAME_MAX_LEN,
+		       SL_RX_PACKET_MAX);
+	return ok;
+}
+
+static void usage(char const *name)
+{
+	fprintf(stderr, "usage: %s [-r stream] [-w stream] [-n commands] [-b burst] [-t ms]\n", name);
+	exit(2);
+}
+
+int main(int argc, char **argv)
+{
+	char const *in = NULL, *out = NULL;
+	long commands = 100000;
+	int burst = 8, tick_ms = 10, opt;
+	host_stream_t stream = {0};
+	uint64_t *handler_ns, *loop_ns, dispatch_ns = 0;
+	size_t loops = 0, pos = 0, packets = 0;
+	bool mismatch = false;
+	host_fds_stats_t flash;
+
+	while ((opt = getopt(argc, argv, "r:w:n:b:t:")) != -1)
+	{
+		switch (opt)
+		{
+			case 'r': in = optarg; break;
+			case 'w': out = optarg; break;
+			case 'n': commands = atol(optarg); break;
+			case 'b': burst = atoi(optarg); break;
+			case 't': tick_ms = atoi(optarg); break;
+			default: usage(argv[0]);
+		}
+	}
+	if (burst < 1 || commands < 1)
+		usage(argv[0]);
+
+	if (in)
+		stream_read(&stream, in);
+	else
+		stream_generate(&stream, commands);
+	if (out)
+		stream_write(&stream, out);
+
+	handler_ns = malloc(stream.packets * sizeof(uint64_t));
+	loop_ns = malloc((stream.packets / burst + 1) * sizeof(uint64_t));
+	if (handler_ns == NULL || loop_ns == NULL)
+	{
+		perror("malloc");
+		return 1;
+	}
+
+	smart_lock_init();
+	/* Boot: FDS comes up and the code store reads the flash */
+	host_main_loop();
+
+	while (pos < stream.len)
+	{
+		uint64_t start;
+
+		/* Writes that arrive between two main loop passes */
+		for (int i = 0; i < burst && pos < stream.len; i++)
+		{
+			int len = stream.data[pos];
+
+			start = host_ns();
+			smart_lock_rx_put(stream.data + pos + 1, len);
+			handler_ns[packets++] = host_ns() - start;
+			pos += 1 + len;
+		}
+
+		host_fds_run();
+		start = host_ns();
+		smart_lock_process();
+		loop_ns[loops] = host_ns() - start;
+		dispatch_ns += loop_ns[loops++];
+
+		host_advance(tick_ms);
+	}
+
+	printf("%zu packets, %llu responses, %llu telemetry, %u dropped, %.0f commands/s\n",
+	       packets, (unsigned long long)response_count, (unsigned long long)telemetry_count,
+	       smart_lock_rx_dropped(), dispatch_ns ? response_count * 1e9 / dispatch_ns : 0.0);
+	report("event handler", handler_ns, packets);
+	report("main loop pass", loop_ns, loops);
+	printf("busy waits: %u calls, %llu ms\n", delay_calls, (unsigned long long)delay_ms_total);
+	host_fds_get_stats(&flash);
+	printf("flash: %llu records, %llu words written, %llu pages erased\n",
+	       (unsigned long long)flash.records_written, (unsigned long long)flash.words_written,
+	       (unsigned long long)flash.pages_erased);
+
+	if (in == NULL && smart_lock_rx_dropped() == 0)
+	{
+		for (int code = 0; code < 256; code++)
+		{
+			if (responses[code] != expected[code])
+			{
+				printf("code 0x%02x: %llu answers, expected %llu\n", code,
+				       (unsigned long long)responses[code], (unsigned long long)expected[code]);
+				mismatch = true;
+			}
+		}
+	}
+	if (!check_frame_limits())
+		mismatch = true;
+	return mismatch ? 1 : 0;
+}
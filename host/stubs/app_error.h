@@ -0,0 +1,2 @@
+/* Host build of the firmware: APP_ERROR_CHECK comes with bsp.h. */
+#include "bsp.h"
@@ -0,0 +1,38 @@
+/* Host build of the firmware: app_timer on a virtual clock that
+ * smartlock_host.c advances. */
+#ifndef APP_TIMER_H__
+#define APP_TIMER_H__
+
+#include <stdint.h>
+
+typedef enum
+{
+	APP_TIMER_MODE_SINGLE_SHOT,
+	APP_TIMER_MODE_REPEATED
+} app_timer_mode_t;
+
+typedef void (*app_timer_timeout_handler_t)(void * p_context);
+
+typedef struct host_timer
+{
+	app_timer_timeout_handler_t handler;
+	app_timer_mode_t mode;
+	uint32_t interval;
+	uint64_t expiry;
+	int running;
+} host_timer_t;
+
+typedef host_timer_t * app_timer_id_t;
+
+#define APP_TIMER_DEF(timer_id) \
+	static host_timer_t timer_id##_data; \
+	static app_timer_id_t const timer_id = &timer_id##_data
+
+#define APP_TIMER_TICKS(ms)             (ms)
+
+uint32_t app_timer_create(app_timer_id_t const * p_timer_id, app_timer_mode_t mode,
+			  app_timer_timeout_handler_t timeout_handler);
+uint32_t app_timer_start(app_timer_id_t timer_id, uint32_t timeout_ticks, void * p_context);
+uint32_t app_timer_stop(app_timer_id_t timer_id);
+
+#endif // APP_TIMER_H__
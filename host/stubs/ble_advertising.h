@@ -0,0 +1,10 @@
+/* Host build of the firmware: only the type ble_m.h names. */
+#ifndef BLE_ADVERTISING_H__
+#define BLE_ADVERTISING_H__
+
+typedef struct
+{
+	int unused;
+} ble_advertising_t;
+
+#endif // BLE_ADVERTISING_H__
@@ -0,0 +1,27 @@
+/* Host build of the firmware: the board, GPIO and error handling calls
+ * smartlock.c uses, backed by smartlock_host.c. */
+#ifndef BSP_H__
+#define BSP_H__
+
+#include <stdint.h>
+
+#define NRF_GPIO_PIN_MAP(port, pin)     (((port) << 5) | ((pin) & 0x1F))
+#define LED_1                           NRF_GPIO_PIN_MAP(0, 13)
+#define NRF_GPIO_PIN_PULLUP             3
+
+#define NRF_SUCCESS                     0
+#define APP_ERROR_CHECK(err_code)       host_error_check(err_code, __FILE__, __LINE__)
+#define __DMB()                         __atomic_thread_fence(__ATOMIC_SEQ_CST)
+
+typedef uint32_t ret_code_t;
+
+void host_error_check(ret_code_t err_code, char const *file, int line);
+
+void nrf_gpio_cfg_output(uint32_t pin);
+void nrf_gpio_cfg_input(uint32_t pin, int pull);
+void nrf_gpio_pin_set(uint32_t pin);
+void nrf_gpio_pin_clear(uint32_t pin);
+void nrf_gpio_pin_toggle(uint32_t pin);
+uint32_t nrf_gpio_pin_read(uint32_t pin);
+
+#endif // BSP_H__
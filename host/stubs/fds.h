@@ -0,0 +1,115 @@
+/* Host build of the firmware: the Flash Data Storage calls codestore.c
+ * uses, on the simulated flash of fds_host.c. */
+#ifndef FDS_H__
+#define FDS_H__
+
+#include <stdbool.h>
+#include <stdint.h>
+
+#include "bsp.h"
+
+#define FDS_ERR_NO_SPACE_IN_FLASH       0x8602
+#define FDS_ERR_NO_SPACE_IN_QUEUES      0x8603
+#define FDS_ERR_NOT_FOUND               0x860A
+#define FDS_ERR_USER_LIMIT_REACHED      0x860E
+
+typedef enum
+{
+	FDS_EVT_INIT,
+	FDS_EVT_WRITE,
+	FDS_EVT_UPDATE,
+	FDS_EVT_DEL_RECORD,
+	FDS_EVT_DEL_FILE,
+	FDS_EVT_GC
+} fds_evt_id_t;
+
+typedef struct
+{
+	fds_evt_id_t id;
+	ret_code_t result;
+	union
+	{
+		struct
+		{
+			uint32_t record_id;
+			uint16_t file_id;
+			uint16_t record_key;
+			bool is_record_updated;
+		} write;
+		struct
+		{
+			uint32_t record_id;
+			uint16_t file_id;
+			uint16_t record_key;
+		} del;
+	};
+} fds_evt_t;
+
+typedef void (*fds_cb_t)(fds_evt_t const * p_evt);
+
+typedef struct
+{
+	uint16_t record_key;
+	uint16_t length_words;
+	uint16_t file_id;
+	uint16_t crc16;
+	uint32_t record_id;
+} fds_header_t;
+
+typedef struct
+{
+	uint16_t file_id;
+	uint16_t key;
+	struct
+	{
+		void const * p_data;
+		uint32_t length_words;
+	} data;
+} fds_record_t;
+
+typedef struct
+{
+	uint32_t record_id;
+	uint32_t const * p_record;
+	uint16_t gc_run_count;
+	uint8_t page;
+	bool record_is_open;
+} fds_record_desc_t;
+
+typedef struct
+{
+	fds_header_t const * p_header;
+	void const * p_data;
+} fds_flash_record_t;
+
+typedef struct
+{
+	uint32_t const * p_addr;
+	uint16_t page;
+} fds_find_token_t;
+
+typedef struct
+{
+	uint16_t pages_available;
+	uint16_t open_records;
+	uint16_t valid_records;
+	uint16_t dirty_records;
+	uint16_t words_reserved;
+	uint16_t words_used;
+	uint16_t largest_contig;
+	uint16_t freeable_words;
+	bool corruption;
+} fds_stat_t;
+
+ret_code_t fds_register(fds_cb_t cb);
+ret_code_t fds_init(void);
+ret_code_t fds_record_write(fds_record_desc_t * p_desc, fds_record_t const * p_record);
+ret_code_t fds_file_delete(uint16_t file_id);
+ret_code_t fds_gc(void);
+ret_code_t fds_record_find(uint16_t file_id, uint16_t record_key, fds_record_desc_t * p_desc,
+			   fds_find_token_t * p_token);
+ret_code_t fds_record_open(fds_record_desc_t * p_desc, fds_flash_record_t * p_flash_record);
+ret_code_t fds_record_close(fds_record_desc_t * p_desc);
+ret_code_t fds_stat(fds_stat_t * p_stat);
+
+#endif // FDS_H__
@@ -0,0 +1,9 @@
+/* Host build of the firmware: busy waits are counted, not waited out. */
+#ifndef NRF_DELAY_H__
+#define NRF_DELAY_H__
+
+#include <stdint.h>
+
+void nrf_delay_ms(uint32_t ms_time);
+
+#endif // NRF_DELAY_H__
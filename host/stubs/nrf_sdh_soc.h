@@ -0,0 +1 @@
+/* Host build of the firmware: nothing smartlock.c needs. */
@@ -164,7 +164,7 @@ int main(void)
     for (;;)
     {
       idle_state_handle();
-      smart_lock_detect();
+      smart_lock_process();
     }
 }
 
@@ -4,12 +4,13 @@
 #include "nrf_sdh.h"
 #include "nrf_sdh_soc.h"
 #include "bsp.h"
-#include "nrf_delay.h"
+#include "app_timer.h"
 #include "nrf_log.h"
 #include "nrf_log_ctrl.h"
 #include "nrf_log_default_backends.h"
 
 #include "smartlock.h"
+#include "codestore.h"
 #include "ble_m.h"
 
 smart_lock_info sl_info;
@@ -17,6 +18,36 @@ smart_lock_code_date sl_code_date;
 bool ble_lock_handle = false;
 uint8_t tmp_dev_id[SL_DEV_ID_LEN] = {0};
 
+#define SL_BEEP_GAP_MS                  100
+#define SL_BEEP_UNLOCK_MS               200
+#define SL_BEEP_LOCK_MS                 200
+#define SL_LED_PULSE_MS                 100
+#define SL_LED_PULSES                   2
+#define SL_DETECT_INTERVAL_MS           100
+
+static uint8_t chunk_buf[SL_FRAME_MAX_LEN];
+static int chunk_len = 0;
+static int chunk_seq = 0;
+
+/* Written by the BLE event handler only, read by the main loop only. */
+static uint8_t rx_ring[SL_RX_RING_SIZE];
+static volatile uint16_t rx_head = 0;
+static volatile uint16_t rx_tail = 0;
+static volatile uint32_t rx_dropped = 0;
+
+/* The timers only flag their expiry; smart_lock_process() does the work,
+ * so sl_info and the pins are only touched from the main loop. */
+APP_TIMER_DEF(m_beep_timer);
+APP_TIMER_DEF(m_led_timer);
+APP_TIMER_DEF(m_detect_timer);
+static volatile bool beep_due = false;
+static volatile bool led_due = false;
+static volatile bool detect_due = false;
+static bool timers_created = false;
+static bool store_started = false;
+static uint32_t beep_pending_ms = 0;
+static int led_toggles = 0;
+
 void smart_lock_active_beep(bool enable)
 {
 	if (sl_info.beep == true && enable == true)
@@ -33,18 +64,82 @@ void smart_lock_active_beep(bool enable)
 	nrf_gpio_pin_toggle(BEEP_PIN);
 }
 
-void smart_lock_pulse_led(void)
+static void smart_lock_timer_start(app_timer_id_t timer, uint32_t ms)
 {
-	for (int i = 0; i < 2; i++)
+	ret_code_t err_code = app_timer_start(timer, APP_TIMER_TICKS(ms), NULL);
+	APP_ERROR_CHECK(err_code);
+}
+
+/* Beep for on_ms after delay_ms of silence, without waiting for it. */
+static void smart_lock_beep(uint32_t delay_ms, uint32_t on_ms)
+{
+	app_timer_stop(m_beep_timer);
+	beep_due = false;
+	smart_lock_active_beep(false);
+
+	if (delay_ms == 0)
 	{
-		nrf_gpio_pin_clear(LED_PIN);
-		nrf_delay_ms(100);
-    nrf_gpio_pin_set(LED_PIN);
-		nrf_delay_ms(100);
-		nrf_gpio_pin_clear(LED_PIN);
+		beep_pending_ms = 0;
+		smart_lock_active_beep(true);
+		smart_lock_timer_start(m_beep_timer, on_ms);
+	}
+	else
+	{
+		beep_pending_ms = on_ms;
+		smart_lock_timer_start(m_beep_timer, delay_ms);
 	}
 }
 
+static void smart_lock_beep_timeout(void)
+{
+	uint32_t on_ms = beep_pending_ms;
+
+	beep_pending_ms = 0;
+	if (on_ms)
+	{
+		smart_lock_active_beep(true);
+		smart_lock_timer_start(m_beep_timer, on_ms);
+	}
+	else
+	{
+		smart_lock_active_beep(false);
+	}
+}
+
+void smart_lock_pulse_led(void)
+{
+	app_timer_stop(m_led_timer);
+	led_due = false;
+	nrf_gpio_pin_clear(LED_PIN);
+	led_toggles = 2 * SL_LED_PULSES;
+	smart_lock_timer_start(m_led_timer, SL_LED_PULSE_MS);
+}
+
+static void smart_lock_led_timeout(void)
+{
+	if (led_toggles <= 0)
+		return;
+
+	nrf_gpio_pin_toggle(LED_PIN);
+	if (--led_toggles > 0)
+		smart_lock_timer_start(m_led_timer, SL_LED_PULSE_MS);
+}
+
+static void beep_timer_handler(void * p_context)
+{
+	beep_due = true;
+}
+
+static void led_timer_handler(void * p_context)
+{
+	led_due = true;
+}
+
+static void detect_timer_handler(void * p_context)
+{
+	detect_due = true;
+}
+
 int smart_lock_read_locker(void)
 {
 	return nrf_gpio_pin_read(LOCKER_PIN);
@@ -72,30 +167,65 @@ void smart_lock_unlocked(void)
 	}
 }
 
-void smart_lock_add_info(uint8_t *buf, int len, int code_len)
+static void smart_lock_set_code_date(uint8_t const *date)
 {
-	memcpy(sl_info.access_code, buf + 2, code_len);
-
-	memcpy(sl_info.dev_id, buf + 5, SL_DEV_ID_LEN);
-
-	memcpy(sl_info.code_date, buf + 21, SL_CODE_TIME_LEN);
+	memcpy(sl_info.code_date, date, SL_CODE_TIME_LEN);
 
 	sl_code_date.years = sl_info.code_date[0] * 10 + sl_info.code_date[1];
 	sl_code_date.months = sl_info.code_date[2] * 10 + sl_info.code_date[3];
 	sl_code_date.days = sl_info.code_date[4] * 10 + sl_info.code_date[5];
 	sl_code_date.hours = sl_info.code_date[6] * 10 + sl_info.code_date[7];
 	sl_code_date.minutes = sl_info.code_date[8] * 10 + sl_info.code_date[9];
+}
+
+/* Digits of an update, or SL_CODE_BYTES bytes per code of a load or add */
+int smart_lock_add_info(uint8_t const *codes, int code_len, int code_bytes,
+			uint8_t const *dev_id, uint8_t const *date)
+{
+	int added = 0;
+
+	for (int i = 0; i + code_bytes <= code_len; i += code_bytes)
+	{
+		uint32_t code = 0;
 
-	sl_info.code_valid = code_len;
+		for (int b = 0; b < code_bytes; b++)
+			code = code << 8 | codes[i + b];
+		if (code_store_add(code))
+			added++;
+	}
+
+	memcpy(sl_info.dev_id, dev_id, SL_DEV_ID_LEN);
+
+	code_store_set_date(date);
+	smart_lock_set_code_date(date);
+
+	sl_info.code_valid = code_store_count();
 	sl_info.update = true;
+	return added;
 }
 
-int smart_lock_compare_date(uint8_t *buf)
+/* The code the unlock digits spell, or -1 if they are not one */
+static int32_t smart_lock_code_of(uint8_t const *digits, int n)
+{
+	uint32_t code = 0;
+
+	for (int i = 0; i < n; i++)
+	{
+		if (digits[i] > 9)
+			return -1;
+		code = code * 10 + digits[i];
+		if (code > CS_CODE_MAX)
+			return -1;
+	}
+	return code;
+}
+
+int smart_lock_compare_date(uint8_t const *date)
 {
 	int years = 0, months = 0, days = 0, hours = 0, minutes = 0;
 	uint8_t tmp[SL_CODE_TIME_LEN] = {0};
 
-	memcpy(tmp, buf + 19, SL_CODE_TIME_LEN);
+	memcpy(tmp, date, SL_CODE_TIME_LEN);
 
 	years = tmp[0] * 10 + tmp[1];
 	months = tmp[2] * 10 + tmp[3];
@@ -131,7 +261,7 @@ int smart_lock_compare_date(uint8_t *buf)
 	return 0;
 }
 
-int smart_lock_compare_dev_id(uint8_t *buf)
+int smart_lock_compare_dev_id(uint8_t const *dev_id)
 {
 	int i;
 
@@ -139,8 +269,8 @@ int smart_lock_compare_dev_id(uint8_t *buf)
 	{
 		for (i = 0; i < SL_DEV_ID_LEN; i++)
 		{
-			NRF_LOG_INFO("[%d]: tmp dev id = %x, buf = %x", i, tmp_dev_id[i], buf[3 + i]);
-			if (tmp_dev_id[i] != buf[3 + i])
+			NRF_LOG_INFO("[%d]: tmp dev id = %x, buf = %x", i, tmp_dev_id[i], dev_id[i]);
+			if (tmp_dev_id[i] != dev_id[i])
 				break;
 		}
 
@@ -151,7 +281,7 @@ int smart_lock_compare_dev_id(uint8_t *buf)
 	{
 		for (i = 0; i < SL_DEV_ID_LEN; i++)
 		{
-			tmp_dev_id[i] = buf[3 + i];
+			tmp_dev_id[i] = dev_id[i];
 			NRF_LOG_INFO("store tmp_dev_id = %x", tmp_dev_id[i]);
 		}
 	}
@@ -162,35 +292,195 @@ void smart_lock_clear_code(void)
 {
 	NRF_LOG_INFO("clear codes");
 
+	code_store_clear();
 	sl_info.code_valid = 0;
 	//sl_info.dev_lock = false;
-
-	for (int i = 0; i <= SL_CODE_NUM; i++)
-	{
-		sl_info.access_code[i] = 0xFF;
-	}
 }
 
 void smart_lock_read_status(void)
 {
-	int ret = smart_lock_read_locker();
-
 	if (smart_lock_read_locker() == LOCKER_CONNECT)
 		sl_info.lock_status = SL_LOCK;
 	else
 		sl_info.lock_status = SL_UNLOCK;
 }
 
+static int smart_lock_put_tlv(uint8_t *buf, int pos, int len, uint8_t type, uint16_t value)
+{
+	int n = value > 0xFF ? 2 : 1;
+
+	if (pos + 2 + n > len)
+		return pos;
+
+	buf[pos++] = type;
+	buf[pos++] = n;
+	if (n == 2)
+		buf[pos++] = value >> 8;
+	buf[pos++] = value & 0xFF;
+	return pos;
+}
+
+/* Fill buf with a telemetry notification of the lock state.
+ * Returns its length. */
+int smart_lock_build_telemetry(uint8_t *buf, int len)
+{
+	int pos = 0, codes_left;
+
+	if (len < 2)
+		return 0;
+
+	sl_info.lock_connect = smart_lock_read_locker();
+	/* An unlock needs more than one code left, see SL_UNLOCK_CMD */
+	codes_left = sl_info.code_valid > 1 ? sl_info.code_valid - 1 : 0;
+	if (codes_left > 0xFFFF)
+		codes_left = 0xFFFF;
+
+	buf[pos++] = SL_TELEMETRY;
+	buf[pos++] = SL_TELEMETRY_VERSION;
+	pos = smart_lock_put_tlv(buf, pos, len, SL_TLV_LOCK_STATUS, sl_info.lock_status);
+	pos = smart_lock_put_tlv(buf, pos, len, SL_TLV_LATCH, sl_info.lock_connect);
+	pos = smart_lock_put_tlv(buf, pos, len, SL_TLV_ALARM_CNT,
+				sl_info.alarm_cnt > 0xFF ? 0xFF : sl_info.alarm_cnt);
+	pos = smart_lock_put_tlv(buf, pos, len, SL_TLV_CODES_LEFT, codes_left);
+
+	return pos;
+}
+
+/* One notification with everything the app would otherwise ask for
+ * command by command. */
+void smart_lock_send_telemetry(void)
+{
+	uint8_t buf[SL_TELEMETRY_MAX_LEN];
+	int len = smart_lock_build_telemetry(buf, sizeof(buf));
+
+	uarts_ble_send_frame(buf, len);
+}
+
+static int smart_lock_unpack_nibbles(uint8_t const *in, int n, uint8_t *out)
+{
+	for (int i = 0; i < n; i++)
+	{
+		out[2 * i] = in[i] >> 4;
+		out[2 * i + 1] = in[i] & 0x0F;
+	}
+	return 2 * n;
+}
+
+/* Expand a packed binary frame into the one-digit-per-byte layout of the
+ * ASCII frames, so smart_lock_parse_data() can handle both.
+ * Returns the expanded length or -1 if the frame is malformed. */
+int smart_lock_unpack_frame(uint8_t const *in, int len, uint8_t *out, int out_len)
+{
+	int n, pos = 0;
+
+	if (len < 1 || (in[0] & SL_FRAME_BINARY) == 0)
+		return -1;
+
+	out[pos++] = in[0] & ~SL_FRAME_BINARY;
+	if (len == 1)
+		return pos;
+
+	n = in[1];
+	if (len != 2 + n + SL_FRAME_DEV_ID_LEN + SL_FRAME_TIME_LEN)
+		return -1;
+	if (2 + n + SL_DEV_ID_LEN + SL_CODE_TIME_LEN > out_len)
+		return -1;
+
+	out[pos++] = n;
+	memcpy(out + pos, in + 2, n);
+	pos += n;
+	pos += smart_lock_unpack_nibbles(in + 2 + n, SL_FRAME_DEV_ID_LEN, out + pos);
+	pos += smart_lock_unpack_nibbles(in + 2 + n + SL_FRAME_DEV_ID_LEN, SL_FRAME_TIME_LEN, out + pos);
+
+	return pos;
+}
+
+/* Collect the chunks of a fragmented frame.
+ * Returns the frame length and points *frame at it once the last chunk
+ * arrived, 0 while more chunks are expected, -1 if the chunk was dropped. */
+int smart_lock_reassemble(uint8_t const *in, int len, uint8_t const **frame)
+{
+	int seq = in[0] & SL_FRAME_CHUNK_SEQ_MASK;
+
+	if (seq != chunk_seq)
+	{
+		chunk_len = 0;
+		chunk_seq = 0;
+		if (seq != 0)
+		{
+			NRF_LOG_INFO("Chunk %d out of order", seq);
+			return -1;
+		}
+	}
+
+	if (chunk_len + len - 1 > SL_FRAME_MAX_LEN)
+	{
+		NRF_LOG_INFO("Chunked frame too long");
+		chunk_len = 0;
+		chunk_seq = 0;
+		return -1;
+	}
+
+	memcpy(chunk_buf + chunk_len, in + 1, len - 1);
+	chunk_len += len - 1;
+	chunk_seq++;
+
+	if ((in[0] & SL_FRAME_CHUNK_LAST) == 0)
+		return 0;
+
+	len = chunk_len;
+	chunk_len = 0;
+	chunk_seq = 0;
+	*frame = chunk_buf;
+	return len;
+}
+
+/* Whether a command carries its n code bytes, dev id and date in full.
+ * Unlock, update, load and add read them at offsets that depend on n. */
+static bool smart_lock_check_frame(uint8_t const *buf, int len, int min_codes, int max_codes,
+				   int code_bytes)
+{
+	if (len < SL_CMD_HEADER_LEN)
+		return false;
+
+	if (buf[1] < min_codes || buf[1] > max_codes || buf[1] % code_bytes != 0)
+		return false;
+
+	return len >= SL_CMD_HEADER_LEN + buf[1] + SL_DEV_ID_LEN + SL_CODE_TIME_LEN;
+}
+
 void smart_lock_parse_data(uint8_t *buf, int len)
 {
-	int i = 0, sl_len = 0, user_code = -1;
+	int sl_len = 0;
+	int32_t user_code = -1;
+	bool valid = true;
 	uint8_t cmd = 0x0;
+	uint8_t const *dev_id, *date;
+
+	if (len < 1)
+		return;
 
 	cmd = buf[0];
-	sl_len = buf[1];
+	sl_len = len > 1 ? buf[1] : 0;
+	dev_id = buf + SL_CMD_HEADER_LEN + sl_len;
+	date = dev_id + SL_DEV_ID_LEN;
 
 	NRF_LOG_INFO("CMD = 0x%x, st_len = %d, len = %d", cmd, sl_len, len);
 
+	if (cmd == SL_UNLOCK_CMD)
+		valid = smart_lock_check_frame(buf, len, 1, SL_CODE_NUM, 1);
+	else if (cmd == SL_UPDATE_CODE_CMD)
+		valid = smart_lock_check_frame(buf, len, 0, SL_CODE_NUM, 1);
+	else if (cmd == SL_LOAD_CODES_CMD || cmd == SL_ADD_CODES_CMD)
+		valid = smart_lock_check_frame(buf, len, SL_CODE_BYTES, SL_CMD_CODES_MAX, SL_CODE_BYTES);
+
+	if (!valid)
+	{
+		NRF_LOG_INFO("Command 0x%x too short for %d codes", cmd, sl_len);
+		uarts_ble_send_data(SL_CODE_INVALID);
+		return;
+	}
+
 	ble_lock_handle = true;
 
 	switch (cmd)
@@ -203,8 +493,8 @@ void smart_lock_parse_data(uint8_t *buf, int len)
 //				goto out;
 //			}
 
-			user_code = buf[2];
-		  NRF_LOG_INFO("User access code = %x", user_code);
+			user_code = smart_lock_code_of(buf + SL_CMD_HEADER_LEN, sl_len);
+		  NRF_LOG_INFO("User access code = %d", user_code);
       NRF_LOG_INFO("valid code left = %d", sl_info.code_valid);
 
 			if (sl_info.code_valid <= 1)
@@ -214,34 +504,29 @@ void smart_lock_parse_data(uint8_t *buf, int len)
 				goto out;
 			}
 
-			if (smart_lock_compare_dev_id(buf) != 0)
+			if (smart_lock_compare_dev_id(dev_id) != 0)
 			{
 				NRF_LOG_INFO("Dev ID not match");
 				uarts_ble_send_data(SL_DEV_ID_FAIL);
 				goto out;
 			}
 
-      if (smart_lock_compare_date(buf) != 0)
+      if (smart_lock_compare_date(date) != 0)
 			{
 				NRF_LOG_INFO("Code is outdated");
 				uarts_ble_send_data(SL_CODE_OUT_OF_DATE);
 				goto out;
 			}
 
-			for (i = 0; i < SL_CODE_NUM; i++)
-		  {
-				if (user_code == sl_info.access_code[i])
-				{
-					sl_info.code_valid--;
-					sl_info.access_code[i] = 0xFF;
-					sl_info.dev_lock = true;
-					smart_lock_unlocked();
-					smart_lock_active_beep(true);
-					nrf_delay_ms(200);
-					smart_lock_active_beep(false);
-					uarts_ble_send_data(SL_UNLOCK_SUCCESS);
-					goto out;
-				}
+			if (user_code >= 0 && code_store_consume(user_code))
+			{
+				sl_info.code_valid = code_store_count();
+				sl_info.dev_lock = true;
+				smart_lock_unlocked();
+				smart_lock_beep(0, SL_BEEP_UNLOCK_MS);
+				uarts_ble_send_data(SL_UNLOCK_SUCCESS);
+				smart_lock_send_telemetry();
+				goto out;
 			}
 
 			NRF_LOG_INFO("Access code is not matched");
@@ -249,21 +534,34 @@ void smart_lock_parse_data(uint8_t *buf, int len)
 			break;
 		case SL_UPDATE_CODE_CMD:
 			smart_lock_clear_code();
-			smart_lock_add_info(buf, len, sl_len);
+			smart_lock_add_info(buf + SL_CMD_HEADER_LEN, sl_len, 1, dev_id, date);
 			NRF_LOG_INFO("Update access codes successfully!");
 		  uarts_ble_send_data(SL_UPDATE_SUCCESS);
+		  smart_lock_send_telemetry();
 		  break;
+		case SL_LOAD_CODES_CMD:
+		case SL_ADD_CODES_CMD:
+			if (cmd == SL_ADD_CODES_CMD &&
+			    code_store_codes() + sl_len / SL_CODE_BYTES > CS_MAX_CODES)
+			{
+				NRF_LOG_INFO("No room for %d more codes", sl_len / SL_CODE_BYTES);
+				uarts_ble_send_data(SL_CODE_INVALID);
+				break;
+			}
+			if (cmd == SL_LOAD_CODES_CMD)
+				smart_lock_clear_code();
+			smart_lock_add_info(buf + SL_CMD_HEADER_LEN, sl_len, SL_CODE_BYTES, dev_id, date);
+			NRF_LOG_INFO("Codes loaded, %d held", code_store_codes());
+			uarts_ble_send_data(SL_UPDATE_SUCCESS);
+			smart_lock_send_telemetry();
+			break;
 		case SL_LOCK_CMD:
 			smart_lock_locked();
 
 		  if (smart_lock_read_locker() == LOCKER_CONNECT)
 			{
 				NRF_LOG_INFO("Lock successful");
-				smart_lock_active_beep(false);
-				nrf_delay_ms(100);
-				smart_lock_active_beep(true);
-				nrf_delay_ms(200);
-				smart_lock_active_beep(false);
+				smart_lock_beep(SL_BEEP_GAP_MS, SL_BEEP_LOCK_MS);
 				sl_info.lock_status = SL_LOCK;
 				uarts_ble_send_data(SL_LOCK_SUCCESS);
 			}
@@ -271,12 +569,15 @@ void smart_lock_parse_data(uint8_t *buf, int len)
 			{
 				sl_info.lock_status = SL_UNUSABLE;
 			}
+			smart_lock_send_telemetry();
 		  break;
 		case SL_APP_READY_CMD:
+			smart_lock_send_telemetry();
 			break;
 		case SL_RESET_CMD:
 			smart_lock_init();
 		  uarts_ble_send_data(SL_RESET_SUCCESS);
+			smart_lock_send_telemetry();
 			break;
 		default:
       NRF_LOG_INFO("Unknown CMD !");
@@ -294,8 +595,6 @@ void smart_lock_detect(void)
 	if (ble_lock_handle)
 		return;
 
-	nrf_delay_ms(100);
-
 	actual_lock = smart_lock_read_locker();
 
 	switch (sl_info.lock_status)
@@ -309,13 +608,10 @@ void smart_lock_detect(void)
 			{
 				NRF_LOG_INFO("Lock successful");
 				sl_info.alarm_cnt = 0;
-				smart_lock_active_beep(false);
-				nrf_delay_ms(100);
-				smart_lock_active_beep(true);
-				nrf_delay_ms(200);
-				smart_lock_active_beep(false);
+				smart_lock_beep(SL_BEEP_GAP_MS, SL_BEEP_LOCK_MS);
 				sl_info.lock_status = SL_LOCK;
 				uarts_ble_send_data(SL_LOCK_SUCCESS);
+				smart_lock_send_telemetry();
 			}
 			else
 			{
@@ -329,11 +625,163 @@ void smart_lock_detect(void)
 					return;
 				}
 				sl_info.alarm_cnt += 1;
+				smart_lock_send_telemetry();
 			}
 			break;
 	}
 }
 
+/* Queue a written packet for smart_lock_process(); called from the BLE
+ * event handler, so it only copies. Returns false if the ring is full. */
+bool smart_lock_rx_put(uint8_t const *data, uint16_t len)
+{
+	uint16_t tail = rx_tail;
+
+	if (len == 0 || len > SL_RX_PACKET_MAX)
+	{
+		rx_dropped++;
+		return false;
+	}
+
+	if ((uint16_t)(tail - rx_head) + 1 + len > SL_RX_RING_SIZE)
+	{
+		rx_dropped++;
+		return false;
+	}
+
+	rx_ring[tail++ & (SL_RX_RING_SIZE - 1)] = len;
+	for (uint16_t i = 0; i < len; i++)
+	{
+		rx_ring[tail++ & (SL_RX_RING_SIZE - 1)] = data[i];
+	}
+
+	/* The record is complete before the main loop can see it */
+	__DMB();
+	rx_tail = tail;
+	return true;
+}
+
+uint32_t smart_lock_rx_dropped(void)
+{
+	return rx_dropped;
+}
+
+static int smart_lock_rx_get(uint8_t *out)
+{
+	uint16_t head = rx_head;
+	int len;
+
+	if (head == rx_tail)
+		return 0;
+
+	len = rx_ring[head++ & (SL_RX_RING_SIZE - 1)];
+	for (int i = 0; i < len; i++)
+	{
+		out[i] = rx_ring[head++ & (SL_RX_RING_SIZE - 1)];
+	}
+
+	__DMB();
+	rx_head = head;
+	return len;
+}
+
+/* Parse one written packet: a chunk, a packed binary frame or a legacy
+ * ASCII frame. */
+void smart_lock_dispatch(uint8_t const *packet, int len)
+{
+	static uint8_t code[SL_CMD_MAX_LEN > SL_RX_PACKET_MAX ? SL_CMD_MAX_LEN : SL_RX_PACKET_MAX];
+	uint8_t const *p_frame = packet;
+	int frame_len = len;
+
+	if (frame_len >= 2 && (p_frame[0] & SL_FRAME_CHUNK) == SL_FRAME_CHUNK)
+	{
+		frame_len = smart_lock_reassemble(p_frame, frame_len, &p_frame);
+		if (frame_len <= 0)
+			return;
+	}
+
+	if (p_frame[0] & SL_FRAME_BINARY)
+	{
+		int n = smart_lock_unpack_frame(p_frame, frame_len, code, sizeof(code));
+		if (n > 0)
+			smart_lock_parse_data(code, n);
+		else
+			NRF_LOG_INFO("Malformed binary frame");
+		return;
+	}
+
+	for (int i = 0; i < frame_len; i++)
+	{
+		if (p_frame[i] >= 0x30 && p_frame[i] <= 0x39)
+			code[i] = p_frame[i] - 0x30;
+		else
+			code[i] = p_frame[i] - 0x57;
+	}
+	smart_lock_parse_data(code, frame_len);
+}
+
+/* The codes survived a reset; so did their expiry. */
+static void smart_lock_codes_loaded(void)
+{
+	sl_info.code_valid = code_store_count();
+	if (sl_info.code_valid > 0)
+	{
+		smart_lock_set_code_date(code_store_date());
+		sl_info.update = true;
+	}
+}
+
+/* Main loop work: flash writes of the code store, the queued packets, then
+ * whatever the timers flagged. Packets wait until the codes are read back. */
+void smart_lock_process(void)
+{
+	static uint8_t packet[SL_RX_PACKET_MAX];
+	int len;
+
+	if (code_store_process())
+		smart_lock_codes_loaded();
+
+	while (code_store_ready() && (len = smart_lock_rx_get(packet)) > 0)
+	{
+		smart_lock_dispatch(packet, len);
+	}
+
+	if (beep_due)
+	{
+		beep_due = false;
+		smart_lock_beep_timeout();
+	}
+
+	if (led_due)
+	{
+		led_due = false;
+		smart_lock_led_timeout();
+	}
+
+	if (detect_due)
+	{
+		detect_due = false;
+		smart_lock_detect();
+	}
+}
+
+static void smart_lock_timers_init(void)
+{
+	ret_code_t err_code;
+
+	if (timers_created)
+		return;
+
+	err_code = app_timer_create(&m_beep_timer, APP_TIMER_MODE_SINGLE_SHOT, beep_timer_handler);
+	APP_ERROR_CHECK(err_code);
+	err_code = app_timer_create(&m_led_timer, APP_TIMER_MODE_SINGLE_SHOT, led_timer_handler);
+	APP_ERROR_CHECK(err_code);
+	err_code = app_timer_create(&m_detect_timer, APP_TIMER_MODE_REPEATED, detect_timer_handler);
+	APP_ERROR_CHECK(err_code);
+	smart_lock_timer_start(m_detect_timer, SL_DETECT_INTERVAL_MS);
+	timers_created = true;
+}
+
 void smart_lock_init(void)
 {
 	memset(&sl_info, 0x0, sizeof(sl_info));
@@ -347,9 +795,15 @@ void smart_lock_init(void)
 	sl_info.beep = false;
 	sl_info.dev_lock = false;
 
-	for (int i = 0; i <= SL_CODE_NUM; i++)
+	/* Boot reads the codes back from flash; a reset command wipes them */
+	if (store_started)
+	{
+		code_store_clear();
+	}
+	else
 	{
-		sl_info.access_code[i] = 0xFF;
+		code_store_init();
+		store_started = true;
 	}
 
 	//nrf_gpio_cfg_output(LED_PIN);
@@ -368,5 +822,7 @@ void smart_lock_init(void)
 	else
 		sl_info.lock_status = SL_UNLOCK;
 
+	smart_lock_timers_init();
+
 	NRF_LOG_INFO("Init Lock Status = %x", sl_info.lock_status);
 }
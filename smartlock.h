@@ -15,14 +15,49 @@
 
 //SmartLock protocol
 #define SL_DEV_ID_LEN                   16
-#define SL_CODE_NUM                     10
+#define SL_CODE_NUM                     10 //digits of an unlock or update command
 #define SL_CODE_TIME_LEN                10 //yymmddhhmm
+#define SL_CODE_BYTES                   3  //big endian code in a load or add command
+#define SL_CMD_CODES_MAX                255
+
+//Packed binary frame: |0x80 | cmd|len|codes|dev id (8)|BCD yymmddhhmm (5)|
+#define SL_FRAME_BINARY                 0x80
+#define SL_FRAME_DEV_ID_LEN             (SL_DEV_ID_LEN / 2)
+#define SL_FRAME_TIME_LEN               (SL_CODE_TIME_LEN / 2)
+#define SL_FRAME_MAX_LEN                (2 + SL_CMD_CODES_MAX + SL_FRAME_DEV_ID_LEN + SL_FRAME_TIME_LEN)
+
+//Unpacked command: |cmd|n|n code digits|dev id (16 nibbles)|yymmddhhmm (10 digits)|
+//Load and add carry n / SL_CODE_BYTES codes instead of digits, binary frames only.
+#define SL_CMD_HEADER_LEN               2
+#define SL_CMD_MAX_LEN                  (SL_CMD_HEADER_LEN + SL_CMD_CODES_MAX + SL_DEV_ID_LEN + SL_CODE_TIME_LEN)
+
+//Written packets wait in a ring of |len|packet| records until the main loop parses them
+#define SL_RX_RING_SIZE                 1024 //power of two
+#define SL_RX_PACKET_MAX                244  //ATT payload at the largest MTU
+
+//Frames longer than the ATT payload arrive as chunks: |11|last|seq(5)|payload|
+#define SL_FRAME_CHUNK                  0xC0
+#define SL_FRAME_CHUNK_LAST             0x20
+#define SL_FRAME_CHUNK_SEQ_MASK         0x1F
+
+//Telemetry notification, values big endian: |0x20|version|type|len|value|type|len|value|...
+//Readers skip types they do not know; a type left out keeps its last value.
+#define SL_TELEMETRY                    0x20
+#define SL_TELEMETRY_VERSION            1
+#define SL_TLV_LOCK_STATUS              0x01 //SL_LOCK, SL_UNLOCK or SL_UNUSABLE
+#define SL_TLV_LATCH                    0x02 //LOCKER_PIN: LOCKER_CONNECT or LOCKER_DISCONNECT
+#define SL_TLV_ALARM_CNT                0x03
+#define SL_TLV_CODES_LEFT               0x04 //codes an unlock can still use, 1 or 2 bytes
+#define SL_TLV_BATTERY_MV               0x05 //2 bytes, boards that measure it
+#define SL_TELEMETRY_MAX_LEN            20
 
 #define SL_UNLOCK_CMD                   0x0
 #define SL_LOCK_CMD                     0x1
 #define SL_UPDATE_CODE_CMD              0x2
 #define SL_APP_READY_CMD                0x3
 #define SL_RESET_CMD                    0x4
+#define SL_LOAD_CODES_CMD               0x5 //replace the codes, answered SL_UPDATE_SUCCESS
+#define SL_ADD_CODES_CMD                0x6 //add to them, e.g. the rest of a load
 
 #define SL_LOCK_SUCCESS                 0x10
 #define SL_UNLOCK_SUCCESS               0x11
@@ -53,8 +88,7 @@ typedef struct
 	int lock_status;
 	int lock_connect;
 	int alarm_cnt;
-	int code_valid;
-	uint8_t access_code[SL_CODE_NUM];
+	int code_valid; //uses left in the code store
 	uint8_t code_date[SL_CODE_TIME_LEN];
 	uint8_t dev_id[SL_DEV_ID_LEN];
 	bool update;
@@ -66,10 +100,26 @@ extern smart_lock_info sl_info;
 
 void smart_lock_pulse_led(void);
 
+bool smart_lock_rx_put(uint8_t const *data, uint16_t len);
+
+uint32_t smart_lock_rx_dropped(void);
+
+void smart_lock_dispatch(uint8_t const *packet, int len);
+
+void smart_lock_process(void);
+
 void smart_lock_parse_data(uint8_t *buf, int len);
 
+int smart_lock_unpack_frame(uint8_t const *in, int len, uint8_t *out, int out_len);
+
+int smart_lock_reassemble(uint8_t const *in, int len, uint8_t const **frame);
+
 void smart_lock_detect(void);
 
+int smart_lock_build_telemetry(uint8_t *buf, int len);
+
+void smart_lock_send_telemetry(void);
+
 void smart_lock_init(void);
 
 #endif // SMARTLOCK_H__